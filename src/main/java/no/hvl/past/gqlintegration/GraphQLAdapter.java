@@ -5,11 +5,15 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import graphql.schema.GraphQLSchema;
 import no.hvl.past.di.PropertyHolder;
 
+import no.hvl.past.gqlintegration.queries.GraphQLQueryDelegator;
 import no.hvl.past.gqlintegration.queries.GraphQLQueryDivider;
+import no.hvl.past.gqlintegration.queries.PayloadFormat;
 import no.hvl.past.gqlintegration.schema.GraphQLSchemaReader;
 import no.hvl.past.gqlintegration.schema.GraphQLSchemaWriter;
+import no.hvl.past.gqlintegration.schema.SchemaSnapshot;
 import no.hvl.past.graph.*;
 import no.hvl.past.graph.trees.QueryHandler;
 import no.hvl.past.graph.trees.QueryTree;
@@ -28,25 +32,54 @@ import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.net.ConnectException;
+import java.net.URI;
 import java.net.URISyntaxException;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class GraphQLAdapter implements TechSpaceAdapter<GraphQLTechSpace>, TechSpaceDirective {
 
 
+    private static final Logger logger = Logger.getLogger(GraphQLAdapter.class);
+
     private final Universe universe;
     private final PropertyHolder propertyHolder;
     private final JsonFactory jsonFactory;
     private final ObjectMapper objectMapper;
+    private int importParallelism = Runtime.getRuntime().availableProcessors();
+    private long snapshotMaxAge = DEFAULT_SNAPSHOT_MAX_AGE;
+    private final Map<Name, ConvertedSchema> convertedSchemas = new ConcurrentHashMap<>();
+
+    public static final long DEFAULT_SNAPSHOT_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * A system converted from the schema with the given hash.
+     */
+    private static class ConvertedSchema {
+        private final String url;
+        private final String hash;
+        private final Sys sys;
+
+        ConvertedSchema(SchemaSnapshot.Entry entry, Sys sys) {
+            this.url = entry.getUrl();
+            this.hash = entry.getHash();
+            this.sys = sys;
+        }
+    }
 
     public GraphQLAdapter(Universe universe, PropertyHolder propertyHolder) {
         this.universe = universe;
         this.propertyHolder = propertyHolder;
         this.jsonFactory = new JsonFactory();
-        this.objectMapper = new ObjectMapper(jsonFactory);
+        this.objectMapper = PayloadFormat.createObjectMapper(jsonFactory);
     }
 
     public JsonParser jsonParser(InputStream inputStream) throws IOException {
@@ -61,9 +94,21 @@ public class GraphQLAdapter implements TechSpaceAdapter<GraphQLTechSpace>, TechS
         return new GraphBuilders(universe, false, false);
     }
 
+    public void setImportParallelism(int importParallelism) {
+        this.importParallelism = Math.max(1, importParallelism);
+    }
+
+    /**
+     * Snapshot entries older than this (in milliseconds) are introspected again, one day by default.
+     */
+    public void setSnapshotMaxAge(long snapshotMaxAge) {
+        this.snapshotMaxAge = snapshotMaxAge;
+    }
+
     public Sys parseSchema(Name schemaName, String fromURI) throws TechSpaceException, UnsupportedFeatureException {
         try {
-            return GraphQLEndpoint.createFromUrl(fromURI, schemaName, new GraphQLSchemaReader(universe), objectMapper, jsonFactory);
+            GraphQLSchema schema = GraphQLEndpoint.readSchema(fromURI);
+            return convertSchema(schemaName, fromURI, schema);
         } catch (ConnectException ce) {
             throw new TechSpaceException("GraphQL endpoint at URL '" + fromURI + "' is not running!", GraphQLTechSpace.INSTANCE);
         } catch (URISyntaxException | IOException | GraphError e) {
@@ -71,6 +116,125 @@ public class GraphQLAdapter implements TechSpaceAdapter<GraphQLTechSpace>, TechS
         }
     }
 
+    /**
+     * Imports the schemas of several endpoints (name to URL) concurrently,
+     * the result preserves the iteration order of the given map.
+     * The overall time is roughly that of the slowest endpoint instead of the sum of all.
+     */
+    public LinkedHashMap<Name, Sys> parseSchemas(Map<Name, String> endpoints) throws TechSpaceException, UnsupportedFeatureException {
+        return parseSchemas(endpoints, null);
+    }
+
+    /**
+     * Like {@link #parseSchemas(Map)} but only endpoints that are not contained in the given snapshot file,
+     * or whose entry is older than the snapshot max age (see {@link #setSnapshotMaxAge(long)}), are actually introspected.
+     * The snapshot is (re-)written afterwards if anything had to be fetched. Schemas from local files ("file:" URLs)
+     * are also read again when the file has been modified after their entry was fetched.
+     * Converting a schema into a system is skipped as long as the same name, URL and schema (by hash) were converted before
+     * by this adapter; the converted systems live in the universe, so after a restart every schema is converted once again.
+     * Without a snapshot file, schemas are neither hashed nor is their conversion reused.
+     */
+    public LinkedHashMap<Name, Sys> parseSchemas(Map<Name, String> endpoints, File snapshot) throws TechSpaceException, UnsupportedFeatureException {
+        LinkedHashMap<Name, Sys> result = new LinkedHashMap<>();
+        if (endpoints.isEmpty()) {
+            return result;
+        }
+        Map<String, SchemaSnapshot.Entry> entries;
+        try {
+            entries = snapshot == null ? new LinkedHashMap<>() : SchemaSnapshot.read(snapshot);
+        } catch (IOException e) {
+            logger.warn("Cannot read schema snapshot '" + snapshot + "', introspecting all endpoints", e);
+            entries = new LinkedHashMap<>();
+        }
+        long now = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(importParallelism, endpoints.size()));
+        String current = null;
+        try {
+            LinkedHashMap<String, Future<SchemaSnapshot.Entry>> futures = new LinkedHashMap<>();
+            boolean snapshotChanged = false;
+            for (String url : endpoints.values()) {
+                if (futures.containsKey(url)) {
+                    continue;
+                }
+                SchemaSnapshot.Entry entry = entries.get(url);
+                if (snapshot == null) {
+                    futures.put(url, executor.submit(() -> SchemaSnapshot.Entry.transientEntry(url, GraphQLEndpoint.readSchema(url), now)));
+                } else if (entry == null || entry.isExpired(snapshotMaxAge, now) || isModifiedSince(url, entry.getFetchedAt())) {
+                    futures.put(url, executor.submit(() -> SchemaSnapshot.Entry.of(url, GraphQLEndpoint.readSchema(url), now)));
+                    snapshotChanged = true;
+                }
+            }
+            for (Map.Entry<String, Future<SchemaSnapshot.Entry>> future : futures.entrySet()) {
+                current = future.getKey();
+                entries.put(future.getKey(), future.getValue().get());
+            }
+            // creating the stub schemas of snapshot entries does not touch the universe and runs concurrently as well
+            LinkedHashMap<Name, Future<GraphQLSchema>> schemas = new LinkedHashMap<>();
+            for (Map.Entry<Name, String> endpoint : endpoints.entrySet()) {
+                SchemaSnapshot.Entry entry = entries.get(endpoint.getValue());
+                if (lookupConverted(endpoint.getKey(), entry) == null) {
+                    schemas.put(endpoint.getKey(), executor.submit(entry::getSchema));
+                }
+            }
+            for (Map.Entry<Name, String> endpoint : endpoints.entrySet()) {
+                current = endpoint.getValue();
+                SchemaSnapshot.Entry entry = entries.get(endpoint.getValue());
+                Sys sys = lookupConverted(endpoint.getKey(), entry);
+                if (sys == null) {
+                    sys = convertSchema(endpoint.getKey(), endpoint.getValue(), schemas.get(endpoint.getKey()).get());
+                    convertedSchemas.put(endpoint.getKey(), new ConvertedSchema(entry, sys));
+                }
+                result.put(endpoint.getKey(), sys);
+            }
+            if (snapshot != null && snapshotChanged) {
+                SchemaSnapshot.write(snapshot, entries.values());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TechSpaceException(e, GraphQLTechSpace.INSTANCE);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ConnectException) {
+                throw new TechSpaceException("GraphQL endpoint at URL '" + current + "' is not running!", GraphQLTechSpace.INSTANCE);
+            }
+            throw new TechSpaceException(e, GraphQLTechSpace.INSTANCE);
+        } catch (IOException | GraphError e) {
+            throw new TechSpaceException(e, GraphQLTechSpace.INSTANCE);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Whether the URL refers to a local schema file that has been modified after the given time.
+     */
+    private static boolean isModifiedSince(String url, long time) {
+        if (!GraphQLEndpoint.isLocalSchema(url)) {
+            return false;
+        }
+        try {
+            return new File(new URI(url)).lastModified() > time;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private Sys lookupConverted(Name schemaName, SchemaSnapshot.Entry entry) {
+        ConvertedSchema converted = convertedSchemas.get(schemaName);
+        if (converted != null && entry.getHash() != null && converted.url.equals(entry.getUrl()) && entry.getHash().equals(converted.hash)) {
+            return converted.sys;
+        }
+        return null;
+    }
+
+    private Sys convertSchema(Name schemaName, String url, GraphQLSchema schema) throws GraphError, UnsupportedFeatureException {
+        // every conversion gets its own reader, the builders register their results in the shared universe though
+        GraphQLSchemaReader reader = new GraphQLSchemaReader(universe);
+        synchronized (universe) {
+            return GraphQLEndpoint.createFromSchema(url, schemaName, schema, reader, objectMapper, jsonFactory);
+        }
+    }
+
     @Override
     public void writeSchema(Sys sys, OutputStream outputStream) throws TechSpaceException, UnsupportedFeatureException {
         try {
@@ -96,6 +260,10 @@ public class GraphQLAdapter implements TechSpaceAdapter<GraphQLTechSpace>, TechS
             LinkedHashMap<Sys, QueryHandler> handlerMap = new LinkedHashMap<>();
             for (Sys sys : comprSys.components().collect(Collectors.toList())) {
                 QueryHandler queryHandler = queryHandler(sys);
+                if (queryHandler instanceof GraphQLQueryDelegator) {
+                    // the divider reads component results format-agnostic, the cached delegator stays JSON-only
+                    queryHandler = ((GraphQLQueryDelegator) queryHandler).binaryCopy();
+                }
                 handlerMap.put(sys, queryHandler);
             }
             try {
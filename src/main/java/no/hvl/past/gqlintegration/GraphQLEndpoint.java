@@ -10,6 +10,7 @@ import graphql.schema.idl.TypeDefinitionRegistry;
 import no.hvl.past.gqlintegration.caller.IntrospectionQuery;
 import no.hvl.past.gqlintegration.predicates.MutationMessage;
 import no.hvl.past.gqlintegration.predicates.QueryMesage;
+import no.hvl.past.gqlintegration.predicates.SubscriptionMessage;
 import no.hvl.past.gqlintegration.queries.GraphQLQueryDelegator;
 import no.hvl.past.gqlintegration.queries.GraphQLQueryHandler;
 import no.hvl.past.gqlintegration.schema.FieldMult;
@@ -44,8 +45,10 @@ public class GraphQLEndpoint extends Sys.Impl {
     private JsonFactory jsonFactory;
     private Set<QueryMesage> queries;
     private Set<MutationMessage> mutations;
+    private Set<SubscriptionMessage> subscriptions = Collections.emptySet();
     private String queryTypeName;
     private String mutationTyupeName;
+    private String subscriptionTypeName = "Subscription";
 
 
     public GraphQLEndpoint(
@@ -102,6 +105,18 @@ public class GraphQLEndpoint extends Sys.Impl {
         return this.mutations.stream().filter(mm -> mm.getOperationName().equals(operationName)).findFirst();
     }
 
+    public Optional<SubscriptionMessage> getSubscriptionMessage(String operationName) {
+        return this.subscriptions.stream().filter(sm -> sm.getOperationName().equals(operationName)).findFirst();
+    }
+
+    /**
+     * Registers the subscription operations of this endpoint, which are kept apart from queries and mutations.
+     */
+    public void setSubscriptions(Set<SubscriptionMessage> subscriptions, String subscriptionTypeName) {
+        this.subscriptions = subscriptions;
+        this.subscriptionTypeName = subscriptionTypeName;
+    }
+
 
     public Optional<MessageType> getMessage(String name) {
         if (name.contains(".")) {
@@ -117,15 +132,24 @@ public class GraphQLEndpoint extends Sys.Impl {
                     return Optional.of(mutationMessage);
                 }
             }
+            for (SubscriptionMessage subscriptionMessage : this.subscriptions) {
+                if (subscriptionMessage.getContainerObjectName().equals(container) && subscriptionMessage.getOperationName().equals(operation)) {
+                    return Optional.of(subscriptionMessage);
+                }
+            }
             return Optional.empty();
         }
         Optional<QueryMesage> qm = getQueryMessage(name);
-        return qm.<Optional<MessageType>>map(Optional::of).orElseGet(() -> getMutationNMassage(name).map(x -> x));
+        if (qm.isPresent()) {
+            return Optional.of(qm.get());
+        }
+        Optional<MutationMessage> mm = getMutationNMassage(name);
+        return mm.<Optional<MessageType>>map(Optional::of).orElseGet(() -> getSubscriptionMessage(name).map(x -> x));
     }
 
     @Override
     public Stream<MessageType> messages() {
-        return Stream.concat(this.queries.stream(), this.mutations.stream());
+        return Stream.concat(Stream.concat(this.queries.stream(), this.mutations.stream()), this.subscriptions.stream());
     }
 
     @Override
@@ -156,7 +180,7 @@ public class GraphQLEndpoint extends Sys.Impl {
         if (path.length == 0) {
             return Optional.empty();
         }
-        if (path[0].equals(queryTypeName) || path[0].equals(mutationTyupeName)) {
+        if (path[0].equals(queryTypeName) || path[0].equals(mutationTyupeName) || path[0].equals(subscriptionTypeName)) {
             if (path.length == 1) {
                 return Optional.empty();
             }
@@ -195,19 +219,41 @@ public class GraphQLEndpoint extends Sys.Impl {
             GraphQLSchemaReader reader,
             ObjectMapper objectMapper,
             JsonFactory jsonFactory) throws URISyntaxException, GraphError, IOException, UnsupportedFeatureException {
-        Sketch sketch;
-        if (url.startsWith("file") || url.startsWith(".")) {
+        return createFromSchema(url, name, readSchema(url), reader, objectMapper, jsonFactory);
+    }
+
+    /**
+     * Loads the schema behind the given URL, either from a local SDL file or via an introspection query.
+     * This step does not touch the universe and can thus run concurrently for several endpoints.
+     */
+    public static GraphQLSchema readSchema(String url) throws URISyntaxException, IOException {
+        if (isLocalSchema(url)) {
             // local file
             File file = new File(new URI(url));
             TypeDefinitionRegistry registry = new SchemaParser().parse(file);
-            GraphQLSchema schema = new SchemaGenerator().makeExecutableSchema(registry, StubWiring.createWiring(registry));
-            sketch = reader.convert(name, schema);
+            return new SchemaGenerator().makeExecutableSchema(registry, StubWiring.createWiring(registry));
         } else {
             // introspection query
-            GraphQLSchema schema = new IntrospectionQuery().getGraphQLSchema(url);
-            sketch = reader.convert(name, schema);
+            return new IntrospectionQuery().getGraphQLSchema(url);
         }
-        return new GraphQLEndpoint(
+    }
+
+    /**
+     * Whether the schema of the given URL is read from a local SDL file instead of being introspected.
+     */
+    public static boolean isLocalSchema(String url) {
+        return url.startsWith("file") || url.startsWith(".");
+    }
+
+    public static GraphQLEndpoint createFromSchema(
+            String url,
+            Name name,
+            GraphQLSchema schema,
+            GraphQLSchemaReader reader,
+            ObjectMapper objectMapper,
+            JsonFactory jsonFactory) throws GraphError, UnsupportedFeatureException {
+        Sketch sketch = reader.convert(name, schema);
+        GraphQLEndpoint endpoint = new GraphQLEndpoint(
                 url,
                 sketch,
                 reader.getNameToText(),
@@ -217,6 +263,8 @@ public class GraphQLEndpoint extends Sys.Impl {
                 objectMapper,
                 jsonFactory
         ,reader.getQueryTypeName(), reader.getMutationTypeName());
+        endpoint.setSubscriptions(reader.getSubscriptions(), reader.getSubscriptionTypeName());
+        return endpoint;
 
     }
 
@@ -1,8 +1,10 @@
 package no.hvl.past.gqlintegration.caller;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.google.common.collect.Sets;
 import graphql.introspection.IntrospectionResultToSchema;
 import graphql.language.Document;
@@ -12,6 +14,7 @@ import graphql.schema.idl.SchemaGenerator;
 import graphql.schema.idl.SchemaParser;
 import graphql.schema.idl.TypeDefinitionRegistry;
 import no.hvl.past.attributes.TypedVariables;
+import no.hvl.past.gqlintegration.queries.ContentEncoding;
 import no.hvl.past.gqlintegration.queries.GraphQLQuery;
 import no.hvl.past.gqlintegration.schema.StubWiring;
 import no.hvl.past.graph.Graph;
@@ -26,7 +29,6 @@ import no.hvl.past.util.StreamExt;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -38,6 +40,9 @@ public class IntrospectionQuery implements QueryTree {
 
     private static final String JSON_RESULT_CONTAINER_OBJ = "data";
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> SCHEMA_DEFINITION_TYPE = new TypeReference<Map<String, Object>>() {};
+
     private static final String INTROSPECTION_QUERY = "query IntrospectionQuery {\n" +
             "    __schema {\n" +
             "      queryType { name }\n" +
@@ -161,9 +166,14 @@ public class IntrospectionQuery implements QueryTree {
     }
 
     public GraphQLSchema getGraphQLSchema(String endpoint) throws IOException {
-        final JsonNode result = this.executeQuery(endpoint, INTROSPECTION_QUERY);
-        final ObjectMapper mapper = new ObjectMapper();
-        @SuppressWarnings("unchecked") final Map<String, Object> schemaDefinition = mapper.convertValue(result, HashMap.class);
+        final Map<String, Object> schemaDefinition = this.executeQuery(endpoint, INTROSPECTION_QUERY);
+        return createSchema(schemaDefinition);
+    }
+
+    /**
+     * Creates an executable (stub) schema from the contents of the 'data' object of an introspection response.
+     */
+    public static GraphQLSchema createSchema(Map<String, Object> schemaDefinition) {
         final Document document = new IntrospectionResultToSchema().createSchemaDefinition(schemaDefinition);
         final SchemaParser parser = new SchemaParser();
         final TypeDefinitionRegistry schema = parser.buildRegistry(document);
@@ -171,34 +181,48 @@ public class IntrospectionQuery implements QueryTree {
         return generator.makeExecutableSchema(schema, StubWiring.createWiring(schema));
     }
 
-    private JsonNode executeQuery(final String endpoint, final String query) throws IOException {
+    /**
+     * Reads the 'data' object of an introspection response straight from the (possibly gzipped) stream,
+     * all other parts of the response are skipped without materializing them.
+     */
+    public static Map<String, Object> readIntrospectionResult(InputStream inputStream) throws IOException {
+        try (JsonParser parser = MAPPER.getFactory().createParser(ContentEncoding.decompressIfNeeded(inputStream))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Introspection response is not a JSON object!");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (JSON_RESULT_CONTAINER_OBJ.equals(fieldName)) {
+                    return MAPPER.readValue(parser, SCHEMA_DEFINITION_TYPE);
+                }
+                parser.skipChildren();
+            }
+            throw new IOException("Introspection response does not contain '" + JSON_RESULT_CONTAINER_OBJ + "'!");
+        }
+    }
+
+    private Map<String, Object> executeQuery(final String endpoint, final String query) throws IOException {
         this.setupConnection(new URL(endpoint));
         this.getConnection().connect();
-        BufferedWriter outputWriter = new BufferedWriter(new OutputStreamWriter(this.getConnection().getOutputStream()));
-        outputWriter.write(JsonNodeFactory.instance.objectNode().put("query", query).toString());
-        outputWriter.flush();
-        outputWriter.close();
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(this.getConnection().getOutputStream())) {
+            generator.writeStartObject();
+            generator.writeStringField("query", query);
+            generator.writeEndObject();
+        }
         int responseCode = getConnection().getResponseCode();
+        ContentEncoding encoding = ContentEncoding.fromHeader(getConnection().getContentEncoding());
         switch (responseCode) {
                     case HttpURLConnection.HTTP_OK:
-
-                    BufferedReader inputReader = new BufferedReader(new InputStreamReader(this.getConnection().getInputStream()));
-                    StringBuilder result = new StringBuilder();
-                    String line;
-                    while ((line = inputReader.readLine()) != null) {
-                        result.append(line);
-                        result.append(System.lineSeparator());
+                    // closing the fully consumed stream (instead of disconnecting) keeps the connection alive for reuse
+                    try (InputStream inputStream = encoding.decode(this.getConnection().getInputStream())) {
+                        return readIntrospectionResult(inputStream);
                     }
-                    inputReader.close();
-                    this.getConnection().disconnect();
-                    final ObjectMapper mapper = new ObjectMapper();
-                    final JsonNode root = mapper.readTree(result.toString());
-                    return root.get(IntrospectionQuery.JSON_RESULT_CONTAINER_OBJ);
 
                     case HttpURLConnection.HTTP_BAD_REQUEST:
                     case HttpURLConnection.HTTP_INTERNAL_ERROR:
 
-                    BufferedReader errorReader = new BufferedReader(new InputStreamReader(getConnection().getErrorStream()));
+                    BufferedReader errorReader = new BufferedReader(new InputStreamReader(encoding.decode(getConnection().getErrorStream())));
                     StringBuilder errorResult = new StringBuilder();
                     String errorLine;
                     while ((errorLine = errorReader.readLine()) != null) {
@@ -219,6 +243,7 @@ public class IntrospectionQuery implements QueryTree {
         connection.setRequestMethod("POST");
         connection.setRequestProperty("Content-Type", "application/json");
         connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Accept-Encoding", ContentEncoding.ACCEPTED_ENCODINGS);
         connection.setDoOutput(true);
         connection.setDoInput(true);
         this.setConnection(connection);
@@ -37,6 +37,10 @@ public abstract class GraphQLMessage implements MessageType {
 
     public abstract boolean isMutation();
 
+    public boolean isSubscription() {
+        return false;
+    }
+
     List<MessageArgument> getArguments() {
         return arguments;
     }
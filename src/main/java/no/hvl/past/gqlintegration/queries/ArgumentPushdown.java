@@ -0,0 +1,198 @@
+package no.hvl.past.gqlintegration.queries;
+
+import no.hvl.past.systems.ComprSys;
+import no.hvl.past.systems.Sys;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which arguments of a federated query are forwarded to which endpoint and evaluates the rest at the gateway.
+ * An endpoint evaluates an argument natively if its schema provides it and, in case the supported arguments of the
+ * endpoint have been declared via {@link #setSupportedArguments(String, Collection)}, the argument is among them.
+ * Arguments that are not evaluated natively can only be evaluated at the gateway if they have been declared as
+ * equality filters (see {@link #setEqualityFilters(Collection)}) and the field with the same name is selected,
+ * queries with other arguments that an endpoint cannot evaluate are rejected (see {@link #validate}).
+ * Limit arguments (e.g. first: 10) are furthermore always evaluated at the gateway on the concatenated results,
+ * such that the result of a field never exceeds the limit regardless of how many endpoints contribute to it.
+ */
+public class ArgumentPushdown {
+
+    private static final Logger logger = Logger.getLogger(ArgumentPushdown.class);
+
+    private final Set<String> limitArguments = new HashSet<>(Arrays.asList("first", "limit"));
+    private final Map<String, Set<String>> supportedArguments = new ConcurrentHashMap<>();
+    private volatile Set<String> equalityFilters = Collections.emptySet();
+
+    /**
+     * Sets the names of the arguments that limit the size of a list, "first" and "limit" by default.
+     */
+    public void setLimitArguments(Collection<String> argumentNames) {
+        this.limitArguments.clear();
+        this.limitArguments.addAll(argumentNames);
+    }
+
+    /**
+     * Declares the (global) names of the arguments the endpoint with the given url evaluates natively.
+     */
+    public void setSupportedArguments(String endpointUrl, Collection<String> argumentNames) {
+        this.supportedArguments.put(endpointUrl, new HashSet<>(argumentNames));
+    }
+
+    /**
+     * Declares the (global) names of the arguments that may be evaluated at the gateway as a filter by equality
+     * on the selected field with the same name, e.g. id for a query customers(id: 1) { id name }.
+     */
+    public void setEqualityFilters(Collection<String> argumentNames) {
+        this.equalityFilters = new HashSet<>(argumentNames);
+    }
+
+    public boolean isEqualityFilter(String argument) {
+        return equalityFilters.contains(argument);
+    }
+
+    public boolean isLimit(String argument) {
+        return limitArguments.contains(argument);
+    }
+
+    public boolean isSupported(Sys local, String argument) {
+        Set<String> supported = supportedArguments.get(local.url());
+        return supported == null || supported.contains(argument);
+    }
+
+    /**
+     * The smallest limit given on the node, or -1 if it is not limited.
+     */
+    int limit(GraphQLQuery.Node node) {
+        int result = -1;
+        for (GraphQLQuery.Argument argument : node.getArguments()) {
+            if (isLimit(argument.label())) {
+                try {
+                    int limit = Integer.parseInt(argument.getValueText().trim());
+                    if (limit >= 0 && (result < 0 || limit < result)) {
+                        result = limit;
+                    }
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring non-numeric limit '" + argument.label() + ": " + argument.getValueText() + "'");
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the limits of all global cursors below the given node.
+     */
+    void limitGlobalCursors(GraphQLQuery.Node node) {
+        if (node.cursor instanceof QueryCursor.ConcatCursor) {
+            ((QueryCursor.ConcatCursor) node.cursor).setLimit(limit(node));
+        }
+        for (GraphQLQuery.SelectionSet selection : node.getChildren()) {
+            limitGlobalCursors(selection.getChildNode());
+        }
+    }
+
+    /**
+     * Throws if the given (global) query has an argument that one of the given endpoints cannot evaluate natively
+     * and that cannot be evaluated at the gateway either, since it is no declared equality filter
+     * or its field is not selected.
+     */
+    public void validate(GraphQLQuery query, ComprSys comprSys, List<Sys> locals) throws QueryException {
+        for (GraphQLQuery.QueryRoot root : query.getRoots()) {
+            for (Sys local : locals) {
+                if (comprSys.localNames(local, root.edge().getSource()).findAny().isPresent()) {
+                    validate(root, comprSys, local);
+                }
+            }
+        }
+    }
+
+    private void validate(GraphQLQuery.Node node, ComprSys comprSys, Sys local) throws QueryException {
+        for (GraphQLQuery.Argument argument : node.getArguments()) {
+            if (isLimit(argument.label())) {
+                continue;
+            }
+            if (isSupported(local, argument.label()) && comprSys.localNames(local, argument.edgeTyping()).findAny().isPresent()) {
+                continue;
+            }
+            if (!isEqualityFilter(argument.label())) {
+                throw new QueryException("Argument '" + argument.label() + "' of '" + node.getLabel() + "' cannot be evaluated by '" + local.url() + "'!");
+            }
+            if (!filterField(node, argument.label()).filter(f -> comprSys.localNames(local, f.edge().getLabel()).findAny().isPresent()).isPresent()) {
+                throw new QueryException("Argument '" + argument.label() + "' of '" + node.getLabel() + "' cannot be evaluated by '" + local.url()
+                        + "' and can only be evaluated by the gateway if the field '" + argument.label() + "' is selected!");
+            }
+        }
+        for (GraphQLQuery.SelectionSet selection : node.getChildren()) {
+            if (comprSys.localNames(local, selection.edge().getLabel()).findAny().isPresent()) {
+                validate(selection.getChildNode(), comprSys, local);
+            }
+        }
+    }
+
+    private Optional<GraphQLQuery.SelectionSet> filterField(GraphQLQuery.Node node, String argument) {
+        return node.getChildren().stream().filter(ss -> !ss.isComplex() && ss.field().equals(argument)).findFirst();
+    }
+
+    /**
+     * True if the given field of the given (global) node is needed to evaluate an equality filter at the gateway,
+     * i.e. it must be fetched from every endpoint even if it could be answered by another one.
+     */
+    boolean isFilterField(GraphQLQuery.Node node, String field) {
+        return isEqualityFilter(field) && node.getArguments().stream().anyMatch(a -> a.label().equals(field));
+    }
+
+    /**
+     * Localizes the arguments of the global node for the given local node and configures the local cursor
+     * to evaluate the ones that cannot be pushed down.
+     * A limit is not pushed down if a filter has to be evaluated at the gateway or if the results are merged by keys,
+     * since the endpoint would otherwise cut off results that are filtered out or merged afterwards.
+     */
+    void localize(GraphQLQuery.Node globalNode, GraphQLQuery.Node localNode, QueryCursor.LocalCursor localCursor, ComprSys comprSys, Sys local) {
+        List<GraphQLQuery.Argument> limits = new ArrayList<>();
+        boolean limitAtGatewayOnly = globalNode.cursor instanceof QueryCursor.ConcatMergeCursor;
+        for (GraphQLQuery.Argument argument : globalNode.getArguments()) {
+            Collection<GraphQLQuery.Argument> localized = isSupported(local, argument.label()) ?
+                    argument.localize(localNode, comprSys, local) :
+                    Collections.emptyList();
+            if (isLimit(argument.label())) {
+                limits.addAll(localized);
+            } else if (localized.isEmpty()) {
+                limitAtGatewayOnly |= addFilter(globalNode, localNode, localCursor, comprSys, local, argument);
+            } else {
+                localNode.getArguments().addAll(localized);
+            }
+        }
+        if (!limitAtGatewayOnly) {
+            localNode.getArguments().addAll(limits);
+        }
+        localCursor.setLimit(limit(globalNode));
+    }
+
+    private boolean addFilter(
+            GraphQLQuery.Node globalNode,
+            GraphQLQuery.Node localNode,
+            QueryCursor.LocalCursor localCursor,
+            ComprSys comprSys,
+            Sys local,
+            GraphQLQuery.Argument argument) {
+        if (isEqualityFilter(argument.label())) {
+            Optional<GraphQLQuery.SelectionSet> selection = filterField(globalNode, argument.label());
+            if (selection.isPresent()) {
+                Optional<String> localField = comprSys.localNames(local, selection.get().edge().getLabel())
+                        .map(local::displayName)
+                        .filter(f -> localNode.getChildren().stream().anyMatch(ss -> ss.field().equals(f)))
+                        .findFirst();
+                if (localField.isPresent()) {
+                    localCursor.addFilter(localField.get(), argument.getValueText());
+                    return true;
+                }
+            }
+        }
+        // queries are validated before they are split, so this only happens for queries that bypassed the validation
+        logger.warn("Argument '" + argument.label() + "' on '" + globalNode.getLabel() + "' can neither be evaluated by '"
+                + local.url() + "' nor at the gateway");
+        return false;
+    }
+}
@@ -0,0 +1,54 @@
+package no.hvl.past.gqlintegration.queries;
+
+/**
+ * A Bloom filter over hash codes, answering whether a value might have been added (with a small
+ * false positive probability) or was definitely not added.
+ */
+final class BloomFilter {
+
+    private static final double LN2 = Math.log(2);
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+
+    /**
+     * Sizes the filter for the given number of values and false positive probability.
+     */
+    BloomFilter(int expectedValues, double falsePositiveProbability) {
+        int n = Math.max(1, expectedValues);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveProbability) / (LN2 * LN2));
+        this.numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * LN2));
+        this.bits = new long[(numBits + 63) / 64];
+    }
+
+    void add(int hashCode) {
+        int h1 = mix(hashCode);
+        int h2 = mix(h1);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(int hashCode) {
+        int h1 = mix(hashCode);
+        int h2 = mix(h1);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,130 @@
+package no.hvl.past.gqlintegration.queries;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * HTTP content codings supported for requests and responses.
+ */
+public enum ContentEncoding {
+
+    GZIP("gzip"),
+    DEFLATE("deflate"),
+    IDENTITY("identity");
+
+    public static final String ACCEPTED_ENCODINGS = GZIP.headerValue + ", " + DEFLATE.headerValue;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int GZIP_MAGIC_FIRST = 0x1f;
+    private static final int GZIP_MAGIC_SECOND = 0x8b;
+
+    private final String headerValue;
+
+    ContentEncoding(String headerValue) {
+        this.headerValue = headerValue;
+    }
+
+    public String getHeaderValue() {
+        return headerValue;
+    }
+
+    public InputStream decode(InputStream inputStream) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(inputStream, BUFFER_SIZE);
+            case DEFLATE:
+                return new InflaterInputStream(inputStream);
+            default:
+                return inputStream;
+        }
+    }
+
+    /**
+     * Wraps the given stream such that everything written is compressed.
+     * Flushing the result flushes the compressed data written so far (sync flush),
+     * closing it finishes the compressed stream.
+     */
+    public OutputStream encode(OutputStream outputStream) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(outputStream, BUFFER_SIZE, true);
+            case DEFLATE:
+                return new DeflaterOutputStream(outputStream, true);
+            default:
+                return outputStream;
+        }
+    }
+
+    /**
+     * Decompresses the given input if it starts with the gzip magic number, e.g. for recorded responses
+     * or for servers that do not set a Content-Encoding header.
+     */
+    public static InputStream decompressIfNeeded(InputStream inputStream) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(inputStream, 2);
+        byte[] magic = new byte[2];
+        int read = pushback.read(magic);
+        if (read > 0) {
+            pushback.unread(magic, 0, read);
+        }
+        if (read == 2 && (magic[0] & 0xff) == GZIP_MAGIC_FIRST && (magic[1] & 0xff) == GZIP_MAGIC_SECOND) {
+            return GZIP.decode(pushback);
+        }
+        return pushback;
+    }
+
+    /**
+     * Interprets a Content-Encoding header value, which may be null.
+     */
+    public static ContentEncoding fromHeader(String contentEncoding) {
+        if (contentEncoding != null) {
+            String value = contentEncoding.trim().toLowerCase();
+            for (ContentEncoding encoding : values()) {
+                if (encoding.headerValue.equals(value)) {
+                    return encoding;
+                }
+            }
+        }
+        return IDENTITY;
+    }
+
+    /**
+     * Picks the encoding for a response based on an Accept-Encoding header, which may be null.
+     * Codings with a zero quality value are excluded, gzip is preferred over deflate.
+     */
+    public static ContentEncoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return IDENTITY;
+        }
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] codingAndParams = part.trim().split(";");
+            String coding = codingAndParams[0].trim().toLowerCase();
+            boolean excluded = false;
+            for (int i = 1; i < codingAndParams.length; i++) {
+                String param = codingAndParams[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        excluded = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        excluded = true;
+                    }
+                }
+            }
+            if (!excluded) {
+                if (coding.equals(GZIP.headerValue) || coding.equals("*")) {
+                    return GZIP;
+                }
+                if (coding.equals(DEFLATE.headerValue)) {
+                    deflate = true;
+                }
+            }
+        }
+        return deflate ? DEFLATE : IDENTITY;
+    }
+}
@@ -0,0 +1,39 @@
+package no.hvl.past.gqlintegration.queries;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes that are read through it.
+ */
+class CountingInputStream extends FilterInputStream {
+
+    private long count = 0;
+
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int result = super.read();
+        if (result >= 0) {
+            count++;
+        }
+        return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int result = super.read(b, off, len);
+        if (result > 0) {
+            count += result;
+        }
+        return result;
+    }
+
+    long getCount() {
+        return count;
+    }
+}
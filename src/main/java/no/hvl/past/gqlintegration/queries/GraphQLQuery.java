@@ -1,7 +1,9 @@
 package no.hvl.past.gqlintegration.queries;
 
+import com.fasterxml.jackson.core.SerializableString;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import no.hvl.past.gqlintegration.schema.FieldNames;
 import no.hvl.past.graph.Graph;
 import no.hvl.past.graph.Sketch;
 import no.hvl.past.graph.elements.Triple;
@@ -23,6 +25,7 @@ public class GraphQLQuery implements QueryTree {
     private final List<QueryRoot> roots;
     private final Sketch targetSchema;
     private final Name queryName;
+    private boolean export = false;
 
 
     public GraphQLQuery(List<QueryRoot> roots, Sketch targetSchema, Name queryName) {
@@ -44,13 +47,59 @@ public class GraphQLQuery implements QueryTree {
         return roots;
     }
 
+    public boolean isIncremental() {
+        return this.roots.stream().anyMatch(QueryRoot::isIncremental);
+    }
+
+    public boolean isMutation() {
+        return this.roots.stream().anyMatch(QueryRoot::isMutation);
+    }
+
+    public boolean isSubscription() {
+        return this.roots.stream().anyMatch(QueryRoot::isSubscription);
+    }
+
+    /**
+     * Whether the client asked for the result as newline delimited JSON instead of a GraphQL response.
+     */
+    public boolean isExport() {
+        return export;
+    }
+
+    void setExport(boolean export) {
+        this.export = export;
+    }
+
+    /**
+     * Creates a query that only consists of the given subset of roots of this query.
+     */
+    public GraphQLQuery select(List<QueryRoot> roots) {
+        return new GraphQLQuery(roots, targetSchema, queryName);
+    }
+
     public interface AbstractSelection {
 
+        /**
+         * The schema edge typing this selection.
+         */
+        Triple edge();
+
         String field();
 
+        default SerializableString serializedField() {
+            return FieldNames.serialized(field());
+        }
+
         boolean isListValued();
 
         boolean isComplex();
+
+        /**
+         * How the values of this selection are written if it is a leaf.
+         */
+        default LeafWriter leafWriter() {
+            return LeafWriter.GENERIC;
+        }
     }
 
     public static class SelectionSet implements QueryBranch.Projection, AbstractSelection {
@@ -60,6 +109,7 @@ public class GraphQLQuery implements QueryTree {
          private final Node child;
          private final boolean isComplex;
          private final boolean isListValued;
+         private final LeafWriter leafWriter;
 
         SelectionSet(Triple typing, Node parent, Node child, boolean isComplex, boolean isListValued) {
              this.typing = typing;
@@ -67,6 +117,7 @@ public class GraphQLQuery implements QueryTree {
              this.child = child;
              this.isComplex = isComplex;
              this.isListValued = isListValued;
+             this.leafWriter = isComplex || typing == null ? LeafWriter.GENERIC : LeafWriter.forType(typing.getTarget());
          }
 
         public boolean isComplex() {
@@ -82,10 +133,20 @@ public class GraphQLQuery implements QueryTree {
             return child.getLabel();
         }
 
+        @Override
+        public SerializableString serializedField() {
+            return child.serializedLabel;
+        }
+
         public boolean isListValued() {
             return isListValued;
         }
 
+        @Override
+        public LeafWriter leafWriter() {
+            return leafWriter;
+        }
+
          @Override
          public QueryNode parent() {
              return parent;
@@ -106,6 +167,10 @@ public class GraphQLQuery implements QueryTree {
              return child;
          }
 
+         Node getChildNode() {
+             return child;
+         }
+
          @Override
          public boolean isCollection() {
              return false;
@@ -130,23 +195,57 @@ public class GraphQLQuery implements QueryTree {
             return Objects.hash(typing, child);
         }
 
-        Collection<SelectionSet> localize(Node parent, ComprSys comprSys, Sys local) {
+        /**
+         * Projection pushdown: an attribute of an object that is merged by keys has to be fetched only once,
+         * namely from the first of the given locals that can answer it, as long as both that local and the given
+         * one can identify the object via keys. Properties needed to evaluate keys or equality filters are always fetched.
+         */
+        private boolean answeredElsewhere(ComprSys comprSys, Sys local, Triple localTyping, List<Sys> pushdownLocals, ArgumentPushdown arguments) {
+            if (pushdownLocals == null || this.isComplex || !(this.parent.cursor instanceof QueryCursor.ConcatMergeCursor)) {
+                return false;
+            }
+            if (arguments != null && arguments.isFilterField(this.parent, field())) {
+                return false;
+            }
+            QueryCursor.ConcatMergeCursor mergeCursor = (QueryCursor.ConcatMergeCursor) this.parent.cursor;
+            if (!mergeCursor.hasKeys(local.url()) || mergeCursor.isKeyProperty(local.url(), localTyping)) {
+                return false;
+            }
+            for (Sys candidate : pushdownLocals) {
+                if (candidate.equals(local)) {
+                    return false;
+                }
+                if (mergeCursor.hasKeys(candidate.url()) && comprSys.localNames(candidate, this.typing.getLabel()).findAny().isPresent()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Collection<SelectionSet> localize(Node parent, ComprSys comprSys, Sys local, List<Sys> pushdownLocals, ArgumentPushdown arguments) {
             List<SelectionSet> result = new ArrayList<>();
             comprSys.localNames(local,this.typing.getLabel()).forEach(localName -> {
                 Triple typing = local.schema().carrier().get(localName).get();
+                if (answeredElsewhere(comprSys, local, typing, pushdownLocals, arguments)) {
+                    return;
+                }
                 Node newNode = new Node(local.displayName(typing.getLabel()), typing.getTarget());
                 SelectionSet newSelectionSect = new SelectionSet(typing, parent, newNode, this.isComplex, this.isListValued);
                 QueryCursor.LocalCursor cursor = new QueryCursor.LocalCursor(newSelectionSect, parent.cursor);
                 newNode.cursor = cursor;
 
                 for (SelectionSet ss : this.child.children) {
-                    newNode.children.addAll(ss.localize(newNode, comprSys, local));
+                    newNode.children.addAll(ss.localize(newNode, comprSys, local, pushdownLocals, arguments));
                 }
 
                 if (!this.isComplex || !newNode.children.isEmpty()) {
                     ((QueryCursor.ConcatCursor)SelectionSet.this.child.cursor).addLocalCursor(local.url(),cursor);
-                    for (Argument arg : this.child.getArguments()) {
-                        newNode.arguments.addAll(arg.localize(newNode, comprSys, local));
+                    if (arguments == null) {
+                        for (Argument arg : this.child.getArguments()) {
+                            newNode.arguments.addAll(arg.localize(newNode, comprSys, local));
+                        }
+                    } else {
+                        arguments.localize(this.child, newNode, cursor, comprSys, local);
                     }
                     result.add(newSelectionSect);
                 }
@@ -258,6 +357,7 @@ public class GraphQLQuery implements QueryTree {
     public static class Node implements QueryNode {
 
         private final String label;
+        private final SerializableString serializedLabel;
         private final Name type;
         private final List<SelectionSet> children = new ArrayList<>();
         private final List<Argument> arguments = new ArrayList<>();
@@ -313,7 +413,8 @@ public class GraphQLQuery implements QueryTree {
 
 
         public Node(String label, Name type) {
-            this.label = label;
+            this.serializedLabel = FieldNames.serialized(label);
+            this.label = serializedLabel.getValue();
             this.type = type;
         }
 
@@ -322,6 +423,10 @@ public class GraphQLQuery implements QueryTree {
             return label;
         }
 
+        public SerializableString getSerializedLabel() {
+            return serializedLabel;
+        }
+
         @Override
         public Name branchName() {
             return Name.identifier(label);
@@ -401,8 +506,22 @@ public class GraphQLQuery implements QueryTree {
 
     public static class QueryRoot extends Node implements QueryNode.Root, AbstractSelection {
 
+        /**
+         * How the result of a root is handed to the client, i.e. within the initial response
+         * or as a subsequent payload of an incremental (@defer / @stream) response.
+         */
+        public enum Delivery {
+            IMMEDIATE,
+            DEFER,
+            STREAM
+        }
+
         private final boolean isMutation;
         private final Triple messageReturnsTyping;
+        private Delivery delivery = Delivery.IMMEDIATE;
+        private String deliveryLabel;
+        private int initialCount = 0;
+        private boolean isSubscription;
 
         public QueryRoot(String label, boolean isMutation, Triple messageReturnsTyping) {
             super(label, messageReturnsTyping.getTarget());
@@ -410,6 +529,55 @@ public class GraphQLQuery implements QueryTree {
             this.messageReturnsTyping = messageReturnsTyping;
         }
 
+        public boolean isMutation() {
+            return isMutation;
+        }
+
+        public Delivery getDelivery() {
+            return delivery;
+        }
+
+        void setDelivery(Delivery delivery) {
+            this.delivery = delivery;
+        }
+
+        /**
+         * The label of the @defer / @stream directive, null if none was given.
+         */
+        public String getDeliveryLabel() {
+            return deliveryLabel;
+        }
+
+        void setDeliveryLabel(String deliveryLabel) {
+            this.deliveryLabel = deliveryLabel;
+        }
+
+        /**
+         * The number of list elements of a streamed root that are part of the initial payload.
+         */
+        public int getInitialCount() {
+            return initialCount;
+        }
+
+        void setInitialCount(int initialCount) {
+            this.initialCount = initialCount;
+        }
+
+        /**
+         * Whether this root is a subscription field, i.e. its result is a stream of events instead of a single value.
+         */
+        public boolean isSubscription() {
+            return isSubscription;
+        }
+
+        void setSubscription(boolean isSubscription) {
+            this.isSubscription = isSubscription;
+        }
+
+        public boolean isIncremental() {
+            return delivery != Delivery.IMMEDIATE;
+        }
+
         public QueryCursor createGlobalCursor(Name comprSchemaName, Set<Key> keys, List<Sys> locals) {
             if (keys.stream().anyMatch(k -> k.targetType().prefixWith(comprSchemaName).equals(messageReturnsTyping.getTarget()))) {
                 Multimap<String, Key> keysMap = ArrayListMultimap.create();
@@ -445,19 +613,24 @@ public class GraphQLQuery implements QueryTree {
             return messageReturnsTyping;
         }
 
-        List<GraphQLQuery.QueryRoot> localize(ComprSys comprSys, Sys local) {
+        List<GraphQLQuery.QueryRoot> localize(ComprSys comprSys, Sys local, List<Sys> pushdownLocals, ArgumentPushdown arguments) {
             List<GraphQLQuery.QueryRoot> result = new ArrayList<>();
             comprSys.localNames(local,this.messageReturnsTyping.getSource()).forEach(localName -> {
                 QueryRoot e = new QueryRoot(local.displayName(localName), isMutation, local.schema().carrier().get(localName).get());
+                e.isSubscription = isSubscription;
                 QueryCursor.LocalCursor localCursor = new QueryCursor.LocalCursor(e);
                 e.cursor = localCursor;
                 for (SelectionSet ss : this.getChildren()) {
-                    e.getChildren().addAll(ss.localize(e, comprSys, local));
+                    e.getChildren().addAll(ss.localize(e, comprSys, local, pushdownLocals, arguments));
                 }
                 if (!e.getChildren().isEmpty()) {
                     ((QueryCursor.ConcatCursor) QueryRoot.this.cursor).addLocalCursor(local.url(), localCursor);
-                    for (Argument arg : this.getArguments()) {
-                        e.getArguments().addAll(arg.localize(e, comprSys, local));
+                    if (arguments == null) {
+                        for (Argument arg : this.getArguments()) {
+                            e.getArguments().addAll(arg.localize(e, comprSys, local));
+                        }
+                    } else {
+                        arguments.localize(this, e, localCursor, comprSys, local);
                     }
                     result.add(e);
                 }
@@ -474,6 +647,11 @@ public class GraphQLQuery implements QueryTree {
             return getLabel();
         }
 
+        @Override
+        public SerializableString serializedField() {
+            return getSerializedLabel();
+        }
+
         @Override
         public boolean isListValued() {
             return true; // TODO lookup
@@ -485,10 +663,10 @@ public class GraphQLQuery implements QueryTree {
         }
     }
 
-    private Optional<GraphQLQuery> localize(ComprSys comprSys, Sys local) {
+    private Optional<GraphQLQuery> localize(ComprSys comprSys, Sys local, List<Sys> pushdownLocals, ArgumentPushdown arguments) {
         List<GraphQLQuery.QueryRoot> roots = new ArrayList<>();
         for (GraphQLQuery.QueryRoot r : this.roots) {
-            roots.addAll(r.localize(comprSys, local));
+            roots.addAll(r.localize(comprSys, local, pushdownLocals, arguments));
         }
         if (roots.isEmpty()) {
             return Optional.empty();
@@ -498,12 +676,26 @@ public class GraphQLQuery implements QueryTree {
     }
 
     public Map<Sys, GraphQLQuery> split(ComprSys comprSys, List<Sys> locals) {
+        return split(comprSys, locals, false, null);
+    }
+
+    /**
+     * Splits this query into one query per local system. With projection pushdown, attributes of objects
+     * that are merged by keys are only requested from the first local (in the given order) that provides them,
+     * which assumes that every merged object also exists in that local.
+     * If argument pushdown is given (may be null), it decides which arguments are forwarded to which local
+     * and the cursors evaluate the remaining ones when merging.
+     */
+    public Map<Sys, GraphQLQuery> split(ComprSys comprSys, List<Sys> locals, boolean projectionPushdown, ArgumentPushdown arguments) {
         LinkedHashMap<Sys, GraphQLQuery> result = new LinkedHashMap<>();
         for (GraphQLQuery.QueryRoot root : this.roots) {
             root.createGlobalCursor(comprSys.schema().getName(), comprSys.keys().collect(Collectors.toSet()), locals);
+            if (arguments != null) {
+                arguments.limitGlobalCursors(root);
+            }
         }
         for (Sys local : locals) {
-            this.localize(comprSys, local).ifPresent(q ->result.put(local, q));
+            this.localize(comprSys, local, projectionPushdown ? locals : null, arguments).ifPresent(q ->result.put(local, q));
         }
         return result;
     }
@@ -516,9 +708,9 @@ public class GraphQLQuery implements QueryTree {
     @Override
     public String textualRepresentation() {
         StringBuilder result = new StringBuilder();
-        if (this.roots.stream().anyMatch(q -> !q.isMutation)) {
+        if (this.roots.stream().anyMatch(q -> !q.isMutation && !q.isSubscription)) {
             result.append("query {\n");
-            this.roots.stream().filter(q -> !q.isMutation).forEach(q -> q.print(result, 1));
+            this.roots.stream().filter(q -> !q.isMutation && !q.isSubscription).forEach(q -> q.print(result, 1));
             result.append("}\n");
         };
         if (this.roots.stream().anyMatch(q -> q.isMutation)) {
@@ -526,6 +718,11 @@ public class GraphQLQuery implements QueryTree {
             this.roots.stream().filter(q -> q.isMutation).forEach(q -> q.print(result, 1));
             result.append("}\n");
         }
+        if (this.roots.stream().anyMatch(q -> q.isSubscription)) {
+            result.append("subscription {\n");
+            this.roots.stream().filter(q -> q.isSubscription).forEach(q -> q.print(result, 1));
+            result.append("}\n");
+        }
         return result.toString();
     }
 
@@ -1,35 +1,531 @@
 package no.hvl.past.gqlintegration.queries;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import graphql.language.AstPrinter;
+import graphql.language.Definition;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.parser.InvalidSyntaxException;
+import graphql.parser.Parser;
 import no.hvl.past.gqlintegration.GraphQLEndpoint;
 import no.hvl.past.graph.Sketch;
 import no.hvl.past.names.Name;
 import no.hvl.past.systems.Sys;
 import no.hvl.past.util.IOStreamUtils;
+import org.apache.log4j.Logger;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
-public class GraphQLQueryDelegator extends GraphQLQueryHandler {
+public class GraphQLQueryDelegator extends GraphQLQueryHandler implements SubscriptionSource {
+
+    private Logger logger = Logger.getLogger(GraphQLQueryDelegator.class);
+
+    private static final String QUERY_FIELD = "query";
+    private static final String ERRORS_FIELD = "errors";
+    private static final String EVENT_STREAM_MEDIA_TYPE = "text/event-stream";
+    private static final String SSE_EVENT_PREFIX = "event:";
+    private static final String SSE_DATA_PREFIX = "data:";
+    private static final String SSE_COMPLETE_EVENT = "complete";
 
     private final String url;
+    private boolean acceptBinary = false;
+    private final Map<String, Pagination> paginations;
+    private volatile ExecutorService prefetchExecutor;
+    private volatile ExecutorService subscriptionExecutor;
 
     public GraphQLQueryDelegator(GraphQLEndpoint system) {
+        this(system, new ConcurrentHashMap<>());
+    }
+
+    private GraphQLQueryDelegator(GraphQLEndpoint system, Map<String, Pagination> paginations) {
         super(system);
         this.url = system.url();
+        this.paginations = paginations;
+    }
+
+    /**
+     * When set, Smile or CBOR responses are requested and handed on as they are,
+     * i.e. consumers must read the results with {@link PayloadFormat#readTree}.
+     */
+    public void setAcceptBinary(boolean acceptBinary) {
+        this.acceptBinary = acceptBinary;
+    }
+
+    public boolean isAcceptBinary() {
+        return acceptBinary;
+    }
+
+    /**
+     * Creates a delegator for the same endpoint and with the same settings that requests Smile or CBOR responses.
+     * Use this instead of {@link #setAcceptBinary(boolean)} when the delegator is shared with consumers expecting JSON.
+     * The copy shares the paginations of this delegator, i.e. fields configured later are paged by both.
+     */
+    public GraphQLQueryDelegator binaryCopy() {
+        GraphQLQueryDelegator copy = new GraphQLQueryDelegator(getEndpoint(), paginations);
+        copy.acceptBinary = true;
+        copy.prefetchExecutor = prefetchExecutor;
+        copy.subscriptionExecutor = subscriptionExecutor;
+        return copy;
+    }
+
+    /**
+     * Fetches the results of the given (local) root field page by page instead of in one response.
+     * The pages are handed on as one response, i.e. the pagination is transparent to the consumers.
+     */
+    public void setPagination(String field, Pagination pagination) {
+        this.paginations.put(field, pagination);
+    }
+
+    /**
+     * When set, the next page is fetched on the given executor while the current page is handed on.
+     */
+    public void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * When set, the events of subscriptions are read on the given executor, otherwise on a daemon thread per subscription.
+     * Note that every open subscription occupies a thread until it is closed.
+     */
+    public void setSubscriptionExecutor(ExecutorService subscriptionExecutor) {
+        this.subscriptionExecutor = subscriptionExecutor;
     }
 
     @Override
     public void handle(InputStream i, OutputStream o) throws IOException {
+        if (paginations.isEmpty()) {
+            send(i, o);
+            return;
+        }
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        IOStreamUtils.copyOver(i, request);
+        PagedRequest paged = pagedRequest(request.toByteArray());
+        if (paged == null) {
+            send(new ByteArrayInputStream(request.toByteArray()), o);
+        } else {
+            paged.writeTo(o);
+        }
+    }
+
+    /**
+     * Returns the pages to go through if the request asks for a single root field that is configured for pagination,
+     * null (without sending anything) otherwise.
+     */
+    private PagedRequest pagedRequest(byte[] request) throws IOException {
+        JsonNode requestNode = getObjectMapper().readTree(request);
+        if (!requestNode.isObject() || !requestNode.path(QUERY_FIELD).isTextual()) {
+            return null;
+        }
+        Document document;
+        try {
+            document = new Parser().parseDocument(requestNode.get(QUERY_FIELD).textValue());
+        } catch (InvalidSyntaxException e) {
+            return null;
+        }
+        List<OperationDefinition> operations = document.getDefinitionsOfType(OperationDefinition.class);
+        if (operations.size() != 1 || operations.get(0).getOperation() != OperationDefinition.Operation.QUERY) {
+            return null;
+        }
+        OperationDefinition operation = operations.get(0);
+        List<Selection> roots = operation.getSelectionSet().getSelections();
+        if (roots.size() != 1 || !(roots.get(0) instanceof Field)) {
+            return null;
+        }
+        Field field = (Field) roots.get(0);
+        Pagination pagination = paginations.get(field.getName());
+        if (pagination == null || pagination.requestedSize(field) < -1 || !pagination.hasLiteralPosition(field)) {
+            return null;
+        }
+        return new PagedRequest((ObjectNode) requestNode, document, operation, field, pagination);
+    }
+
+    /**
+     * Hands out the pages as they are fetched: a thread of its own writes them into a pipe, which the caller reads.
+     * The writer does not run on the prefetch executor, since it waits for the pages prefetched there.
+     * Failures of the writer are thrown to the reader once it has read everything written before.
+     */
+    private InputStream openPaged(PagedRequest paged) throws IOException {
+        PagedResponse response = new PagedResponse();
+        PipedOutputStream pipe = new PipedOutputStream(response);
+        Thread writer = new Thread(() -> {
+            try {
+                paged.writeTo(pipe);
+            } catch (IOException | RuntimeException e) {
+                // before closing the pipe, so that the reader cannot miss it
+                response.failure = e;
+                logger.debug("Paging through the results from '" + url + "' failed", e);
+            } finally {
+                try {
+                    pipe.close();
+                } catch (IOException e) {
+                    logger.debug("Could not close the pipe of the pages from '" + url + "'", e);
+                }
+            }
+        }, "paging-" + url);
+        writer.setDaemon(true);
+        writer.start();
+        return response;
+    }
+
+    private static final class PagedResponse extends PipedInputStream {
+
+        private static final int PIPE_SIZE = 64 * 1024;
+
+        private volatile Exception failure;
+
+        private PagedResponse() {
+            super(PIPE_SIZE);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int result = super.read();
+            if (result < 0) {
+                checkFailure();
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result < 0) {
+                checkFailure();
+            }
+            return result;
+        }
+
+        private void checkFailure() throws IOException {
+            Exception e = failure;
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e != null) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Fetches the pages of one request and writes them as a single response, in which the elements of all
+     * pages form the list (or the edges of the connection) and all other fields are taken from the last page,
+     * except for the page info that was only added for paging.
+     */
+    private final class PagedRequest {
+
+        private final ObjectNode requestNode;
+        private final Document document;
+        private final OperationDefinition operation;
+        private final Field field;
+        private final Pagination pagination;
+        private final String responseKey;
+        private final int total;
+
+        private PagedRequest(ObjectNode requestNode, Document document, OperationDefinition operation, Field field, Pagination pagination) {
+            this.requestNode = requestNode;
+            this.document = document;
+            this.operation = operation;
+            this.field = field;
+            this.pagination = pagination;
+            this.responseKey = field.getAlias() != null ? field.getAlias() : field.getName();
+            this.total = pagination.requestedSize(field);
+        }
+
+        private int pageSize(int fetched) {
+            return total < 0 ? pagination.getPageSize() : Math.min(pagination.getPageSize(), total - fetched);
+        }
+
+        private byte[] pageRequest(int size, Object position) throws IOException {
+            Field pagedField = pagination.page(field, size, position);
+            OperationDefinition pagedOperation = operation.transform(builder ->
+                    builder.selectionSet(new SelectionSet(Collections.singletonList(pagedField))));
+            List<Definition> definitions = new ArrayList<>();
+            for (Definition definition : document.getDefinitions()) {
+                definitions.add(definition == operation ? pagedOperation : definition);
+            }
+            ObjectNode pageRequest = requestNode.deepCopy();
+            pageRequest.put(QUERY_FIELD, AstPrinter.printAst(document.transform(builder -> builder.definitions(definitions))));
+            return getObjectMapper().writeValueAsBytes(pageRequest);
+        }
+
+        private Future<JsonNode> fetch(int size, Object position) throws IOException {
+            byte[] pageRequest = pageRequest(size, position);
+            FutureTask<JsonNode> task = new FutureTask<>(() -> {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                send(new ByteArrayInputStream(pageRequest), response);
+                return PayloadFormat.readTree(getObjectMapper(), new ByteArrayInputStream(response.toByteArray()));
+            });
+            ExecutorService executor = prefetchExecutor;
+            if (executor == null) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+            return task;
+        }
+
+        private JsonNode await(Future<JsonNode> page) throws IOException {
+            try {
+                return page.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching a page from '" + url + "'");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private boolean isPage(JsonNode page, JsonNode result) {
+            if (page.has(ERRORS_FIELD) || result == null) {
+                return false;
+            }
+            JsonNode elements = pagination.elements(result);
+            return elements != null && elements.isArray();
+        }
+
+        void writeTo(OutputStream o) throws IOException {
+            Object position = pagination.initialPosition(field);
+            int size = pageSize(0);
+            JsonNode page = await(fetch(size, position));
+            JsonNode result = page.path(RETURN_VALUE_FIELD).get(responseKey);
+            JsonGenerator generator = getJsonFactory().createGenerator(o);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            if (!isPage(page, result)) {
+                // nothing to page through, hand on the response as it is
+                getObjectMapper().writeTree(generator, page);
+                generator.close();
+                return;
+            }
+            generator.writeStartObject();
+            generator.writeObjectFieldStart(RETURN_VALUE_FIELD);
+            generator.writeFieldName(responseKey);
+            if (pagination.getStyle() == Pagination.Style.RELAY) {
+                generator.writeStartObject();
+                generator.writeArrayFieldStart(Pagination.EDGES_FIELD);
+            } else {
+                generator.writeStartArray();
+            }
+            int fetched = 0;
+            int pages = 1;
+            JsonNode errors = null;
+            while (true) {
+                JsonNode elements = pagination.elements(result);
+                fetched += elements.size();
+                Object next = pagination.nextPosition(position, size, result);
+                Future<JsonNode> nextPage = null;
+                if (next != null && pageSize(fetched) > 0) {
+                    position = next;
+                    size = pageSize(fetched);
+                    nextPage = fetch(size, position);
+                }
+                for (JsonNode element : elements) {
+                    getObjectMapper().writeTree(generator, element);
+                }
+                generator.flush();
+                if (nextPage == null) {
+                    break;
+                }
+                JsonNode followingPage = await(nextPage);
+                JsonNode followingResult = followingPage.path(RETURN_VALUE_FIELD).get(responseKey);
+                if (!isPage(followingPage, followingResult)) {
+                    logger.warn("Stopped paging through '" + responseKey + "' at '" + url + "' after " + fetched + " results");
+                    errors = followingPage.get(ERRORS_FIELD);
+                    break;
+                }
+                result = followingResult;
+                pages++;
+            }
+            generator.writeEndArray();
+            if (pagination.getStyle() == Pagination.Style.RELAY) {
+                Iterator<Map.Entry<String, JsonNode>> fields = result.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> entry = fields.next();
+                    if (!entry.getKey().equals(Pagination.EDGES_FIELD) && !entry.getKey().equals(Pagination.PAGE_INFO_ALIAS)) {
+                        generator.writeFieldName(entry.getKey());
+                        getObjectMapper().writeTree(generator, entry.getValue());
+                    }
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+            if (errors != null) {
+                generator.writeFieldName(ERRORS_FIELD);
+                getObjectMapper().writeTree(generator, errors);
+            }
+            generator.writeEndObject();
+            generator.close();
+            logger.debug("Fetched " + fetched + " results of '" + responseKey + "' from '" + url + "' in " + pages + " pages");
+        }
+    }
+
+    /**
+     * Opens the subscription at the endpoint as a stream of server-sent events (GraphQL over SSE, "next" and "complete" events).
+     */
+    @Override
+    public Closeable subscribe(GraphQLQuery subscription, Listener listener) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        serialize(subscription, request);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", PayloadFormat.JSON.getMediaType());
+        connection.setRequestProperty("Accept", EVENT_STREAM_MEDIA_TYPE);
+        connection.setDoOutput(true);
+        connection.setDoInput(true);
+        connection.connect();
+        connection.getOutputStream().write(request.toByteArray());
+        connection.getOutputStream().close();
+        int responseCode = connection.getResponseCode();
+        if ((responseCode / 100) != 2) {
+            String message = IOStreamUtils.readInputStreamAsString(ContentEncoding.fromHeader(connection.getContentEncoding()).decode(connection.getErrorStream()));
+            connection.disconnect();
+            throw new IOException("HTTP error! return code: " + responseCode + ", detail: " + message);
+        }
+        EventStream stream = new EventStream(connection, listener);
+        ExecutorService executor = subscriptionExecutor;
+        if (executor == null) {
+            Thread thread = new Thread(stream, "subscription-" + url);
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            executor.execute(stream);
+        }
+        logger.debug("Opened subscription at '" + url + "'");
+        return stream;
+    }
+
+    /**
+     * Reads the server-sent events of one subscription and hands them to the listener.
+     */
+    private final class EventStream implements Runnable, Closeable {
+
+        private final HttpURLConnection connection;
+        private final Listener listener;
+        private volatile boolean closed = false;
+
+        private EventStream(HttpURLConnection connection, Listener listener) {
+            this.connection = connection;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String event = null;
+                StringBuilder data = new StringBuilder();
+                String line;
+                while (!closed && (line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        // an empty line dispatches the event
+                        if (SSE_COMPLETE_EVENT.equals(event)) {
+                            break;
+                        }
+                        if (data.length() > 0) {
+                            listener.onEvent(getObjectMapper().readTree(data.toString()));
+                        }
+                        event = null;
+                        data.setLength(0);
+                    } else if (line.startsWith(SSE_EVENT_PREFIX)) {
+                        event = line.substring(SSE_EVENT_PREFIX.length()).trim();
+                    } else if (line.startsWith(SSE_DATA_PREFIX)) {
+                        if (data.length() > 0) {
+                            data.append('\n');
+                        }
+                        data.append(line.substring(SSE_DATA_PREFIX.length()).trim());
+                    }
+                    // comments (keep-alives) and other fields are ignored
+                }
+                if (!closed) {
+                    listener.onComplete();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warn("Subscription at '" + url + "' failed", e);
+                    listener.onError(e.getMessage());
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                // unblocks the reading thread
+                connection.disconnect();
+                logger.debug("Closed subscription at '" + url + "'");
+            }
+        }
+    }
+
+    /**
+     * Sends the given query and returns the (decoded) response body as it arrives from the endpoint,
+     * i.e. without buffering it, the caller has to close the result.
+     * Queries for paginated fields are answered page by page as the pages arrive (see {@link #setPagination}).
+     */
+    public InputStream open(GraphQLQuery query) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        serialize(query, request);
+        if (!paginations.isEmpty()) {
+            PagedRequest paged = pagedRequest(request.toByteArray());
+            if (paged != null) {
+                return openPaged(paged);
+            }
+        }
+        return openResponse(new ByteArrayInputStream(request.toByteArray()));
+    }
+
+    /**
+     * Sends the request to the endpoint and copies the (decoded) response into the given stream.
+     */
+    protected void send(InputStream i, OutputStream o) throws IOException {
+        try (InputStream response = openResponse(i)) {
+            IOStreamUtils.copyOver(response, o);
+        }
+    }
+
+    private InputStream openResponse(InputStream i) throws IOException {
+        LocalDateTime start = LocalDateTime.now();
         HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
         connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Content-Type", PayloadFormat.JSON.getMediaType());
+        connection.setRequestProperty("Accept", acceptBinary ? PayloadFormat.acceptBinary() : PayloadFormat.JSON.getMediaType());
+        connection.setRequestProperty("Accept-Encoding", ContentEncoding.ACCEPTED_ENCODINGS);
         connection.setDoOutput(true);
         connection.setDoInput(true);
         connection.connect();
@@ -37,14 +533,21 @@ public class GraphQLQueryDelegator extends GraphQLQueryHandler {
         connection.getOutputStream().close();
         int responseCode = connection.getResponseCode();
         if ((responseCode / 100) == 2) {
-            IOStreamUtils.copyOver(connection.getInputStream(), o);
-            connection.disconnect();
+            CountingInputStream received = new CountingInputStream(connection.getInputStream());
+            return new FilterInputStream(ContentEncoding.fromHeader(connection.getContentEncoding()).decode(received)) {
+                @Override
+                public void close() throws IOException {
+                    // closing the stream instead of disconnecting keeps the connection alive for reuse
+                    super.close();
+                    logger.debug("Response from '" + url + "': " + received.getCount() + " bytes, format=" +
+                            PayloadFormat.fromContentType(connection.getContentType()) + ", encoding=" + connection.getContentEncoding() +
+                            ", took " + Duration.between(start, LocalDateTime.now()).toMillis() + " ms");
+                }
+            };
         } else {
-            String message = IOStreamUtils.readInputStreamAsString(connection.getErrorStream());
+            String message = IOStreamUtils.readInputStreamAsString(ContentEncoding.fromHeader(connection.getContentEncoding()).decode(connection.getErrorStream()));
             connection.disconnect();
             throw new IOException("HTTP error! return code: " + responseCode + ", detail: " + message);
         }
     }
-
-
 }
@@ -2,22 +2,26 @@ package no.hvl.past.gqlintegration.queries;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import graphql.ExecutionInput;
 import graphql.ExecutionResult;
 import graphql.GraphQL;
-import graphql.schema.GraphQLSchema;
-import graphql.schema.idl.RuntimeWiring;
-import graphql.schema.idl.SchemaGenerator;
-import graphql.schema.idl.SchemaParser;
-import graphql.schema.idl.TypeDefinitionRegistry;
 import no.hvl.past.gqlintegration.GraphQLEndpoint;
 import no.hvl.past.gqlintegration.caller.IntrospectionQuery;
 import no.hvl.past.gqlintegration.predicates.MutationMessage;
 import no.hvl.past.gqlintegration.predicates.QueryMesage;
+import no.hvl.past.gqlintegration.predicates.SubscriptionMessage;
 import no.hvl.past.gqlintegration.schema.GraphQLSchemaWriter;
-import no.hvl.past.gqlintegration.schema.StubWiring;
+import no.hvl.past.graph.Sketch;
 import no.hvl.past.graph.elements.Triple;
 import no.hvl.past.graph.predicates.*;
 import no.hvl.past.graph.trees.*;
@@ -31,9 +35,23 @@ import no.hvl.past.util.IOStreamUtils;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 public class GraphQLQueryDivider extends GraphQLQueryHandler {
@@ -322,9 +340,57 @@ public class GraphQLQueryDivider extends GraphQLQueryHandler {
 
     // TODO the System.out println must be replaced with logger output and should be configurable from the outside
 
+    private static final String HAS_NEXT_FIELD = "hasNext";
+    private static final String INCREMENTAL_FIELD = "incremental";
+    private static final String ITEMS_FIELD = "items";
+    private static final String PATH_FIELD = "path";
+    private static final String LABEL_FIELD = "label";
+    private static final String ERRORS_FIELD = "errors";
+    private static final String MESSAGE_FIELD = "message";
+    private static final String EXTENSIONS_FIELD = "extensions";
+    private static final String COST_FIELD = "cost";
+    private static final String DEPTH_FIELD = "depth";
+    private static final String BREADTH_FIELD = "breadth";
+    private static final String MULTIPART_BOUNDARY = "-";
+    public static final String INCREMENTAL_MEDIA_TYPE = "multipart/mixed; boundary=\"" + MULTIPART_BOUNDARY + "\"";
+    private static final byte[] MULTIPART_PART_START = ("\r\n--" + MULTIPART_BOUNDARY + "\r\nContent-Type: application/json; charset=utf-8\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    public static final int MAX_CACHED_INTROSPECTION_RESPONSES = 64;
+    public static final int MAX_QUEUED_SUBSCRIPTION_EVENTS = 256;
+    private static final int MAX_SPILL_PARTITIONS = 256;
+    private static final int DEFAULT_STREAM_CHUNK_SIZE = 100;
+    // parsed result objects take several times the size of their encoding
+    private static final int PARSED_SIZE_FACTOR = 4;
+    private static final byte[] MULTIPART_END = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+    private static final SerializedString NDJSON_LINE_END = new SerializedString("\n");
+    public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+    public static final String EVENT_STREAM_MEDIA_TYPE = "text/event-stream";
+    private static final byte[] SSE_NEXT_EVENT_START = "event: next\ndata: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SSE_EVENT_END = "\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SSE_COMPLETE_EVENT = "event: complete\ndata: \n\n".getBytes(StandardCharsets.UTF_8);
+
     private ComprSys comprSys;
     private Map<Sys, QueryHandler> localHandlers;
-    private GraphQL javaGraphQLEngine;
+    private int wiretapSampling = 0;
+    private volatile IntrospectionEngine introspectionEngine;
+    private final AtomicLong responseCounter = new AtomicLong();
+    private final QueryCostAnalyzer costAnalyzer = new QueryCostAnalyzer();
+    private final QueryPlanner planner = new QueryPlanner();
+    private final ArgumentPushdown argumentPushdown = new ArgumentPushdown();
+    private final MutationScheduler mutationScheduler = new MutationScheduler();
+    private final Map<String, SharedSubscription> subscriptions = new ConcurrentHashMap<>();
+    private boolean projectionPushdown = false;
+    private JoinStrategy joinStrategy = JoinStrategy.HASH;
+    private boolean bloomPreJoin = false;
+    private final Map<Key, JoinStrategy> keyJoinStrategies = new ConcurrentHashMap<>();
+    private long spillThreshold = -1;
+    private volatile ForkJoinPool mergePool;
+    private volatile ExecutorService requestExecutor;
+    private volatile int streamChunkSize = DEFAULT_STREAM_CHUNK_SIZE;
+    private File spillDirectory;
+    private volatile Semaphore costBudget;
+    private volatile boolean costExtension = false;
+    private int costBudgetPermits;
+    private long admissionTimeoutMillis;
 
     public GraphQLQueryDivider(
             ComprSys comprSys,
@@ -334,12 +400,189 @@ public class GraphQLQueryDivider extends GraphQLQueryHandler {
         super(endpoint);
         this.comprSys = comprSys;
         this.localHandlers = localHandlers;
-        this.javaGraphQLEngine = javaGraphQLEngine;
+        this.introspectionEngine = new IntrospectionEngine(comprSys.schema(), javaGraphQLEngine);
+    }
+
+
+    /**
+     * The analyzer that checks every federated query before it is split, configure its limits and weights there.
+     */
+    public QueryCostAnalyzer getCostAnalyzer() {
+        return costAnalyzer;
+    }
+
+    /**
+     * Requests attributes of objects that are merged across endpoints by keys only from one endpoint instead of
+     * from all that provide them, which is only correct if every merged object exists in the first such endpoint.
+     * Disabled by default.
+     */
+    public void setProjectionPushdown(boolean projectionPushdown) {
+        this.projectionPushdown = projectionPushdown;
+    }
+
+    /**
+     * Enables joining results at root fields via temporary files in the given directory (null for the default
+     * temporary directory) once the local responses to a query exceed the given number of bytes in total.
+     * The responses are held in memory while they are read and only moved to files when they cross the threshold,
+     * then only one partition of the joined objects is held in memory at a time, which limits memory use for very
+     * large (export style) results at the cost of latency.
+     * A negative threshold disables this (default).
+     */
+    public void setSpillThreshold(long bytes, File spillDirectory) {
+        this.spillThreshold = bytes;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Merges the roots of a query concurrently on the given pool, e.g. {@link ForkJoinPool#commonPool()},
+     * which speeds up queries with several expensive roots. Null disables this (default).
+     */
+    public void setMergePool(ForkJoinPool mergePool) {
+        this.mergePool = mergePool;
+    }
+
+    /**
+     * Sends the local queries of a federated query concurrently on the given executor, the slowest endpoints
+     * (as observed by the {@link QueryPlanner}) first. Null sends them one after the other (default).
+     */
+    public void setRequestExecutor(ExecutorService requestExecutor) {
+        this.requestExecutor = requestExecutor;
+    }
+
+    /**
+     * Sets how results of different endpoints are joined by keys unless set for the keys specifically.
+     */
+    public void setJoinStrategy(JoinStrategy joinStrategy) {
+        this.joinStrategy = joinStrategy;
+    }
+
+    /**
+     * Sets how results are joined when they are identified by the given key,
+     * e.g. {@link JoinStrategy#SORT_MERGE} if all endpoints return the respective lists ordered by it.
+     */
+    public void setJoinStrategy(Key key, JoinStrategy joinStrategy) {
+        this.keyJoinStrategies.put(key, joinStrategy);
+    }
+
+    /**
+     * Enables a pre-join step for hash joins: the key values of all but the largest result are summarized
+     * in a Bloom filter, and objects of the largest result that do not pass it are passed through
+     * without being indexed. Pays off for skewed joins where most objects of one endpoint have no partner.
+     * Disabled by default.
+     */
+    public void setBloomPreJoin(boolean bloomPreJoin) {
+        this.bloomPreJoin = bloomPreJoin;
+    }
+
+    private void configureJoins(GraphQLQuery.Node node) {
+        if (node.cursor instanceof QueryCursor.ConcatMergeCursor) {
+            QueryCursor.ConcatMergeCursor mergeCursor = (QueryCursor.ConcatMergeCursor) node.cursor;
+            JoinStrategy strategy = mergeCursor.getKeys().stream()
+                    .map(keyJoinStrategies::get)
+                    .filter(Objects::nonNull)
+                    .findFirst()
+                    .orElse(joinStrategy);
+            mergeCursor.setJoinStrategy(strategy);
+            mergeCursor.setBloomPreJoin(bloomPreJoin);
+        }
+        for (GraphQLQuery.SelectionSet selection : node.getChildren()) {
+            configureJoins(selection.getChildNode());
+        }
     }
 
+    /**
+     * Decides which arguments are forwarded to which endpoint, declare the arguments endpoints support natively there.
+     */
+    public ArgumentPushdown getArgumentPushdown() {
+        return argumentPushdown;
+    }
+
+    /**
+     * Decides in which order and how concurrently the local parts of mutations are executed.
+     */
+    public MutationScheduler getMutationScheduler() {
+        return mutationScheduler;
+    }
+
+    /**
+     * The planner that decides which local queries are sent, configure skipping of endpoints there.
+     */
+    public QueryPlanner getPlanner() {
+        return planner;
+    }
+
+    /**
+     * Describes how the given request would be executed: the estimated cost and the chosen plan.
+     * Nothing is sent to the endpoints.
+     */
+    public String explain(InputStream request) throws IOException {
+        TypedTree typedTree = deserialize(request);
+        if (!(typedTree instanceof GraphQLQuery)) {
+            return "Introspection query, answered by the gateway itself";
+        }
+        GraphQLQuery globalQuery = (GraphQLQuery) typedTree;
+        Map<Sys, GraphQLQuery> localQueries = split(globalQuery);
+        return "estimated " + costAnalyzer.estimate(globalQuery) + "\n" + planner.explain(globalQuery, localQueries, requiredEndpoints(globalQuery, localQueries));
+    }
+
+    /**
+     * Limits the total estimated cost of all queries that are handled concurrently.
+     * Queries that cannot be admitted within the given time are rejected, a budget of 0 disables throttling (default).
+     */
+    public void setCostBudget(int concurrentCost, long admissionTimeoutMillis) {
+        this.costBudgetPermits = concurrentCost;
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+        this.costBudget = concurrentCost > 0 ? new Semaphore(concurrentCost, true) : null;
+    }
+
+    /**
+     * When set, the responses to queries and mutations carry their estimated cost in "extensions", like rejections do:
+     * {"data": ..., "extensions": {"cost": ..., "depth": ..., "breadth": ...}}. Disabled by default.
+     */
+    public void setCostExtension(boolean costExtension) {
+        this.costExtension = costExtension;
+    }
+
+    /**
+     * Enables recording of every n-th federated response into the debug log, 0 disables it (default).
+     */
+    public void setWiretapSampling(int everyNthResponse) {
+        this.wiretapSampling = everyNthResponse;
+    }
+
+    private boolean sampleWiretap() {
+        return wiretapSampling > 0 && logger.isDebugEnabled() && responseCounter.incrementAndGet() % wiretapSampling == 0;
+    }
+
+    /**
+     * Handles the request and compresses the response with the given encoding,
+     * which is usually obtained via {@link ContentEncoding#negotiate(String)} from the Accept-Encoding header.
+     * The transport is expected to set the Content-Encoding header accordingly.
+     * There is no buffer pool of its own, the JSON generators take their buffers from the thread local
+     * BufferRecycler of Jackson's JsonFactory and give them back when they are closed.
+     */
+    public void handle(InputStream i, OutputStream o, ContentEncoding responseEncoding) throws IOException {
+        handle(i, o, responseEncoding, false);
+    }
+
+    /**
+     * Like {@link #handle(InputStream, OutputStream, ContentEncoding)}, but writes the result as newline delimited JSON
+     * (see {@link #export(GraphQLQuery, OutputStream)}) if export is true, which is usually the case if the Accept header
+     * contains {@link #NDJSON_MEDIA_TYPE}. Clients can also ask for it with the request option "exportAs": "ndjson".
+     */
+    public void handle(InputStream i, OutputStream o, ContentEncoding responseEncoding, boolean export) throws IOException {
+        // closing the encoded stream also releases its native Deflater, which must happen if the request fails as well
+        try (OutputStream encoded = responseEncoding.encode(o)) {
+            handle(i, encoded, export);
+        }
+    }
 
     @Override
     public void handle(InputStream i, OutputStream o) throws IOException {
+        handle(i, o, false);
+    }
+
+    private void handle(InputStream i, OutputStream o, boolean export) throws IOException {
         try {
             LocalDateTime parseStart = LocalDateTime.now();
             TypedTree typedTree = deserialize(i);
@@ -350,9 +593,68 @@ public class GraphQLQueryDivider extends GraphQLQueryHandler {
                 this.handleIntrospectionQuery((IntrospectionQuery) typedTree, o);
             } else if (typedTree instanceof GraphQLQuery) {
                 GraphQLQuery globalQuery = (GraphQLQuery) typedTree;
-                Map<Sys, GraphQLQuery> localQueries = split(globalQuery);
-                Map<Sys, InputStream> localQueryResults = executeQueries(localQueries);
-                merge(localQueryResults, globalQuery, o);
+                QueryCostAnalyzer.Estimate estimate;
+                try {
+                    estimate = costAnalyzer.check(globalQuery);
+                } catch (QueryException e) {
+                    writeError(e.getMessage(), costAnalyzer.estimate(globalQuery), o);
+                    return;
+                }
+                try {
+                    argumentPushdown.validate(globalQuery, comprSys, new ArrayList<>(localHandlers.keySet()));
+                } catch (QueryException e) {
+                    writeError(e.getMessage(), estimate, o);
+                    return;
+                }
+                boolean asExport = export || globalQuery.isExport();
+                if (globalQuery.isMutation() && (asExport || globalQuery.isIncremental())) {
+                    // mutations have to go through the mutation scheduler, which neither exports nor defers
+                    writeError("A mutation can neither be exported nor use @defer or @stream!", estimate, o);
+                    return;
+                }
+                if (asExport && globalQuery.getRoots().size() != 1) {
+                    writeError("An export must query exactly one root field!", estimate, o);
+                    return;
+                }
+                if (globalQuery.isSubscription()) {
+                    if (globalQuery.getRoots().size() != 1) {
+                        writeError("A subscription must select exactly one root field!", estimate, o);
+                        return;
+                    }
+                    // subscriptions are long-lived and are therefore not admitted against the cost budget
+                    handleSubscription(globalQuery, o);
+                    return;
+                }
+                logger.debug("Admitting query with " + estimate);
+                Semaphore budget = costBudget;
+                int permits = admit(budget, estimate);
+                if (permits < 0) {
+                    writeError("The gateway is too busy to handle a query of estimated cost " + estimate.getCost() + " right now!", estimate, o);
+                    return;
+                }
+                try {
+                    if (globalQuery.isMutation()) {
+                        // mutations are neither pruned by the planner nor sent in its order
+                        Map<Sys, InputStream> localMutationResults = mutationScheduler.execute(
+                                globalQuery,
+                                this::split,
+                                (ep, localMutation) -> localHandlers.get(ep).resolveAsStream(localMutation),
+                                getObjectMapper());
+                        merge(localMutationResults, globalQuery, costExtension ? estimate : null, o);
+                    } else if (asExport) {
+                        export(globalQuery, o);
+                    } else if (globalQuery.isIncremental()) {
+                        handleIncrementally(globalQuery, o);
+                    } else {
+                        Map<Sys, GraphQLQuery> localQueries = split(globalQuery);
+                        Map<Sys, InputStream> localQueryResults = executeQueries(globalQuery, localQueries);
+                        merge(localQueryResults, globalQuery, costExtension ? estimate : null, o);
+                    }
+                } finally {
+                    if (permits > 0) {
+                        budget.release(permits);
+                    }
+                }
             } else {
                 throw new IOException("Cannot handle this query!");
             }
@@ -361,55 +663,782 @@ public class GraphQLQueryDivider extends GraphQLQueryHandler {
         }
     }
 
+    /**
+     * Acquires budget for the estimated cost of a query, returns the number of acquired permits or -1 if the
+     * budget could not be acquired in time.
+     */
+    private int admit(Semaphore budget, QueryCostAnalyzer.Estimate estimate) {
+        if (budget == null) {
+            return 0;
+        }
+        // queries more expensive than the whole budget have to wait until the gateway is idle
+        int permits = (int) Math.min(estimate.getCost(), costBudgetPermits);
+        try {
+            if (budget.tryAcquire(permits, admissionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return permits;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return -1;
+    }
+
+    private void writeError(String message, QueryCostAnalyzer.Estimate estimate, OutputStream outputStream) throws IOException {
+        logger.info("Rejected query: " + message + " (" + estimate + ")");
+        JsonGenerator generator = getJsonFactory().createGenerator(outputStream);
+        generator.writeStartObject();
+        generator.writeArrayFieldStart(ERRORS_FIELD);
+        generator.writeStartObject();
+        generator.writeStringField(MESSAGE_FIELD, message);
+        writeCost(estimate, generator);
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+        outputStream.close();
+    }
+
+    private static void writeCost(QueryCostAnalyzer.Estimate estimate, JsonGenerator generator) throws IOException {
+        generator.writeObjectFieldStart(EXTENSIONS_FIELD);
+        generator.writeNumberField(COST_FIELD, estimate.getCost());
+        generator.writeNumberField(DEPTH_FIELD, estimate.getDepth());
+        generator.writeNumberField(BREADTH_FIELD, estimate.getBreadth());
+        generator.writeEndObject();
+    }
+
     public void handleIntrospectionQuery(IntrospectionQuery query, OutputStream os) throws IOException {
-        if (query.getOperationName().isPresent()) {
-            ExecutionInput e = new ExecutionInput.Builder()
-                    .query(query.getQuery())
-                    .operationName(query.getOperationName().get())
-                    .variables(query.getVariables().get())
-                    .build();
-            ExecutionResult execute = javaGraphQLEngine.execute(e);
-            Map<String, Object> spec = execute.toSpecification();
-            getObjectMapper().writeValue(os, spec);
-        } else {
-            ExecutionResult executionResult = javaGraphQLEngine.execute(query.getQuery());
+        IntrospectionEngine engine = this.introspectionEngine;
+        if (engine.schema != comprSys.schema()) {
+            engine = rebuildIntrospectionEngine();
+        }
+        IntrospectionCacheKey key = new IntrospectionCacheKey(query);
+        byte[] response = engine.cache.get(key);
+        if (response == null) {
+            ExecutionResult executionResult;
+            if (query.getOperationName().isPresent()) {
+                ExecutionInput e = new ExecutionInput.Builder()
+                        .query(query.getQuery())
+                        .operationName(query.getOperationName().get())
+                        .variables(query.getVariables().get())
+                        .build();
+                executionResult = engine.graphQL.execute(e);
+            } else {
+                executionResult = engine.graphQL.execute(query.getQuery());
+            }
             Map<String, Object> spec = executionResult.toSpecification();
-            getObjectMapper().writeValue(os, spec);
+            response = getObjectMapper().writeValueAsBytes(spec);
+            if (executionResult.getErrors().isEmpty()) {
+                engine.cache.put(key, response);
+            }
+        }
+        os.write(response);
+        os.close();
+    }
+
+    /**
+     * Rebuilds the engine answering introspection queries from the current schema of the federation
+     * and drops all cached responses, must be called when the schema changes in place.
+     */
+    public void invalidateIntrospectionCache() {
+        rebuildIntrospectionEngine();
+    }
+
+    private IntrospectionEngine rebuildIntrospectionEngine() {
+        IntrospectionEngine engine = new IntrospectionEngine(comprSys.schema(), buildEngine(comprSys.schema()));
+        this.introspectionEngine = engine;
+        return engine;
+    }
+
+    /**
+     * The number of currently cached introspection responses.
+     */
+    public int getCachedIntrospectionResponses() {
+        return introspectionEngine.cache.size();
+    }
+
+    /**
+     * The engine answering introspection queries, the schema it was built from and the responses it has given,
+     * such that responses are never cached for or served from an engine of another schema.
+     */
+    private static final class IntrospectionEngine {
+        private final Sketch schema;
+        private final GraphQL graphQL;
+        private final Map<IntrospectionCacheKey, byte[]> cache = Collections.synchronizedMap(
+                new LinkedHashMap<IntrospectionCacheKey, byte[]>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<IntrospectionCacheKey, byte[]> eldest) {
+                        return size() > MAX_CACHED_INTROSPECTION_RESPONSES;
+                    }
+                });
+
+        private IntrospectionEngine(Sketch schema, GraphQL graphQL) {
+            this.schema = schema;
+            this.graphQL = graphQL;
+        }
+    }
+
+    private static final class IntrospectionCacheKey {
+        private final String query;
+        private final String operationName;
+        private final Map<String, Object> variables;
+
+        private IntrospectionCacheKey(IntrospectionQuery query) {
+            this.query = query.getQuery();
+            this.operationName = query.getOperationName().orElse(null);
+            this.variables = query.getVariables().orElse(null);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            IntrospectionCacheKey that = (IntrospectionCacheKey) o;
+            return query.equals(that.query) &&
+                    Objects.equals(operationName, that.operationName) &&
+                    Objects.equals(variables, that.variables);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, operationName, variables);
+        }
+    }
+
+
+    /**
+     * Answers a query containing @defer or @stream roots as a multipart/mixed response ({@link #INCREMENTAL_MEDIA_TYPE}).
+     * The local queries of the incremental roots are sent right away on threads of their own, while the roots without
+     * directives (and the first initialCount elements of streamed roots) are resolved and flushed as the initial payload.
+     * Every incremental root is then sent as a subsequent payload carrying the label of its directive as soon as it
+     * has been merged, streamed roots in payloads of at most {@link #setStreamChunkSize stream chunk size} items.
+     * Note that setting the response content type is up to the transport layer.
+     */
+    public void handleIncrementally(GraphQLQuery globalQuery, OutputStream outputStream) throws IOException, KeyNotEvaluated {
+        List<GraphQLQuery.QueryRoot> initialRoots = new ArrayList<>();
+        Map<String, GraphQLQuery.QueryRoot> partiallyStreamedRoots = new LinkedHashMap<>();
+        List<GraphQLQuery.QueryRoot> laterRoots = new ArrayList<>();
+        for (GraphQLQuery.QueryRoot root : globalQuery.getRoots()) {
+            if (!root.isIncremental()) {
+                initialRoots.add(root);
+            } else if (root.getDelivery() == GraphQLQuery.QueryRoot.Delivery.STREAM && root.getInitialCount() > 0) {
+                // the initial elements are needed up front, so these roots are resolved with the initial payload
+                initialRoots.add(root);
+                partiallyStreamedRoots.put(root.field(), root);
+            } else {
+                laterRoots.add(root);
+            }
+        }
+
+        // a pool of its own, since the local queries of every root may be sent on the request executor
+        ExecutorService executor = laterRoots.isEmpty() ? null : Executors.newFixedThreadPool(laterRoots.size(), runnable -> {
+            Thread thread = new Thread(runnable, "incremental-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        JsonGenerator generator = getJsonFactory().createGenerator(outputStream);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        try {
+            CompletionService<TokenBuffer> completion = executor == null ? null : new ExecutorCompletionService<>(executor);
+            Map<Future<TokenBuffer>, GraphQLQuery.QueryRoot> later = new HashMap<>();
+            for (GraphQLQuery.QueryRoot root : laterRoots) {
+                later.put(completion.submit(() -> resolveLater(globalQuery, root)), root);
+            }
+
+            // initial payload
+            Map<GraphQLQuery.QueryRoot, TokenBuffer> remainingItems = new LinkedHashMap<>();
+            startPart(generator, outputStream);
+            generator.writeStartObject();
+            generator.writeFieldName(RETURN_VALUE_FIELD);
+            generator.writeStartObject();
+            if (!initialRoots.isEmpty()) {
+                GraphQLQuery initialQuery = globalQuery.select(initialRoots);
+                Map<Sys, InputStream> results = executeQueries(initialQuery, split(initialQuery));
+                if (partiallyStreamedRoots.isEmpty()) {
+                    mergeRoots(results, initialQuery, generator);
+                } else {
+                    TokenBuffer buffer = new TokenBuffer(getObjectMapper(), false);
+                    buffer.writeStartObject();
+                    mergeRoots(results, initialQuery, buffer);
+                    buffer.writeEndObject();
+                    writeInitialItems(buffer, partiallyStreamedRoots, remainingItems, generator);
+                }
+            }
+            for (GraphQLQuery.QueryRoot root : laterRoots) {
+                if (root.getDelivery() == GraphQLQuery.QueryRoot.Delivery.STREAM) {
+                    generator.writeFieldName(root.serializedField());
+                    generator.writeStartArray();
+                    generator.writeEndArray();
+                }
+            }
+            generator.writeEndObject();
+            int pending = remainingItems.size() + laterRoots.size();
+            generator.writeBooleanField(HAS_NEXT_FIELD, pending > 0);
+            generator.writeEndObject();
+            generator.flush();
+            outputStream.flush();
+
+            // subsequent payloads, first the rest of the partially streamed roots, which is already there
+            for (Map.Entry<GraphQLQuery.QueryRoot, TokenBuffer> remainder : remainingItems.entrySet()) {
+                writeStreamedItems(remainder.getKey(), remainder.getValue(), remainder.getKey().getInitialCount(), --pending > 0, generator, outputStream);
+            }
+            // then the other roots in the order they complete
+            for (int i = 0; i < laterRoots.size(); i++) {
+                Future<TokenBuffer> done = nextCompleted(completion);
+                GraphQLQuery.QueryRoot root = later.get(done);
+                TokenBuffer result = awaitLater(done);
+                if (root.getDelivery() == GraphQLQuery.QueryRoot.Delivery.STREAM) {
+                    writeStreamedItems(root, result, 0, --pending > 0, generator, outputStream);
+                } else {
+                    startPart(generator, outputStream);
+                    writeIncrementalPayload(root, result, 0, --pending > 0, generator);
+                    generator.flush();
+                    outputStream.flush();
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        generator.close();
+        outputStream.write(MULTIPART_END);
+        outputStream.close();
+    }
+
+    /**
+     * Sets the maximal number of items of a streamed root that are sent in one subsequent payload, 100 by default.
+     */
+    public void setStreamChunkSize(int streamChunkSize) {
+        this.streamChunkSize = Math.max(1, streamChunkSize);
+    }
+
+    /**
+     * Resolves a root that is not part of the initial payload, for a streamed root as the sequence of its elements.
+     */
+    private TokenBuffer resolveLater(GraphQLQuery globalQuery, GraphQLQuery.QueryRoot root) throws IOException, KeyNotEvaluated {
+        GraphQLQuery incrementalQuery = globalQuery.select(Collections.singletonList(root));
+        Map<Sys, InputStream> results = executeQueries(incrementalQuery, split(incrementalQuery));
+        TokenBuffer buffer = new TokenBuffer(getObjectMapper(), false);
+        buffer.writeStartObject();
+        mergeRoots(results, incrementalQuery, buffer);
+        buffer.writeEndObject();
+        if (root.getDelivery() == GraphQLQuery.QueryRoot.Delivery.STREAM) {
+            return listElements(buffer);
+        }
+        return buffer;
+    }
+
+    private static Future<TokenBuffer> nextCompleted(CompletionService<TokenBuffer> completion) throws IOException {
+        try {
+            return completion.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an incremental root");
+        }
+    }
+
+    private static TokenBuffer awaitLater(Future<TokenBuffer> task) throws IOException, KeyNotEvaluated {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an incremental root");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof KeyNotEvaluated) {
+                throw (KeyNotEvaluated) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends the given items of a streamed root (a sequence of values), which start at the given index of the list,
+     * in payloads of at most the stream chunk size, each flushed right away.
+     */
+    private void writeStreamedItems(
+            GraphQLQuery.QueryRoot root,
+            TokenBuffer items,
+            int index,
+            boolean hasNextAfter,
+            JsonGenerator generator,
+            OutputStream outputStream) throws IOException {
+        try (JsonParser parser = items.asParser()) {
+            JsonToken token = parser.nextToken();
+            do {
+                TokenBuffer chunk = new TokenBuffer(getObjectMapper(), false);
+                int count = 0;
+                while (token != null && count < streamChunkSize) {
+                    chunk.copyCurrentStructure(parser);
+                    count++;
+                    token = parser.nextToken();
+                }
+                startPart(generator, outputStream);
+                writeIncrementalPayload(root, chunk, index, token != null || hasNextAfter, generator);
+                generator.flush();
+                outputStream.flush();
+                index += count;
+            } while (token != null);
+        }
+    }
+
+    /**
+     * Copies the merged initial roots, but only the first initialCount elements of the partially streamed roots.
+     * The remaining elements of these roots are collected (as a sequence of values) for a subsequent payload.
+     */
+    private void writeInitialItems(
+            TokenBuffer merged,
+            Map<String, GraphQLQuery.QueryRoot> partiallyStreamedRoots,
+            Map<GraphQLQuery.QueryRoot, TokenBuffer> remainingItems,
+            JsonGenerator generator) throws IOException {
+        try (JsonParser parser = merged.asParser()) {
+            parser.nextToken(); // START_OBJECT
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                GraphQLQuery.QueryRoot root = partiallyStreamedRoots.get(parser.getCurrentName());
+                generator.writeFieldName(parser.getCurrentName());
+                if (parser.nextToken() != JsonToken.START_ARRAY || root == null) {
+                    generator.copyCurrentStructure(parser);
+                    continue;
+                }
+                generator.writeStartArray();
+                TokenBuffer remainder = new TokenBuffer(getObjectMapper(), false);
+                int count = 0;
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (count < root.getInitialCount()) {
+                        generator.copyCurrentStructure(parser);
+                    } else {
+                        remainder.copyCurrentStructure(parser);
+                    }
+                    count++;
+                }
+                generator.writeEndArray();
+                if (count > root.getInitialCount()) {
+                    remainingItems.put(root, remainder);
+                }
+            }
+        }
+    }
+
+    /**
+     * The elements of the list in the only field of the given merged object, as a sequence of values.
+     */
+    private TokenBuffer listElements(TokenBuffer merged) throws IOException {
+        TokenBuffer result = new TokenBuffer(getObjectMapper(), false);
+        try (JsonParser parser = merged.asParser()) {
+            parser.nextToken(); // START_OBJECT
+            parser.nextToken(); // FIELD_NAME
+            if (parser.nextToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    result.copyCurrentStructure(parser);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a subsequent payload: the items of a streamed root starting at the given index
+     * or the data of a deferred root.
+     */
+    private void writeIncrementalPayload(GraphQLQuery.QueryRoot root, TokenBuffer result, int index, boolean hasNext, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeFieldName(INCREMENTAL_FIELD);
+        generator.writeStartArray();
+        generator.writeStartObject();
+        if (root.getDelivery() == GraphQLQuery.QueryRoot.Delivery.STREAM) {
+            generator.writeFieldName(ITEMS_FIELD);
+            generator.writeStartArray();
+            try (JsonParser parser = result.asParser()) {
+                while (parser.nextToken() != null) {
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            generator.writeEndArray();
+            generator.writeFieldName(PATH_FIELD);
+            generator.writeStartArray();
+            generator.writeString(root.field());
+            generator.writeNumber(index);
+            generator.writeEndArray();
+        } else {
+            generator.writeFieldName(RETURN_VALUE_FIELD);
+            result.serialize(generator);
+            generator.writeFieldName(PATH_FIELD);
+            generator.writeStartArray();
+            generator.writeEndArray();
+        }
+        if (root.getDeliveryLabel() != null) {
+            generator.writeStringField(LABEL_FIELD, root.getDeliveryLabel());
+        }
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.writeBooleanField(HAS_NEXT_FIELD, hasNext);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Writes the result of a query with a single root as newline delimited JSON, i.e. every element of the root list
+     * as one line. If the root is only concatenated, the local responses are read element by element and every element
+     * is written as soon as it has been read. Since delegators hand out the responses of their endpoints as they arrive
+     * (see {@link GraphQLQueryDelegator#open}), the gateway then holds about one element at a time,
+     * other local handlers may buffer their whole response though.
+     * Roots whose objects are merged by keys have to be joined and are therefore read as a whole,
+     * unless they are joined by {@link JoinStrategy#SORT_MERGE}, which reads the local responses side by side
+     * and writes every merged object as soon as it is complete (an unordered response then fails the export).
+     * The errors of the local responses are collected and written as a last line {"errors": [...]}. Errors following
+     * the data of a local response that is not read to its end (because the limit has been reached) are not seen.
+     * Note that setting the response content type ({@link #NDJSON_MEDIA_TYPE}) is up to the transport layer.
+     */
+    public void export(GraphQLQuery globalQuery, OutputStream outputStream) throws IOException {
+        GraphQLQuery.QueryRoot root = globalQuery.getRoots().get(0);
+        Map<Sys, InputStream> localQueryResults = executeQueries(globalQuery, split(globalQuery));
+        QueryCursor.ConcatCursor cursor = (QueryCursor.ConcatCursor) root.getCursor().get();
+        ArrayNode errors = JsonNodeFactory.instance.arrayNode();
+        JsonGenerator generator = getJsonFactory().createGenerator(outputStream);
+        generator.setRootValueSeparator(null);
+        try {
+            if (cursor instanceof QueryCursor.ConcatMergeCursor && ((QueryCursor.ConcatMergeCursor) cursor).isSortMerged()) {
+                exportSorted((QueryCursor.ConcatMergeCursor) cursor, localQueryResults, errors, generator);
+            } else if (cursor instanceof QueryCursor.ConcatMergeCursor) {
+                Map<String, JsonNode> parsed = new LinkedHashMap<>();
+                for (Map.Entry<Sys, InputStream> result : localQueryResults.entrySet()) {
+                    try (InputStream in = result.getValue()) {
+                        JsonNode response = PayloadFormat.readTree(getObjectMapper(), in);
+                        parsed.put(result.getKey().url(), response.get(RETURN_VALUE_FIELD));
+                        addErrors(response.get(ERRORS_FIELD), errors);
+                    }
+                }
+                cursor.addResults(parsed);
+                cursor.processElements(generator, NDJSON_LINE_END);
+            } else {
+                int written = 0;
+                for (Map.Entry<Sys, InputStream> result : localQueryResults.entrySet()) {
+                    try (InputStream in = result.getValue()) {
+                        written += exportElements(cursor, result.getKey(), in, written, errors, generator);
+                    }
+                    if (result.getValue() instanceof CountingInputStream) {
+                        planner.recordResponseSize(result.getKey(), ((CountingInputStream) result.getValue()).getCount());
+                    }
+                }
+            }
+            if (errors.size() > 0) {
+                logger.warn("Exported '" + globalQuery.textualRepresentation().trim() + "' with " + errors.size() + " local errors");
+                generator.writeStartObject();
+                generator.writeFieldName(ERRORS_FIELD);
+                getObjectMapper().writeTree(generator, errors);
+                generator.writeEndObject();
+                generator.writeRaw(NDJSON_LINE_END);
+            }
+        } finally {
+            generator.close();
+        }
+    }
+
+    /**
+     * Joins the local results of a root whose objects are merged by sort-merge while reading them,
+     * every merged object is written as a line as soon as it is complete.
+     */
+    private void exportSorted(QueryCursor.ConcatMergeCursor cursor, Map<Sys, InputStream> localQueryResults, ArrayNode errors, JsonGenerator generator) throws IOException {
+        Map<String, JsonParser> parsers = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<Sys, InputStream> result : localQueryResults.entrySet()) {
+                QueryCursor.LocalCursor localCursor = cursor.getLocalCursors().get(result.getKey().url());
+                if (localCursor != null) {
+                    JsonParser parser = PayloadFormat.createParser(getObjectMapper(), result.getValue());
+                    parsers.put(result.getKey().url(), parser);
+                    if (!moveToRootField(parser, localCursor.getQueryNode().field(), errors)) {
+                        parser.close();
+                        parsers.remove(result.getKey().url());
+                    }
+                } else {
+                    result.getValue().close();
+                }
+            }
+            cursor.processSorted(parsers, getObjectMapper(), NDJSON_LINE_END, generator);
+            for (JsonParser parser : parsers.values()) {
+                readTrailingErrors(parser, errors);
+            }
+        } finally {
+            for (JsonParser parser : parsers.values()) {
+                parser.close();
+            }
+            for (Map.Entry<Sys, InputStream> result : localQueryResults.entrySet()) {
+                result.getValue().close();
+                if (result.getValue() instanceof CountingInputStream) {
+                    planner.recordResponseSize(result.getKey(), ((CountingInputStream) result.getValue()).getCount());
+                }
+            }
+        }
+        generator.flush();
+    }
+
+    /**
+     * Positions the parser of a local response at the value of the given root field,
+     * returns false if the response has no (or a null) value for it. Errors read on the way are added to the given ones.
+     */
+    private boolean moveToRootField(JsonParser parser, String field, ArrayNode errors) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (ERRORS_FIELD.equals(name)) {
+                addErrors(getObjectMapper().readTree(parser), errors);
+            } else if (RETURN_VALUE_FIELD.equals(name) && parser.currentToken() == JsonToken.START_OBJECT) {
+                if (MergeSpill.moveToField(parser, field)) {
+                    if (parser.currentToken() != JsonToken.VALUE_NULL) {
+                        return true;
+                    }
+                    skipFields(parser);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the errors following the value of the root field, if the parser has read this value to its end.
+     */
+    private void readTrailingErrors(JsonParser parser, ArrayNode errors) throws IOException {
+        JsonStreamContext context = parser.getParsingContext();
+        boolean inData = context.inObject() && context.getParent() != null && context.getParent().inObject()
+                && context.getParent().getParent() != null && context.getParent().getParent().inRoot();
+        if (!inData) {
+            return;
+        }
+        skipFields(parser);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (ERRORS_FIELD.equals(name)) {
+                addErrors(getObjectMapper().readTree(parser), errors);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Skips the remaining fields of the current object.
+     */
+    private static void skipFields(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
         }
     }
 
+    private static void addErrors(JsonNode localErrors, ArrayNode errors) {
+        if (localErrors != null && localErrors.isArray()) {
+            errors.addAll((ArrayNode) localErrors);
+        } else if (localErrors != null && !localErrors.isNull()) {
+            errors.add(localErrors);
+        }
+    }
+
+    /**
+     * Reads the root list of the given local response element by element and writes every element as a line,
+     * returns the number of written lines.
+     */
+    private int exportElements(QueryCursor.ConcatCursor cursor, Sys endpoint, InputStream response, int alreadyWritten, ArrayNode errors, JsonGenerator generator) throws IOException {
+        QueryCursor.LocalCursor localCursor = cursor.getLocalCursors().get(endpoint.url());
+        if (localCursor == null) {
+            return 0;
+        }
+        String field = localCursor.getQueryNode().field();
+        int limit = cursor.getLimit();
+        int written = 0;
+        try (JsonParser parser = PayloadFormat.createParser(getObjectMapper(), response)) {
+            if (!moveToRootField(parser, field, errors)) {
+                return 0;
+            }
+            boolean isList = parser.currentToken() == JsonToken.START_ARRAY;
+            if (isList) {
+                parser.nextToken();
+            }
+            while (parser.currentToken() != null && parser.currentToken() != JsonToken.END_ARRAY) {
+                if (limit >= 0 && alreadyWritten + written >= limit) {
+                    break;
+                }
+                // every element is handed to the cursors on its own, as if the endpoint had returned only this element
+                ObjectNode single = JsonNodeFactory.instance.objectNode();
+                single.set(field, getObjectMapper().readTree(parser));
+                cursor.addResults(Collections.singletonMap(endpoint.url(), single));
+                written += cursor.processElements(generator, NDJSON_LINE_END);
+                if (!isList) {
+                    break;
+                }
+                parser.nextToken();
+            }
+            readTrailingErrors(parser, errors);
+        }
+        generator.flush();
+        return written;
+    }
+
+    /**
+     * Answers a subscription as a stream of server-sent events (GraphQL over SSE), one "next" event per event of a local
+     * subscription and a "complete" event once all local subscriptions have completed. The call blocks until then
+     * or until the client has gone away.
+     * The local subscriptions are opened once per distinct subscription and shared by all clients that subscribe
+     * to the same subscription, i.e. they are only closed when the last of these clients is gone.
+     * Every client is written on the calling thread from a queue of its own, a client that falls more than
+     * {@link #MAX_QUEUED_SUBSCRIPTION_EVENTS} events behind is dropped instead of holding up the others.
+     * Note that setting the response content type ({@link #EVENT_STREAM_MEDIA_TYPE}) is up to the transport layer.
+     */
+    public void handleSubscription(GraphQLQuery globalQuery, OutputStream outputStream) throws IOException {
+        String key = globalQuery.textualRepresentation();
+        SharedSubscription.Sink sink = new SharedSubscription.Sink(outputStream, MAX_QUEUED_SUBSCRIPTION_EVENTS);
+        SharedSubscription shared;
+        boolean isNew;
+        do {
+            // a subscription that is closing is removed from the map before it rejects new clients
+            SharedSubscription candidate = new SharedSubscription(key, SSE_COMPLETE_EVENT, closed -> subscriptions.remove(key, closed));
+            SharedSubscription existing = subscriptions.putIfAbsent(key, candidate);
+            isNew = existing == null;
+            shared = isNew ? candidate : existing;
+        } while (!shared.attach(sink));
+        try {
+            if (isNew) {
+                try {
+                    shared.open(subscription -> openUpstreams(subscription, globalQuery));
+                } catch (IOException e) {
+                    shared.fail(() -> renderError(e.getMessage()));
+                    sink.writeUntilDone();
+                    throw e;
+                }
+            } else {
+                logger.debug("Sharing the local subscriptions of '" + key.trim() + "'");
+            }
+            // the events are written to this client on its own thread
+            sink.writeUntilDone();
+        } finally {
+            shared.detach(sink);
+        }
+    }
+
+    private void openUpstreams(SharedSubscription shared, GraphQLQuery globalQuery) throws IOException {
+        Map<Sys, GraphQLQuery> localSubscriptions = split(globalQuery);
+        for (Map.Entry<Sys, GraphQLQuery> local : localSubscriptions.entrySet()) {
+            QueryHandler handler = localHandlers.get(local.getKey());
+            if (!(handler instanceof SubscriptionSource)) {
+                throw new IOException("The endpoint '" + local.getKey().url() + "' does not support subscriptions!");
+            }
+            shared.addUpstream(((SubscriptionSource) handler).subscribe(local.getValue(), new UpstreamListener(shared, globalQuery, local.getKey())));
+        }
+        logger.debug("Opened " + localSubscriptions.size() + " local subscriptions for '" + globalQuery.textualRepresentation().trim() + "'");
+    }
+
+    /**
+     * Renders an event of a local subscription as a "next" event, the events of all local subscriptions are fanned in
+     * via the cursor of the root of the subscription.
+     */
+    private byte[] renderEvent(GraphQLQuery globalQuery, Sys endpoint, JsonNode response) throws IOException {
+        ByteArrayOutputStream event = new ByteArrayOutputStream();
+        event.write(SSE_NEXT_EVENT_START);
+        JsonGenerator generator = getJsonFactory().createGenerator(event);
+        generator.writeStartObject();
+        generator.writeFieldName(RETURN_VALUE_FIELD);
+        if (response.path(RETURN_VALUE_FIELD).isObject()) {
+            generator.writeStartObject();
+            QueryCursor.ConcatCursor cursor = (QueryCursor.ConcatCursor) globalQuery.getRoots().get(0).getCursor().get();
+            cursor.processEvent(endpoint.url(), response.get(RETURN_VALUE_FIELD), generator);
+            generator.writeEndObject();
+        } else {
+            generator.writeNull();
+        }
+        if (response.has(ERRORS_FIELD)) {
+            generator.writeFieldName(ERRORS_FIELD);
+            getObjectMapper().writeTree(generator, response.get(ERRORS_FIELD));
+        }
+        generator.writeEndObject();
+        generator.close();
+        event.write(SSE_EVENT_END);
+        return event.toByteArray();
+    }
+
+    private byte[] renderError(String message) throws IOException {
+        ByteArrayOutputStream event = new ByteArrayOutputStream();
+        event.write(SSE_NEXT_EVENT_START);
+        JsonGenerator generator = getJsonFactory().createGenerator(event);
+        generator.writeStartObject();
+        generator.writeArrayFieldStart(ERRORS_FIELD);
+        generator.writeStartObject();
+        generator.writeStringField(MESSAGE_FIELD, message);
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+        event.write(SSE_EVENT_END);
+        return event.toByteArray();
+    }
+
+    private final class UpstreamListener implements SubscriptionSource.Listener {
+
+        private final SharedSubscription subscription;
+        private final GraphQLQuery globalQuery;
+        private final Sys endpoint;
+
+        private UpstreamListener(SharedSubscription subscription, GraphQLQuery globalQuery, Sys endpoint) {
+            this.subscription = subscription;
+            this.globalQuery = globalQuery;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void onEvent(JsonNode response) {
+            subscription.publish(() -> renderEvent(globalQuery, endpoint, response));
+        }
+
+        @Override
+        public void onError(String message) {
+            subscription.fail(() -> renderError("Subscription at '" + endpoint.url() + "' failed: " + message));
+        }
+
+        @Override
+        public void onComplete() {
+            subscription.upstreamCompleted();
+        }
+    }
+
+    private void startPart(JsonGenerator generator, OutputStream outputStream) throws IOException {
+        generator.flush();
+        outputStream.write(MULTIPART_PART_START);
+    }
 
     public void merge(
             Map<Sys, InputStream> localQueryResults,
             GraphQLQuery originalQuery,
             OutputStream outputStream) throws IOException, KeyNotEvaluated {
-        IOStreamUtils.Wiretap wiretap = new IOStreamUtils.Wiretap(outputStream);
-        JsonGenerator generator = getJsonFactory().createGenerator(wiretap);
+        merge(localQueryResults, originalQuery, null, outputStream);
+    }
+
+    /**
+     * Writes the merged response, with the given estimate (if any) in its extensions.
+     */
+    private void merge(
+            Map<Sys, InputStream> localQueryResults,
+            GraphQLQuery originalQuery,
+            QueryCostAnalyzer.Estimate estimate,
+            OutputStream outputStream) throws IOException, KeyNotEvaluated {
+        IOStreamUtils.Wiretap wiretap = null;
+        OutputStream target = outputStream;
+        if (sampleWiretap()) {
+            wiretap = new IOStreamUtils.Wiretap(outputStream);
+            target = wiretap;
+        }
+        // buffers are taken from (and on close returned to) the thread local BufferRecycler of the factory
+        JsonGenerator generator = getJsonFactory().createGenerator(target);
         generator.writeStartObject();
         generator.writeFieldName("data");
         generator.writeStartObject();
 
-        LocalDateTime localQRepsParse = LocalDateTime.now();
-        Map<Sys, JsonNode> globalResults = new LinkedHashMap<>();
-        for (Sys ep : localQueryResults.keySet()) {
-            JsonNode jsonNode = getObjectMapper().readTree(localQueryResults.get(ep)).get("data");
-            globalResults.put(ep, jsonNode);
-        }
-        LocalDateTime localQRepsParseStop = LocalDateTime.now();
-       // System.out.println("Parsing Response from local Query: " + Duration.between(localQRepsParse, localQRepsParseStop).toMillis() + " ms");
-
-        LocalDateTime startMerge = LocalDateTime.now();
-        for (GraphQLQuery.QueryRoot queryRoot : originalQuery.getRoots()) {
-            Map<String, JsonNode> paramMap = new LinkedHashMap<>();
-            for (Sys endpoint : globalResults.keySet()) {
-                paramMap.put(endpoint.url(), globalResults.get(endpoint));
-            }
-            QueryCursor.ConcatCursor cursor = (QueryCursor.ConcatCursor) queryRoot.getCursor().get();
-            cursor.addResults(paramMap);
-            cursor.processOne(generator);
-        }
-        LocalDateTime finishMerge = LocalDateTime.now();
-      //  System.out.println("Merging Query Response: " + Duration.between(startMerge, finishMerge).toMillis() + " ms");
+        mergeRoots(localQueryResults, originalQuery, generator);
 
 
 //        for (QueryNode.Root root : originalQuery.queryRoots().collect(Collectors.toList())) {
@@ -418,7 +1447,7 @@ public class GraphQLQueryDivider extends GraphQLQueryHandler {
 //            Map<Sys, JsonNode> cursors = new LinkedHashMap<>();
 //            for (Sys ep : localQueryResults.keySet()) {
 //                LocalDateTime localQRepsParse = LocalDateTime.now();
-//                JsonNode jsonNode = getObjectMapper().readTree(localQueryResults.get(ep)).get("data");
+//                JsonNode jsonNode = PayloadFormat.readTree(getObjectMapper(), localQueryResults.get(ep)).get("data");
 //                LocalDateTime localQRepsParseStop = LocalDateTime.now();
 //                System.out.println("Parsing Response from local Query: " + Duration.between(localQRepsParse, localQRepsParseStop).toMillis() + " ms");
 //
@@ -448,22 +1477,388 @@ public class GraphQLQueryDivider extends GraphQLQueryHandler {
 //            }
 //        }
         generator.writeEndObject();
+        if (estimate != null) {
+            writeCost(estimate, generator);
+        }
         generator.writeEndObject();
-        generator.flush();
-      //  System.out.println(wiretap.getRecorded());
+        generator.close();
+        if (wiretap != null) {
+            logger.debug("Federated query response:\n" + wiretap.getRecorded());
+        }
 
         outputStream.close();
     }
 
+    /**
+     * Writes the merged results for all roots of the given query as fields into the object the generator is currently in.
+     */
+    void mergeRoots(
+            Map<Sys, InputStream> localQueryResults,
+            GraphQLQuery originalQuery,
+            JsonGenerator generator) throws IOException, KeyNotEvaluated {
+        if (spillThreshold < 0) {
+            mergeRootsInMemory(localQueryResults, originalQuery, generator);
+            return;
+        }
+        // the responses are held in memory until they exceed the threshold, only then they are moved to files
+        Map<Sys, byte[]> buffered = new LinkedHashMap<>();
+        Map<Sys, File> spilled = null;
+        try {
+            long total = 0;
+            for (Map.Entry<Sys, InputStream> result : localQueryResults.entrySet()) {
+                long size;
+                try (InputStream in = result.getValue()) {
+                    if (spilled == null) {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        size = copy(in, bytes, spillThreshold - total + 1);
+                        if (total + size <= spillThreshold) {
+                            buffered.put(result.getKey(), bytes.toByteArray());
+                        } else {
+                            spilled = new LinkedHashMap<>();
+                            for (Map.Entry<Sys, byte[]> response : buffered.entrySet()) {
+                                spilled.put(response.getKey(), spill(new ByteArrayInputStream(response.getValue()), null));
+                            }
+                            buffered.clear();
+                            File file = spill(in, bytes);
+                            spilled.put(result.getKey(), file);
+                            size = file.length();
+                        }
+                    } else {
+                        File file = spill(in, null);
+                        spilled.put(result.getKey(), file);
+                        size = file.length();
+                    }
+                }
+                planner.recordResponseSize(result.getKey(), size);
+                total += size;
+            }
+            if (spilled == null) {
+                Map<Sys, InputStream> inMemory = new LinkedHashMap<>();
+                for (Map.Entry<Sys, byte[]> response : buffered.entrySet()) {
+                    inMemory.put(response.getKey(), new ByteArrayInputStream(response.getValue()));
+                }
+                buffered = null;
+                mergeRootsInMemory(inMemory, originalQuery, generator);
+            } else {
+                int partitions = (int) Math.min(MAX_SPILL_PARTITIONS, Math.max(2, total * PARSED_SIZE_FACTOR / Math.max(1, spillThreshold) + 1));
+                logger.info("Joining " + total + " bytes of local responses in " + partitions + " partitions on disk");
+                mergeRootsSpilling(spilled, originalQuery, partitions, generator);
+            }
+        } finally {
+            if (spilled != null) {
+                for (File file : spilled.values()) {
+                    if (!file.delete()) {
+                        file.deleteOnExit();
+                    }
+                }
+            }
+        }
+    }
 
-    private Map<Sys, InputStream> executeQueries(Map<Sys, GraphQLQuery> localQueries)  throws IOException {
+    /**
+     * Copies at most the given number of bytes, returns the number of copied bytes.
+     */
+    private static long copy(InputStream in, OutputStream out, long maxBytes) throws IOException {
+        byte[] chunk = new byte[8192];
+        long copied = 0;
+        int read;
+        while (copied < maxBytes && (read = in.read(chunk, 0, (int) Math.min(chunk.length, maxBytes - copied))) >= 0) {
+            out.write(chunk, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * Writes the already read start of a response (if any) and the rest of it into a temporary file.
+     */
+    private File spill(InputStream rest, ByteArrayOutputStream start) throws IOException {
+        File file = File.createTempFile("response-", ".tmp", spillDirectory);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            if (start != null) {
+                start.writeTo(out);
+            }
+            IOStreamUtils.copyOver(rest, out);
+        } catch (IOException e) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            throw e;
+        }
+        return file;
+    }
+
+    private void mergeRootsSpilling(
+            Map<Sys, File> responses,
+            GraphQLQuery originalQuery,
+            int partitions,
+            JsonGenerator generator) throws IOException {
+        Map<String, File> responsesByUrl = new LinkedHashMap<>();
+        for (Map.Entry<Sys, File> response : responses.entrySet()) {
+            responsesByUrl.put(response.getKey().url(), response.getValue());
+        }
+        Map<String, JsonNode> parsed = null;
+        for (GraphQLQuery.QueryRoot queryRoot : originalQuery.getRoots()) {
+            QueryCursor.ConcatCursor cursor = (QueryCursor.ConcatCursor) queryRoot.getCursor().get();
+            if (cursor instanceof QueryCursor.ConcatMergeCursor && ((QueryCursor.ConcatMergeCursor) cursor).canSpill()) {
+                ((QueryCursor.ConcatMergeCursor) cursor).processSpilled(responsesByUrl, getObjectMapper(), spillDirectory, partitions, generator);
+            } else {
+                // roots that are only concatenated are not joined and therefore read as a whole
+                if (parsed == null) {
+                    parsed = new LinkedHashMap<>();
+                    for (Map.Entry<String, File> response : responsesByUrl.entrySet()) {
+                        try (InputStream in = new BufferedInputStream(new FileInputStream(response.getValue()))) {
+                            parsed.put(response.getKey(), PayloadFormat.readTree(getObjectMapper(), in).get("data"));
+                        }
+                    }
+                }
+                cursor.addResults(parsed);
+                cursor.processOne(generator);
+            }
+        }
+    }
+
+    private void mergeRootsInMemory(
+            Map<Sys, InputStream> localQueryResults,
+            GraphQLQuery originalQuery,
+            JsonGenerator generator) throws IOException, KeyNotEvaluated {
+        Map<Sys, JsonNode> globalResults = new LinkedHashMap<>();
+        for (Sys ep : localQueryResults.keySet()) {
+            InputStream localResult = localQueryResults.get(ep);
+            JsonNode jsonNode = readData(localResult, limitedRootCursors(originalQuery, ep));
+            globalResults.put(ep, jsonNode);
+            if (localResult instanceof CountingInputStream) {
+                planner.recordResponseSize(ep, ((CountingInputStream) localResult).getCount());
+            }
+        }
+        Map<String, JsonNode> paramMap = new LinkedHashMap<>();
+        for (Sys endpoint : globalResults.keySet()) {
+            paramMap.put(endpoint.url(), globalResults.get(endpoint));
+        }
+        ForkJoinPool pool = mergePool;
+        if (pool != null && originalQuery.getRoots().size() > 1) {
+            mergeRootsInParallel(pool, globalResults, paramMap, originalQuery, generator);
+        } else {
+            for (GraphQLQuery.QueryRoot queryRoot : originalQuery.getRoots()) {
+                mergeRoot(queryRoot, globalResults, paramMap, generator);
+            }
+        }
+    }
+
+    /**
+     * The local cursors of the given endpoint that read a limited root field, by field.
+     * Only the roots that are concatenated qualify, merging by keys has to see all results of every endpoint.
+     */
+    private static Map<String, QueryCursor.LocalCursor> limitedRootCursors(GraphQLQuery query, Sys endpoint) {
+        Map<String, QueryCursor.LocalCursor> result = new HashMap<>();
+        Set<String> ambiguous = new HashSet<>();
+        for (GraphQLQuery.QueryRoot queryRoot : query.getRoots()) {
+            QueryCursor.ConcatCursor cursor = (QueryCursor.ConcatCursor) queryRoot.getCursor().get();
+            QueryCursor.LocalCursor localCursor = cursor.getLocalCursors().get(endpoint.url());
+            if (localCursor != null && !(cursor instanceof QueryCursor.ConcatMergeCursor)) {
+                String field = localCursor.getQueryNode().field();
+                if (result.put(field, localCursor) != null) {
+                    ambiguous.add(field);
+                }
+            }
+        }
+        result.keySet().removeAll(ambiguous);
+        result.values().removeIf(localCursor -> !localCursor.isLimited());
+        return result;
+    }
+
+    /**
+     * Reads the "data" of a local response, where the given cursors stop parsing their lists once their limit is reached
+     * (see {@link QueryCursor.LocalCursor#readValue}).
+     */
+    private JsonNode readData(InputStream response, Map<String, QueryCursor.LocalCursor> limitedCursors) throws IOException {
+        if (limitedCursors.isEmpty()) {
+            return PayloadFormat.readTree(getObjectMapper(), response).get(RETURN_VALUE_FIELD);
+        }
+        JsonNode data = null;
+        try (JsonParser parser = PayloadFormat.createParser(getObjectMapper(), response)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (!RETURN_VALUE_FIELD.equals(name)) {
+                    parser.skipChildren();
+                } else if (token != JsonToken.START_OBJECT) {
+                    data = getObjectMapper().readTree(parser);
+                } else {
+                    ObjectNode object = getObjectMapper().getNodeFactory().objectNode();
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.getCurrentName();
+                        parser.nextToken();
+                        QueryCursor.LocalCursor cursor = limitedCursors.get(field);
+                        object.set(field, cursor == null ? getObjectMapper().readTree(parser) : cursor.readValue(parser, getObjectMapper()));
+                    }
+                    data = object;
+                }
+            }
+        }
+        return data;
+    }
+
+
+    private void mergeRoot(GraphQLQuery.QueryRoot queryRoot, Map<Sys, JsonNode> globalResults, Map<String, JsonNode> paramMap, JsonGenerator generator) throws IOException {
+        QueryCursor.ConcatCursor cursor = (QueryCursor.ConcatCursor) queryRoot.getCursor().get();
+        recordContributions(queryRoot, cursor, globalResults);
+        costAnalyzer.recordListSizes(queryRoot, paramMap);
+        cursor.addResults(paramMap);
+        cursor.processOne(generator);
+    }
+
+    /**
+     * Every root has cursors of its own and only reads the parsed local results, so the roots are rendered
+     * into separate buffers concurrently, which are then copied into the output in the order of the query.
+     */
+    private void mergeRootsInParallel(
+            ForkJoinPool pool,
+            Map<Sys, JsonNode> globalResults,
+            Map<String, JsonNode> paramMap,
+            GraphQLQuery originalQuery,
+            JsonGenerator generator) throws IOException {
+        writeRootsInParallel(pool, getObjectMapper(), originalQuery.getRoots(),
+                (queryRoot, buffer) -> mergeRoot(queryRoot, globalResults, paramMap, buffer), generator);
+    }
+
+    /**
+     * Writes one root (i.e. its field and value) of a query.
+     */
+    interface RootWriter {
+        void write(GraphQLQuery.QueryRoot queryRoot, JsonGenerator generator) throws IOException;
+    }
+
+    /**
+     * Writes the roots concurrently on the given pool, with the same output as writing them one after the other.
+     * If a root fails, the roots that have not been written yet are cancelled and its exception is rethrown.
+     */
+    static void writeRootsInParallel(
+            ForkJoinPool pool,
+            ObjectMapper objectMapper,
+            List<GraphQLQuery.QueryRoot> roots,
+            RootWriter writer,
+            JsonGenerator generator) throws IOException {
+        List<ForkJoinTask<TokenBuffer>> tasks = new ArrayList<>();
+        for (GraphQLQuery.QueryRoot queryRoot : roots) {
+            tasks.add(pool.submit(() -> {
+                TokenBuffer buffer = new TokenBuffer(objectMapper, false);
+                buffer.writeStartObject();
+                writer.write(queryRoot, buffer);
+                buffer.writeEndObject();
+                return buffer;
+            }));
+        }
+        try {
+            for (ForkJoinTask<TokenBuffer> task : tasks) {
+                TokenBuffer buffer = awaitRoot(task);
+                JsonParser parser = buffer.asParser();
+                parser.nextToken(); // START_OBJECT
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    generator.copyCurrentStructure(parser);
+                }
+                parser.close();
+            }
+        } finally {
+            for (ForkJoinTask<TokenBuffer> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Rethrows what the root failed with, like writing the root on the calling thread would.
+     */
+    private static TokenBuffer awaitRoot(ForkJoinTask<TokenBuffer> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while merging");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // the pool may hand out a copy of the exception that wraps the original one
+            if (cause.getCause() != null && cause.getCause().getClass() == cause.getClass()) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void recordContributions(GraphQLQuery.QueryRoot queryRoot, QueryCursor.ConcatCursor cursor, Map<Sys, JsonNode> globalResults) {
+        for (Sys ep : globalResults.keySet()) {
+            QueryCursor.LocalCursor localCursor = cursor.getLocalCursors().get(ep.url());
+            if (localCursor != null) {
+                JsonNode data = globalResults.get(ep);
+                JsonNode result = data == null ? null : data.get(localCursor.getQueryNode().field());
+                boolean nonEmpty = result != null && !result.isNull() && !(result.isArray() && result.size() == 0);
+                planner.recordContribution(ep, queryRoot.field(), nonEmpty);
+            }
+        }
+    }
+
+    /**
+     * Delegators hand out the responses of their endpoints as they arrive, other handlers resolve into a buffer.
+     */
+    private InputStream resolve(QueryHandler handler, GraphQLQuery localQuery) throws IOException {
+        if (handler instanceof GraphQLQueryDelegator) {
+            return ((GraphQLQueryDelegator) handler).open(localQuery);
+        }
+        return handler.resolveAsStream(localQuery);
+    }
+
+    /**
+     * With projection pushdown, endpoints that are the only source of an attribute of merged objects must not be skipped.
+     */
+    private Set<Sys> requiredEndpoints(GraphQLQuery globalQuery, Map<Sys, GraphQLQuery> localQueries) {
+        if (!projectionPushdown) {
+            return Collections.emptySet();
+        }
+        Set<String> urls = QueryPlanner.soleSources(globalQuery);
+        return localQueries.keySet().stream().filter(ep -> urls.contains(ep.url())).collect(Collectors.toSet());
+    }
+
+    private Map<Sys, InputStream> executeQueries(GraphQLQuery globalQuery, Map<Sys, GraphQLQuery> localQueries)  throws IOException {
         LocalDateTime qSendStart = LocalDateTime.now();
+        QueryPlanner.Plan plan = planner.plan(globalQuery, localQueries, requiredEndpoints(globalQuery, localQueries));
+        Map<Sys, Future<InputStream>> tasks = new LinkedHashMap<>();
+        for (QueryPlanner.Step step : plan.getSteps()) {
+            Sys ep = step.getEndpoint();
+            if (step.isSkipped()) {
+                logger.debug("Skipped the local query to " + ep.url() + ", which is unlikely to contribute");
+            } else if (localHandlers.containsKey(ep)) {
+                tasks.put(ep, submitQuery(ep, step.getQuery()));
+            }
+        }
         Map<Sys, InputStream> localQueryResults = new LinkedHashMap<>();
-        for (Sys ep : localQueries.keySet()) {
-            if (localHandlers.containsKey(ep)) {
-                localQueryResults.put(ep, localHandlers.get(ep).resolveAsStream(localQueries.get(ep)));
+        IOException failure = null;
+        for (Map.Entry<Sys, Future<InputStream>> task : tasks.entrySet()) {
+            try {
+                localQueryResults.put(task.getKey(), new CountingInputStream(awaitQuery(task.getValue())));
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
             }
         }
+        if (failure != null) {
+            for (InputStream result : localQueryResults.values()) {
+                result.close();
+            }
+            throw failure;
+        }
         LocalDateTime qSendEnd = LocalDateTime.now();
       //  System.out.println("Local Query Request/Response: " + Duration.between(qSendStart, qSendEnd).toMillis() + " ms");
 
@@ -471,9 +1866,45 @@ public class GraphQLQueryDivider extends GraphQLQueryHandler {
     }
 
 
+    /**
+     * Sends the local query in the plan order, i.e. slow endpoints are contacted first, on the request executor if any.
+     */
+    private Future<InputStream> submitQuery(Sys ep, GraphQLQuery localQuery) {
+        FutureTask<InputStream> task = new FutureTask<>(() -> {
+            long start = System.nanoTime();
+            InputStream result = resolve(localHandlers.get(ep), localQuery);
+            planner.recordLatency(ep, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return result;
+        });
+        ExecutorService executor = requestExecutor;
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+        return task;
+    }
+
+    private static InputStream awaitQuery(Future<InputStream> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a local query");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
     public Map<Sys, GraphQLQuery> split(GraphQLQuery query) {
         LocalDateTime splitStart = LocalDateTime.now();
-        Map<Sys, GraphQLQuery> result =  query.split(comprSys, new ArrayList<>(this.localHandlers.keySet()));
+        Map<Sys, GraphQLQuery> result =  query.split(comprSys, new ArrayList<>(this.localHandlers.keySet()), projectionPushdown, argumentPushdown);
+        for (GraphQLQuery.QueryRoot root : query.getRoots()) {
+            configureJoins(root);
+        }
         LocalDateTime splitEnd = LocalDateTime.now();
    //     System.out.println("Query Splitting: " + Duration.between(splitStart, splitEnd).toMillis() + " ms");
         return result;
@@ -487,20 +1918,10 @@ public class GraphQLQueryDivider extends GraphQLQueryHandler {
             JsonFactory factory,
             ComprSys comprSys,
             LinkedHashMap<Sys, QueryHandler> handlerMap) throws IOException {
-        // writing schema
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // building GraphQL engine directly from the schema
         GraphQLSchemaWriter schemaWriter = new GraphQLSchemaWriter();
         comprSys.schema().accept(schemaWriter);
-        BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(bos));
-        schemaWriter.printToBuffer(bufferedWriter);
-        bufferedWriter.flush();
-        bufferedWriter.close();
-
-        // building GraphQL engine
-        TypeDefinitionRegistry typeReg = new SchemaParser().parse(bos.toString("UTF-8"));
-        RuntimeWiring wiring = StubWiring.createWiring(typeReg);
-        GraphQLSchema executableSchema = new SchemaGenerator().makeExecutableSchema(typeReg, wiring);
-        GraphQL graphQL = GraphQL.newGraphQL(executableSchema).build();
+        GraphQL graphQL = GraphQL.newGraphQL(schemaWriter.buildSchema()).build();
 
         GraphQLEndpoint endpoint = new GraphQLEndpoint(
                 comprSys.url(),
@@ -513,6 +1934,13 @@ public class GraphQLQueryDivider extends GraphQLQueryHandler {
                 factory,
                 "Query",
                 "Mutation");
+        endpoint.setSubscriptions(comprSys.messages().filter(m -> m instanceof SubscriptionMessage).map(m -> (SubscriptionMessage) m).collect(Collectors.toSet()), "Subscription");
         return new GraphQLQueryDivider(comprSys, handlerMap, graphQL, endpoint);
     }
+
+    private static GraphQL buildEngine(Sketch schema) {
+        GraphQLSchemaWriter schemaWriter = new GraphQLSchemaWriter();
+        schema.accept(schemaWriter);
+        return GraphQL.newGraphQL(schemaWriter.buildSchema()).build();
+    }
 }
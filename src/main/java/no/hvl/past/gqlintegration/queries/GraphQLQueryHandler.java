@@ -34,12 +34,18 @@ public abstract class GraphQLQueryHandler implements QueryHandler {
     private static final String QUERY_OPERATION_FIELD = "operationName";
     private static final String INTROSPECTION_ROOT = "__schema";
     public static final String QUERY_VARIABLES_FIELD = "variables";
+    private static final String EXPORT_AS_FIELD = "exportAs";
+    private static final String NDJSON_EXPORT = "ndjson";
     private final GraphQLEndpoint endpoint;
 
     protected GraphQLQueryHandler(GraphQLEndpoint endpoint) {
         this.endpoint = endpoint;
     }
 
+    GraphQLEndpoint getEndpoint() {
+        return endpoint;
+    }
+
     ObjectMapper getObjectMapper() {
         return endpoint.getObjectMapper();
     }
@@ -70,7 +76,7 @@ public abstract class GraphQLQueryHandler implements QueryHandler {
 
     public TypedTree deserialize(InputStream inputStream) throws IOException {
         // TODO support XML as well
-        JsonNode jsonNode = getObjectMapper().readTree(inputStream);
+        JsonNode jsonNode = PayloadFormat.readTree(getObjectMapper(), inputStream);
         if (jsonNode.isObject()) {
             if (jsonNode.get(ERRORS_FIELD) != null) {
                 mkError(jsonNode.get(ERRORS_FIELD));
@@ -84,7 +90,15 @@ public abstract class GraphQLQueryHandler implements QueryHandler {
                 if (query.contains(INTROSPECTION_ROOT)) {
                     return new IntrospectionQuery(query, opName, variables);
                 } else {
-                    return GraphQLQueryParser.parse(this.endpoint, query, opName, variables);
+                    TypedTree result = GraphQLQueryParser.parse(this.endpoint, query, opName, variables);
+                    if (jsonNode.get(EXPORT_AS_FIELD) != null && result instanceof GraphQLQuery) {
+                        String format = jsonNode.get(EXPORT_AS_FIELD).asText();
+                        if (!NDJSON_EXPORT.equals(format)) {
+                            throw new IOException("Unsupported export format '" + format + "'");
+                        }
+                        ((GraphQLQuery) result).setExport(true);
+                    }
+                    return result;
                 }
             } else {
                 return tryParseInstance(jsonNode);
@@ -1,9 +1,22 @@
 package no.hvl.past.gqlintegration.queries;
 
+import graphql.language.Argument;
+import graphql.language.BooleanValue;
+import graphql.language.Directive;
+import graphql.language.Document;
+import graphql.language.EnumValue;
+import graphql.language.Field;
+import graphql.language.FloatValue;
+import graphql.language.IntValue;
+import graphql.language.OperationDefinition;
+import graphql.language.Value;
+import graphql.parser.InvalidSyntaxException;
+import graphql.parser.Parser;
 import no.hvl.past.attributes.StringValue;
 import no.hvl.past.gqlintegration.GraphQLEndpoint;
 import no.hvl.past.gqlintegration.predicates.FieldArgument;
 import no.hvl.past.gqlintegration.predicates.MutationMessage;
+import no.hvl.past.gqlintegration.predicates.SubscriptionMessage;
 import no.hvl.past.graph.elements.Triple;
 import no.hvl.past.graph.trees.TypedBranch;
 import no.hvl.past.graph.trees.TypedNode;
@@ -34,6 +47,11 @@ class GraphQLQueryParser {
     private BiFunction<Name, String, Optional<Triple>> lookup;
 
     private static final String SPECIAL_CHARS = "{}(),:\"";
+    private static final String DEFER_DIRECTIVE = "defer";
+    private static final String STREAM_DIRECTIVE = "stream";
+    private static final String IF_ARGUMENT = "if";
+    private static final String LABEL_ARGUMENT = "label";
+    private static final String INITIAL_COUNT_ARGUMENT = "initialCount";
 
     public GraphQLQueryParser(Sys sketch, BiFunction<Name, String, Optional<Triple>> lookup, GraphQLQuery.Node root) {
         this.schema = sketch;
@@ -57,10 +75,17 @@ class GraphQLQueryParser {
         String queryType = rest.substring(0, firstIdx).trim();
         rest = rest.substring(firstIdx + 1);
         while (!rest.isEmpty()) {
-            int nextIndex = rest.indexOf('{');
-            String queryOp = rest.substring(0, nextIndex).trim();
-            Pair<Triple,Boolean> messageReturnTripleAndIsMutation = lookupMessageType(endpoint, queryType, queryOp);
-            GraphQLQuery.QueryRoot root = new GraphQLQuery.QueryRoot(queryOp, messageReturnTripleAndIsMutation.getRight(), messageReturnTripleAndIsMutation.getLeft());
+            int nextIndex = selectionSetStart(rest);
+            if (nextIndex < 0) {
+                throw new IOException("The root field '" + rest.trim() + "' has no selection set!");
+            }
+            Field rootField = parseRootField(rest.substring(0, nextIndex).trim());
+            String queryOp = rootField.getName();
+            Pair<Triple, MessageType> messageReturnTripleAndType = lookupMessageType(endpoint, queryType, queryOp);
+            GraphQLQuery.QueryRoot root = new GraphQLQuery.QueryRoot(queryOp, messageReturnTripleAndType.getRight() instanceof MutationMessage, messageReturnTripleAndType.getLeft());
+            addRootArguments(rootField.getArguments(), messageReturnTripleAndType.getRight(), root);
+            parseDelivery(rootField.getDirectives(), root);
+            root.setSubscription(messageReturnTripleAndType.getRight() instanceof SubscriptionMessage);
             qRoots.add(root);
             GraphQLQueryParser parser = new GraphQLQueryParser(endpoint, endpoint::lookupField ,root);
             rest = parser.process(rest.substring(nextIndex + 1).trim());
@@ -75,7 +100,133 @@ class GraphQLQueryParser {
         return new GraphQLQuery(qRoots, endpoint.schema(), Name.anonymousIdentifier());// TODO can use operationName ehere
     }
 
-    private static Pair<Triple, Boolean> lookupMessageType(
+    /**
+     * The index of the opening brace of the selection set of the next root field,
+     * ignoring braces in string literals (e.g. of arguments or directive labels), or -1 if there is none.
+     */
+    static int selectionSetStart(String rest) {
+        boolean inString = false;
+        for (int i = 0; i < rest.length(); i++) {
+            char c = rest.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the part of a root field before its selection set, i.e. its name, arguments and directives.
+     */
+    static Field parseRootField(String header) throws IOException {
+        Field field;
+        try {
+            Document document = new Parser().parseDocument("{ " + header + " }");
+            OperationDefinition operation = (OperationDefinition) document.getDefinitions().get(0);
+            field = (Field) operation.getSelectionSet().getSelections().get(0);
+        } catch (InvalidSyntaxException | ClassCastException | IndexOutOfBoundsException e) {
+            throw new IOException("Cannot parse the root field '" + header + "'", e);
+        }
+        if (field.getAlias() != null) {
+            throw new IOException("Aliases such as '" + field.getAlias() + "' are not supported on root fields");
+        }
+        return field;
+    }
+
+    /**
+     * Adds the arguments of a root field, typed by the respective argument of the message.
+     * Like all other arguments, they must be literals and are kept as text.
+     */
+    private static void addRootArguments(List<Argument> arguments, MessageType message, GraphQLQuery.QueryRoot root) throws IOException {
+        for (Argument argument : arguments) {
+            Optional<MessageArgument> messageArgument = message.arguments()
+                    .filter(a -> !a.isOutput())
+                    .filter(a -> a.asEdge().getLabel().print(PrintingStrategy.IGNORE_PREFIX).equals(argument.getName()))
+                    .findFirst();
+            if (!messageArgument.isPresent()) {
+                throw new IOException("The argument '" + argument.getName() + "' is not found on '" + root.getLabel() + "'");
+            }
+            String valueText = literalText(argument);
+            root.addAttribute(argument.getName(), valueText, Name.value(valueText), messageArgument.get().asEdge());
+        }
+    }
+
+    private static String literalText(Argument argument) throws IOException {
+        Value<?> value = argument.getValue();
+        if (value instanceof graphql.language.StringValue) {
+            return ((graphql.language.StringValue) value).getValue();
+        } else if (value instanceof IntValue) {
+            return ((IntValue) value).getValue().toString();
+        } else if (value instanceof FloatValue) {
+            return ((FloatValue) value).getValue().toString();
+        } else if (value instanceof BooleanValue) {
+            return String.valueOf(((BooleanValue) value).isValue());
+        } else if (value instanceof EnumValue) {
+            return ((EnumValue) value).getName();
+        }
+        throw new IOException("The argument '" + argument.getName() + "' must be a scalar literal");
+    }
+
+    /**
+     * Reads the @defer and @stream directives of a root together with their arguments if, label and initialCount.
+     * Other directives are ignored. Variables are not supported, so the arguments must be literals.
+     * Note that this is a non-standard extension: the incremental delivery proposal only allows @defer on fragments
+     * (which are not supported by this parser), here it is accepted on root fields instead and defers the whole root.
+     */
+    static void parseDelivery(List<Directive> parsed, GraphQLQuery.QueryRoot root) throws IOException {
+        for (Directive directive : parsed) {
+            boolean isStream = directive.getName().equals(STREAM_DIRECTIVE);
+            if (!isStream && !directive.getName().equals(DEFER_DIRECTIVE)) {
+                continue;
+            }
+            Value<?> condition = directiveArgument(directive, IF_ARGUMENT, BooleanValue.class);
+            if (condition != null && !((BooleanValue) condition).isValue()) {
+                continue;
+            }
+            String label = labelArgument(directive);
+            if (isStream) {
+                Value<?> initialCount = directiveArgument(directive, INITIAL_COUNT_ARGUMENT, IntValue.class);
+                int count = initialCount == null ? 0 : ((IntValue) initialCount).getValue().intValue();
+                if (count < 0) {
+                    throw new IOException("The initialCount of @stream must not be negative");
+                }
+                root.setDelivery(GraphQLQuery.QueryRoot.Delivery.STREAM);
+                root.setInitialCount(count);
+                root.setDeliveryLabel(label);
+            } else if (root.getDelivery() == GraphQLQuery.QueryRoot.Delivery.IMMEDIATE) {
+                root.setDelivery(GraphQLQuery.QueryRoot.Delivery.DEFER);
+                root.setDeliveryLabel(label);
+            }
+        }
+    }
+
+    private static String labelArgument(Directive directive) throws IOException {
+        // not imported, the query arguments use the StringValue of the attributes
+        Value<?> label = directiveArgument(directive, LABEL_ARGUMENT, graphql.language.StringValue.class);
+        return label == null ? null : ((graphql.language.StringValue) label).getValue();
+    }
+
+    private static Value<?> directiveArgument(Directive directive, String name, Class<? extends Value> type) throws IOException {
+        for (Argument argument : directive.getArguments()) {
+            if (argument.getName().equals(name)) {
+                if (!type.isInstance(argument.getValue())) {
+                    throw new IOException("The argument '" + name + "' of @" + directive.getName() + " must be a literal of type " + type.getSimpleName());
+                }
+                return argument.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static Pair<Triple, MessageType> lookupMessageType(
             GraphQLEndpoint endpoint,
             String queryType,
             String queryOp) throws IOException {
@@ -83,17 +234,17 @@ class GraphQLQueryParser {
         if (queryType.isEmpty()) {
             Optional<MessageType> message = endpoint.getMessage(queryOp);
             if (message.isPresent()) {
-                return new Pair<>(message.get().arguments().filter(MessageArgument::isOutput).findFirst().get().asEdge(), message.get() instanceof MutationMessage);
+                return new Pair<>(message.get().arguments().filter(MessageArgument::isOutput).findFirst().get().asEdge(), message.get());
             } else {
-                throw new IOException("Cannot find query or mutation '" + queryOp + "'");
+                throw new IOException("Cannot find query, mutation or subscription '" + queryOp + "'");
             }
         } else {
             String qt =  queryType.contains(" ")? queryOp.substring(0, queryOp.indexOf(' ')).trim() : queryType;
             Optional<MessageType> message = endpoint.getMessage(StringUtils.capitalizeFirst(qt) + "." + queryOp);
             if (message.isPresent()) {
-                return new Pair<>(message.get().arguments().filter(MessageArgument::isOutput).findFirst().get().asEdge(), message.get() instanceof MutationMessage);
+                return new Pair<>(message.get().arguments().filter(MessageArgument::isOutput).findFirst().get().asEdge(), message.get());
             } else {
-                throw new IOException("Cannot find query or mutation '" + queryOp + "' of '" + StringUtils.capitalizeFirst(queryType) + "'");
+                throw new IOException("Cannot find query, mutation or subscription '" + queryOp + "' of '" + StringUtils.capitalizeFirst(queryType) + "'");
             }
         }
     }
@@ -0,0 +1,23 @@
+package no.hvl.past.gqlintegration.queries;
+
+/**
+ * How the results of different endpoints for objects that are identified by keys are joined.
+ */
+public enum JoinStrategy {
+
+    /**
+     * Indexes all results by their key values before anything is written (default).
+     */
+    HASH,
+
+    /**
+     * Joins the results in a single pass, assuming that every endpoint returns them ordered by its key,
+     * and falls back to {@link #HASH} when they turn out not to be ordered.
+     * Merged objects are written in key order, keys that are single Int or Float attributes order numerically,
+     * all others lexicographically.
+     * Since the fallback needs the whole results, they are still read completely before merging, only
+     * {@link GraphQLQueryDivider#export} reads them side by side (and fails instead of falling back).
+     * Whether endpoints return ordered results is not detected, the strategy has to be chosen by configuration.
+     */
+    SORT_MERGE
+}
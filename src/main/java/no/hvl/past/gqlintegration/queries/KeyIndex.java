@@ -0,0 +1,225 @@
+package no.hvl.past.gqlintegration.queries;
+
+import no.hvl.past.names.Name;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An open addressing hash index from key values to row numbers of merged objects, whose table lives off-heap
+ * in a direct buffer: every slot holds the hash of a key value and the row number, i.e. the index allocates neither
+ * entry objects nor boxed row numbers. The index does not store the key values, hash collisions are resolved
+ * by asking the owner whether the row really has that key value, so the key values stay referenced by the rows.
+ * Tables are taken from and returned to a small pool on {@link #close()}, such that consecutive merges
+ * (e.g. the nested merges of one request) reuse the same memory instead of allocating new direct buffers.
+ * Tables too large for the pool are allocated on the heap, so that they are reclaimed like any other garbage
+ * instead of holding direct memory until their buffer happens to be collected.
+ * Once the table has reached its maximal size, further key values are indexed in an ordinary hash map.
+ */
+final class KeyIndex implements Closeable {
+
+    /**
+     * Resolves hash collisions.
+     */
+    interface RowMatcher {
+        boolean hasKeyValue(int row, Name keyValue);
+    }
+
+    private static final int SLOT_BYTES = 8;
+    private static final int MIN_SLOTS = 64;
+    private static final int MAX_SLOTS = 1 << 27;
+    private static final int MAX_POOLED_TABLES = 16;
+    private static final int MAX_POOLED_BYTES = 64 << 20;
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    private final RowMatcher matcher;
+    private final int maxSlots;
+    private ByteBuffer table;
+    private int mask;
+    private int size;
+    private Map<Name, Integer> overflow;
+
+    private KeyIndex(int slots, int maxSlots, RowMatcher matcher) {
+        this.matcher = matcher;
+        this.maxSlots = maxSlots;
+        this.table = acquireTable(slots);
+    }
+
+    /**
+     * Creates an index sized for the given number of key values, which may grow beyond it.
+     */
+    static KeyIndex create(int expectedKeyValues, RowMatcher matcher) {
+        return create(expectedKeyValues, MAX_SLOTS, matcher);
+    }
+
+    /**
+     * Creates an index that grows to at most the given number of slots (a power of two).
+     */
+    static KeyIndex create(int expectedKeyValues, int maxSlots, RowMatcher matcher) {
+        int slots = MIN_SLOTS;
+        while (slots < 2 * expectedKeyValues && slots < maxSlots) {
+            slots <<= 1;
+        }
+        return new KeyIndex(slots, maxSlots, matcher);
+    }
+
+    /**
+     * The number of tables that are currently pooled.
+     */
+    static int pooledTables() {
+        return POOL.size();
+    }
+
+    /**
+     * The number of slots of the current table.
+     */
+    int capacity() {
+        return mask + 1;
+    }
+
+    private ByteBuffer acquireTable(int slots) {
+        int bytes = slots * SLOT_BYTES;
+        this.mask = slots - 1;
+        this.size = 0;
+        if (bytes > MAX_POOLED_BYTES) {
+            // zeroed already
+            return ByteBuffer.allocate(bytes);
+        }
+        ByteBuffer result = null;
+        for (ByteBuffer pooled : POOL) {
+            if (pooled.capacity() >= bytes && POOL.remove(pooled)) {
+                result = pooled;
+                break;
+            }
+        }
+        if (result == null) {
+            result = ByteBuffer.allocateDirect(bytes);
+        }
+        // row number 0 marks an empty slot, rows are stored incremented by one
+        for (int i = 0; i < bytes; i += SLOT_BYTES) {
+            result.putLong(i, 0L);
+        }
+        return result;
+    }
+
+    private static void releaseTable(ByteBuffer table) {
+        if (table.isDirect() && table.capacity() <= MAX_POOLED_BYTES && POOL.size() < MAX_POOLED_TABLES) {
+            POOL.offer(table);
+        }
+    }
+
+    private static int hash(Name keyValue) {
+        int h = keyValue.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The row with the given key value or -1.
+     */
+    int get(Name keyValue) {
+        int hash = hash(keyValue);
+        int slot = hash & mask;
+        while (true) {
+            int row = table.getInt(slot * SLOT_BYTES + 4) - 1;
+            if (row < 0) {
+                return getOverflow(keyValue);
+            }
+            if (table.getInt(slot * SLOT_BYTES) == hash && matcher.hasKeyValue(row, keyValue)) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Maps the key value to the given row, replacing a previous row if the matcher still confirms
+     * that the previous row has the key value.
+     */
+    void put(Name keyValue, int row) {
+        if (overflow != null) {
+            if (!replace(hash(keyValue), keyValue, row)) {
+                overflow.put(keyValue, row);
+            }
+            return;
+        }
+        put(hash(keyValue), keyValue, row);
+        if (2 * size > mask + 1) {
+            grow();
+        }
+    }
+
+    private int getOverflow(Name keyValue) {
+        if (overflow == null) {
+            return -1;
+        }
+        Integer row = overflow.get(keyValue);
+        return row != null && matcher.hasKeyValue(row, keyValue) ? row : -1;
+    }
+
+    /**
+     * Replaces the row of the key value in the table, returns false if the table has no (confirmed) entry for it.
+     */
+    private boolean replace(int hash, Name keyValue, int row) {
+        int slot = hash & mask;
+        while (true) {
+            int existing = table.getInt(slot * SLOT_BYTES + 4) - 1;
+            if (existing < 0) {
+                return false;
+            }
+            if (table.getInt(slot * SLOT_BYTES) == hash && matcher.hasKeyValue(existing, keyValue)) {
+                table.putInt(slot * SLOT_BYTES + 4, row + 1);
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void put(int hash, Name keyValue, int row) {
+        int slot = hash & mask;
+        while (true) {
+            int existing = table.getInt(slot * SLOT_BYTES + 4) - 1;
+            if (existing < 0) {
+                table.putInt(slot * SLOT_BYTES, hash);
+                table.putInt(slot * SLOT_BYTES + 4, row + 1);
+                size++;
+                return;
+            }
+            if (table.getInt(slot * SLOT_BYTES) == hash && keyValue != null && matcher.hasKeyValue(existing, keyValue)) {
+                table.putInt(slot * SLOT_BYTES + 4, row + 1);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        ByteBuffer old = this.table;
+        int oldSlots = mask + 1;
+        if (oldSlots >= maxSlots) {
+            // the table stays half full, which keeps its probes short
+            this.overflow = new HashMap<>();
+            return;
+        }
+        this.table = acquireTable(oldSlots << 1);
+        for (int slot = 0; slot < oldSlots; slot++) {
+            int row = old.getInt(slot * SLOT_BYTES + 4) - 1;
+            if (row >= 0) {
+                // entries of the old table are distinct, no need to ask the matcher
+                put(old.getInt(slot * SLOT_BYTES), null, row);
+            }
+        }
+        releaseTable(old);
+    }
+
+    @Override
+    public void close() {
+        if (table != null) {
+            releaseTable(table);
+            table = null;
+        }
+        overflow = null;
+    }
+}
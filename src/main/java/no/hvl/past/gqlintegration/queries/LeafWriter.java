@@ -0,0 +1,142 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import no.hvl.past.names.Name;
+
+import java.io.IOException;
+
+/**
+ * Writes the values of a leaf field, chosen once per selection from the scalar type of the field.
+ * Every typed writer only checks for the node that {@link PayloadFormat#createObjectMapper} parses values of its type into
+ * (e.g. Float values into BigDecimal nodes, i.e. they keep their precision) and writes it directly,
+ * values that do not have the expected shape are written generically, objects and lists token by token
+ * and never via their string representation.
+ * Values are taken from the parsed trees of the local responses since the cursors need them for joining.
+ */
+public enum LeafWriter {
+
+    /**
+     * 32 bit integers, larger values are written generically.
+     */
+    INT {
+        @Override
+        void write(JsonGenerator generator, JsonNode value) throws IOException {
+            if (value.isInt()) {
+                generator.writeNumber(value.intValue());
+            } else {
+                GENERIC.write(generator, value);
+            }
+        }
+    },
+
+    FLOAT {
+        @Override
+        void write(JsonGenerator generator, JsonNode value) throws IOException {
+            if (value.isBigDecimal()) {
+                generator.writeNumber(value.decimalValue());
+            } else {
+                GENERIC.write(generator, value);
+            }
+        }
+    },
+
+    BOOLEAN {
+        @Override
+        void write(JsonGenerator generator, JsonNode value) throws IOException {
+            if (value.isBoolean()) {
+                generator.writeBoolean(value.booleanValue());
+            } else {
+                GENERIC.write(generator, value);
+            }
+        }
+    },
+
+    /**
+     * String and ID values.
+     */
+    STRING {
+        @Override
+        void write(JsonGenerator generator, JsonNode value) throws IOException {
+            if (value.isTextual()) {
+                generator.writeString(value.textValue());
+            } else {
+                GENERIC.write(generator, value);
+            }
+        }
+    },
+
+    /**
+     * Enums and custom scalars, which may also be objects or lists.
+     */
+    GENERIC {
+        @Override
+        void write(JsonGenerator generator, JsonNode value) throws IOException {
+            if (value.isTextual()) {
+                generator.writeString(value.textValue());
+            } else if (value.isNumber()) {
+                number(generator, value);
+            } else if (value.isBoolean()) {
+                generator.writeBoolean(value.booleanValue());
+            } else if (value.isNull() || value.isMissingNode()) {
+                generator.writeNull();
+            } else {
+                try (JsonParser parser = value.traverse()) {
+                    parser.nextToken();
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+        }
+    };
+
+    private static final Name INT_TYPE = Name.identifier("Int");
+    private static final Name FLOAT_TYPE = Name.identifier("Float");
+    private static final Name BOOLEAN_TYPE = Name.identifier("Boolean");
+    private static final Name STRING_TYPE = Name.identifier("String");
+    private static final Name ID_TYPE = Name.identifier("ID");
+
+    abstract void write(JsonGenerator generator, JsonNode value) throws IOException;
+
+    private static void number(JsonGenerator generator, JsonNode value) throws IOException {
+        switch (value.numberType()) {
+            case INT:
+                generator.writeNumber(value.intValue());
+                break;
+            case LONG:
+                generator.writeNumber(value.longValue());
+                break;
+            case BIG_INTEGER:
+                generator.writeNumber(value.bigIntegerValue());
+                break;
+            case FLOAT:
+                generator.writeNumber(value.floatValue());
+                break;
+            case BIG_DECIMAL:
+                generator.writeNumber(value.decimalValue());
+                break;
+            case DOUBLE:
+            default:
+                generator.writeNumber(value.doubleValue());
+                break;
+        }
+    }
+
+    /**
+     * The writer for a leaf field with the given target type, enums and custom scalars are written generically.
+     */
+    static LeafWriter forType(Name type) {
+        Name unprefixed = type.unprefixAll();
+        if (INT_TYPE.equals(unprefixed)) {
+            return INT;
+        } else if (FLOAT_TYPE.equals(unprefixed)) {
+            return FLOAT;
+        } else if (BOOLEAN_TYPE.equals(unprefixed)) {
+            return BOOLEAN;
+        } else if (STRING_TYPE.equals(unprefixed) || ID_TYPE.equals(unprefixed)) {
+            return STRING;
+        } else {
+            return GENERIC;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Temporary partition files for joining results that do not fit into memory.
+ * Every row consists of the index of the system it stems from and the result object, written in Smile
+ * (where repeated field names are only written once per file). Partitions are read back through a buffered stream.
+ * All files are deleted on close.
+ */
+class MergeSpill implements Closeable {
+
+    private static final ObjectMapper SMILE_MAPPER = PayloadFormat.createObjectMapper(new SmileFactory());
+
+    private final File[] files;
+    private final JsonGenerator[] writers;
+    private int nextPartition = 0;
+
+    MergeSpill(File directory, int partitions) throws IOException {
+        this.files = new File[partitions];
+        this.writers = new JsonGenerator[partitions];
+        try {
+            for (int i = 0; i < partitions; i++) {
+                files[i] = File.createTempFile("merge-spill-" + i + "-", ".sml", directory);
+                writers[i] = SMILE_MAPPER.getFactory().createGenerator(new BufferedOutputStream(new FileOutputStream(files[i])));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    int partitions() {
+        return files.length;
+    }
+
+    /**
+     * The partition for objects with the given key value, or a round robin one if there is none.
+     */
+    int partition(Object keyValue) {
+        if (keyValue == null) {
+            nextPartition = (nextPartition + 1) % files.length;
+            return nextPartition;
+        }
+        return Math.floorMod(keyValue.hashCode(), files.length);
+    }
+
+    void write(int partition, int system, JsonNode node) throws IOException {
+        JsonGenerator writer = writers[partition];
+        writer.writeStartArray();
+        writer.writeNumber(system);
+        writer.writeTree(node);
+        writer.writeEndArray();
+    }
+
+    /**
+     * Reads all rows of the partition, which must not be written afterwards.
+     */
+    void read(int partition, BiConsumer<Integer, JsonNode> consumer) throws IOException {
+        writers[partition].close();
+        File file = files[partition];
+        if (file.length() == 0) {
+            return;
+        }
+        try (JsonParser parser = SMILE_MAPPER.getFactory().createParser(new BufferedInputStream(new FileInputStream(file)))) {
+            while (parser.nextToken() == JsonToken.START_ARRAY) {
+                parser.nextToken();
+                int system = parser.getIntValue();
+                parser.nextToken();
+                JsonNode node = parser.readValueAsTree();
+                parser.nextToken(); // END_ARRAY
+                consumer.accept(system, node);
+            }
+        }
+    }
+
+    /**
+     * Positions the parser, which must be on the start of an object, on the value of the given field.
+     * Returns false if the object does not have that field.
+     */
+    static boolean moveToField(JsonParser parser, String field) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String current = parser.getCurrentName();
+            parser.nextToken();
+            if (current.equals(field)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < files.length; i++) {
+            if (writers[i] != null) {
+                try {
+                    writers[i].close();
+                } catch (IOException e) {
+                    // the file is deleted anyway
+                }
+            }
+            if (files[i] != null && !files[i].delete()) {
+                files[i].deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import no.hvl.past.systems.Sys;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Executes the local parts of a federated mutation.
+ * The parts of every endpoint are always executed in the order of the mutation. Whether the parts of different
+ * endpoints are ordered as well depends on the {@link Ordering}: with {@link Ordering#PER_ENDPOINT},
+ * endpoints are independent of each other and, given an executor, run concurrently, while with {@link Ordering#SERIAL}
+ * every root field only starts after all parts of the previous root have finished on all endpoints
+ * (the parts of one root still run concurrently on different endpoints).
+ * Dependencies between root fields are not analysed, a root may depend on what an earlier root wrote at another endpoint.
+ * Unless an ordering is set explicitly, it is therefore {@link Ordering#SERIAL} as soon as an executor is set
+ * and {@link Ordering#PER_ENDPOINT} otherwise.
+ * By default all parts for an endpoint are sent as one request (write batching), which can be switched off per
+ * endpoint, e.g. if the endpoint does not guarantee the serial execution of the root fields of a mutation itself.
+ */
+public class MutationScheduler {
+
+    public enum Ordering {
+        PER_ENDPOINT,
+        SERIAL
+    }
+
+    /**
+     * Splits a mutation into its local parts.
+     */
+    interface Splitter {
+        Map<Sys, GraphQLQuery> split(GraphQLQuery mutation);
+    }
+
+    /**
+     * Sends a local part to its endpoint and returns the response.
+     */
+    interface Sender {
+        InputStream send(Sys endpoint, GraphQLQuery localMutation) throws IOException;
+    }
+
+    private static final Logger logger = Logger.getLogger(MutationScheduler.class);
+
+    private static final String DATA_FIELD = "data";
+    private static final String ERRORS_FIELD = "errors";
+
+    private volatile Ordering ordering;
+    private volatile ExecutorService executor;
+    private final Set<String> unbatchedEndpoints = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Sets the ordering of the parts of different endpoints, null for the default (see above).
+     */
+    public void setOrdering(Ordering ordering) {
+        this.ordering = ordering;
+    }
+
+    public Ordering getOrdering() {
+        Ordering ordering = this.ordering;
+        if (ordering != null) {
+            return ordering;
+        }
+        return executor == null ? Ordering.PER_ENDPOINT : Ordering.SERIAL;
+    }
+
+    /**
+     * When set, the parts for different endpoints are executed concurrently on the given executor,
+     * which makes {@link Ordering#SERIAL} the default ordering.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Whether all parts for the endpoint with the given url are sent in one request (default)
+     * or every root field in a request of its own, each one after the previous has finished.
+     */
+    public void setBatching(String endpointUrl, boolean batching) {
+        if (batching) {
+            this.unbatchedEndpoints.remove(endpointUrl);
+        } else {
+            this.unbatchedEndpoints.add(endpointUrl);
+        }
+    }
+
+    /**
+     * Executes the mutation and returns one response per endpoint, which contains the results of all parts
+     * that were sent to that endpoint.
+     */
+    Map<Sys, InputStream> execute(GraphQLQuery mutation, Splitter splitter, Sender sender, ObjectMapper objectMapper) throws IOException {
+        List<Map<Sys, GraphQLQuery>> stages = new ArrayList<>();
+        if (getOrdering() == Ordering.SERIAL) {
+            for (GraphQLQuery.QueryRoot root : mutation.getRoots()) {
+                stages.add(splitter.split(mutation.select(Collections.singletonList(root))));
+            }
+        } else {
+            stages.add(splitter.split(mutation));
+        }
+        Map<Sys, List<JsonNode>> responses = new LinkedHashMap<>();
+        for (Map<Sys, GraphQLQuery> stage : stages) {
+            Map<Sys, Future<List<JsonNode>>> tasks = new LinkedHashMap<>();
+            for (Map.Entry<Sys, GraphQLQuery> local : stage.entrySet()) {
+                tasks.put(local.getKey(), submit(() -> executeLocal(local.getKey(), local.getValue(), sender, objectMapper)));
+            }
+            // a stage is only finished once all of its parts are
+            for (Map.Entry<Sys, Future<List<JsonNode>>> task : tasks.entrySet()) {
+                responses.computeIfAbsent(task.getKey(), k -> new ArrayList<>()).addAll(await(task.getValue()));
+            }
+        }
+        Map<Sys, InputStream> result = new LinkedHashMap<>();
+        for (Map.Entry<Sys, List<JsonNode>> response : responses.entrySet()) {
+            result.put(response.getKey(), new ByteArrayInputStream(objectMapper.writeValueAsBytes(combine(response.getValue(), objectMapper))));
+        }
+        return result;
+    }
+
+    private List<JsonNode> executeLocal(Sys endpoint, GraphQLQuery localMutation, Sender sender, ObjectMapper objectMapper) throws IOException {
+        List<GraphQLQuery> requests = new ArrayList<>();
+        if (unbatchedEndpoints.contains(endpoint.url()) && localMutation.getRoots().size() > 1) {
+            for (GraphQLQuery.QueryRoot root : localMutation.getRoots()) {
+                requests.add(localMutation.select(Collections.singletonList(root)));
+            }
+        } else {
+            requests.add(localMutation);
+        }
+        List<JsonNode> result = new ArrayList<>();
+        for (GraphQLQuery request : requests) {
+            // responses are read completely, i.e. the part has been executed before the next one is sent
+            try (InputStream response = sender.send(endpoint, request)) {
+                JsonNode node = PayloadFormat.readTree(objectMapper, response);
+                result.add(node);
+                if (node.has(ERRORS_FIELD)) {
+                    logger.warn("Mutation at '" + endpoint.url() + "' reported errors, skipping the remaining parts for this endpoint");
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Combines the data and errors of several responses of one endpoint into one response.
+     */
+    private static JsonNode combine(List<JsonNode> responses, ObjectMapper objectMapper) {
+        if (responses.size() == 1) {
+            return responses.get(0);
+        }
+        ObjectNode result = objectMapper.createObjectNode();
+        ObjectNode data = result.putObject(DATA_FIELD);
+        ArrayNode errors = null;
+        for (JsonNode response : responses) {
+            if (response.path(DATA_FIELD).isObject()) {
+                data.setAll((ObjectNode) response.get(DATA_FIELD));
+            }
+            if (response.path(ERRORS_FIELD).isArray()) {
+                if (errors == null) {
+                    errors = result.putArray(ERRORS_FIELD);
+                }
+                errors.addAll((ArrayNode) response.get(ERRORS_FIELD));
+            }
+        }
+        return result;
+    }
+
+    private Future<List<JsonNode>> submit(Callable<List<JsonNode>> part) {
+        FutureTask<List<JsonNode>> task = new FutureTask<>(part);
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+        return task;
+    }
+
+    private static List<JsonNode> await(Future<List<JsonNode>> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while executing a mutation");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
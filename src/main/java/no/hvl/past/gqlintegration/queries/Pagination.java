@@ -0,0 +1,174 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import graphql.language.Argument;
+import graphql.language.Field;
+import graphql.language.IntValue;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.language.StringValue;
+import graphql.language.Value;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes how the results of a list field of an endpoint can be fetched page by page,
+ * either with limit and offset arguments or as a Relay-style connection (first, after and pageInfo).
+ */
+public class Pagination {
+
+    public enum Style {
+        LIMIT_OFFSET,
+        RELAY
+    }
+
+    static final String EDGES_FIELD = "edges";
+    private static final String PAGE_INFO_FIELD = "pageInfo";
+    /**
+     * The page info the gateway needs is always asked for under this alias, such that it neither depends on
+     * nor interferes with what the client selected, and is not handed on.
+     */
+    static final String PAGE_INFO_ALIAS = "gatewayPageInfo__";
+    private static final String HAS_NEXT_PAGE_FIELD = "hasNextPage";
+    private static final String END_CURSOR_FIELD = "endCursor";
+
+    private final Style style;
+    private final String sizeArgument;
+    private final String positionArgument;
+    private final int pageSize;
+
+    public Pagination(Style style, String sizeArgument, String positionArgument, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("The page size must be positive");
+        }
+        this.style = style;
+        this.sizeArgument = sizeArgument;
+        this.positionArgument = positionArgument;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Pages with the arguments limit and offset.
+     */
+    public static Pagination limitOffset(int pageSize) {
+        return new Pagination(Style.LIMIT_OFFSET, "limit", "offset", pageSize);
+    }
+
+    /**
+     * Pages through a Relay-style connection with the arguments first and after.
+     */
+    public static Pagination relay(int pageSize) {
+        return new Pagination(Style.RELAY, "first", "after", pageSize);
+    }
+
+    public Style getStyle() {
+        return style;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * The total number of results requested by the given field, -1 if it is not limited
+     * and -2 if the limit is not a literal and the field can therefore not be paged.
+     */
+    int requestedSize(Field field) {
+        Argument size = argument(field, sizeArgument);
+        if (size == null) {
+            return -1;
+        }
+        return size.getValue() instanceof IntValue ? ((IntValue) size.getValue()).getValue().intValue() : -2;
+    }
+
+    /**
+     * Returns false if the position is given, but not as a literal offset or cursor,
+     * and the field can therefore not be paged.
+     */
+    boolean hasLiteralPosition(Field field) {
+        Argument position = argument(field, positionArgument);
+        if (position == null) {
+            return true;
+        }
+        return style == Style.LIMIT_OFFSET ? position.getValue() instanceof IntValue : position.getValue() instanceof StringValue;
+    }
+
+    /**
+     * The position the given field starts at, i.e. an offset or a cursor (which may be null).
+     */
+    Object initialPosition(Field field) {
+        Argument position = argument(field, positionArgument);
+        if (style == Style.LIMIT_OFFSET) {
+            return position == null ? 0 : ((IntValue) position.getValue()).getValue().intValue();
+        }
+        return position == null ? null : ((StringValue) position.getValue()).getValue();
+    }
+
+    /**
+     * The field asking for one page of the given size starting at the given position.
+     */
+    Field page(Field field, int size, Object position) {
+        List<Argument> arguments = new ArrayList<>();
+        for (Argument argument : field.getArguments()) {
+            if (!argument.getName().equals(sizeArgument) && !argument.getName().equals(positionArgument)) {
+                arguments.add(argument);
+            }
+        }
+        arguments.add(new Argument(sizeArgument, new IntValue(BigInteger.valueOf(size))));
+        if (position != null) {
+            Value<?> positionValue = position instanceof Integer ?
+                    new IntValue(BigInteger.valueOf((Integer) position)) :
+                    new StringValue(position.toString());
+            arguments.add(new Argument(positionArgument, positionValue));
+        }
+        SelectionSet selectionSet = field.getSelectionSet();
+        if (style == Style.RELAY && selectionSet != null) {
+            List<Selection> selections = new ArrayList<>(selectionSet.getSelections());
+            selections.add(Field.newField(PAGE_INFO_FIELD)
+                    .alias(PAGE_INFO_ALIAS)
+                    .selectionSet(new SelectionSet(Arrays.asList(new Field(HAS_NEXT_PAGE_FIELD), new Field(END_CURSOR_FIELD))))
+                    .build());
+            selectionSet = new SelectionSet(selections);
+        }
+        SelectionSet pagedSelectionSet = selectionSet;
+        return field.transform(builder -> builder.arguments(arguments).selectionSet(pagedSelectionSet));
+    }
+
+    private static Argument argument(Field field, String name) {
+        for (Argument argument : field.getArguments()) {
+            if (argument.getName().equals(name)) {
+                return argument;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The list elements of one page of the field result, i.e. the list itself or the edges of the connection.
+     */
+    JsonNode elements(JsonNode fieldResult) {
+        return style == Style.RELAY ? fieldResult.get(EDGES_FIELD) : fieldResult;
+    }
+
+    /**
+     * The position of the page after the given one or null if it was the last page.
+     */
+    Object nextPosition(Object position, int requested, JsonNode fieldResult) {
+        JsonNode elements = elements(fieldResult);
+        int received = elements != null && elements.isArray() ? elements.size() : 0;
+        if (received < requested || received == 0) {
+            return null;
+        }
+        if (style == Style.LIMIT_OFFSET) {
+            return (Integer) position + received;
+        }
+        JsonNode pageInfo = fieldResult.get(PAGE_INFO_ALIAS);
+        if (pageInfo == null || !pageInfo.path(HAS_NEXT_PAGE_FIELD).asBoolean() || !pageInfo.path(END_CURSOR_FIELD).isTextual()) {
+            return null;
+        }
+        return pageInfo.get(END_CURSOR_FIELD).textValue();
+    }
+}
@@ -0,0 +1,108 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.format.DataFormatDetector;
+import com.fasterxml.jackson.core.format.DataFormatMatcher;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The wire formats that are negotiated with GraphQL endpoints.
+ * Binary formats are only used when the remote side answers with the respective content type,
+ * otherwise everything falls back to plain JSON.
+ */
+public enum PayloadFormat {
+
+    SMILE("application/x-jackson-smile", new SmileFactory()),
+    CBOR("application/cbor", new CBORFactory()),
+    JSON("application/json", new JsonFactory());
+
+    private final String mediaType;
+    private final JsonFactory factory;
+
+    PayloadFormat(String mediaType, JsonFactory factory) {
+        this.mediaType = mediaType;
+        this.factory = factory;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    public JsonFactory getFactory() {
+        return factory;
+    }
+
+    public boolean isBinary() {
+        return this != JSON;
+    }
+
+    /**
+     * Value for the Accept header when binary formats shall be preferred.
+     */
+    public static String acceptBinary() {
+        return SMILE.mediaType + ", " + CBOR.mediaType + ";q=0.9, " + JSON.mediaType + ";q=0.8";
+    }
+
+    public static PayloadFormat fromContentType(String contentType) {
+        if (contentType != null) {
+            for (PayloadFormat format : values()) {
+                if (contentType.startsWith(format.mediaType)) {
+                    return format;
+                }
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * An object mapper for reading responses, which parses decimals into BigDecimal nodes (keeping trailing zeros),
+     * such that leaf values are written back exactly as the endpoints sent them (see {@link LeafWriter}).
+     */
+    public static ObjectMapper createObjectMapper(JsonFactory factory) {
+        ObjectMapper result = new ObjectMapper(factory);
+        result.enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+        result.setNodeFactory(JsonNodeFactory.withExactBigDecimals(true));
+        return result;
+    }
+
+    /**
+     * Reads a tree from an input that might be gzipped and might be JSON, Smile or CBOR.
+     */
+    public static JsonNode readTree(ObjectMapper objectMapper, InputStream inputStream) throws IOException {
+        DataFormatMatcher matcher = detect(objectMapper, inputStream);
+        if (matcher.hasMatch()) {
+            JsonParser parser = matcher.createParserWithMatch();
+            parser.setCodec(objectMapper);
+            return objectMapper.readTree(parser);
+        }
+        return objectMapper.readTree(matcher.getDataStream());
+    }
+
+    /**
+     * Creates a parser for an input that might be gzipped and might be JSON, Smile or CBOR,
+     * for reading large results incrementally.
+     */
+    public static JsonParser createParser(ObjectMapper objectMapper, InputStream inputStream) throws IOException {
+        DataFormatMatcher matcher = detect(objectMapper, inputStream);
+        JsonParser parser = matcher.hasMatch() ? matcher.createParserWithMatch() : objectMapper.getFactory().createParser(matcher.getDataStream());
+        parser.setCodec(objectMapper);
+        return parser;
+    }
+
+    /**
+     * Undoes a gzip compression (see {@link ContentEncoding#decompressIfNeeded}) and sniffs the format of the content.
+     */
+    private static DataFormatMatcher detect(ObjectMapper objectMapper, InputStream inputStream) throws IOException {
+        DataFormatDetector detector = new DataFormatDetector(objectMapper.getFactory(), SMILE.factory, CBOR.factory);
+        return detector.findFormat(ContentEncoding.decompressIfNeeded(inputStream));
+    }
+}
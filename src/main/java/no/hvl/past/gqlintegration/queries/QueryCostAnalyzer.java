@@ -0,0 +1,237 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import no.hvl.past.names.PrintingStrategy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Statically estimates how expensive a federated query is before it is split and sent to the endpoints.
+ * The cost of a selection is its weight (1 unless configured otherwise) plus the cost of its sub-selections,
+ * where list-valued selections multiply the cost of their sub-selections by the expected list size.
+ * Weights and list sizes are kept per field coordinate, i.e. type name and field name (e.g. Customer.purchases),
+ * where root fields belong to the query type (e.g. Query.customers).
+ * Expected list sizes are either observed in the local results (see {@link #recordListSizes(GraphQLQuery.QueryRoot, Map)})
+ * or a configurable default.
+ */
+public class QueryCostAnalyzer {
+
+    public static final int DEFAULT_LIST_SIZE = 10;
+    private static final int MAX_OBSERVED_ELEMENTS = 100;
+
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxBreadth = Integer.MAX_VALUE;
+    private long maxCost = Long.MAX_VALUE;
+    private int defaultListSize = DEFAULT_LIST_SIZE;
+    private final Map<String, Double> fieldWeights = new ConcurrentHashMap<>();
+    private final Map<String, ListSizeStatistics> listSizes = new ConcurrentHashMap<>();
+
+    /**
+     * The result of analysing one query.
+     */
+    public static class Estimate {
+        private final int depth;
+        private final int breadth;
+        private final long cost;
+
+        Estimate(int depth, int breadth, long cost) {
+            this.depth = depth;
+            this.breadth = breadth;
+            this.cost = cost;
+        }
+
+        /**
+         * Length of the longest path from a root to a leaf selection.
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * The largest number of selections within one selection set (or of roots).
+         */
+        public int getBreadth() {
+            return breadth;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return "cost=" + cost + ", depth=" + depth + ", breadth=" + breadth;
+        }
+    }
+
+    private static class ListSizeStatistics {
+        private long samples;
+        private long total;
+
+        synchronized void add(int size) {
+            samples++;
+            total += size;
+        }
+
+        synchronized int average() {
+            return samples == 0 ? 0 : (int) Math.ceil((double) total / samples);
+        }
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public void setMaxBreadth(int maxBreadth) {
+        this.maxBreadth = maxBreadth;
+    }
+
+    public void setMaxCost(long maxCost) {
+        this.maxCost = maxCost;
+    }
+
+    public void setDefaultListSize(int defaultListSize) {
+        this.defaultListSize = defaultListSize;
+    }
+
+    /**
+     * Sets the weight of all selections of the given field of the given type, e.g. for fields that are expensive to resolve.
+     */
+    public void setFieldWeight(String type, String field, double weight) {
+        this.fieldWeights.put(type + "." + field, weight);
+    }
+
+    /**
+     * Feeds an observed list size for the given field, which replaces the default list size in later estimates.
+     */
+    public void recordListSize(String type, String field, int size) {
+        recordListSize(type + "." + field, size);
+    }
+
+    private void recordListSize(String coordinate, int size) {
+        this.listSizes.computeIfAbsent(coordinate, f -> new ListSizeStatistics()).add(size);
+    }
+
+    public int expectedListSize(String type, String field) {
+        return expectedListSize(type + "." + field);
+    }
+
+    private int expectedListSize(String coordinate) {
+        ListSizeStatistics statistics = listSizes.get(coordinate);
+        if (statistics == null) {
+            return defaultListSize;
+        }
+        return Math.max(1, statistics.average());
+    }
+
+    /**
+     * Records the list sizes found in the local results (data objects by endpoint url) of the given root of a split query:
+     * the size of the root list is the total over all endpoints, nested lists are recorded per object
+     * for the first elements of every list.
+     */
+    public void recordListSizes(GraphQLQuery.QueryRoot root, Map<String, JsonNode> localResults) {
+        Optional<QueryCursor> cursor = root.getCursor();
+        if (!cursor.isPresent() || !(cursor.get() instanceof QueryCursor.ConcatCursor)) {
+            return;
+        }
+        int total = 0;
+        boolean observed = false;
+        for (Map.Entry<String, QueryCursor.LocalCursor> local : ((QueryCursor.ConcatCursor) cursor.get()).getLocalCursors().entrySet()) {
+            JsonNode data = localResults.get(local.getKey());
+            JsonNode result = data == null ? null : data.get(local.getValue().getQueryNode().field());
+            if (result != null && result.isArray()) {
+                observed = true;
+                total += result.size();
+                recordElements(root, local.getKey(), result);
+            } else if (result != null && result.isObject()) {
+                recordListSizes(root, local.getKey(), result);
+            }
+        }
+        if (observed && root.isListValued()) {
+            recordListSize(coordinate(root), total);
+        }
+    }
+
+    private void recordElements(GraphQLQuery.Node node, String url, JsonNode list) {
+        int observed = 0;
+        for (JsonNode element : list) {
+            if (observed++ >= MAX_OBSERVED_ELEMENTS) {
+                return;
+            }
+            if (element.isObject()) {
+                recordListSizes(node, url, element);
+            }
+        }
+    }
+
+    private void recordListSizes(GraphQLQuery.Node node, String url, JsonNode object) {
+        for (GraphQLQuery.SelectionSet selection : node.getChildren()) {
+            Optional<QueryCursor> cursor = selection.getChildNode().getCursor();
+            if (!selection.isComplex() || !cursor.isPresent() || !(cursor.get() instanceof QueryCursor.ConcatCursor)) {
+                continue;
+            }
+            QueryCursor.LocalCursor local = ((QueryCursor.ConcatCursor) cursor.get()).getLocalCursors().get(url);
+            JsonNode value = local == null ? null : object.get(local.getQueryNode().field());
+            if (value != null && value.isArray()) {
+                if (selection.isListValued()) {
+                    recordListSize(coordinate(selection), value.size());
+                }
+                recordElements(selection.getChildNode(), url, value);
+            } else if (value != null && value.isObject()) {
+                recordListSizes(selection.getChildNode(), url, value);
+            }
+        }
+    }
+
+    /**
+     * The type and field name of the given selection, root fields are typed by their message (e.g. Query.customers).
+     */
+    static String coordinate(GraphQLQuery.AbstractSelection selection) {
+        String type = selection.edge().getSource().print(PrintingStrategy.IGNORE_PREFIX);
+        if (selection instanceof GraphQLQuery.QueryRoot) {
+            return type;
+        }
+        return type + "." + selection.field();
+    }
+
+    public Estimate estimate(GraphQLQuery query) {
+        int[] depthAndBreadth = {0, query.getRoots().size()};
+        double cost = 0;
+        for (GraphQLQuery.QueryRoot root : query.getRoots()) {
+            cost += cost(root, root.getChildren(), 1, depthAndBreadth);
+        }
+        return new Estimate(depthAndBreadth[0], depthAndBreadth[1], cost >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) Math.ceil(cost));
+    }
+
+    /**
+     * Estimates the query and throws if it exceeds one of the configured limits.
+     */
+    public Estimate check(GraphQLQuery query) throws QueryException {
+        Estimate estimate = estimate(query);
+        if (estimate.depth > maxDepth) {
+            throw new QueryException("Query depth " + estimate.depth + " exceeds the limit of " + maxDepth + "!");
+        }
+        if (estimate.breadth > maxBreadth) {
+            throw new QueryException("Query breadth " + estimate.breadth + " exceeds the limit of " + maxBreadth + "!");
+        }
+        if (estimate.cost > maxCost) {
+            throw new QueryException("Estimated query cost " + estimate.cost + " exceeds the limit of " + maxCost + "!");
+        }
+        return estimate;
+    }
+
+    private double cost(GraphQLQuery.AbstractSelection selection, List<GraphQLQuery.SelectionSet> children, int depth, int[] depthAndBreadth) {
+        depthAndBreadth[0] = Math.max(depthAndBreadth[0], depth);
+        depthAndBreadth[1] = Math.max(depthAndBreadth[1], children.size());
+        double childCost = 0;
+        for (GraphQLQuery.SelectionSet child : children) {
+            childCost += cost(child, child.getChildNode().getChildren(), depth + 1, depthAndBreadth);
+        }
+        String coordinate = coordinate(selection);
+        double multiplier = selection.isListValued() ? expectedListSize(coordinate) : 1;
+        return fieldWeights.getOrDefault(coordinate, 1.0) + multiplier * childCost;
+    }
+}
@@ -3,17 +3,26 @@ package no.hvl.past.gqlintegration.queries;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Multimap;
+import no.hvl.past.graph.elements.Triple;
 import no.hvl.past.keys.Key;
 import no.hvl.past.keys.KeyNotEvaluated;
-import no.hvl.past.names.AnonymousIdentifier;
 import no.hvl.past.names.Name;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
 import java.util.*;
 
 // TODO abstraction for the generator to yield errors
@@ -45,7 +54,7 @@ public abstract class QueryCursor {
     }
 
     public void enter(JsonGenerator generator) throws IOException {
-        generator.writeFieldName(getQueryNode().field());
+        generator.writeFieldName(getQueryNode().serializedField());
         if (getQueryNode().isListValued()) {
             generator.writeStartArray();
         }
@@ -73,6 +82,22 @@ public abstract class QueryCursor {
 
     public abstract void processOne(JsonGenerator generator) throws IOException;
 
+    /**
+     * Whether there is a result that has not been consumed yet.
+     */
+    public abstract boolean hasNext();
+
+    /**
+     * Consumes the current result.
+     */
+    public abstract void next();
+
+    /**
+     * Consumes the current result together with everything that was propagated down from it to the children,
+     * without writing anything.
+     */
+    public abstract void skip();
+
 
     List<QueryCursor> getChildrenPos() {
         return childrenPos;
@@ -80,72 +105,133 @@ public abstract class QueryCursor {
 
     public static class LocalCursor extends QueryCursor {
 
-        private List<List<JsonNode>> result = new ArrayList<>();
+        // results are consumed by advancing the position, the list is only cleared once everything is consumed
+        private final List<List<JsonNode>> result = new ArrayList<>();
+        private int position = 0;
+        private Map<String, String> filters = Collections.emptyMap();
+        private int limit = -1;
+        private final LeafWriter leafWriter;
 
         public LocalCursor(GraphQLQuery.AbstractSelection queryNode) {
             super(queryNode);
+            this.leafWriter = queryNode.leafWriter();
         }
 
         public LocalCursor(GraphQLQuery.AbstractSelection queryNode, QueryCursor parent) {
             super(queryNode, parent);
+            this.leafWriter = queryNode.leafWriter();
         }
 
         @Override
         public void atomic(JsonGenerator generator) throws IOException {
-            if ((this.result.isEmpty() || this.result.get(0).isEmpty()) && !getQueryNode().isListValued()) {
+            if ((!hasNext() || current().isEmpty()) && !getQueryNode().isListValued()) {
                 generator.writeNull();
-            } else {
-                for (JsonNode v : this.result.get(0)) {
-                    value(generator, v);
+            } else if (hasNext()) {
+                for (JsonNode v : current()) {
+                    leafWriter.write(generator, v);
                 }
             }
         }
 
-        private void value(JsonGenerator generator, JsonNode v) throws IOException {
-            if (v.isTextual()) {
-                generator.writeString(v.asText());
-            } else if (v.isIntegralNumber()) {
-                generator.writeNumber(v.asLong());
-            } else if (v.isFloatingPointNumber()) {
-                generator.writeNumber(v.asDouble());
-            } else if (v.isBoolean()) {
-                generator.writeBoolean(v.asBoolean());
-            } else if (v.isNull()) {
-                generator.writeNull();
-            } else {
-                generator.writeRaw(v.toString());
-            }
+        private List<JsonNode> current() {
+            return this.result.get(position);
         }
 
         int getWidth() {
-            if (this.result.isEmpty()) {
+            if (!hasNext()) {
                 return 0;
             } else {
-                return this.result.get(0).size();
+                return current().size();
             }
         }
 
         @Override
         public void processOne(JsonGenerator generator) throws IOException {
-            if (!this.result.isEmpty()) {
+            if (hasNext()) {
                 enter(generator);
                 if (this.getQueryNode().isComplex()) {
                     complex(generator);
                 } else {
                     this.atomic(generator);
                 }
-                this.moveOn();
+                this.next();
                 leave(generator);
             }
         }
 
         @Override
-        protected void moveOn() {
-            this.result.remove(0);
+        public boolean hasNext() {
+            return position < this.result.size();
+        }
+
+        @Override
+        public void next() {
+            this.result.set(position++, null);
+            if (position == this.result.size()) {
+                this.result.clear();
+                this.position = 0;
+            }
+        }
+
+        @Override
+        public void skip() {
+            if (hasNext()) {
+                if (getQueryNode().isComplex()) {
+                    for (int i = 0; i < getWidth(); i++) {
+                        for (QueryCursor cursor : getChildrenPos()) {
+                            cursor.skip();
+                        }
+                    }
+                }
+                next();
+            }
+        }
+
+        /**
+         * Only keeps result objects whose given field has the given (textual) value,
+         * used for arguments the endpoint cannot evaluate itself.
+         */
+        public void addFilter(String field, String value) {
+            if (this.filters.isEmpty()) {
+                this.filters = new LinkedHashMap<>();
+            }
+            this.filters.put(field, value);
+        }
+
+        /**
+         * Keeps at most the given number of result objects per list, -1 for no limit.
+         */
+        public void setLimit(int limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Whether this cursor or one of its local children keeps only a limited number of result objects.
+         */
+        boolean isLimited() {
+            if (limit > 0) {
+                return true;
+            }
+            for (QueryCursor child : getChildrenPos()) {
+                if (child instanceof LocalCursor && ((LocalCursor) child).isLimited()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean accepts(JsonNode node) {
+            for (Map.Entry<String, String> filter : this.filters.entrySet()) {
+                JsonNode value = node.get(filter.getKey());
+                if (value == null || value.isNull() || !value.asText().equals(filter.getValue())) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         private void complex(JsonGenerator generator) throws IOException {
-            if (this.result.get(0).isEmpty() && !getQueryNode().isListValued()) {
+            if (current().isEmpty() && !getQueryNode().isListValued()) {
                 generator.writeNull();
             } else {
                 for (int i = 0; i < getWidth(); i++) {
@@ -165,19 +251,82 @@ public abstract class QueryCursor {
                 if (node.isArray()) {
                     List<JsonNode> toAdd = new ArrayList<>();
                     for (JsonNode child : node) {
-                        toAdd.add(child);
-                        propagateDown(child);
+                        if (limit >= 0 && toAdd.size() >= limit) {
+                            break;
+                        }
+                        if (accepts(child)) {
+                            toAdd.add(child);
+                            propagateDown(child);
+                        }
                     }
                     result.add(toAdd);
-                } else {
+                } else if (accepts(node)) {
                     propagateDown(node);
                     this.result.add(Collections.singletonList(node));
+                } else {
+                    this.result.add(Collections.emptyList());
                 }
             } else {
                 this.result.add(Collections.emptyList());
             }
         }
 
+        /**
+         * Reads the value of the field of this cursor that the parser is positioned at, like the object mapper would,
+         * but only parses the list elements up to the limit, the remaining ones are skipped without building nodes.
+         * The same applies to the lists read by the child cursors, which only ever see what this cursor hands down.
+         * A limit of 0 still reads the whole list, such that the endpoint's contribution to the field is observed.
+         */
+        public JsonNode readValue(JsonParser parser, ObjectMapper objectMapper) throws IOException {
+            if (parser.currentToken() != JsonToken.START_ARRAY) {
+                return readElement(parser, objectMapper);
+            }
+            ArrayNode result = objectMapper.getNodeFactory().arrayNode();
+            int accepted = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (limit > 0 && accepted >= limit) {
+                    parser.skipChildren();
+                } else {
+                    JsonNode element = readElement(parser, objectMapper);
+                    result.add(element);
+                    if (accepts(element)) {
+                        accepted++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private JsonNode readElement(JsonParser parser, ObjectMapper objectMapper) throws IOException {
+            if (parser.currentToken() != JsonToken.START_OBJECT || !getQueryNode().isComplex()) {
+                return objectMapper.readTree(parser);
+            }
+            ObjectNode result = objectMapper.getNodeFactory().objectNode();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                LocalCursor child = childReading(field);
+                result.set(field, child == null ? objectMapper.readTree(parser) : child.readValue(parser, objectMapper));
+            }
+            return result;
+        }
+
+        /**
+         * The only local child cursor that reads the given field, if any.
+         */
+        private LocalCursor childReading(String field) {
+            LocalCursor result = null;
+            for (QueryCursor child : getChildrenPos()) {
+                if (child instanceof LocalCursor && child.getQueryNode().field().equals(field)) {
+                    if (result != null) {
+                        return null;
+                    }
+                    result = (LocalCursor) child;
+                }
+            }
+            return result;
+        }
+
         private void propagateDown(JsonNode child) {
             if (getQueryNode().isComplex()) {
                 for (QueryCursor childCursor : getChildrenPos()) {
@@ -194,6 +343,7 @@ public abstract class QueryCursor {
     public static class ConcatCursor extends QueryCursor {
 
         private final Map<String, LocalCursor> localCursors;
+        private int limit = -1;
 
         public ConcatCursor(GraphQLQuery.AbstractSelection queryNode, Map<String, LocalCursor> localCursors) {
             super(queryNode);
@@ -213,6 +363,23 @@ public abstract class QueryCursor {
             return localCursors;
         }
 
+        /**
+         * Limits the number of objects written for the concatenation of all local results, -1 for no limit.
+         */
+        public void setLimit(int limit) {
+            this.limit = limit;
+        }
+
+        int getLimit() {
+            return limit;
+        }
+
+        private void skipForBranch(String key) {
+            if (this.localCursors.containsKey(key)) {
+                this.localCursors.get(key).skip();
+            }
+        }
+
         public void addResults(Map<String, JsonNode> localResults) {
             for (String key : localResults.keySet()) {
                 JsonNode jsonNode = localResults.get(key);
@@ -227,7 +394,7 @@ public abstract class QueryCursor {
 //                this.localCursors.get(key).atomic(generator);
 //            }
             for (String key : this.localCursors.keySet()) {
-                if (!this.localCursors.get(key).result.isEmpty()) {
+                if (this.localCursors.get(key).hasNext()) {
                     this.localCursors.get(key).atomic(generator);
                     break;
                 }
@@ -246,19 +413,25 @@ public abstract class QueryCursor {
                         generator.writeNull();
                     }
                 } else {
-                    int width = this.localCursors.get(key).getWidth();
+                    LocalCursor localCursor = this.localCursors.get(key);
+                    int width = localCursor.getWidth();
                     for (int i = 0; i < width; i++) {
                         enterChild(generator);
                         for (QueryCursor cursor : getChildrenPos()) {
                             if (cursor instanceof ConcatCursor) {
                                 ((ConcatCursor) cursor).processOneForBranch(key, generator);
                             } else {
-                                processOne(generator);
+                                cursor.processOne(generator);
                             }
                         }
                         leaveChild(generator);
                     }
-                    this.localCursors.get(key).result.remove(0); // TODO should become get next
+                    if (width == 0 && !getQueryNode().isListValued()) {
+                        generator.writeNull();
+                    }
+                    if (localCursor.hasNext()) {
+                        localCursor.next();
+                    }
                 }
             }
             leave(generator);
@@ -266,9 +439,10 @@ public abstract class QueryCursor {
 
         private void atomic(String key, JsonGenerator generator) throws IOException {
             if (this.localCursors.containsKey(key)) {
-                this.localCursors.get(key).atomic(generator);
-                if (!localCursors.get(key).result.isEmpty()) {
-                    this.localCursors.get(key).result.remove(0);
+                LocalCursor localCursor = this.localCursors.get(key);
+                localCursor.atomic(generator);
+                if (localCursor.hasNext()) {
+                    localCursor.next();
                 }
             } else if (!getQueryNode().isListValued()) {
                 generator.writeNull();
@@ -282,18 +456,21 @@ public abstract class QueryCursor {
                 atomic(generator);
             } else {
                 boolean hadValue = false;
-                for (String key : this.localCursors.keySet()) { // TODO should become hasNext
+                int written = 0;
+                for (String key : this.localCursors.keySet()) {
                     for (int i = 0; i < this.localCursors.get(key).getWidth(); i++) {
                         hadValue = true;
-                        enterChild(generator);
-                        for (QueryCursor cursor : getChildrenPos()) {
-                            if (cursor instanceof ConcatCursor) {
-                                ((ConcatCursor) cursor).processOneForBranch(key,generator);
-                            } else {
-                                cursor.processOne(generator);
+                        if (limit >= 0 && written >= limit) {
+                            // limit already satisfied by earlier results, drop the rest
+                            for (QueryCursor cursor : getChildrenPos()) {
+                                if (cursor instanceof ConcatCursor) {
+                                    ((ConcatCursor) cursor).skipForBranch(key);
+                                }
                             }
+                            continue;
                         }
-                        leaveChild(generator);
+                        written++;
+                        writeElement(key, generator);
                     }
                 }
                 if (!hadValue && !getQueryNode().isListValued()) {
@@ -303,11 +480,80 @@ public abstract class QueryCursor {
             leave(generator);
         }
 
-        @Override
-        protected void moveOn() {
+        private void writeElement(String key, JsonGenerator generator) throws IOException {
+            enterChild(generator);
+            for (QueryCursor cursor : getChildrenPos()) {
+                if (cursor instanceof ConcatCursor) {
+                    ((ConcatCursor) cursor).processOneForBranch(key, generator);
+                } else {
+                    cursor.processOne(generator);
+                }
+            }
+            leaveChild(generator);
+        }
+
+        /**
+         * Writes the current results as standalone values, i.e. without the field name and the enclosing list,
+         * each followed by the given separator, and consumes them. Returns the number of written values.
+         */
+        public int processElements(JsonGenerator generator, SerializableString separator) throws IOException {
+            int written = 0;
             for (String key : this.localCursors.keySet()) {
-                if (!localCursors.get(key).result.isEmpty()) {
-                    this.localCursors.get(key).moveOn();
+                LocalCursor localCursor = this.localCursors.get(key);
+                for (int i = 0; i < localCursor.getWidth(); i++) {
+                    if (limit >= 0 && written >= limit) {
+                        for (QueryCursor cursor : getChildrenPos()) {
+                            if (cursor instanceof ConcatCursor) {
+                                ((ConcatCursor) cursor).skipForBranch(key);
+                            }
+                        }
+                        continue;
+                    }
+                    written++;
+                    writeElement(key, generator);
+                    generator.writeRaw(separator);
+                }
+                if (localCursor.hasNext()) {
+                    localCursor.next();
+                }
+            }
+            return written;
+        }
+
+        /**
+         * Writes a result that the local system with the given key delivered on its own, e.g. one event of a subscription,
+         * and consumes it. Results of different systems can thus be written one after another in the order they arrive.
+         */
+        public void processEvent(String key, JsonNode event, JsonGenerator generator) throws IOException {
+            addResults(Collections.singletonMap(key, event));
+            processOneForBranch(key, generator);
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (LocalCursor localCursor : this.localCursors.values()) {
+                if (localCursor.hasNext()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void next() {
+            for (LocalCursor localCursor : this.localCursors.values()) {
+                if (localCursor.hasNext()) {
+                    localCursor.next();
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void skip() {
+            for (LocalCursor localCursor : this.localCursors.values()) {
+                if (localCursor.hasNext()) {
+                    localCursor.skip();
                     break;
                 }
             }
@@ -317,8 +563,12 @@ public abstract class QueryCursor {
 
     public static class ConcatMergeCursor extends ConcatCursor {
 
+        private static final double BLOOM_FALSE_POSITIVE_PROBABILITY = 0.01;
+
         private final Multimap<String, Key> keys;
         private int width = 0;
+        private JoinStrategy joinStrategy = JoinStrategy.HASH;
+        private boolean bloomPreJoin = false;
 
         public ConcatMergeCursor(GraphQLQuery.AbstractSelection queryNode, Map<String, LocalCursor> localCursors, Multimap<String, Key> keys) {
             super(queryNode, localCursors);
@@ -330,11 +580,47 @@ public abstract class QueryCursor {
             this.keys = keys;
         }
 
-        public Set<Name> evaluateKeys(String sysKey, JsonNode node) {
-            Set<Name> result = new HashSet<>();
+        boolean hasKeys(String sysKey) {
+            return this.keys.containsKey(sysKey);
+        }
+
+        Collection<Key> getKeys() {
+            return this.keys.values();
+        }
+
+        public void setJoinStrategy(JoinStrategy joinStrategy) {
+            this.joinStrategy = joinStrategy;
+        }
+
+        /**
+         * When joining by hashing, first summarizes the key values of all but the largest input in a Bloom filter,
+         * such that objects of the largest input that have no partner are not indexed at all.
+         */
+        public void setBloomPreJoin(boolean bloomPreJoin) {
+            this.bloomPreJoin = bloomPreJoin;
+        }
+
+        /**
+         * Whether the given edge of the local system is needed to evaluate one of its keys.
+         */
+        boolean isKeyProperty(String sysKey, Triple localEdge) {
             for (Key k : this.keys.get(sysKey)) {
+                if (k.requiredProperties().contains(localEdge)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public List<Name> evaluateKeys(String sysKey, JsonNode node) {
+            Collection<Key> systemKeys = this.keys.get(sysKey);
+            List<Name> result = new ArrayList<>(systemKeys.size());
+            for (Key k : systemKeys) {
                 try {
-                    result.add(k.evaluate(node));
+                    Name value = k.evaluate(node);
+                    if (!result.contains(value)) {
+                        result.add(value);
+                    }
                 } catch (KeyNotEvaluated e) {
 
                 }
@@ -345,20 +631,30 @@ public abstract class QueryCursor {
 
         @Override
         public void addResults(Map<String, JsonNode> localResults) {
-            Map<Name, MergeJsonNode> merges = new LinkedHashMap<>();
-            for (String key : localResults.keySet()) {
-                JsonNode jsonNode = localResults.get(key).get(getLocalCursors().get(key).getQueryNode().field());
-                if (jsonNode != null) {
-                    if (jsonNode.isArray()) {
-                        for (JsonNode node : jsonNode) {
-                            mergeIn(merges, key, node);
-                        }
-                    } else {
-                        mergeIn(merges,key,jsonNode);
-                    }
+            Collection<MergeJsonNode> values = null;
+            if (joinStrategy == JoinStrategy.SORT_MERGE) {
+                values = sortMerge(localResults);
+            }
+            if (values == null) {
+                values = hashMerge(localResults);
+            }
+            distribute(values, getLimit());
+        }
+
+        /**
+         * Hands the merged objects (at most limit many, if non-negative) to the child cursors.
+         */
+        private void distribute(Collection<MergeJsonNode> values, int limit) {
+            if (limit >= 0 && values.size() > limit) {
+                Iterator<MergeJsonNode> it = values.iterator();
+                for (int i = 0; i < limit; i++) {
+                    it.next();
+                }
+                while (it.hasNext()) {
+                    it.next();
+                    it.remove();
                 }
             }
-            Set<MergeJsonNode> values = new LinkedHashSet<>(merges.values());
             this.width = values.size();
             for (MergeJsonNode m : values) {
                 for (QueryCursor cursor : getChildrenPos()) {
@@ -385,52 +681,337 @@ public abstract class QueryCursor {
             }
         }
 
-        private void mergeIn(Map<Name, MergeJsonNode> merges, String system, JsonNode node) {
-            Set<Name> names = evaluateKeys(system, node);
-            if (names.isEmpty()) {
-                AnonymousIdentifier anon = Name.anonymousIdentifier();
-                merges.put(anon, new MergeJsonNode(anon, system, node));
-            } else {
-                List<MergeJsonNode> mergePartners = new ArrayList<>();
-                Iterator<Name> iterator = names.iterator();
-                while (iterator.hasNext()) {
-                    Name k = iterator.next();
-                    if (merges.containsKey(k)) {
-                        mergePartners.add(merges.get(k));
-                        iterator.remove();
+        private Collection<MergeJsonNode> hashMerge(Map<String, JsonNode> localResults) {
+            Map<String, JsonNode> inputs = new LinkedHashMap<>();
+            int expected = 0;
+            String largest = null;
+            for (String key : localResults.keySet()) {
+                JsonNode jsonNode = localResults.get(key).get(getLocalCursors().get(key).getQueryNode().field());
+                if (jsonNode != null) {
+                    inputs.put(key, jsonNode);
+                    expected += size(jsonNode);
+                    if (largest == null || size(jsonNode) > size(inputs.get(largest))) {
+                        largest = key;
                     }
                 }
-                if (mergePartners.isEmpty()) {
-                    MergeJsonNode mNode = new MergeJsonNode(names, system, node);
-                    for (Name k : names) {
-                        merges.put(k, mNode);
-                    }
-                } else {
-                    if (mergePartners.size() == 1) {
-                        mergePartners.get(0).nodes.add(node);
-                        mergePartners.get(0).systems.add(system);
-                        mergePartners.get(0).keyValues.addAll(names);
-                    } else {
-                        Set<Name> allKeys = new HashSet<>();
-                        Set<String> allSystems = new LinkedHashSet<>();
-                        List<JsonNode> allNodes = new ArrayList<>();
-                        for (MergeJsonNode mergePartner : mergePartners) {
-                            allKeys.addAll(mergePartner.keyValues);
-                            allSystems.addAll(mergePartner.systems);
-                            allNodes.addAll(mergePartner.nodes);
+            }
+            BloomFilter partners = null;
+            BloomFilter repeated = null;
+            if (bloomPreJoin && inputs.size() > 1) {
+                partners = keyValueFilter(inputs, largest);
+                repeated = repeatedKeyValues(largest, inputs.get(largest));
+                expected -= size(inputs.get(largest));
+            }
+            List<MergeJsonNode> rows = new ArrayList<>(expected);
+            try (KeyIndex index = createIndex(rows, expected)) {
+                for (String key : inputs.keySet()) {
+                    boolean preJoin = partners != null && key.equals(largest);
+                    for (JsonNode node : elements(inputs.get(key))) {
+                        if (getLocalCursors().get(key).accepts(node)) {
+                            if (preJoin) {
+                                preJoin(partners, repeated, index, rows, key, node);
+                            } else {
+                                mergeIn(index, rows, key, node);
+                            }
                         }
-                        allKeys.addAll(names);
-                        allSystems.add(system);
-                        allNodes.add(node);
+                    }
+                }
+            }
+            return withoutMergedRows(rows);
+        }
 
-                        MergeJsonNode mNode = new MergeJsonNode(allKeys, allSystems, allNodes);
-                        for (Name k : allKeys) {
-                            merges.put(k, mNode);
+        private static int size(JsonNode result) {
+            return result.isArray() ? result.size() : 1;
+        }
+
+        private static Iterable<JsonNode> elements(JsonNode result) {
+            return result.isArray() ? result : Collections.singletonList(result);
+        }
+
+        /**
+         * Summarizes the key values of all inputs but the given one.
+         */
+        private BloomFilter keyValueFilter(Map<String, JsonNode> inputs, String except) {
+            int expected = 0;
+            for (String key : inputs.keySet()) {
+                if (!key.equals(except)) {
+                    expected += size(inputs.get(key));
+                }
+            }
+            BloomFilter filter = new BloomFilter(expected, BLOOM_FALSE_POSITIVE_PROBABILITY);
+            for (String key : inputs.keySet()) {
+                if (!key.equals(except)) {
+                    for (JsonNode node : elements(inputs.get(key))) {
+                        for (Name keyValue : evaluateKeys(key, node)) {
+                            filter.add(keyValue.hashCode());
                         }
                     }
+                }
+            }
+            return filter;
+        }
+
+        /**
+         * Summarizes the key values that occur in more than one object of the given input.
+         * Every such value is contained, values occurring only once are contained with the false positive probability.
+         */
+        private BloomFilter repeatedKeyValues(String system, JsonNode input) {
+            BloomFilter seen = new BloomFilter(size(input), BLOOM_FALSE_POSITIVE_PROBABILITY);
+            BloomFilter repeated = new BloomFilter(size(input), BLOOM_FALSE_POSITIVE_PROBABILITY);
+            for (JsonNode node : elements(input)) {
+                for (Name keyValue : evaluateKeys(system, node)) {
+                    int hash = keyValue.hashCode();
+                    if (seen.mightContain(hash)) {
+                        repeated.add(hash);
+                    } else {
+                        seen.add(hash);
+                    }
+                }
+            }
+            return repeated;
+        }
+
+        /**
+         * Objects of the largest input that definitely have no partner, neither in the other inputs nor in the
+         * largest input itself, are directly added to the result, without being indexed.
+         * Such an object cannot be merged with any other, so the result is the same as when indexing everything.
+         */
+        private void preJoin(BloomFilter partners, BloomFilter repeated, KeyIndex index, List<MergeJsonNode> rows, String system, JsonNode node) {
+            List<Name> names = evaluateKeys(system, node);
+            for (Name keyValue : names) {
+                int hash = keyValue.hashCode();
+                if (partners.mightContain(hash) || repeated.mightContain(hash)) {
+                    mergeIn(index, rows, system, node);
+                    return;
+                }
+            }
+            rows.add(new MergeJsonNode(names, system, node));
+        }
+
+        private static KeyIndex createIndex(List<MergeJsonNode> rows, int expected) {
+            return KeyIndex.create(expected, (row, keyValue) -> rows.get(row) != null && rows.get(row).keyValues.contains(keyValue));
+        }
+
+        /**
+         * Rows that were merged into others are left as null.
+         */
+        private static List<MergeJsonNode> withoutMergedRows(List<MergeJsonNode> rows) {
+            List<MergeJsonNode> result = new ArrayList<>(rows.size());
+            for (MergeJsonNode row : rows) {
+                if (row != null) {
+                    result.add(row);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Joins the local results in a single pass over all of them, which only requires that every local result is
+         * ordered by the one key of its system (e.g. lists ordered by id), and emits the merged objects in key order.
+         * Returns null if some system has no or more than one key or if a result turns out not to be ordered,
+         * the results then have to be joined by hashing.
+         */
+        private List<MergeJsonNode> sortMerge(Map<String, JsonNode> localResults) {
+            if (!canSortMerge(localResults.keySet())) {
+                return null;
+            }
+            List<SortedInput> inputs = new ArrayList<>();
+            boolean numeric = hasNumericKeys(localResults.keySet());
+            for (String system : localResults.keySet()) {
+                LocalCursor localCursor = getLocalCursors().get(system);
+                JsonNode jsonNode = localResults.get(system).get(localCursor.getQueryNode().field());
+                if (jsonNode != null) {
+                    Iterator<JsonNode> elements = jsonNode.isArray() ? jsonNode.iterator() : Collections.singletonList(jsonNode).iterator();
+                    inputs.add(new SortedInput(system, this.keys.get(system).iterator().next(), numeric, localCursor, elements));
+                }
+            }
+            List<MergeJsonNode> result = new ArrayList<>();
+            try {
+                return mergeSorted(inputs, result::add) ? result : null;
+            } catch (IOException e) {
+                // adding to a list does not fail
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Whether every one of the given systems identifies objects by exactly one key,
+         * which the sort-merge join requires.
+         */
+        private boolean canSortMerge(Collection<String> systems) {
+            for (String system : systems) {
+                if (this.keys.get(system).size() != 1) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
+        /**
+         * Whether the one key of every given system is a single Int or Float attribute. The key values of a join are then
+         * compared numerically, otherwise all of them are compared lexicographically, i.e. all inputs share one order.
+         */
+        private boolean hasNumericKeys(Collection<String> systems) {
+            for (String system : systems) {
+                Collection<Triple> properties = this.keys.get(system).iterator().next().requiredProperties();
+                if (properties.size() != 1) {
+                    return false;
                 }
+                LeafWriter writer = LeafWriter.forType(properties.iterator().next().getTarget());
+                if (writer != LeafWriter.INT && writer != LeafWriter.FLOAT) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Whether the results are joined by {@link #processSorted}.
+         */
+        public boolean isSortMerged() {
+            return joinStrategy == JoinStrategy.SORT_MERGE && canSortMerge(getLocalCursors().keySet());
+        }
 
+        /**
+         * Joins the local results by sort-merge while reading them: every parser is positioned at the value of the
+         * root field of its system (a list or a single object) and only the current element of every local result is held.
+         * Every merged object is written as a standalone value as soon as it is complete, followed by the given separator.
+         * Since nothing is buffered, there is no fallback to hashing, a local result that is not ordered by its key
+         * is reported as an exception. Returns the number of written values.
+         */
+        public int processSorted(Map<String, JsonParser> localResults, ObjectMapper objectMapper, SerializableString separator, JsonGenerator generator) throws IOException {
+            List<SortedInput> inputs = new ArrayList<>();
+            boolean numeric = hasNumericKeys(localResults.keySet());
+            for (String system : localResults.keySet()) {
+                inputs.add(new SortedInput(system, this.keys.get(system).iterator().next(), numeric, getLocalCursors().get(system), new ParsedElements(localResults.get(system), objectMapper)));
+            }
+            int[] written = {0};
+            boolean ordered;
+            try {
+                ordered = mergeSorted(inputs, merged -> {
+                    distribute(new ArrayList<>(Collections.singletonList(merged)), -1);
+                    writeMerged(generator, separator);
+                    written[0]++;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            this.width = 0;
+            if (!ordered) {
+                throw new IOException("The results are not ordered by their keys, they cannot be joined by sort-merge");
+            }
+            return written[0];
+        }
+
+        /**
+         * The k-way merge of the given inputs, emits at most limit (if non-negative) many merged objects.
+         * Returns false if some input turned out not to be ordered.
+         */
+        private boolean mergeSorted(List<SortedInput> inputs, MergeSink sink) throws IOException {
+            int emitted = 0;
+            Iterator<SortedInput> started = inputs.iterator();
+            while (started.hasNext()) {
+                SortedInput input = started.next();
+                emitted += input.advance(sink);
+                if (input.head == null) {
+                    started.remove();
+                }
+            }
+            while (!inputs.isEmpty() && (getLimit() < 0 || emitted < getLimit())) {
+                // the number of systems is small, a linear scan for the smallest head is cheaper than a heap
+                SortedInput min = inputs.get(0);
+                for (SortedInput input : inputs) {
+                    if (input.compareTo(min) < 0) {
+                        min = input;
+                    }
+                }
+                Name keyValue = min.headKey;
+                MergeJsonNode merged = new MergeJsonNode(new ArrayList<>(Collections.singletonList(keyValue)), new ArrayList<>(), new ArrayList<>());
+                int unkeyed = 0;
+                Iterator<SortedInput> it = inputs.iterator();
+                while (it.hasNext()) {
+                    SortedInput input = it.next();
+                    while (input.head != null && input.headKey.equals(keyValue)) {
+                        merged.nodes.add(input.head);
+                        merged.addSystem(input.system);
+                        unkeyed += input.advance(sink);
+                    }
+                    if (input.unordered) {
+                        return false;
+                    }
+                    if (input.head == null) {
+                        it.remove();
+                    }
+                }
+                sink.accept(merged);
+                emitted += unkeyed + 1;
+            }
+            return true;
+        }
+
+        private void mergeIn(KeyIndex index, List<MergeJsonNode> rows, String system, JsonNode node) {
+            List<Name> names = evaluateKeys(system, node);
+            if (names.isEmpty()) {
+                rows.add(new MergeJsonNode(names, system, node));
+                return;
+            }
+            List<Integer> partnerRows = new ArrayList<>(1);
+            for (Name k : names) {
+                int row = index.get(k);
+                if (row >= 0 && !partnerRows.contains(row)) {
+                    partnerRows.add(row);
+                }
+            }
+            if (partnerRows.isEmpty()) {
+                int row = rows.size();
+                rows.add(new MergeJsonNode(names, system, node));
+                for (Name k : names) {
+                    index.put(k, row);
+                }
+            } else if (partnerRows.size() == 1) {
+                int row = partnerRows.get(0);
+                MergeJsonNode partner = rows.get(row);
+                partner.nodes.add(node);
+                partner.addSystem(system);
+                for (Name k : names) {
+                    if (!partner.keyValues.contains(k)) {
+                        partner.keyValues.add(k);
+                        index.put(k, row);
+                    }
+                }
+            } else {
+                // the object connects several previously unrelated ones, which become one in the first row
+                int target = Collections.min(partnerRows);
+                MergeJsonNode merged = new MergeJsonNode(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+                for (int row : partnerRows) {
+                    MergeJsonNode partner = rows.get(row);
+                    merged.nodes.addAll(partner.nodes);
+                    for (Name k : partner.keyValues) {
+                        if (!merged.keyValues.contains(k)) {
+                            merged.keyValues.add(k);
+                        }
+                    }
+                    for (String s : partner.systems) {
+                        merged.addSystem(s);
+                    }
+                }
+                merged.nodes.add(node);
+                merged.addSystem(system);
+                for (Name k : names) {
+                    if (!merged.keyValues.contains(k)) {
+                        merged.keyValues.add(k);
+                    }
+                }
+                rows.set(target, merged);
+                // re-pointing has to happen while the old rows still confirm their key values
+                for (Name k : merged.keyValues) {
+                    index.put(k, target);
+                }
+                for (int row : partnerRows) {
+                    if (row != target) {
+                        rows.set(row, null);
+                    }
+                }
             }
         }
 
@@ -440,50 +1021,273 @@ public abstract class QueryCursor {
             if (!getQueryNode().isComplex()) {
                 atomic(generator); // TODO overwrite with merging beahvior
             } else {
-                for (int i = 0; i < width; i++) {
-                    enterChild(generator);
-                    for (QueryCursor cursor : getChildrenPos()) {
-                        cursor.processOne(generator);
-                        cursor.moveOn();
+                writeMerged(generator, null);
+            }
+            leave(generator);
+        }
+
+        @Override
+        public int processElements(JsonGenerator generator, SerializableString separator) throws IOException {
+            writeMerged(generator, separator);
+            return width;
+        }
+
+        /**
+         * Events are only merged within themselves, i.e. objects of different events are never joined.
+         */
+        @Override
+        public void processEvent(String key, JsonNode event, JsonGenerator generator) throws IOException {
+            addResults(Collections.singletonMap(key, event));
+            processOne(generator);
+        }
+
+        /**
+         * Writes the merged objects, each followed by the given separator if it is not null.
+         */
+        private void writeMerged(JsonGenerator generator, SerializableString separator) throws IOException {
+            for (int i = 0; i < width; i++) {
+                enterChild(generator);
+                for (QueryCursor cursor : getChildrenPos()) {
+                    cursor.processOne(generator);
+                    cursor.next();
+                }
+                leaveChild(generator);
+                if (separator != null) {
+                    generator.writeRaw(separator);
+                }
+            }
+        }
+
+        /**
+         * Whether the results can be joined partition by partition, which requires that objects are identified
+         * by at most one key per system, such that all parts of an object end up in the same partition.
+         */
+        boolean canSpill() {
+            for (String system : this.keys.keySet()) {
+                if (this.keys.get(system).size() > 1) {
+                    return false;
+                }
+            }
+            return getQueryNode().isComplex();
+        }
+
+        /**
+         * Joins the local results, given as complete responses in files (keyed by system), without holding all of them
+         * in memory: every result object is read incrementally and written to a partition according to its key value,
+         * afterwards one partition after the other is joined and written.
+         * Merged objects are thus written grouped by partition instead of in the order of the endpoints.
+         */
+        void processSpilled(Map<String, File> localResponses, ObjectMapper objectMapper, File spillDirectory, int partitions, JsonGenerator generator) throws IOException {
+            List<String> systems = new ArrayList<>(localResponses.keySet());
+            enter(generator);
+            try (MergeSpill spill = new MergeSpill(spillDirectory, partitions)) {
+                for (int system = 0; system < systems.size(); system++) {
+                    String sysKey = systems.get(system);
+                    LocalCursor localCursor = getLocalCursors().get(sysKey);
+                    if (localCursor != null) {
+                        spillResult(spill, system, sysKey, localCursor, localResponses.get(sysKey), objectMapper);
+                    }
+                }
+                int written = 0;
+                for (int partition = 0; partition < spill.partitions(); partition++) {
+                    List<MergeJsonNode> rows = new ArrayList<>();
+                    try (KeyIndex index = createIndex(rows, 0)) {
+                        spill.read(partition, (system, node) -> mergeIn(index, rows, systems.get(system), node));
+                    }
+                    distribute(withoutMergedRows(rows), getLimit() < 0 ? -1 : getLimit() - written);
+                    writeMerged(generator, null);
+                    written += width;
+                    if (getLimit() >= 0 && written >= getLimit()) {
+                        break;
                     }
-                    leaveChild(generator);
                 }
             }
+            this.width = 0;
             leave(generator);
         }
+
+        private void spillResult(MergeSpill spill, int system, String sysKey, LocalCursor localCursor, File response, ObjectMapper objectMapper) throws IOException {
+            try (JsonParser parser = PayloadFormat.createParser(objectMapper, new BufferedInputStream(new FileInputStream(response)))) {
+                if (parser.nextToken() != JsonToken.START_OBJECT
+                        || !MergeSpill.moveToField(parser, "data")
+                        || parser.currentToken() != JsonToken.START_OBJECT
+                        || !MergeSpill.moveToField(parser, localCursor.getQueryNode().field())) {
+                    return;
+                }
+                if (parser.currentToken() == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        spillObject(spill, system, sysKey, localCursor, parser.readValueAsTree());
+                    }
+                } else if (parser.currentToken() == JsonToken.START_OBJECT) {
+                    spillObject(spill, system, sysKey, localCursor, parser.readValueAsTree());
+                }
+            }
+        }
+
+        private void spillObject(MergeSpill spill, int system, String sysKey, LocalCursor localCursor, JsonNode node) throws IOException {
+            if (localCursor.accepts(node)) {
+                List<Name> keyValues = evaluateKeys(sysKey, node);
+                spill.write(spill.partition(keyValues.isEmpty() ? null : keyValues.iterator().next()), system, node);
+            }
+        }
     }
 
-    protected abstract void moveOn();
+
+    private interface MergeSink {
+        void accept(MergeJsonNode merged) throws IOException;
+    }
+
+    /**
+     * The elements of a list (or the single object) that a parser is positioned at, read one at a time.
+     * Read errors are thrown as {@link UncheckedIOException}.
+     */
+    private static class ParsedElements implements Iterator<JsonNode> {
+        private final JsonParser parser;
+        private final ObjectMapper objectMapper;
+        private final boolean isList;
+        private boolean done;
+
+        private ParsedElements(JsonParser parser, ObjectMapper objectMapper) throws IOException {
+            this.parser = parser;
+            this.objectMapper = objectMapper;
+            this.isList = parser.currentToken() == JsonToken.START_ARRAY;
+            if (isList) {
+                this.done = parser.nextToken() == JsonToken.END_ARRAY;
+            } else {
+                this.done = parser.currentToken() != JsonToken.START_OBJECT;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !done;
+        }
+
+        @Override
+        public JsonNode next() {
+            if (done) {
+                throw new NoSuchElementException();
+            }
+            try {
+                JsonNode element = objectMapper.readTree(parser);
+                done = !isList || parser.nextToken() == JsonToken.END_ARRAY;
+                return element;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * The current position in a local result that is (expected to be) ordered by a key.
+     */
+    private static class SortedInput implements Comparable<SortedInput> {
+        private final String system;
+        private final Key key;
+        private final boolean numeric;
+        private final LocalCursor localCursor;
+        private final Iterator<JsonNode> elements;
+        private JsonNode head;
+        private Name headKey;
+        private String headText;
+        private BigDecimal headNumber;
+        private boolean unordered = false;
+
+        private SortedInput(String system, Key key, boolean numeric, LocalCursor localCursor, Iterator<JsonNode> elements) {
+            this.system = system;
+            this.key = key;
+            this.numeric = numeric;
+            this.localCursor = localCursor;
+            this.elements = elements;
+        }
+
+        /**
+         * Moves to the next element that has a key value, elements without one cannot be joined
+         * and are directly handed to the given sink. Returns the number of those.
+         */
+        int advance(MergeSink sink) throws IOException {
+            boolean hadHead = head != null;
+            String previousText = headText;
+            BigDecimal previousNumber = headNumber;
+            head = null;
+            int unkeyed = 0;
+            while (elements.hasNext()) {
+                JsonNode next = elements.next();
+                if (localCursor.accepts(next)) {
+                    try {
+                        headKey = key.evaluate(next);
+                        head = next;
+                        headText = headKey.printRaw();
+                        headNumber = numeric ? parseNumber(headText) : null;
+                        if (hadHead && compare(previousText, previousNumber, headText, headNumber) > 0) {
+                            unordered = true;
+                        }
+                        return unkeyed;
+                    } catch (KeyNotEvaluated e) {
+                        sink.accept(new MergeJsonNode(new ArrayList<>(), system, next));
+                        unkeyed++;
+                    }
+                }
+            }
+            return unkeyed;
+        }
+
+        private static BigDecimal parseNumber(String text) {
+            try {
+                return new BigDecimal(text);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Numeric key values are compared by their numbers, values of numeric keys that are no numbers come first.
+         * Other key values (numbers are null then) are compared lexicographically, so the order is total in both cases.
+         */
+        private static int compare(String text, BigDecimal number, String otherText, BigDecimal otherNumber) {
+            if (number != null && otherNumber != null) {
+                return number.compareTo(otherNumber);
+            } else if (number != null) {
+                return 1;
+            } else if (otherNumber != null) {
+                return -1;
+            }
+            return text.compareTo(otherText);
+        }
+
+        @Override
+        public int compareTo(SortedInput o) {
+            return compare(headText, headNumber, o.headText, o.headNumber);
+        }
+    }
 
     private static class MergeJsonNode {
 
 
-        private Set<Name> keyValues;
+        // plain lists since there are hardly ever more than a few key values and systems per object
+        private final List<Name> keyValues;
         // TODO work with multimaps here, then merging retriving the right object per endpoint becomes more straightforward
-        private Set<String> systems;
-        private List<JsonNode> nodes;
+        private final List<String> systems;
+        private final List<JsonNode> nodes;
 
-        public MergeJsonNode(Set<Name> keyValues, Set<String> systems, List<JsonNode> nodes) {
+        public MergeJsonNode(List<Name> keyValues, List<String> systems, List<JsonNode> nodes) {
             this.keyValues = keyValues;
             this.systems = systems;
             this.nodes = nodes;
         }
 
-        public MergeJsonNode(Set<Name> keys, String system, JsonNode node) {
+        public MergeJsonNode(List<Name> keys, String system, JsonNode node) {
             this.keyValues = keys;
-            this.systems = new HashSet<>();
-            this.nodes = new ArrayList<>();
+            this.systems = new ArrayList<>(2);
+            this.nodes = new ArrayList<>(2);
             this.systems.add(system);
             this.nodes.add(node);
         }
 
-        public MergeJsonNode(Name key, String system, JsonNode node) {
-            this.keyValues = new HashSet<>();
-            this.systems = new HashSet<>();
-            this.nodes = new ArrayList<>();
-            this.keyValues.add(key);
-            this.systems.add(system);
-            this.nodes.add(node);
+        void addSystem(String system) {
+            if (!systems.contains(system)) {
+                systems.add(system);
+            }
         }
 
         JsonNode mergeNode(String field, boolean isListValued) {
@@ -0,0 +1,274 @@
+package no.hvl.past.gqlintegration.queries;
+
+import no.hvl.past.systems.Sys;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which of the local queries produced by splitting a federated query are actually sent,
+ * and in which order, based on statistics that are collected about every endpoint:
+ * response latency, response size and how often an endpoint contributed a non-empty result to a root field.
+ * Endpoints that (after enough samples) practically never contribute to any of the requested roots can be skipped,
+ * which is disabled by default since it trades completeness for latency. Skipped endpoints are still queried
+ * every now and then to keep their statistics up to date. Endpoints that are required for a query, e.g. because
+ * projection pushdown asks only them for an attribute of merged objects, are never skipped.
+ * The order of the plan only matters when the local queries are sent concurrently
+ * (see {@link GraphQLQueryDivider#setRequestExecutor}), slow endpoints are then contacted first.
+ */
+public class QueryPlanner {
+
+    public static final int DEFAULT_MIN_SAMPLES = 20;
+
+    // weight of the newest sample in the exponentially weighted moving averages
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final Map<Sys, EndpointStatistics> statistics = new ConcurrentHashMap<>();
+    private double skipThreshold = -1;
+    private int minSamples = DEFAULT_MIN_SAMPLES;
+
+    private static class EndpointStatistics {
+        private long latencySamples;
+        private long sizeSamples;
+        private double latencyMillis;
+        private double responseBytes;
+        private final Map<String, long[]> contributions = new HashMap<>();
+        private int consecutiveSkips;
+
+        synchronized void recordLatency(long latencyMillis) {
+            this.latencyMillis = latencySamples++ == 0 ? latencyMillis : this.latencyMillis + EWMA_ALPHA * (latencyMillis - this.latencyMillis);
+        }
+
+        synchronized void recordSize(long responseBytes) {
+            this.responseBytes = sizeSamples++ == 0 ? responseBytes : this.responseBytes + EWMA_ALPHA * (responseBytes - this.responseBytes);
+        }
+
+        synchronized void recordContribution(String rootField, boolean nonEmpty) {
+            long[] counts = contributions.computeIfAbsent(rootField, f -> new long[2]);
+            counts[0]++;
+            if (nonEmpty) {
+                counts[1]++;
+            }
+        }
+
+        synchronized long samples(String rootField) {
+            long[] counts = contributions.get(rootField);
+            return counts == null ? 0 : counts[0];
+        }
+
+        synchronized double nonEmptyRatio(String rootField) {
+            long[] counts = contributions.get(rootField);
+            return counts == null || counts[0] == 0 ? 1.0 : (double) counts[1] / counts[0];
+        }
+
+        /**
+         * Returns false when the endpoint has been skipped too often in a row and should be probed again.
+         */
+        synchronized boolean skip(int maxConsecutiveSkips) {
+            if (consecutiveSkips >= maxConsecutiveSkips) {
+                consecutiveSkips = 0;
+                return false;
+            }
+            consecutiveSkips++;
+            return true;
+        }
+
+        synchronized double latency() {
+            return latencyMillis;
+        }
+
+        synchronized double size() {
+            return responseBytes;
+        }
+    }
+
+    /**
+     * One local query of a plan.
+     */
+    public static class Step {
+        private final Sys endpoint;
+        private final GraphQLQuery query;
+        private final double estimatedLatencyMillis;
+        private final double estimatedResponseBytes;
+        private final Map<String, Double> contributionProbabilities;
+        private final boolean skipped;
+
+        Step(Sys endpoint, GraphQLQuery query, double estimatedLatencyMillis, double estimatedResponseBytes, Map<String, Double> contributionProbabilities, boolean skipped) {
+            this.endpoint = endpoint;
+            this.query = query;
+            this.estimatedLatencyMillis = estimatedLatencyMillis;
+            this.estimatedResponseBytes = estimatedResponseBytes;
+            this.contributionProbabilities = contributionProbabilities;
+            this.skipped = skipped;
+        }
+
+        public Sys getEndpoint() {
+            return endpoint;
+        }
+
+        public GraphQLQuery getQuery() {
+            return query;
+        }
+
+        public double getEstimatedLatencyMillis() {
+            return estimatedLatencyMillis;
+        }
+
+        public double getEstimatedResponseBytes() {
+            return estimatedResponseBytes;
+        }
+
+        public boolean isSkipped() {
+            return skipped;
+        }
+    }
+
+    /**
+     * The local queries to send (in that order) and the ones that were skipped.
+     */
+    public static class Plan {
+        private final List<Step> steps;
+
+        Plan(List<Step> steps) {
+            this.steps = steps;
+        }
+
+        public List<Step> getSteps() {
+            return steps;
+        }
+
+        public LinkedHashMap<Sys, GraphQLQuery> executedQueries() {
+            LinkedHashMap<Sys, GraphQLQuery> result = new LinkedHashMap<>();
+            for (Step step : steps) {
+                if (!step.skipped) {
+                    result.put(step.endpoint, step.query);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Latency when all local queries are sent one after the other.
+         */
+        public double estimatedSequentialLatencyMillis() {
+            return steps.stream().filter(s -> !s.skipped).mapToDouble(s -> s.estimatedLatencyMillis).sum();
+        }
+
+        /**
+         * Latency when all local queries are sent at the same time.
+         */
+        public double estimatedParallelLatencyMillis() {
+            return steps.stream().filter(s -> !s.skipped).mapToDouble(s -> s.estimatedLatencyMillis).max().orElse(0);
+        }
+
+        public String explain() {
+            StringBuilder result = new StringBuilder();
+            int i = 1;
+            for (Step step : steps) {
+                result.append(step.skipped ? "   skip " : String.format("%6d. ", i++));
+                result.append(step.endpoint.url());
+                result.append(String.format(Locale.ROOT, " latency~%.0fms size~%.0fB roots:", step.estimatedLatencyMillis, step.estimatedResponseBytes));
+                for (Map.Entry<String, Double> p : step.contributionProbabilities.entrySet()) {
+                    result.append(String.format(Locale.ROOT, " %s(p=%.2f)", p.getKey(), p.getValue()));
+                }
+                result.append('\n');
+            }
+            result.append(String.format(Locale.ROOT, "estimated latency: %.0fms sequential, %.0fms parallel",
+                    estimatedSequentialLatencyMillis(), estimatedParallelLatencyMillis()));
+            return result.toString();
+        }
+    }
+
+    /**
+     * Endpoints whose probability of contributing to any requested root is at most the given value are skipped,
+     * once there are at least {@link #setMinSamples(int)} observations. 0 only skips endpoints that never
+     * contributed, a negative value (default) disables skipping altogether.
+     */
+    public void setSkipThreshold(double skipThreshold) {
+        this.skipThreshold = skipThreshold;
+    }
+
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    public void recordLatency(Sys endpoint, long latencyMillis) {
+        statistics(endpoint).recordLatency(latencyMillis);
+    }
+
+    public void recordResponseSize(Sys endpoint, long responseBytes) {
+        statistics(endpoint).recordSize(responseBytes);
+    }
+
+    public void recordContribution(Sys endpoint, String rootField, boolean nonEmpty) {
+        statistics(endpoint).recordContribution(rootField, nonEmpty);
+    }
+
+    private EndpointStatistics statistics(Sys endpoint) {
+        return statistics.computeIfAbsent(endpoint, e -> new EndpointStatistics());
+    }
+
+    public Plan plan(GraphQLQuery globalQuery, Map<Sys, GraphQLQuery> localQueries) {
+        return plan(globalQuery, localQueries, Collections.emptySet());
+    }
+
+    /**
+     * Orders the local queries by descending expected latency, such that slow endpoints are contacted first,
+     * and marks the ones that are unlikely to contribute as skipped, except for the required endpoints.
+     */
+    public Plan plan(GraphQLQuery globalQuery, Map<Sys, GraphQLQuery> localQueries, Set<Sys> required) {
+        return plan(globalQuery, localQueries, required, true);
+    }
+
+    /**
+     * Describes the plan that would be chosen for the given queries, without affecting later plans.
+     */
+    public String explain(GraphQLQuery globalQuery, Map<Sys, GraphQLQuery> localQueries, Set<Sys> required) {
+        return plan(globalQuery, localQueries, required, false).explain();
+    }
+
+    private Plan plan(GraphQLQuery globalQuery, Map<Sys, GraphQLQuery> localQueries, Set<Sys> required, boolean execute) {
+        List<Step> steps = new ArrayList<>();
+        for (Map.Entry<Sys, GraphQLQuery> local : localQueries.entrySet()) {
+            EndpointStatistics stats = statistics(local.getKey());
+            Map<String, Double> probabilities = new LinkedHashMap<>();
+            boolean skip = skipThreshold >= 0 && !required.contains(local.getKey());
+            for (GraphQLQuery.QueryRoot root : globalQuery.getRoots()) {
+                double p = stats.nonEmptyRatio(root.field());
+                probabilities.put(root.field(), p);
+                if (stats.samples(root.field()) < minSamples || p > skipThreshold) {
+                    skip = false;
+                }
+            }
+            if (skip && execute) {
+                skip = stats.skip(minSamples);
+            }
+            steps.add(new Step(local.getKey(), local.getValue(), stats.latency(), stats.size(), probabilities, skip));
+        }
+        steps.sort(Comparator.comparing((Step s) -> s.skipped).thenComparing(s -> -s.estimatedLatencyMillis));
+        return new Plan(steps);
+    }
+
+    /**
+     * The urls of the endpoints that are the only source of a selection of objects that are merged across endpoints,
+     * in the cursors of the given (split) query. Skipping such an endpoint would drop that selection for all
+     * merged objects, including the parts that other endpoints contribute.
+     */
+    static Set<String> soleSources(GraphQLQuery globalQuery) {
+        Set<String> result = new HashSet<>();
+        for (GraphQLQuery.QueryRoot root : globalQuery.getRoots()) {
+            root.getCursor().ifPresent(cursor -> collectSoleSources(cursor, result));
+        }
+        return result;
+    }
+
+    private static void collectSoleSources(QueryCursor cursor, Set<String> result) {
+        boolean merged = cursor instanceof QueryCursor.ConcatMergeCursor && ((QueryCursor.ConcatCursor) cursor).getLocalCursors().size() > 1;
+        for (QueryCursor child : cursor.getChildrenPos()) {
+            if (merged && child instanceof QueryCursor.ConcatCursor && ((QueryCursor.ConcatCursor) child).getLocalCursors().size() == 1) {
+                result.addAll(((QueryCursor.ConcatCursor) child).getLocalCursors().keySet());
+            }
+            collectSoleSources(child, result);
+        }
+    }
+}
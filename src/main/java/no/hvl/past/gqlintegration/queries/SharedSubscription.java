@@ -0,0 +1,255 @@
+package no.hvl.past.gqlintegration.queries;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * The clients of one distinct subscription, which share its local subscriptions.
+ * Frames (i.e. rendered server-sent events) are rendered one at a time and queued for every client in the same order.
+ * Every client has a bounded queue that is written to the client by the client's own thread ({@link Sink#writeUntilDone()}),
+ * i.e. publishing never waits for a client. Clients whose queue is full cannot keep up and are dropped.
+ * The local subscriptions are closed once the last client is gone or all of them have completed.
+ */
+final class SharedSubscription {
+
+    /**
+     * Renders a frame, only called while no other frame of the subscription is rendered.
+     */
+    interface Frame {
+        byte[] render() throws IOException;
+    }
+
+    /**
+     * Opens the local subscriptions and registers them with {@link #addUpstream(Closeable)}.
+     */
+    interface Upstreams {
+        void open(SharedSubscription subscription) throws IOException;
+    }
+
+    /**
+     * One client of a shared subscription. Frames are only queued by one thread at a time (holding the monitor
+     * of the subscription), so the queue cannot fill up between checking its size and queueing.
+     */
+    static final class Sink {
+
+        private static final byte[] END = new byte[0];
+
+        private final OutputStream outputStream;
+        private final int maxQueuedFrames;
+        private final BlockingQueue<byte[]> frames;
+        private volatile boolean gone = false;
+
+        Sink(OutputStream outputStream, int maxQueuedFrames) {
+            this.outputStream = outputStream;
+            this.maxQueuedFrames = maxQueuedFrames;
+            // one more for the end, which always fits
+            this.frames = new ArrayBlockingQueue<>(maxQueuedFrames + 1);
+        }
+
+        /**
+         * Queues the frame, returns false if the client has gone away or cannot keep up, it is then ended.
+         */
+        private boolean offer(byte[] frame) {
+            if (gone) {
+                return false;
+            }
+            if (frames.size() < maxQueuedFrames) {
+                frames.offer(frame);
+                return true;
+            }
+            end();
+            return false;
+        }
+
+        /**
+         * Ends the client once the frames queued so far have been written.
+         */
+        private void finish() {
+            frames.offer(END);
+        }
+
+        /**
+         * Ends the client right away, frames that have not been written yet are discarded.
+         */
+        private void end() {
+            gone = true;
+            frames.clear();
+            frames.offer(END);
+        }
+
+        /**
+         * Writes the queued frames to the client on the calling thread until the client is ended or has gone away.
+         */
+        void writeUntilDone() throws InterruptedIOException {
+            try {
+                while (true) {
+                    byte[] frame = frames.take();
+                    if (frame == END) {
+                        return;
+                    }
+                    outputStream.write(frame);
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                gone = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for subscription events");
+            }
+        }
+
+        boolean isGone() {
+            return gone;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(SharedSubscription.class);
+
+    private final String key;
+    private final byte[] completeFrame;
+    private final Consumer<SharedSubscription> onClose;
+    private final List<Sink> sinks = new ArrayList<>();
+    private final List<Closeable> upstreams = new ArrayList<>();
+    private int openUpstreams = 0;
+    private boolean closed = false;
+
+    /**
+     * The complete frame is the last one every client receives if the local subscriptions complete,
+     * the callback is called once when the subscription is closed.
+     */
+    SharedSubscription(String key, byte[] completeFrame, Consumer<SharedSubscription> onClose) {
+        this.key = key;
+        this.completeFrame = completeFrame;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Returns false if the subscription has already been closed, i.e. the sink must not be attached to it anymore.
+     */
+    synchronized boolean attach(Sink sink) {
+        if (closed) {
+            return false;
+        }
+        sinks.add(sink);
+        return true;
+    }
+
+    synchronized void detach(Sink sink) {
+        sinks.remove(sink);
+        if (sinks.isEmpty()) {
+            close();
+        }
+    }
+
+    /**
+     * Opens the local subscriptions, whose events and completions are only handled once all of them are open.
+     * If there are none, the subscription completes right away.
+     */
+    synchronized void open(Upstreams opener) throws IOException {
+        opener.open(this);
+        if (openUpstreams == 0) {
+            complete();
+        }
+    }
+
+    synchronized void addUpstream(Closeable upstream) {
+        if (closed) {
+            closeQuietly(upstream);
+            return;
+        }
+        upstreams.add(upstream);
+        openUpstreams++;
+    }
+
+    synchronized void publish(Frame frame) {
+        if (closed) {
+            return;
+        }
+        try {
+            broadcast(frame.render());
+        } catch (IOException e) {
+            logger.warn("Could not render an event of '" + key.trim() + "'", e);
+        }
+    }
+
+    synchronized void upstreamCompleted() {
+        if (--openUpstreams <= 0) {
+            complete();
+        }
+    }
+
+    /**
+     * Ends the subscription for all clients with the given error.
+     */
+    synchronized void fail(Frame error) {
+        if (closed) {
+            return;
+        }
+        publish(error);
+        complete();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized int clients() {
+        return sinks.size();
+    }
+
+    private void complete() {
+        if (closed) {
+            return;
+        }
+        broadcast(completeFrame);
+        for (Sink sink : sinks) {
+            sink.finish();
+        }
+        sinks.clear();
+        close();
+    }
+
+    private void broadcast(byte[] frame) {
+        // clients that have gone away or cannot keep up are dropped
+        sinks.removeIf(sink -> {
+            boolean wasGone = sink.isGone();
+            boolean queued = sink.offer(frame);
+            if (!queued && !wasGone) {
+                logger.warn("Dropped a client of '" + key.trim() + "' that could not keep up");
+            }
+            return !queued;
+        });
+        if (sinks.isEmpty()) {
+            close();
+        }
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        onClose.accept(this);
+        for (Closeable upstream : upstreams) {
+            closeQuietly(upstream);
+        }
+        logger.debug("Closed the local subscriptions of '" + key.trim() + "'");
+    }
+
+    private void closeQuietly(Closeable upstream) {
+        try {
+            upstream.close();
+        } catch (IOException e) {
+            logger.warn("Could not close a local subscription of '" + key.trim() + "'", e);
+        }
+    }
+}
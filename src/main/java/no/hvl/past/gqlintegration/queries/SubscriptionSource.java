@@ -0,0 +1,32 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A query handler that can also deliver the results of a subscription, i.e. one response per event.
+ */
+public interface SubscriptionSource {
+
+    /**
+     * Receives the events of a subscription, which are delivered one after another on a thread of the source.
+     */
+    interface Listener {
+
+        /**
+         * One event, i.e. a response with data and/or errors.
+         */
+        void onEvent(JsonNode response);
+
+        void onError(String message);
+
+        void onComplete();
+    }
+
+    /**
+     * Opens the given subscription, no events are delivered anymore once the returned handle is closed.
+     */
+    Closeable subscribe(GraphQLQuery subscription, Listener listener) throws IOException;
+}
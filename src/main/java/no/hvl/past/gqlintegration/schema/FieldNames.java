@@ -0,0 +1,39 @@
+package no.hvl.past.gqlintegration.schema;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interning table for field names and display strings that is shared by all endpoints.
+ * Entries are kept as {@link SerializedString}s, which cache their UTF-8 and quoted encodings,
+ * such that generators can write field names without encoding them again for every row.
+ * The table is bounded, names that arrive after it is full are simply not shared.
+ */
+public final class FieldNames {
+
+    static final int MAX_ENTRIES = 1 << 16;
+
+    private static final ConcurrentHashMap<String, SerializedString> TABLE = new ConcurrentHashMap<>();
+
+    private FieldNames() {
+    }
+
+    public static SerializedString serialized(String name) {
+        SerializedString result = TABLE.get(name);
+        if (result != null) {
+            return result;
+        }
+        if (TABLE.size() >= MAX_ENTRIES) {
+            return new SerializedString(name);
+        }
+        return TABLE.computeIfAbsent(name, SerializedString::new);
+    }
+
+    /**
+     * Returns the canonical instance of the given display string, null stays null.
+     */
+    public static String intern(String name) {
+        return name == null ? null : serialized(name).getValue();
+    }
+}
@@ -31,6 +31,10 @@ public class GraphQLSchemaReader {
         return this.mutationMessages;
     }
 
+    public Set<SubscriptionMessage> getSubscriptions() {
+        return this.subscriptionMessages;
+    }
+
     public String getQueryTypeName() {
         return this.queryTypeName;
     }
@@ -39,16 +43,22 @@ public class GraphQLSchemaReader {
         return this.mutationTypeName;
     }
 
+    public String getSubscriptionTypeName() {
+        return this.subscriptionTypeName;
+    }
+
     private static class MessageType {
         private final Name name;
         private final boolean hasSideEffect;
+        private final boolean isSubscription;
         private final List<Triple> arguments;
         private final Triple returnType;
 
 
-        public MessageType(Name name, boolean hasSideEffect, List<Triple> arguments, Triple returnType) {
+        public MessageType(Name name, boolean hasSideEffect, boolean isSubscription, List<Triple> arguments, Triple returnType) {
             this.name = name;
             this.hasSideEffect = hasSideEffect;
+            this.isSubscription = isSubscription;
             this.arguments = arguments;
             this.returnType = returnType;
         }
@@ -70,7 +80,7 @@ public class GraphQLSchemaReader {
     private boolean listValued;
     private boolean mandatory;
     private Map<GraphQLType, Name> typeMapping;
-    private List<Triple> edges;
+    private Map<Name, Triple> edges;
     private Set<String> scalarTypes;
     private List<FieldMult> multiplicities;
     private Map<Name, EnumLiterals> enums;
@@ -79,9 +89,11 @@ public class GraphQLSchemaReader {
     private List<MessageType> messageTypes;
     private Set<QueryMesage> queryMesages = new LinkedHashSet<>();
     private Set<MutationMessage> mutationMessages = new LinkedHashSet<>();
+    private Set<SubscriptionMessage> subscriptionMessages = new LinkedHashSet<>();
     private Set<GraphQLInputObjectType> inputTypes = new LinkedHashSet<>();
     private String queryTypeName = "Query";
     private String mutationTypeName = "Mutation";
+    private String subscriptionTypeName = "Subscription";
 
     public GraphQLSchemaReader(Universe universe) {
         this.builders = new GraphBuilders(universe, false, false);
@@ -90,7 +102,7 @@ public class GraphQLSchemaReader {
 
     public Sketch convert(Name resultName, GraphQLSchema schema) throws GraphError, UnsupportedFeatureException {
         this.typeMapping = new HashMap<>();
-        this.edges = new ArrayList<>();
+        this.edges = new HashMap<>();
         this.scalarTypes = new HashSet<>();
         this.multiplicities = new ArrayList<>();
         this.arguments = new ArrayList<>();
@@ -170,7 +182,7 @@ public class GraphQLSchemaReader {
                 this.queryTypeName = schema.getQueryType().getName();
             }
             for (GraphQLFieldDefinition querOp : schema.getQueryType().getFieldDefinitions()) {
-                convertMessage(querOp, false, schema.getQueryType().getName());
+                convertMessage(querOp, false, false, schema.getQueryType().getName());
             }
         }
 
@@ -179,12 +191,17 @@ public class GraphQLSchemaReader {
                 this.mutationTypeName = schema.getMutationType().getName();
             }
             for (GraphQLFieldDefinition querOp : schema.getMutationType().getFieldDefinitions()) {
-                convertMessage(querOp, true, schema.getMutationType().getName());
+                convertMessage(querOp, true, false, schema.getMutationType().getName());
             }
         }
 
-        if (schema.getSubscriptionType() != null && !schema.getSubscriptionType().getFieldDefinitions().isEmpty()) {
-            throw new UnsupportedFeatureException("Subscriptions are currently not supported by the GraphQL plugin!");
+        if (schema.getSubscriptionType() != null) {
+            if (!this.subscriptionTypeName.equals(schema.getSubscriptionType().getName())) {
+                this.subscriptionTypeName = schema.getSubscriptionType().getName();
+            }
+            for (GraphQLFieldDefinition subscriptionOp : schema.getSubscriptionType().getFieldDefinitions()) {
+                convertMessage(subscriptionOp, false, true, schema.getSubscriptionType().getName());
+            }
         }
 
 
@@ -197,35 +214,9 @@ public class GraphQLSchemaReader {
         }
 
         for (FieldMult multiplicity : this.multiplicities) {
-            if (multiplicity.isListValued()) {
-                // add ordered
-                this.edges.stream().filter(t -> t.getLabel().equals(multiplicity.getElementName())).findFirst().ifPresent(edge -> {
-                    builders.startDiagram(Ordered.getInstance());
-                    builders.map(Universe.ARROW_SRC_NAME, edge.getSource());
-                    builders.map(Universe.ARROW_LBL_NAME, edge.getLabel());
-                    builders.map(Universe.ARROW_TRG_NAME, edge.getTarget());
-                    builders.endDiagram(Ordered.getInstance().getName().appliedTo(multiplicity.getElementName()));
-                });
-            } else if (multiplicity.isMandatory()) {
-                // add 1..1
-                this.edges.stream().filter(t -> t.getLabel().equals(multiplicity.getElementName())).findFirst().ifPresent(edge -> {
-                    GraphPredicate pred = TargetMultiplicity.getInstance(1, 1);
-                    builders.startDiagram(pred);
-                    builders.map(Universe.ARROW_SRC_NAME, edge.getSource());
-                    builders.map(Universe.ARROW_LBL_NAME, edge.getLabel());
-                    builders.map(Universe.ARROW_TRG_NAME, edge.getTarget());
-                    builders.endDiagram(pred.getName().appliedTo(multiplicity.getElementName()));
-                });
-            } else {
-                // add 0..1
-                this.edges.stream().filter(t -> t.getLabel().equals(multiplicity.getElementName())).findFirst().ifPresent(edge -> {
-                    GraphPredicate pred = TargetMultiplicity.getInstance(0, 1);
-                    builders.startDiagram(pred);
-                    builders.map(Universe.ARROW_SRC_NAME, edge.getSource());
-                    builders.map(Universe.ARROW_LBL_NAME, edge.getLabel());
-                    builders.map(Universe.ARROW_TRG_NAME, edge.getTarget());
-                    builders.endDiagram(pred.getName().appliedTo(multiplicity.getElementName()));
-                });
+            Triple edge = this.edges.get(multiplicity.getElementName());
+            if (edge != null) {
+                handleMultiplicity(multiplicity, edge);
             }
         }
 
@@ -253,7 +244,10 @@ public class GraphQLSchemaReader {
         for (MessageType msgType : this.messageTypes) {
             List<MessageArgument> args = new ArrayList<>();
             GraphQLMessage msg;
-            if (msgType.hasSideEffect) {
+            if (msgType.isSubscription) {
+                msg = new SubscriptionMessage(result.carrier(), msgType.name, schema.getSubscriptionType().getName(), this.nameToText.get(msgType.name), args);
+                this.subscriptionMessages.add((SubscriptionMessage) msg);
+            } else if (msgType.hasSideEffect) {
                    msg = new MutationMessage(result.carrier(), msgType.name, schema.getMutationType().getName(), this.nameToText.get(msgType.name), args);
                    this.mutationMessages.add((MutationMessage) msg);
             } else {
@@ -282,7 +276,7 @@ public class GraphQLSchemaReader {
 
 
 
-    private void convertMessage(GraphQLFieldDefinition op, boolean hasSideEffect, String ownerName) {
+    private void convertMessage(GraphQLFieldDefinition op, boolean hasSideEffect, boolean isSubscription, String ownerName) {
         Name msgName = Name.identifier(ownerName + "." + op.getName());
         List<Triple> msgArgs = new ArrayList<>();
         builders.node(msgName);
@@ -294,23 +288,49 @@ public class GraphQLSchemaReader {
             Triple edge = Triple.edge(msgName, argumentName, resultType);
             msgArgs.add(edge);
             builders.edge(msgName, argumentName, resultType);
-            this.edges.add(edge);
+            addEdge(edge);
             this.multiplicities.add(new FieldMult(argumentName, listValued, mandatory));
         }
         this.mandatory = false;
         this.listValued = false;
         Name returnType = convertResultType(op.getType());
         Name returnTypeEdgeLabel = Name.identifier("result").prefixWith(msgName);
-        this.nameToText.put(returnTypeEdgeLabel, op.getName());
-        this.nameToText.put(msgName, op.getName());
+        this.nameToText.put(returnTypeEdgeLabel, FieldNames.intern(op.getName()));
+        this.nameToText.put(msgName, FieldNames.intern(op.getName()));
         builders.edge(msgName, returnTypeEdgeLabel, returnType);
-        this.edges.add(Triple.edge(msgName, returnTypeEdgeLabel, returnType));
+        addEdge(Triple.edge(msgName, returnTypeEdgeLabel, returnType));
         this.multiplicities.add(new FieldMult(returnTypeEdgeLabel, listValued, mandatory));
-        this.messageTypes.add(new MessageType(msgName, hasSideEffect, msgArgs, Triple.edge(msgName, returnTypeEdgeLabel, returnType)));
+        this.messageTypes.add(new MessageType(msgName, hasSideEffect, isSubscription, msgArgs, Triple.edge(msgName, returnTypeEdgeLabel, returnType)));
+    }
+
+    /**
+     * Edges are indexed by their label, the first edge registered for a label wins.
+     */
+    private void addEdge(Triple edge) {
+        this.edges.putIfAbsent(edge.getLabel(), edge);
+    }
+
+    private void handleMultiplicity(FieldMult multiplicity, Triple edge) {
+        if (multiplicity.isListValued()) {
+            // add ordered
+            builders.startDiagram(Ordered.getInstance());
+            builders.map(Universe.ARROW_SRC_NAME, edge.getSource());
+            builders.map(Universe.ARROW_LBL_NAME, edge.getLabel());
+            builders.map(Universe.ARROW_TRG_NAME, edge.getTarget());
+            builders.endDiagram(Ordered.getInstance().getName().appliedTo(multiplicity.getElementName()));
+        } else {
+            // add 1..1 or 0..1
+            GraphPredicate pred = TargetMultiplicity.getInstance(multiplicity.isMandatory() ? 1 : 0, 1);
+            builders.startDiagram(pred);
+            builders.map(Universe.ARROW_SRC_NAME, edge.getSource());
+            builders.map(Universe.ARROW_LBL_NAME, edge.getLabel());
+            builders.map(Universe.ARROW_TRG_NAME, edge.getTarget());
+            builders.endDiagram(pred.getName().appliedTo(multiplicity.getElementName()));
+        }
     }
 
     private void handleScalarType(String scalarType) {
-        this.nameToText.put(Name.identifier(scalarType), scalarType);
+        this.nameToText.put(Name.identifier(scalarType), FieldNames.intern(scalarType));
         switch (scalarType) {
             case "Int":
                 builders.startDiagram(IntDT.getInstance());
@@ -353,7 +373,7 @@ public class GraphQLSchemaReader {
 
         final Triple edge = Triple.edge(this.typeMapping.get(owner), fieldName, targetName);
         this.builders.edge(this.typeMapping.get(owner), fieldName, targetName); // TODO builder method that accepts an edge
-        this.edges.add(edge);
+        addEdge(edge);
         this.multiplicities.add(new FieldMult(fieldName, listValued, mandatory));
 
     }
@@ -370,7 +390,7 @@ public class GraphQLSchemaReader {
 
         final Triple edge = Triple.edge(this.typeMapping.get(owner), fieldName, targetName);
         this.builders.edge(this.typeMapping.get(owner), fieldName, targetName); // TODO builder method that accepts an edge
-        this.edges.add(edge);
+        addEdge(edge);
         this.multiplicities.add(new FieldMult(fieldName, listValued, mandatory));
 
 
@@ -411,20 +431,20 @@ public class GraphQLSchemaReader {
 
     private Name createName(GraphQLInputObjectType owner, GraphQLInputObjectField field) {
         Name name = Name.identifier(field.getName()).prefixWith(this.typeMapping.get(owner));
-        this.nameToText.put(name, field.getName());
+        this.nameToText.put(name, FieldNames.intern(field.getName()));
         return name;
 
     }
 
     private Name createName(GraphQLType owner, GraphQLFieldDefinition fieldDefinition) {
         Name name = Name.identifier(fieldDefinition.getName()).prefixWith(this.typeMapping.get(owner));
-        this.nameToText.put(name, fieldDefinition.getName());
+        this.nameToText.put(name, FieldNames.intern(fieldDefinition.getName()));
         return name;
     }
 
     private Name createName(GraphQLNamedType type) {
         Identifier identifier = Name.identifier(type.getName());
-        this.nameToText.put(identifier, type.getName());
+        this.nameToText.put(identifier, FieldNames.intern(type.getName()));
         return identifier;
     }
 
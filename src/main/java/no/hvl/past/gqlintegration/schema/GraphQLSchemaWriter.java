@@ -1,9 +1,25 @@
 package no.hvl.past.gqlintegration.schema;
 
 import com.google.common.collect.Sets;
+import graphql.Scalars;
+import graphql.schema.GraphQLArgument;
+import graphql.schema.GraphQLEnumType;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLInputObjectField;
+import graphql.schema.GraphQLInputObjectType;
+import graphql.schema.GraphQLInputType;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLNonNull;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLOutputType;
+import graphql.schema.GraphQLScalarType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+import graphql.schema.GraphQLTypeReference;
 import no.hvl.past.gqlintegration.predicates.FieldArgument;
 import no.hvl.past.gqlintegration.predicates.InputType;
 import no.hvl.past.gqlintegration.predicates.MutationMessage;
+import no.hvl.past.gqlintegration.predicates.SubscriptionMessage;
 import no.hvl.past.graph.*;
 import no.hvl.past.graph.elements.Triple;
 import no.hvl.past.graph.elements.Tuple;
@@ -35,6 +51,9 @@ public class GraphQLSchemaWriter implements Visitor {
             Name.identifier("Float"
             ));
 
+    private static final String QUERY_TYPE_NAME = "Query";
+    private static final String MUTATION_TYPE_NAME = "Mutation";
+
     private static final Set<Class<?>> SCALAR_PREDICATES = Sets.newHashSet(
             IntDT.class,
             StringDT.class,
@@ -254,6 +273,7 @@ public class GraphQLSchemaWriter implements Visitor {
 
     private Container queryContainer;
     private Container mutationContainer;
+    private Container subscriptionContainer;
 
     public GraphQLSchemaWriter() {
         this.nameToText.put(Name.identifier("String"), "String");
@@ -337,14 +357,26 @@ public class GraphQLSchemaWriter implements Visitor {
 
     private ContainerChild createMessageContainerIfNeeded(MessageType message) {
         if (typeMap.get(message.typeName()).type == ContainerType.HIDDEN) {
-            if (message instanceof MutationMessage) {
+            if (message instanceof SubscriptionMessage) {
+                return this.subscriptionContainer.fields.stream().filter(child -> child.edgeLabel.equals(message.typeName())).findFirst().get();
+            } else if (message instanceof MutationMessage) {
                 return this.mutationContainer.fields.stream().filter(child -> child.edgeLabel.equals(message.typeName())).findFirst().get();
             } else {
                 return this.queryContainer.fields.stream().filter(child -> child.edgeLabel.equals(message.typeName())).findFirst().get();
             }
         } else {
             typeMap.get(message.typeName()).type = ContainerType.HIDDEN;
-            if (message instanceof MutationMessage) {
+            if (message instanceof SubscriptionMessage) {
+                if (subscriptionContainer == null) {
+                    subscriptionContainer = new Container(Name.identifier("Subscription"));
+                }
+                ContainerChild child = new ContainerChild(message.typeName(), Name.identifier("Subscription"));
+                String preResult = message.typeName().print(PrintingStrategy.IGNORE_PREFIX);
+                preResult = preResult.substring(preResult.indexOf('.') + 1);
+                child.displayName = preResult;
+                subscriptionContainer.fields.add(child);
+                return child;
+            } else if (message instanceof MutationMessage) {
                 if (mutationContainer == null) {
                     mutationContainer = new Container(Name.identifier("Mutation"));
                 }
@@ -475,6 +507,114 @@ public class GraphQLSchemaWriter implements Visitor {
         writer.flush();
     }
 
+    /**
+     * Creates the executable schema (with stubbed custom scalars) for the visited sketch directly,
+     * i.e. without printing the SDL and parsing it again.
+     * Fills the name mapping in the same way as {@link #printToBuffer(BufferedWriter)}.
+     */
+    public GraphQLSchema buildSchema() {
+        GraphQLSchema.Builder builder = GraphQLSchema.newSchema();
+        Set<GraphQLType> additionalTypes = new LinkedHashSet<>();
+        for (Container c : this.finalList) {
+            if (c.type == ContainerType.HIDDEN) {
+                continue;
+            }
+            nameToText.put(c.node, c.displayName);
+            switch (c.type) {
+                case SCALAR:
+                    additionalTypes.add(StubWiring.stubScalar(c.displayName));
+                    break;
+                case OBJECT:
+                    GraphQLObjectType objectType = buildObjectType(c);
+                    // like in SDL, types named Query/Mutation are the operation types if there are no messages
+                    if (c == queryContainer || (queryContainer == null && c.displayName.equals(QUERY_TYPE_NAME))) {
+                        builder.query(objectType);
+                    } else if (c == mutationContainer || (mutationContainer == null && c.displayName.equals(MUTATION_TYPE_NAME))) {
+                        builder.mutation(objectType);
+                    } else if (c == subscriptionContainer) {
+                        builder.subscription(objectType);
+                    } else {
+                        additionalTypes.add(objectType);
+                    }
+                    break;
+                case ENUM:
+                    GraphQLEnumType.Builder enumBuilder = GraphQLEnumType.newEnum().name(c.displayName);
+                    for (ContainerChild literal : c.fields) {
+                        enumBuilder.value(literal.displayName);
+                    }
+                    additionalTypes.add(enumBuilder.build());
+                    break;
+                case INPUT:
+                    GraphQLInputObjectType.Builder inputBuilder = GraphQLInputObjectType.newInputObject().name(c.displayName);
+                    for (ContainerChild f : c.fields) {
+                        if (f.targetName != null) {
+                            inputBuilder.field(GraphQLInputObjectField.newInputObjectField()
+                                    .name(f.displayName)
+                                    .type((GraphQLInputType) typeReference(f.targetName, f.setValued, f.mandatory)));
+                        }
+                    }
+                    additionalTypes.add(inputBuilder.build());
+                    break;
+                default:
+                    break;
+            }
+        }
+        builder.additionalTypes(additionalTypes);
+        return builder.build();
+    }
+
+    private GraphQLObjectType buildObjectType(Container c) {
+        GraphQLObjectType.Builder objectBuilder = GraphQLObjectType.newObject().name(c.displayName);
+        for (ContainerChild f : c.fields) {
+            nameToText.put(f.edgeLabel, f.displayName);
+            if (f.targetName == null) {
+                continue;
+            }
+            GraphQLFieldDefinition.Builder fieldBuilder = GraphQLFieldDefinition.newFieldDefinition()
+                    .name(f.displayName)
+                    .type((GraphQLOutputType) typeReference(f.targetName, f.setValued, f.mandatory));
+            for (FieldArgument argument : f.arguments) {
+                fieldBuilder.argument(GraphQLArgument.newArgument()
+                        .name(argument.getFieldName())
+                        .type((GraphQLInputType) typeReference(argument.getTypeName(), argument.isListValued(), argument.isMandatory())));
+            }
+            objectBuilder.field(fieldBuilder);
+        }
+        return objectBuilder.build();
+    }
+
+    private GraphQLType typeReference(Name typeName, boolean listValued, boolean mandatory) {
+        GraphQLType result;
+        if (isBuiltinBasType(typeName)) {
+            result = builtinScalar(getBuiltinBaseType(typeName));
+        } else {
+            result = GraphQLTypeReference.typeRef(typeMap.get(typeName).displayName);
+        }
+        if (listValued) {
+            result = GraphQLList.list(result);
+        }
+        if (mandatory) {
+            result = GraphQLNonNull.nonNull(result);
+        }
+        return result;
+    }
+
+    private GraphQLScalarType builtinScalar(String name) {
+        switch (name) {
+            case "Int":
+                return Scalars.GraphQLInt;
+            case "Float":
+                return Scalars.GraphQLFloat;
+            case "Boolean":
+                return Scalars.GraphQLBoolean;
+            case "ID":
+                return Scalars.GraphQLID;
+            case "String":
+            default:
+                return Scalars.GraphQLString;
+        }
+    }
+
 
 
     @Override
@@ -517,6 +657,9 @@ public class GraphQLSchemaWriter implements Visitor {
             if (mutationContainer != null) {
                 disambiguate(p, this.mutationContainer);
             }
+            if (subscriptionContainer != null) {
+                disambiguate(p, this.subscriptionContainer);
+            }
         }
 
         if (queryContainer != null) {
@@ -525,6 +668,9 @@ public class GraphQLSchemaWriter implements Visitor {
         if (mutationContainer != null) {
             finalList.add(mutationContainer);
         }
+        if (subscriptionContainer != null) {
+            finalList.add(subscriptionContainer);
+        }
         typeMap.values().stream().filter(c -> c.type.equals(ContainerType.SCALAR)).sorted(comparator).forEach(finalList::add);
         typeMap.values().stream().filter(c -> c.type.equals(ContainerType.ENUM)).sorted(comparator).forEach(finalList::add);
         typeMap.values().stream().filter(c -> c.type.equals(ContainerType.OBJECT)).sorted(comparator).forEach(finalList::add);
@@ -0,0 +1,225 @@
+package no.hvl.past.gqlintegration.schema;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.introspection.IntrospectionQuery;
+import graphql.schema.GraphQLSchema;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A versioned binary snapshot of the schemas of several endpoints (keyed by URL),
+ * such that a gateway can be restarted without introspecting all of its endpoints again.
+ * Every schema is stored as its introspection result in Smile, where repeated type and field names
+ * are written only once and referenced afterwards, together with the time it was fetched and a hash of its content.
+ * The time allows to expire entries, the hash allows to tell whether a schema has changed since it was converted.
+ * Note that the stub schema of an entry is only created when it is asked for, since that is the expensive part of reading.
+ */
+public class SchemaSnapshot {
+
+    public static final int FORMAT_VERSION = 2;
+
+    private static final Logger logger = Logger.getLogger(SchemaSnapshot.class);
+
+    private static final String VERSION_FIELD = "version";
+    private static final String ENDPOINTS_FIELD = "endpoints";
+    private static final String URL_FIELD = "url";
+    private static final String HASH_FIELD = "hash";
+    private static final String FETCHED_AT_FIELD = "fetchedAt";
+    private static final String SCHEMA_FIELD = "schema";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new SmileFactory()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES));
+    private static final ObjectMapper HASH_MAPPER = new ObjectMapper().enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+    private static final TypeReference<Map<String, Object>> SCHEMA_DEFINITION_TYPE = new TypeReference<Map<String, Object>>() {};
+
+    /**
+     * The schema of one endpoint.
+     */
+    public static final class Entry {
+        private final String url;
+        private final String hash;
+        private final long fetchedAt;
+        private final Map<String, Object> definition;
+        private GraphQLSchema schema;
+
+        private Entry(String url, String hash, long fetchedAt, Map<String, Object> definition, GraphQLSchema schema) {
+            this.url = url;
+            this.hash = hash;
+            this.fetchedAt = fetchedAt;
+            this.definition = definition;
+            this.schema = schema;
+        }
+
+        /**
+         * Creates the entry for a schema that has just been fetched.
+         */
+        public static Entry of(String url, GraphQLSchema schema, long fetchedAt) throws IOException {
+            ExecutionResult introspection = GraphQL.newGraphQL(schema).build().execute(IntrospectionQuery.INTROSPECTION_QUERY);
+            if (!introspection.getErrors().isEmpty()) {
+                throw new IOException("Cannot introspect schema of '" + url + "': " + introspection.getErrors());
+            }
+            Map<String, Object> definition = introspection.getData();
+            return new Entry(url, hash(definition), fetchedAt, definition, schema);
+        }
+
+        /**
+         * Creates an entry for a schema that is neither written to a snapshot nor compared by hash,
+         * which avoids introspecting it.
+         */
+        public static Entry transientEntry(String url, GraphQLSchema schema, long fetchedAt) {
+            return new Entry(url, null, fetchedAt, null, schema);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * SHA-256 of the introspection result, equal for equal schemas, null for transient entries.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * When the schema was fetched from the endpoint (milliseconds since the epoch).
+         */
+        public long getFetchedAt() {
+            return fetchedAt;
+        }
+
+        public boolean isExpired(long maxAgeMillis, long now) {
+            return now - fetchedAt > maxAgeMillis;
+        }
+
+        /**
+         * The (stub) executable schema, which is created on first access for entries read from a snapshot.
+         */
+        public synchronized GraphQLSchema getSchema() {
+            if (schema == null) {
+                schema = no.hvl.past.gqlintegration.caller.IntrospectionQuery.createSchema(definition);
+            }
+            return schema;
+        }
+    }
+
+    private SchemaSnapshot() {
+    }
+
+    /**
+     * Writes the snapshot to a temporary file first and moves it over the target afterwards,
+     * so that readers never see a half written snapshot. Transient entries are left out.
+     */
+    public static void write(File file, Collection<Entry> entries) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            generator.writeStartObject();
+            generator.writeNumberField(VERSION_FIELD, FORMAT_VERSION);
+            generator.writeArrayFieldStart(ENDPOINTS_FIELD);
+            for (Entry entry : entries) {
+                if (entry.definition == null) {
+                    continue;
+                }
+                generator.writeStartObject();
+                generator.writeStringField(URL_FIELD, entry.url);
+                generator.writeStringField(HASH_FIELD, entry.hash);
+                generator.writeNumberField(FETCHED_AT_FIELD, entry.fetchedAt);
+                generator.writeFieldName(SCHEMA_FIELD);
+                MAPPER.writeValue(generator, entry.definition);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the entries of a snapshot file by URL.
+     * Returns an empty map if the file does not exist or was written in another format version.
+     */
+    public static Map<String, Entry> read(File file) throws IOException {
+        Map<String, Entry> result = new LinkedHashMap<>();
+        if (!file.exists()) {
+            return result;
+        }
+        try (JsonParser parser = MAPPER.getFactory().createParser(new BufferedInputStream(new FileInputStream(file)))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("'" + file + "' is not a schema snapshot!");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (VERSION_FIELD.equals(fieldName)) {
+                    if (parser.getIntValue() != FORMAT_VERSION) {
+                        logger.info("Ignoring schema snapshot '" + file + "' with format version " + parser.getIntValue());
+                        return new LinkedHashMap<>();
+                    }
+                } else if (ENDPOINTS_FIELD.equals(fieldName)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readEndpoint(parser, result);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void readEndpoint(JsonParser parser, Map<String, Entry> result) throws IOException {
+        String url = null;
+        String hash = null;
+        long fetchedAt = 0;
+        Map<String, Object> schemaDefinition = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (URL_FIELD.equals(fieldName)) {
+                url = parser.getText();
+            } else if (HASH_FIELD.equals(fieldName)) {
+                hash = parser.getText();
+            } else if (FETCHED_AT_FIELD.equals(fieldName)) {
+                fetchedAt = parser.getLongValue();
+            } else if (SCHEMA_FIELD.equals(fieldName)) {
+                schemaDefinition = MAPPER.readValue(parser, SCHEMA_DEFINITION_TYPE);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (url != null && schemaDefinition != null) {
+            result.put(url, new Entry(url, hash == null ? hash(schemaDefinition) : hash, fetchedAt, schemaDefinition, null));
+        }
+    }
+
+    private static String hash(Map<String, Object> schemaDefinition) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(HASH_MAPPER.writeValueAsBytes(schemaDefinition));
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package no.hvl.past.gqlintegration;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import no.hvl.past.gqlintegration.queries.GraphQLQuery;
+import no.hvl.past.gqlintegration.queries.GraphQLQueryDelegator;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+
+public class DelegatorTest extends GraphQLTest {
+
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (inputStream.read(buffer) >= 0) {
+            // request bodies are not of interest here
+        }
+    }
+
+    private static boolean readUntil(JsonParser parser, String value) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.VALUE_STRING && value.equals(parser.getText())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testOpenHandsOutTheLiveResponse() throws Exception {
+        CountDownLatch firstElementRead = new CountDownLatch(1);
+        AtomicBoolean streamed = new AtomicBoolean();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            drain(exchange.getRequestBody());
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            out.write("{\"data\":{\"items\":[{\"name\":\"a\"}".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            try {
+                // the rest is only sent once the client has read the first element
+                streamed.set(firstElementRead.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.write(",{\"name\":\"b\"}]}}".getBytes(StandardCharsets.UTF_8));
+            out.close();
+        });
+        server.start();
+        try {
+            JsonFactory jsonFactory = new JsonFactory();
+            GraphQLEndpoint endpoint = TestFederation.endpoint(this, "http://localhost:" + server.getAddress().getPort() + "/", 1, new ObjectMapper(jsonFactory), jsonFactory);
+            GraphQLQueryDelegator delegator = new GraphQLQueryDelegator(endpoint);
+            GraphQLQuery query = (GraphQLQuery) delegator.deserialize(new ByteArrayInputStream("{\"query\":\"{ items { name } }\"}".getBytes(StandardCharsets.UTF_8)));
+
+            try (JsonParser parser = jsonFactory.createParser(delegator.open(query))) {
+                assertTrue(readUntil(parser, "a"));
+                firstElementRead.countDown();
+                assertTrue(readUntil(parser, "b"));
+            }
+            assertTrue(streamed.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package no.hvl.past.gqlintegration;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import no.hvl.past.gqlintegration.caller.IntrospectionQuery;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Time and memory for reading a large recorded introspection response: the former line by line reading
+ * (StringBuilder, readTree, convertValue) versus streaming it with IntrospectionQuery.readIntrospectionResult.
+ */
+public class IntrospectionBenchmark extends GraphQLTest {
+
+    private static final int TYPES = 3_000;
+    private static final int FIELDS_PER_TYPE = 10;
+    private static final TypeReference<Map<String, Object>> SCHEMA_DEFINITION_TYPE = new TypeReference<Map<String, Object>>() {};
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private byte[] recordedResponse() throws Exception {
+        StringBuilder sdl = new StringBuilder("type Query {\n");
+        for (int t = 0; t < TYPES; t++) {
+            sdl.append("\t\"\"\"All the T").append(t).append("s\"\"\"\n");
+            sdl.append("\tt").append(t).append("(id: ID, first: Int): [T").append(t).append("]\n");
+        }
+        sdl.append("}\n");
+        for (int t = 0; t < TYPES; t++) {
+            sdl.append("type T").append(t).append(" {\n");
+            for (int f = 0; f < FIELDS_PER_TYPE; f++) {
+                sdl.append("\tf").append(f).append(f % 2 == 0 ? ": String!\n" : ": [Int]\n");
+            }
+            sdl.append("}\n");
+        }
+        ExecutionResult introspection = GraphQL.newGraphQL(parseSchemaAsText(sdl.toString())).build()
+                .execute(graphql.introspection.IntrospectionQuery.INTROSPECTION_QUERY);
+        return objectMapper.writeValueAsBytes(introspection.toSpecification());
+    }
+
+    /**
+     * How responses were read before.
+     */
+    private Map<String, Object> readLineByLine(InputStream inputStream) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        StringBuilder result = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            result.append(line);
+            result.append(System.lineSeparator());
+        }
+        reader.close();
+        JsonNode node = objectMapper.readTree(result.toString());
+        return objectMapper.convertValue(node.get("data"), SCHEMA_DEFINITION_TYPE);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            gzip.write(bytes);
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void benchmarkReadingIntrospectionResponses() throws Exception {
+        Timing.assumeEnabled();
+        byte[] response = recordedResponse();
+        byte[] gzipped = gzip(response);
+        assertEquals(readLineByLine(new ByteArrayInputStream(response)), IntrospectionQuery.readIntrospectionResult(new ByteArrayInputStream(gzipped)));
+
+        List<Timing.Result> results = new ArrayList<>();
+        results.add(Timing.measure("line by line", 3, 7, () -> readLineByLine(new ByteArrayInputStream(response))));
+        results.add(Timing.measure("streaming", 3, 7, () -> IntrospectionQuery.readIntrospectionResult(new ByteArrayInputStream(response))));
+        results.add(Timing.measure("streaming gzipped", 3, 7, () -> IntrospectionQuery.readIntrospectionResult(new ByteArrayInputStream(gzipped))));
+        Timing.report("Introspection response of " + TYPES + " types, " + Timing.bytes(response.length)
+                + " (" + Timing.bytes(gzipped.length) + " gzipped)", results);
+    }
+}
@@ -0,0 +1,185 @@
+package no.hvl.past.gqlintegration;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import graphql.language.Argument;
+import graphql.language.Field;
+import graphql.language.IntValue;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.language.StringValue;
+import graphql.parser.Parser;
+import no.hvl.past.gqlintegration.queries.GraphQLQueryDelegator;
+import no.hvl.past.gqlintegration.queries.Pagination;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PaginationTest extends GraphQLTest {
+
+    /**
+     * Answers pages of the items named "0", "1", ... instead of sending them to the endpoint,
+     * and records the page arguments (size and position) of every page it is asked for.
+     */
+    private static class PagingDelegator extends GraphQLQueryDelegator {
+
+        private final ObjectMapper objectMapper = new ObjectMapper();
+        private final Pagination pagination;
+        private final int available;
+        private final int failingPosition;
+        final List<String> pages = new ArrayList<>();
+
+        PagingDelegator(GraphQLEndpoint endpoint, Pagination pagination, int available, int failingPosition) {
+            super(endpoint);
+            this.pagination = pagination;
+            this.available = available;
+            this.failingPosition = failingPosition;
+            setPagination("items", pagination);
+        }
+
+        @Override
+        protected void send(InputStream i, OutputStream o) throws IOException {
+            String query = objectMapper.readTree(i).get("query").textValue();
+            OperationDefinition operation = new Parser().parseDocument(query).getDefinitionsOfType(OperationDefinition.class).get(0);
+            Field field = (Field) operation.getSelectionSet().getSelections().get(0);
+            boolean relay = pagination.getStyle() == Pagination.Style.RELAY;
+            int size = ((IntValue) argument(field, relay ? "first" : "limit")).getValue().intValue();
+            Object position = argument(field, relay ? "after" : "offset");
+            int start = position == null ? 0 : relay ? Integer.parseInt(((StringValue) position).getValue()) + 1 : ((IntValue) position).getValue().intValue();
+            pages.add(size + "@" + start);
+
+            ObjectNode response = JsonNodeFactory.instance.objectNode();
+            if (start == failingPosition) {
+                response.putNull("data");
+                response.putArray("errors").addObject().put("message", "Page " + start + " is not available");
+                objectMapper.writeValue(o, response);
+                return;
+            }
+            int end = Math.min(available, start + size);
+            ArrayNode items = JsonNodeFactory.instance.arrayNode();
+            for (int n = start; n < end; n++) {
+                ObjectNode item = JsonNodeFactory.instance.objectNode().put("name", String.valueOf(n));
+                items.add(relay ? JsonNodeFactory.instance.objectNode().put("cursor", String.valueOf(n)).set("node", item) : item);
+            }
+            ObjectNode data = response.putObject("data");
+            if (relay) {
+                ObjectNode connection = data.putObject("items");
+                connection.set("edges", items);
+                for (Selection<?> selection : field.getSelectionSet().getSelections()) {
+                    Field selected = (Field) selection;
+                    if (selected.getName().equals("pageInfo")) {
+                        connection.putObject(selected.getAlias() != null ? selected.getAlias() : selected.getName())
+                                .put("hasNextPage", end < available)
+                                .put("endCursor", String.valueOf(end - 1));
+                    }
+                }
+            } else {
+                data.set("items", items);
+            }
+            objectMapper.writeValue(o, response);
+        }
+
+        private static Object argument(Field field, String name) {
+            for (Argument argument : field.getArguments()) {
+                if (argument.getName().equals(name)) {
+                    return argument.getValue();
+                }
+            }
+            return null;
+        }
+
+        JsonNode request(String query) throws IOException {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            handle(new ByteArrayInputStream(objectMapper.writeValueAsBytes(Collections.singletonMap("query", query))), response);
+            return objectMapper.readTree(response.toByteArray());
+        }
+    }
+
+    private PagingDelegator delegator(Pagination pagination, int available, int failingPosition) throws Exception {
+        JsonFactory jsonFactory = new JsonFactory();
+        GraphQLEndpoint endpoint = TestFederation.endpoint(this, TestFederation.EP1, 1, new ObjectMapper(jsonFactory), jsonFactory);
+        return new PagingDelegator(endpoint, pagination, available, failingPosition);
+    }
+
+    private static List<String> names(JsonNode elements) {
+        List<String> result = new ArrayList<>();
+        for (JsonNode element : elements) {
+            result.add(element.has("node") ? element.get("node").get("name").textValue() : element.get("name").textValue());
+        }
+        return result;
+    }
+
+    @Test
+    public void testLimitOffsetPagesUntilTheLastPage() throws Exception {
+        PagingDelegator delegator = delegator(Pagination.limitOffset(2), 5, -1);
+        JsonNode response = delegator.request("{ items { name } }");
+
+        assertEquals(5, response.get("data").get("items").size());
+        assertEquals("[0, 1, 2, 3, 4]", names(response.get("data").get("items")).toString());
+        assertEquals("[2@0, 2@2, 2@4]", delegator.pages.toString());
+        assertFalse(response.has("errors"));
+    }
+
+    @Test
+    public void testLimitOffsetStopsAtTheRequestedLimit() throws Exception {
+        PagingDelegator delegator = delegator(Pagination.limitOffset(2), 100, -1);
+        JsonNode response = delegator.request("{ items(limit: 3, offset: 10) { name } }");
+
+        assertEquals("[10, 11, 12]", names(response.get("data").get("items")).toString());
+        assertEquals("[2@10, 1@12]", delegator.pages.toString());
+    }
+
+    @Test
+    public void testRelayPagesWithoutHandingOnTheAddedPageInfo() throws Exception {
+        PagingDelegator delegator = delegator(Pagination.relay(2), 3, -1);
+        JsonNode response = delegator.request("{ items { edges { cursor node { name } } } }");
+
+        JsonNode connection = response.get("data").get("items");
+        assertEquals("[0, 1, 2]", names(connection.get("edges")).toString());
+        assertEquals("[2@0, 2@2]", delegator.pages.toString());
+        assertEquals(Collections.singletonList("edges"), fieldNames(connection));
+    }
+
+    @Test
+    public void testRelayKeepsTheSelectedPageInfo() throws Exception {
+        PagingDelegator delegator = delegator(Pagination.relay(2), 10, -1);
+        JsonNode response = delegator.request("{ items(first: 3) { edges { node { name } } pageInfo { hasNextPage } } }");
+
+        JsonNode connection = response.get("data").get("items");
+        assertEquals("[0, 1, 2]", names(connection.get("edges")).toString());
+        assertEquals("[2@0, 1@2]", delegator.pages.toString());
+        assertEquals(2, connection.size());
+        assertTrue(connection.get("pageInfo").get("hasNextPage").asBoolean());
+    }
+
+    @Test
+    public void testErrorOnALaterPage() throws Exception {
+        PagingDelegator delegator = delegator(Pagination.limitOffset(2), 10, 4);
+        JsonNode response = delegator.request("{ items { name } }");
+
+        assertEquals("[0, 1, 2, 3]", names(response.get("data").get("items")).toString());
+        assertEquals("[2@0, 2@2, 2@4]", delegator.pages.toString());
+        assertEquals("Page 4 is not available", response.get("errors").get(0).get("message").textValue());
+    }
+
+    private static List<String> fieldNames(JsonNode node) {
+        List<String> result = new ArrayList<>();
+        node.fieldNames().forEachRemaining(result::add);
+        return result;
+    }
+}
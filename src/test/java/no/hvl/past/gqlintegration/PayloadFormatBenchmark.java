@@ -0,0 +1,74 @@
+package no.hvl.past.gqlintegration;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import no.hvl.past.gqlintegration.queries.ContentEncoding;
+import no.hvl.past.gqlintegration.queries.PayloadFormat;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Bytes on the wire and CPU time per response for the negotiated upstream payload formats and content encodings.
+ */
+public class PayloadFormatBenchmark {
+
+    private static final int ROWS = 50_000;
+
+    private static JsonNode response() {
+        ArrayNode customers = JsonNodeFactory.instance.arrayNode();
+        for (int i = 0; i < ROWS; i++) {
+            ObjectNode customer = customers.addObject();
+            customer.put("id", String.valueOf(i));
+            customer.put("name", "Customer " + i);
+            customer.put("email", "customer" + i + "@example.org");
+            customer.put("balance", i * 1.5);
+            customer.put("active", i % 3 == 0);
+            customer.putNull("deletedAt");
+        }
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.putObject("data").set("customers", customers);
+        return response;
+    }
+
+    private static byte[] encode(ObjectMapper writer, ContentEncoding encoding, JsonNode response) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream encoded = encoding.encode(bos);
+        writer.writeValue(encoded, response);
+        encoded.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void benchmarkBytesAndCpuPerResponse() throws Exception {
+        Timing.assumeEnabled();
+        ObjectMapper gateway = new ObjectMapper();
+        JsonNode response = response();
+        List<Timing.Result> encoding = new ArrayList<>();
+        List<Timing.Result> decoding = new ArrayList<>();
+        List<String> sizes = new ArrayList<>();
+        for (PayloadFormat format : PayloadFormat.values()) {
+            ObjectMapper endpoint = new ObjectMapper(format.getFactory());
+            for (ContentEncoding contentEncoding : new ContentEncoding[]{ContentEncoding.IDENTITY, ContentEncoding.GZIP}) {
+                String name = format + "+" + contentEncoding;
+                byte[] bytes = encode(endpoint, contentEncoding, response);
+                assertEquals(response, PayloadFormat.readTree(gateway, new ByteArrayInputStream(bytes)));
+                sizes.add(String.format("%-48s %12s on the wire", name, Timing.bytes(bytes.length)));
+                encoding.add(Timing.measure(name, 5, 10, () -> encode(endpoint, contentEncoding, response)));
+                decoding.add(Timing.measure(name, 5, 10, () -> PayloadFormat.readTree(gateway, new ByteArrayInputStream(bytes))));
+            }
+        }
+        System.out.println("Response of " + ROWS + " rows\n" + String.join("\n", sizes));
+        Timing.report("Encoding at the endpoint", encoding);
+        Timing.report("Decoding at the gateway", decoding);
+    }
+}
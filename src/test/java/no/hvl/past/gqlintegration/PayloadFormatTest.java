@@ -0,0 +1,81 @@
+package no.hvl.past.gqlintegration;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.hvl.past.gqlintegration.queries.ContentEncoding;
+import no.hvl.past.gqlintegration.queries.GraphQLQueryDelegator;
+import no.hvl.past.gqlintegration.queries.PayloadFormat;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadFormatTest extends GraphQLTest {
+
+    private static final String RESPONSE = "{\"data\" : {\"customers\" : [ {\"id\" : \"1\", \"name\" : \"Ban Geyton\"}, {\"id\" : \"2\", \"name\" : null} ]}}";
+
+    @Test
+    public void testReadAllFormats() throws IOException {
+        ObjectMapper om = new ObjectMapper();
+        JsonNode expected = om.readTree(RESPONSE);
+
+        for (PayloadFormat format : PayloadFormat.values()) {
+            byte[] encoded = new ObjectMapper(format.getFactory()).writeValueAsBytes(expected);
+            assertEquals(expected, PayloadFormat.readTree(om, new ByteArrayInputStream(encoded)));
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(bos);
+            gzip.write(encoded);
+            gzip.close();
+            assertEquals(expected, PayloadFormat.readTree(om, new ByteArrayInputStream(bos.toByteArray())));
+        }
+    }
+
+    @Test
+    public void testContentTypeFallback() {
+        assertEquals(PayloadFormat.SMILE, PayloadFormat.fromContentType("application/x-jackson-smile"));
+        assertEquals(PayloadFormat.JSON, PayloadFormat.fromContentType("application/json; charset=utf-8"));
+        assertEquals(PayloadFormat.JSON, PayloadFormat.fromContentType("text/html"));
+        assertEquals(PayloadFormat.JSON, PayloadFormat.fromContentType(null));
+    }
+
+    @Test
+    public void testNegotiateResponseEncoding() {
+        assertEquals(ContentEncoding.IDENTITY, ContentEncoding.negotiate(null));
+        assertEquals(ContentEncoding.IDENTITY, ContentEncoding.negotiate("br"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.negotiate("deflate, gzip;q=1.0, br"));
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.negotiate("gzip;q=0, deflate"));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.negotiate("*"));
+    }
+
+    @Test
+    public void testEncodeDecodeRoundTrip() throws IOException {
+        ObjectMapper om = new ObjectMapper();
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            OutputStream encoded = encoding.encode(bos);
+            encoded.write(RESPONSE.getBytes("UTF-8"));
+            encoded.close();
+            assertEquals(om.readTree(RESPONSE), om.readTree(encoding.decode(new ByteArrayInputStream(bos.toByteArray()))));
+        }
+    }
+
+    @Test
+    public void testBinaryCopyLeavesSharedDelegatorJsonOnly() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        GraphQLQueryDelegator shared = new GraphQLQueryDelegator(federation.endpoint1);
+        GraphQLQueryDelegator binary = shared.binaryCopy();
+
+        assertNotSame(shared, binary);
+        assertTrue(binary.isAcceptBinary());
+        assertFalse(shared.isAcceptBinary());
+    }
+}
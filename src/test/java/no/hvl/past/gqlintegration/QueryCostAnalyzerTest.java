@@ -0,0 +1,117 @@
+package no.hvl.past.gqlintegration;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import no.hvl.past.gqlintegration.queries.GraphQLQuery;
+import no.hvl.past.gqlintegration.queries.QueryCostAnalyzer;
+import no.hvl.past.gqlintegration.queries.QueryException;
+import no.hvl.past.graph.elements.Triple;
+import no.hvl.past.names.Name;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryCostAnalyzerTest extends GraphQLTest {
+
+    private GraphQLQuery nestedListQuery() {
+        GraphQLQuery.QueryRoot root = new GraphQLQuery.QueryRoot("r", false, Triple.edge(Name.identifier("Query.r"), Name.identifier("result").prefixWith(Name.identifier("Query.r")), Name.identifier("R")));
+        GraphQLQuery.Node a = new GraphQLQuery.Node("a", Name.identifier("A"));
+        GraphQLQuery.Node x = new GraphQLQuery.Node("x", Name.identifier("String"));
+        root.addChild(a, Triple.edge(Name.identifier("R"), Name.identifier("a").prefixWith(Name.identifier("R")), Name.identifier("A")), true, true);
+        a.addChild(x, Triple.edge(Name.identifier("A"), Name.identifier("x").prefixWith(Name.identifier("A")), Name.identifier("String")), false, false);
+        return new GraphQLQuery(Collections.singletonList(root), null, Name.anonymousIdentifier());
+    }
+
+    @Test
+    public void testEstimate() {
+        QueryCostAnalyzer analyzer = new QueryCostAnalyzer();
+        QueryCostAnalyzer.Estimate estimate = analyzer.estimate(nestedListQuery());
+        assertEquals(3, estimate.getDepth());
+        assertEquals(1, estimate.getBreadth());
+        // r + 10 * (a + 10 * x)
+        assertEquals(111, estimate.getCost());
+
+        analyzer.recordListSize("R", "a", 3);
+        analyzer.recordListSize("R", "a", 5);
+        analyzer.setFieldWeight("A", "x", 5);
+        // r + 10 * (a + 4 * 5x)
+        assertEquals(211, analyzer.estimate(nestedListQuery()).getCost());
+    }
+
+    @Test
+    public void testWeightsAndSizesArePerType() {
+        QueryCostAnalyzer analyzer = new QueryCostAnalyzer();
+        // same field names on other types must not change the estimate
+        analyzer.setFieldWeight("B", "x", 5);
+        analyzer.recordListSize("B", "a", 1);
+        assertEquals(111, analyzer.estimate(nestedListQuery()).getCost());
+
+        analyzer.recordListSize("Query", "r", 2);
+        // r + 2 * (a + 10 * x)
+        assertEquals(23, analyzer.estimate(nestedListQuery()).getCost());
+    }
+
+    @Test
+    public void testListSizesAreObservedInResponses() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.handler1.respond("items", "[{\"name\":\"a\"},{\"name\":\"b\"}]");
+        federation.handler2.respond("items", "[{\"name\":\"c\"}]");
+        QueryCostAnalyzer analyzer = federation.divider.getCostAnalyzer();
+        assertEquals(QueryCostAnalyzer.DEFAULT_LIST_SIZE, analyzer.expectedListSize("Query", "items"));
+
+        federation.request("{ items { name } }");
+        assertEquals(3, analyzer.expectedListSize("Query", "items"));
+        assertEquals(QueryCostAnalyzer.DEFAULT_LIST_SIZE, analyzer.expectedListSize("Query", "others"));
+
+        federation.handler2.respond("items", "[{\"name\":\"c\"},{\"name\":\"d\"},{\"name\":\"e\"}]");
+        federation.request("{ items { name } }");
+        // average of 3 and 5
+        assertEquals(4, analyzer.expectedListSize("Query", "items"));
+    }
+
+    @Test
+    public void testCostIsReportedInTheExtensions() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.handler1.respond("items", "[{\"name\":\"a\"}]");
+        federation.handler2.respond("items", "[{\"name\":\"b\"}]");
+        String query = "{ items { name } }";
+        assertFalse(federation.objectMapper.readTree(federation.request(query)).has("extensions"));
+
+        federation.divider.setCostExtension(true);
+        // the first response has already updated the expected list size
+        QueryCostAnalyzer.Estimate estimate = federation.divider.getCostAnalyzer().estimate(federation.parse(query));
+        JsonNode response = federation.objectMapper.readTree(federation.request(query));
+        assertTrue(response.has("data"));
+        JsonNode extensions = response.get("extensions");
+        assertEquals(estimate.getCost(), extensions.get("cost").asLong());
+        assertEquals(estimate.getDepth(), extensions.get("depth").asInt());
+        assertEquals(estimate.getBreadth(), extensions.get("breadth").asInt());
+    }
+
+    @Test
+    public void testLimits() throws QueryException {
+        QueryCostAnalyzer analyzer = new QueryCostAnalyzer();
+        analyzer.setMaxDepth(3);
+        analyzer.setMaxCost(111);
+        assertEquals(111, analyzer.check(nestedListQuery()).getCost());
+
+        analyzer.setMaxCost(100);
+        try {
+            analyzer.check(nestedListQuery());
+            fail("Query should have been rejected");
+        } catch (QueryException expected) {
+        }
+
+        analyzer.setMaxCost(Long.MAX_VALUE);
+        analyzer.setMaxDepth(2);
+        try {
+            analyzer.check(nestedListQuery());
+            fail("Query should have been rejected");
+        } catch (QueryException expected) {
+        }
+    }
+}
@@ -20,9 +20,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class QuerySplittingTest extends GraphQLTest{
@@ -386,5 +391,98 @@ public class QuerySplittingTest extends GraphQLTest{
 
     }
 
+    @Test
+    public void testArgumentsEndpointsCannotEvaluateAreRejected() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.divider.getArgumentPushdown().setSupportedArguments(TestFederation.EP2, Collections.emptyList());
+        federation.handler1.respond("items", "[{\"name\":\"a\"}]");
+        federation.handler2.respond("items", "[{\"name\":\"a\"},{\"name\":\"b\"}]");
+
+        String response = federation.request("{ items(name: \"a\") { name } }");
+
+        assertTrue(response, response.startsWith("{\"errors\":[{\"message\":\"Argument 'name' of 'items' cannot be evaluated by 'http://2'!\""));
+        assertTrue(federation.handler1.received.isEmpty());
+        assertTrue(federation.handler2.received.isEmpty());
+    }
+
+    @Test
+    public void testEqualityFiltersAreEvaluatedAtTheGateway() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.divider.getArgumentPushdown().setSupportedArguments(TestFederation.EP2, Collections.emptyList());
+        federation.divider.getArgumentPushdown().setEqualityFilters(Collections.singleton("name"));
+        federation.handler1.respond("items", "[{\"name\":\"a\"}]");
+        federation.handler2.respond("items", "[{\"name\":\"a\"},{\"name\":\"b\"}]");
+
+        assertEquals("{\"data\":{\"items\":[{\"name\":\"a\"},{\"name\":\"a\"}]}}", federation.request("{ items(name: \"a\") { name } }"));
+        assertTrue(federation.handler1.received.get(0).contains("\"a\""));
+        assertFalse(federation.handler2.received.get(0).contains("\"a\""));
+    }
+
+    @Test
+    public void testEqualityFiltersOnFieldsThatAreNotSelectedAreRejected() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.divider.getArgumentPushdown().setSupportedArguments(TestFederation.EP2, Collections.emptyList());
+        federation.divider.getArgumentPushdown().setEqualityFilters(Collections.singleton("name"));
+        federation.handler2.respond("items", "[{\"code\":\"1\"}]");
+
+        String response = federation.request("{ items(name: \"a\") { code } }");
 
+        assertTrue(response, response.contains("can only be evaluated by the gateway if the field 'name' is selected"));
+        assertTrue(federation.handler2.received.isEmpty());
+    }
+
+    @Test(timeout = 30000)
+    public void testLocalQueriesAreSentConcurrently() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            federation.divider.setRequestExecutor(executor);
+            CountDownLatch allReceived = new CountDownLatch(2);
+            federation.handler1.allReceived = allReceived;
+            federation.handler2.allReceived = allReceived;
+            federation.handler1.respond("items", "[{\"name\":\"a\"}]");
+            federation.handler2.respond("items", "[{\"name\":\"b\"}]");
+
+            // each endpoint only answers once the other one has been asked as well
+            assertEquals("{\"data\":{\"items\":[{\"name\":\"a\"},{\"name\":\"b\"}]}}", federation.request("{ items { name } }"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEndpointsThatNeverContributeAreSkipped() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.divider.getPlanner().setSkipThreshold(0);
+        federation.divider.getPlanner().setMinSamples(2);
+        federation.handler1.respond("items", "[{\"name\":\"a\"}]");
+        federation.handler2.respond("items", "[]");
+        for (int i = 0; i < 3; i++) {
+            assertEquals("{\"data\":{\"items\":[{\"name\":\"a\"}]}}", federation.request("{ items { name } }"));
+        }
+        assertEquals(3, federation.handler1.received.size());
+        assertEquals(2, federation.handler2.received.size());
+    }
+
+    @Test
+    public void testParallelMergeHasTheSameResultAsSequentialMerge() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.handler1.respond("items", "[{\"name\":\"a\",\"code\":\"1\"}]");
+        federation.handler2.respond("items", "[{\"name\":\"b\",\"code\":\"2\"}]");
+        federation.handler1.respond("others", "[{\"name\":\"c\",\"code\":\"3\"}]");
+        federation.handler2.respond("others", "[]");
+        String query = "{ others { code } items { name code } }";
+        String sequential = federation.request(query);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            federation.divider.setMergePool(pool);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(sequential, federation.request(query));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertTrue(sequential, sequential.startsWith("{\"data\":{\"others\":[{\"code\":\"3\"}],\"items\":"));
+    }
 }
@@ -2,13 +2,20 @@ package no.hvl.past.gqlintegration;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import no.hvl.past.gqlintegration.queries.ContentEncoding;
 import no.hvl.past.gqlintegration.queries.GraphQLQuery;
+import no.hvl.past.gqlintegration.queries.GraphQLQueryDivider;
+import no.hvl.past.gqlintegration.queries.JoinStrategy;
+import no.hvl.past.gqlintegration.queries.PayloadFormat;
 import no.hvl.past.gqlintegration.queries.QueryCursor;
 import no.hvl.past.graph.Sketch;
 import no.hvl.past.graph.Universe;
@@ -21,13 +28,22 @@ import no.hvl.past.names.Name;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
 
 public class QueryTest  extends GraphQLTest {
 
@@ -208,6 +224,11 @@ public class QueryTest  extends GraphQLTest {
 
     private static GraphQLQuery.AbstractSelection sel(String f, boolean listValued, boolean complex) {
         return new GraphQLQuery.AbstractSelection() {
+            @Override
+            public Triple edge() {
+                return null;
+            }
+
             @Override
             public String field() {
                 return f;
@@ -439,6 +460,213 @@ public class QueryTest  extends GraphQLTest {
         assertEquals(expected, prettifyjson(objectMapper, bos.toString("UTF-8")));
     }
 
+    @Test
+    public void testConcatCursorFilterAndLimit() throws IOException {
+        JsonFactory factory = new JsonFactory();
+        ObjectMapper objectMapper = new ObjectMapper(factory);
+
+        JsonNode asRoot = objectMapper.readTree("{\"as\": [{\"x\": \"1\"}, {\"x\": \"2\"}, {\"x\": \"3\"}]}");
+        JsonNode bsRoot = objectMapper.readTree("{\"bs\": [{\"z\": \"i\"}, {\"z\": \"ii\"}, {\"z\": \"iii\"}]}");
+
+        String expected = objectMapper.readTree("{\"abs\": [" +
+                "{\"x\": \"1\", \"z\": null}, " +
+                "{\"x\": \"2\", \"z\": null}, " +
+                "{\"x\": null, \"z\": \"ii\"}]}").toPrettyString();
+
+        QueryCursor.LocalCursor aCursorRoot = new QueryCursor.LocalCursor(sel("as", true, true));
+        QueryCursor.LocalCursor axCursor = new QueryCursor.LocalCursor(sel("x", false, false), aCursorRoot);
+        QueryCursor.LocalCursor bCursorRoot = new QueryCursor.LocalCursor(sel("bs", true, true));
+        QueryCursor.LocalCursor bzCursor = new QueryCursor.LocalCursor(sel("z", false, false), bCursorRoot);
+
+        String leftKey = "http://a";
+        String rightKey = "http://b";
+        QueryCursor.ConcatCursor abCursorRoot = new QueryCursor.ConcatCursor(sel("abs", true, true), twoEntryMap(leftKey,aCursorRoot, rightKey, bCursorRoot));
+        new QueryCursor.ConcatCursor(sel("x", false, false), abCursorRoot, oneEntryMap(leftKey,axCursor));
+        new QueryCursor.ConcatCursor(sel("z", false, false), abCursorRoot, oneEntryMap(rightKey,bzCursor));
+
+        // a did not apply the limit itself, b did not apply the filter
+        aCursorRoot.setLimit(2);
+        bCursorRoot.addFilter("z", "ii");
+        abCursorRoot.setLimit(3);
+
+        abCursorRoot.addResults(twoEntryMap(leftKey, asRoot, rightKey, bsRoot));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JsonGenerator generator = factory.createGenerator(bos);
+        generator.writeStartObject();
+        abCursorRoot.processOne(generator);
+        generator.writeEndObject();
+        generator.close();
+
+        assertEquals(expected, prettifyjson(objectMapper, bos.toString("UTF-8")));
+    }
+
+    @Test
+    public void testLocalCursorOnlyParsesListsUpToTheLimit() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper(new JsonFactory());
+        QueryCursor.LocalCursor aCursorRoot = new QueryCursor.LocalCursor(sel("as", true, true));
+        new QueryCursor.LocalCursor(sel("x", false, false), aCursorRoot);
+        QueryCursor.LocalCursor ysCursor = new QueryCursor.LocalCursor(sel("ys", true, true), aCursorRoot);
+        new QueryCursor.LocalCursor(sel("y", false, false), ysCursor);
+        aCursorRoot.setLimit(2);
+        aCursorRoot.addFilter("x", "1");
+        ysCursor.setLimit(1);
+
+        JsonParser parser = objectMapper.getFactory().createParser("[" +
+                "{\"x\": \"1\", \"ys\": [{\"y\": 1}, {\"y\": 2}]}, " +
+                "{\"x\": \"2\", \"ys\": []}, " +
+                "{\"x\": \"1\", \"ys\": [{\"y\": 3}]}, " +
+                "{\"x\": \"1\", \"ys\": [{\"y\": 4}]}" +
+                "] \"rest\"");
+        parser.nextToken();
+        JsonNode value = aCursorRoot.readValue(parser, objectMapper);
+
+        // filtered out objects do not count towards the limit
+        assertEquals(objectMapper.readTree("[" +
+                "{\"x\": \"1\", \"ys\": [{\"y\": 1}]}, " +
+                "{\"x\": \"2\", \"ys\": []}, " +
+                "{\"x\": \"1\", \"ys\": [{\"y\": 3}]}" +
+                "]"), value);
+        assertEquals(JsonToken.END_ARRAY, parser.currentToken());
+        assertEquals("rest", parser.nextTextValue());
+    }
+
+    @Test
+    public void testConcatCursorElementsAsLines() throws IOException {
+        JsonFactory factory = new JsonFactory();
+        ObjectMapper objectMapper = new ObjectMapper(factory);
+
+        QueryCursor.LocalCursor aCursorRoot = new QueryCursor.LocalCursor(sel("as", true, true));
+        QueryCursor.LocalCursor axCursor = new QueryCursor.LocalCursor(sel("x", false, false), aCursorRoot);
+        QueryCursor.LocalCursor bCursorRoot = new QueryCursor.LocalCursor(sel("bs", true, true));
+        QueryCursor.LocalCursor bxCursor = new QueryCursor.LocalCursor(sel("x", false, false), bCursorRoot);
+
+        String leftKey = "http://a";
+        String rightKey = "http://b";
+        QueryCursor.ConcatCursor abCursorRoot = new QueryCursor.ConcatCursor(sel("abs", true, true), twoEntryMap(leftKey, aCursorRoot, rightKey, bCursorRoot));
+        new QueryCursor.ConcatCursor(sel("x", false, false), abCursorRoot, twoEntryMap(leftKey, axCursor, rightKey, bxCursor));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JsonGenerator generator = factory.createGenerator(bos);
+        generator.setRootValueSeparator(null);
+        SerializedString lineEnd = new SerializedString("\n");
+
+        // elements arrive one at a time, as when a local response is read incrementally
+        abCursorRoot.addResults(oneEntryMap(leftKey, objectMapper.readTree("{\"as\": {\"x\": 1}}")));
+        assertEquals(1, abCursorRoot.processElements(generator, lineEnd));
+        abCursorRoot.addResults(oneEntryMap(leftKey, objectMapper.readTree("{\"as\": {\"x\": 2}}")));
+        assertEquals(1, abCursorRoot.processElements(generator, lineEnd));
+        abCursorRoot.addResults(oneEntryMap(rightKey, objectMapper.readTree("{\"bs\": [{\"x\": 3}, {\"x\": 4}]}")));
+        assertEquals(2, abCursorRoot.processElements(generator, lineEnd));
+        generator.close();
+
+        assertEquals("{\"x\":1}\n{\"x\":2}\n{\"x\":3}\n{\"x\":4}\n", bos.toString("UTF-8"));
+        assertFalse(abCursorRoot.hasNext());
+    }
+
+    @Test
+    public void testConcatCursorEventsInArrivalOrder() throws IOException {
+        JsonFactory factory = new JsonFactory();
+        ObjectMapper objectMapper = new ObjectMapper(factory);
+
+        QueryCursor.LocalCursor aCursorRoot = new QueryCursor.LocalCursor(sel("aChanged", false, true));
+        QueryCursor.LocalCursor axCursor = new QueryCursor.LocalCursor(sel("x", false, false), aCursorRoot);
+        QueryCursor.LocalCursor bCursorRoot = new QueryCursor.LocalCursor(sel("bChanged", false, true));
+        QueryCursor.LocalCursor bxCursor = new QueryCursor.LocalCursor(sel("x", false, false), bCursorRoot);
+
+        String leftKey = "http://a";
+        String rightKey = "http://b";
+        QueryCursor.ConcatCursor changedCursorRoot = new QueryCursor.ConcatCursor(sel("changed", false, true), twoEntryMap(leftKey, aCursorRoot, rightKey, bCursorRoot));
+        new QueryCursor.ConcatCursor(sel("x", false, false), changedCursorRoot, twoEntryMap(leftKey, axCursor, rightKey, bxCursor));
+
+        // events of both endpoints interleaved, every event is written on its own
+        String[] events = {"{\"bChanged\": {\"x\": 1}}", "{\"aChanged\": {\"x\": 2}}", "{\"bChanged\": {\"x\": 3}}"};
+        String[] keys = {rightKey, leftKey, rightKey};
+        for (int i = 0; i < events.length; i++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            JsonGenerator generator = factory.createGenerator(bos);
+            generator.writeStartObject();
+            changedCursorRoot.processEvent(keys[i], objectMapper.readTree(events[i]), generator);
+            generator.writeEndObject();
+            generator.close();
+            assertEquals("{\"changed\":{\"x\":" + (i + 1) + "}}", bos.toString("UTF-8"));
+            assertFalse(changedCursorRoot.hasNext());
+        }
+    }
+
+    @Test
+    public void testNestedListsConsumedInOrder() throws IOException {
+        JsonFactory factory = new JsonFactory();
+        ObjectMapper objectMapper = new ObjectMapper(factory);
+
+        JsonNode asRoot = objectMapper.readTree("{\"as\": [" +
+                "{\"bs\": [{\"xs\": [\"1\", \"2\"]}, {\"xs\": []}]}, " +
+                "{\"bs\": []}, " +
+                "{\"bs\": [{\"xs\": [\"3\"]}]}]}");
+        JsonNode csRoot = objectMapper.readTree("{\"cs\": [{\"bs\": [{\"xs\": [\"4\"]}, {\"xs\": [\"5\", \"6\"]}]}]}");
+
+        String expected = objectMapper.readTree("{\"acs\": [" +
+                "{\"bs\": [{\"xs\": [\"1\", \"2\"]}, {\"xs\": []}]}, " +
+                "{\"bs\": []}, " +
+                "{\"bs\": [{\"xs\": [\"3\"]}]}, " +
+                "{\"bs\": [{\"xs\": [\"4\"]}, {\"xs\": [\"5\", \"6\"]}]}]}").toPrettyString();
+
+        QueryCursor.LocalCursor aCursorRoot = new QueryCursor.LocalCursor(sel("as", true, true));
+        QueryCursor.LocalCursor abCursor = new QueryCursor.LocalCursor(sel("bs", true, true), aCursorRoot);
+        QueryCursor.LocalCursor abxCursor = new QueryCursor.LocalCursor(sel("xs", true, false), abCursor);
+        QueryCursor.LocalCursor cCursorRoot = new QueryCursor.LocalCursor(sel("cs", true, true));
+        QueryCursor.LocalCursor cbCursor = new QueryCursor.LocalCursor(sel("bs", true, true), cCursorRoot);
+        QueryCursor.LocalCursor cbxCursor = new QueryCursor.LocalCursor(sel("xs", true, false), cbCursor);
+
+        String leftKey = "http://a";
+        String rightKey = "http://c";
+        QueryCursor.ConcatCursor acCursorRoot = new QueryCursor.ConcatCursor(sel("acs", true, true), twoEntryMap(leftKey, aCursorRoot, rightKey, cCursorRoot));
+        QueryCursor.ConcatCursor acbCursor = new QueryCursor.ConcatCursor(sel("bs", true, true), acCursorRoot, twoEntryMap(leftKey, abCursor, rightKey, cbCursor));
+        new QueryCursor.ConcatCursor(sel("xs", true, false), acbCursor, twoEntryMap(leftKey, abxCursor, rightKey, cbxCursor));
+
+        acCursorRoot.addResults(twoEntryMap(leftKey, asRoot, rightKey, csRoot));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JsonGenerator generator = factory.createGenerator(bos);
+        generator.writeStartObject();
+        acCursorRoot.processOne(generator);
+        generator.writeEndObject();
+        generator.close();
+
+        assertEquals(expected, prettifyjson(objectMapper, bos.toString("UTF-8")));
+        // everything below the root has been consumed
+        assertFalse(abCursor.hasNext());
+        assertFalse(cbCursor.hasNext());
+        assertFalse(abxCursor.hasNext());
+        assertFalse(cbxCursor.hasNext());
+    }
+
+    @Test
+    public void testLocalCursorLeafValuesKeepTheirTokens() throws IOException {
+        JsonFactory factory = new JsonFactory();
+        // the mapper of the gateway
+        ObjectMapper objectMapper = PayloadFormat.createObjectMapper(factory);
+
+        JsonNode root = PayloadFormat.readTree(objectMapper, new ByteArrayInputStream(("{\"items\": [" +
+                "{\"id\": 123456789012345678901234, \"amount\": 12345678901234567890.123456789, \"payload\": {\"a\": [1, true, null, 1.50]}}]}").getBytes(StandardCharsets.UTF_8)));
+
+        QueryCursor.LocalCursor itemsCursor = new QueryCursor.LocalCursor(sel("items", true, true));
+        new QueryCursor.LocalCursor(sel("id", false, false), itemsCursor);
+        new QueryCursor.LocalCursor(sel("amount", false, false), itemsCursor);
+        new QueryCursor.LocalCursor(sel("payload", false, false), itemsCursor);
+        itemsCursor.addResult(root);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JsonGenerator generator = factory.createGenerator(bos);
+        generator.writeStartObject();
+        itemsCursor.processOne(generator);
+        generator.writeEndObject();
+        generator.close();
+
+        assertEquals("{\"items\":[{\"id\":123456789012345678901234,\"amount\":12345678901234567890.123456789,\"payload\":{\"a\":[1,true,null,1.50]}}]}",
+                bos.toString("UTF-8"));
+    }
+
     @Test
     public void testCustomerClientEmployee() throws IOException {
         JsonFactory factory = new JsonFactory();
@@ -687,7 +915,309 @@ public class QueryTest  extends GraphQLTest {
 
     }
 
+    private static final String MULTIPART_PART = "\r\n---\r\nContent-Type: application/json; charset=utf-8\r\n\r\n";
+    private static final String MULTIPART_END = "\r\n-----\r\n";
+
+    @Test
+    public void testIncrementalDeliveryWithDirectiveArguments() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.handler1.respond("items", "[{\"name\":\"a\"},{\"name\":\"b\"}]");
+        federation.handler2.respond("items", "[{\"name\":\"c\"}]");
+        federation.handler1.respond("others", "[{\"name\":\"x\"}]");
+        federation.handler2.respond("others", "[]");
+
+        String response = federation.request("{ items @stream(initialCount: 1, label: \"rest\") { name } others @defer(label: \"later\") { name } }");
+
+        assertEquals(MULTIPART_PART + "{\"data\":{\"items\":[{\"name\":\"a\"}]},\"hasNext\":true}" +
+                MULTIPART_PART + "{\"incremental\":[{\"items\":[{\"name\":\"b\"},{\"name\":\"c\"}],\"path\":[\"items\",1],\"label\":\"rest\"}],\"hasNext\":true}" +
+                MULTIPART_PART + "{\"incremental\":[{\"data\":{\"others\":[{\"name\":\"x\"}]},\"path\":[],\"label\":\"later\"}],\"hasNext\":false}" +
+                MULTIPART_END, response);
+    }
+
+    @Test
+    public void testIncrementalDeliveryWithoutSubsequentPayloads() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.handler1.respond("items", "[{\"name\":\"a\"}]");
+        federation.handler2.respond("items", "[]");
+
+        // all elements are already part of the initial payload
+        String response = federation.request("{ items @stream(initialCount: 5) { name } }");
+
+        assertEquals(MULTIPART_PART + "{\"data\":{\"items\":[{\"name\":\"a\"}]},\"hasNext\":false}" + MULTIPART_END, response);
+    }
+
+    @Test
+    public void testStreamedItemsAreSentInChunks() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.divider.setStreamChunkSize(1);
+        federation.handler1.respond("items", "[{\"name\":\"a\"},{\"name\":\"b\"}]");
+        federation.handler2.respond("items", "[{\"name\":\"c\"}]");
+
+        String response = federation.request("{ items @stream(initialCount: 1) { name } }");
+
+        assertEquals(MULTIPART_PART + "{\"data\":{\"items\":[{\"name\":\"a\"}]},\"hasNext\":true}" +
+                MULTIPART_PART + "{\"incremental\":[{\"items\":[{\"name\":\"b\"}],\"path\":[\"items\",1]}],\"hasNext\":true}" +
+                MULTIPART_PART + "{\"incremental\":[{\"items\":[{\"name\":\"c\"}],\"path\":[\"items\",2]}],\"hasNext\":false}" +
+                MULTIPART_END, response);
+    }
+
+    @Test
+    public void testDeferredRootsAreFetchedWithTheInitialPayload() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            federation.divider.setRequestExecutor(executor);
+            CountDownLatch allReceived = new CountDownLatch(4);
+            federation.handler1.allReceived = allReceived;
+            federation.handler2.allReceived = allReceived;
+            federation.handler1.respond("items", "[{\"name\":\"a\"}]");
+            federation.handler2.respond("items", "[]");
+            federation.handler1.respond("others", "[]");
+            federation.handler2.respond("others", "[{\"name\":\"x\"}]");
+
+            // the endpoints only answer once the queries of the initial and of the deferred root have all been sent
+            String response = federation.request("{ items { name } others @defer { name } }");
+
+            assertEquals(MULTIPART_PART + "{\"data\":{\"items\":[{\"name\":\"a\"}]},\"hasNext\":true}" +
+                    MULTIPART_PART + "{\"incremental\":[{\"data\":{\"others\":[{\"name\":\"x\"}]},\"path\":[]}],\"hasNext\":false}" +
+                    MULTIPART_END, response);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExportEndsWithTheLocalErrors() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.handler1.respond("items", "[{\"name\":\"a\"},{\"name\":\"b\"}]");
+        federation.handler2.respond("items", "null");
+        federation.handler2.errors = "[{\"message\":\"items are not available\"}]";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        federation.divider.handle(federation.requestBody("{ items { name } }"), out, ContentEncoding.IDENTITY, true);
+
+        assertEquals("{\"name\":\"a\"}\n{\"name\":\"b\"}\n{\"errors\":[{\"message\":\"items are not available\"}]}\n",
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testResponsesAreOnlySpilledAboveTheThreshold() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.handler1.respond("items", "[{\"name\":\"a\"}]");
+        federation.handler2.respond("items", "[{\"name\":\"b\"}]");
+        String expected = "{\"data\":{\"items\":[{\"name\":\"a\"},{\"name\":\"b\"}]}}";
+
+        // creating a file in this directory fails, so the responses stay in memory
+        federation.divider.setSpillThreshold(1 << 20, new File("does-not-exist"));
+        assertEquals(expected, federation.request("{ items { name } }"));
+
+        File directory = Files.createTempDirectory("spill").toFile();
+        try {
+            federation.divider.setSpillThreshold(10, directory);
+            assertEquals(expected, federation.request("{ items { name } }"));
+            assertEquals(0, directory.listFiles().length);
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testDisabledDirectivesAreAnsweredImmediately() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        federation.handler1.respond("items", "[{\"name\":\"a\"}]");
+        federation.handler2.respond("items", "[{\"name\":\"c\"}]");
+
+        assertFalse(federation.parse("{ items @defer(if: false) { name } }").isIncremental());
+        assertFalse(federation.parse("{ items @stream(if: false, initialCount: 1) { name } }").isIncremental());
+        assertEquals("{\"data\":{\"items\":[{\"name\":\"a\"},{\"name\":\"c\"}]}}", federation.request("{ items @defer(if: false) { name } }"));
+    }
+
+    @Test
+    public void testAtSignsAndBracesInStringsAreNoDirectives() throws Exception {
+        TestFederation federation = new TestFederation(this);
+
+        GraphQLQuery query = federation.parse("{ items(name: \"a@b.c\") { name } }");
+        assertFalse(query.isIncremental());
+        assertTrue(query.textualRepresentation(), query.textualRepresentation().contains("items (name : \"a@b.c\")"));
+
+        query = federation.parse("{ items(name: \"{x}\") @defer(label: \"a{b}\") { name } others { name } }");
+        assertEquals(2, query.getRoots().size());
+        assertEquals(GraphQLQuery.QueryRoot.Delivery.DEFER, query.getRoots().get(0).getDelivery());
+        assertEquals("a{b}", query.getRoots().get(0).getDeliveryLabel());
+        assertTrue(query.textualRepresentation(), query.textualRepresentation().contains("items (name : \"{x}\")"));
+        assertEquals(GraphQLQuery.QueryRoot.Delivery.IMMEDIATE, query.getRoots().get(1).getDelivery());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDirectiveArgumentsMustBeLiterals() throws Exception {
+        new TestFederation(this).parse("{ items @stream(initialCount: $count) { name } }");
+    }
+
+    @Test(expected = IOException.class)
+    public void testNegativeInitialCountIsRejected() throws Exception {
+        new TestFederation(this).parse("{ items @stream(initialCount: -1) { name } }");
+    }
+
+    @Test
+    public void testIntrospectionCache() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        String query = "{ __schema { queryType { name } } }";
+
+        String response = federation.request(query);
+        assertTrue(response, response.contains("\"Query\""));
+        assertEquals(1, federation.divider.getCachedIntrospectionResponses());
+        assertEquals(response, federation.request(query));
+        assertEquals(1, federation.divider.getCachedIntrospectionResponses());
+
+        federation.request("{ __schema { mutationType { name } } }");
+        assertEquals(2, federation.divider.getCachedIntrospectionResponses());
+
+        federation.divider.invalidateIntrospectionCache();
+        assertEquals(0, federation.divider.getCachedIntrospectionResponses());
+        assertEquals(response, federation.request(query));
+        assertEquals(1, federation.divider.getCachedIntrospectionResponses());
+    }
+
+    @Test
+    public void testIntrospectionCacheIsBounded() throws Exception {
+        TestFederation federation = new TestFederation(this);
+        for (int i = 0; i <= GraphQLQueryDivider.MAX_CACHED_INTROSPECTION_RESPONSES; i++) {
+            federation.request("{ q" + i + ": __schema { queryType { name } } }");
+        }
+        assertEquals(GraphQLQueryDivider.MAX_CACHED_INTROSPECTION_RESPONSES, federation.divider.getCachedIntrospectionResponses());
+    }
+
+    private static final String LEFT = "http://left";
+    private static final String RIGHT = "http://right";
+
+    private static QueryCursor.ConcatMergeCursor itemsCursor(JoinStrategy joinStrategy, boolean bloomPreJoin) {
+        return itemsCursor(joinStrategy, bloomPreJoin, "ID");
+    }
+
+    /**
+     * The items of two systems that are both keyed by an id of the given type, where only the ids are selected.
+     */
+    private static QueryCursor.ConcatMergeCursor itemsCursor(JoinStrategy joinStrategy, boolean bloomPreJoin, String idType) {
+        QueryCursor.LocalCursor leftRoot = new QueryCursor.LocalCursor(sel("items", true, true));
+        QueryCursor.LocalCursor leftId = new QueryCursor.LocalCursor(sel("id", false, false), leftRoot);
+        QueryCursor.LocalCursor rightRoot = new QueryCursor.LocalCursor(sel("items", true, true));
+        QueryCursor.LocalCursor rightId = new QueryCursor.LocalCursor(sel("id", false, false), rightRoot);
+
+        Multimap<String, Key> keyMap = ArrayListMultimap.create();
+        keyMap.put(LEFT, new AttributeBasedKey(null, Triple.edge(Name.identifier("Item"), Name.identifier("id"), Name.identifier(idType)), Name.identifier("Item")));
+        keyMap.put(RIGHT, new AttributeBasedKey(null, Triple.edge(Name.identifier("Item"), Name.identifier("id"), Name.identifier(idType)), Name.identifier("Item")));
+
+        QueryCursor.ConcatMergeCursor itemsRoot = new QueryCursor.ConcatMergeCursor(sel("items", true, true), twoEntryMap(LEFT, leftRoot, RIGHT, rightRoot), keyMap);
+        itemsRoot.setJoinStrategy(joinStrategy);
+        itemsRoot.setBloomPreJoin(bloomPreJoin);
+        new QueryCursor.ConcatCursor(sel("id", true, false), itemsRoot, twoEntryMap(LEFT, leftId, RIGHT, rightId));
+        return itemsRoot;
+    }
+
+    private static String mergeItems(String left, String right, JoinStrategy joinStrategy, boolean bloomPreJoin) throws IOException {
+        return mergeItems(left, right, joinStrategy, bloomPreJoin, "ID");
+    }
+
+    /**
+     * Merges the given lists of items with ids of the given type and returns the written result.
+     */
+    private static String mergeItems(String left, String right, JoinStrategy joinStrategy, boolean bloomPreJoin, String idType) throws IOException {
+        JsonFactory factory = new JsonFactory();
+        ObjectMapper objectMapper = new ObjectMapper(factory);
+        QueryCursor.ConcatMergeCursor itemsRoot = itemsCursor(joinStrategy, bloomPreJoin, idType);
+
+        itemsRoot.addResults(twoEntryMap(LEFT, objectMapper.readTree("{\"items\" : " + left + "}"), RIGHT, objectMapper.readTree("{\"items\" : " + right + "}")));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JsonGenerator generator = factory.createGenerator(bos);
+        generator.writeStartObject();
+        itemsRoot.processOne(generator);
+        generator.writeEndObject();
+        generator.close();
+        return prettifyjson(objectMapper, bos.toString("UTF-8"));
+    }
+
+    private static String items(String... ids) throws JsonProcessingException {
+        StringBuilder result = new StringBuilder("{\"items\" : [");
+        for (int i = 0; i < ids.length; i++) {
+            result.append(i == 0 ? "" : ", ").append("{\"id\" : [").append(ids[i]).append("]}");
+        }
+        return prettifyjson(new ObjectMapper(), result.append("]}").toString());
+    }
+
+    @Test
+    public void testBloomPreJoinMergesDuplicatesOfTheLargestInput() throws IOException {
+        String left = "[ {\"id\" : \"1\"}, {\"id\" : \"2\"}, {\"id\" : \"1\"}, {\"id\" : \"3\"}, {\"id\" : \"4\"} ]";
+        String right = "[ {\"id\" : \"3\"} ]";
+
+        String hash = mergeItems(left, right, JoinStrategy.HASH, false);
+        assertEquals(items("\"1\", \"1\"", "\"2\"", "\"3\", \"3\"", "\"4\""), hash);
+        assertEquals(hash, mergeItems(left, right, JoinStrategy.HASH, true));
+        // the largest input is the second one now
+        assertEquals(mergeItems(right, left, JoinStrategy.HASH, false), mergeItems(right, left, JoinStrategy.HASH, true));
+    }
+
+    @Test
+    public void testSortMergeOfOrderedResults() throws IOException {
+        // Int keys are compared numerically, 2 comes before 10
+        assertEquals(items("\"1\"", "\"2\", \"2\"", "\"3\"", "\"10\", \"10\""),
+                mergeItems("[ {\"id\" : \"1\"}, {\"id\" : \"2\"}, {\"id\" : \"10\"} ]", "[ {\"id\" : \"2\"}, {\"id\" : \"3\"}, {\"id\" : \"10\"} ]", JoinStrategy.SORT_MERGE, false, "Int"));
+        // other keys lexicographically
+        assertEquals(items("\"a\"", "\"ab\"", "\"b\", \"b\"", "\"c\""),
+                mergeItems("[ {\"id\" : \"a\"}, {\"id\" : \"b\"} ]", "[ {\"id\" : \"ab\"}, {\"id\" : \"b\"}, {\"id\" : \"c\"} ]", JoinStrategy.SORT_MERGE, false));
+    }
+
+    @Test
+    public void testSortMergeOrderDependsOnTheKeyType() throws IOException {
+        String numericallyOrdered = "[ {\"id\" : \"9\"}, {\"id\" : \"10\"} ]";
+        String lexicographicallyOrdered = "[ {\"id\" : \"10\"}, {\"id\" : \"9\"} ]";
+        String right = "[ {\"id\" : \"5\"} ]";
+
+        assertEquals(items("\"5\"", "\"9\"", "\"10\""), mergeItems(numericallyOrdered, right, JoinStrategy.SORT_MERGE, false, "Float"));
+        assertEquals(items("\"10\"", "\"5\"", "\"9\""), mergeItems(lexicographicallyOrdered, right, JoinStrategy.SORT_MERGE, false));
+        // numbers are not ordered as IDs, which falls back to hashing
+        assertEquals(items("\"9\"", "\"10\"", "\"5\""), mergeItems(numericallyOrdered, right, JoinStrategy.SORT_MERGE, false));
+    }
 
+    @Test
+    public void testSortMergeFallsBackForUnorderedResults() throws IOException {
+        String left = "[ {\"id\" : \"2\"}, {\"id\" : \"1\"} ]";
+        String right = "[ {\"id\" : \"1\"} ]";
+        String hash = mergeItems(left, right, JoinStrategy.HASH, false);
+        assertEquals(items("\"2\"", "\"1\", \"1\""), hash);
+        assertEquals(hash, mergeItems(left, right, JoinStrategy.SORT_MERGE, false));
+    }
 
+    @Test
+    public void testSortMergeWhileReading() throws IOException {
+        JsonFactory factory = new JsonFactory();
+        ObjectMapper objectMapper = new ObjectMapper(factory);
+        QueryCursor.ConcatMergeCursor itemsRoot = itemsCursor(JoinStrategy.SORT_MERGE, false);
+        assertTrue(itemsRoot.isSortMerged());
+
+        Map<String, JsonParser> parsers = twoEntryMap(
+                LEFT, factory.createParser("[ {\"id\" : \"1\"}, {\"id\" : \"3\"} ]"),
+                RIGHT, factory.createParser("[ {\"id\" : \"2\"}, {\"id\" : \"3\"} ]"));
+        for (JsonParser parser : parsers.values()) {
+            parser.nextToken();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JsonGenerator generator = factory.createGenerator(bos);
+        generator.setRootValueSeparator(null);
+        assertEquals(3, itemsRoot.processSorted(parsers, objectMapper, new SerializedString("\n"), generator));
+        generator.close();
+        assertEquals("{\"id\":[\"1\"]}\n{\"id\":[\"2\"]}\n{\"id\":[\"3\",\"3\"]}\n", bos.toString("UTF-8"));
+    }
 
+    @Test(expected = IOException.class)
+    public void testSortMergeWhileReadingRejectsUnorderedResults() throws IOException {
+        JsonFactory factory = new JsonFactory();
+        QueryCursor.ConcatMergeCursor itemsRoot = itemsCursor(JoinStrategy.SORT_MERGE, false);
+        Map<String, JsonParser> parsers = twoEntryMap(
+                LEFT, factory.createParser("[ {\"id\" : \"2\"}, {\"id\" : \"1\"} ]"),
+                RIGHT, factory.createParser("[ ]"));
+        for (JsonParser parser : parsers.values()) {
+            parser.nextToken();
+        }
+        itemsRoot.processSorted(parsers, new ObjectMapper(factory), new SerializedString("\n"), factory.createGenerator(new ByteArrayOutputStream()));
+    }
 }
@@ -0,0 +1,76 @@
+package no.hvl.past.gqlintegration;
+
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import no.hvl.past.gqlintegration.schema.GraphQLSchemaReader;
+import no.hvl.past.gqlintegration.schema.GraphQLSchemaWriter;
+import no.hvl.past.gqlintegration.schema.StubWiring;
+import no.hvl.past.graph.Sketch;
+import no.hvl.past.graph.UniverseImpl;
+import no.hvl.past.names.Name;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Startup cost of the executable gateway schema: printing the sketch to SDL and parsing it again
+ * (the former path of GraphQLQueryDivider.create) versus building it directly from the sketch.
+ */
+public class SchemaBuildBenchmark extends GraphQLTest {
+
+    private static final int FIELDS_PER_TYPE = 10;
+
+    private Sketch sketch(int types) throws Exception {
+        StringBuilder sdl = new StringBuilder("type Query {\n");
+        for (int t = 0; t < types; t++) {
+            sdl.append("\tt").append(t).append("(id: ID): [T").append(t).append("]\n");
+        }
+        sdl.append("}\n");
+        for (int t = 0; t < types; t++) {
+            sdl.append("type T").append(t).append(" {\n");
+            for (int f = 0; f < FIELDS_PER_TYPE; f++) {
+                sdl.append("\tf").append(f).append(f % 2 == 0 ? ": String!\n" : ": [Int]\n");
+            }
+            sdl.append("\tnext: T").append((t + 1) % types).append("\n");
+            sdl.append("}\n");
+        }
+        return new GraphQLSchemaReader(new UniverseImpl(UniverseImpl.EMPTY)).convert(Name.identifier("wide" + types), parseSchemaAsText(sdl.toString()));
+    }
+
+    private static GraphQLSchema viaSDL(Sketch sketch) throws Exception {
+        GraphQLSchemaWriter writer = new GraphQLSchemaWriter();
+        sketch.accept(writer);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(bos, "UTF-8"));
+        writer.printToBuffer(bufferedWriter);
+        TypeDefinitionRegistry registry = new SchemaParser().parse(bos.toString("UTF-8"));
+        return new SchemaGenerator().makeExecutableSchema(registry, StubWiring.createWiring(registry));
+    }
+
+    private static GraphQLSchema direct(Sketch sketch) {
+        GraphQLSchemaWriter writer = new GraphQLSchemaWriter();
+        sketch.accept(writer);
+        return writer.buildSchema();
+    }
+
+    @Test
+    public void benchmarkSDLRoundTripVersusDirectBuild() throws Exception {
+        Timing.assumeEnabled();
+        List<Timing.Result> results = new ArrayList<>();
+        for (int types : new int[]{1_000, 2_000, 5_000}) {
+            Sketch sketch = sketch(types);
+            assertEquals(viaSDL(sketch).getAllTypesAsList().size(), direct(sketch).getAllTypesAsList().size());
+            results.add(Timing.measure(types + " types via SDL", 2, 5, () -> viaSDL(sketch)));
+            results.add(Timing.measure(types + " types directly", 2, 5, () -> direct(sketch)));
+        }
+        Timing.report("Executable schema from a sketch with " + FIELDS_PER_TYPE + " fields per type", results);
+    }
+}
@@ -0,0 +1,50 @@
+package no.hvl.past.gqlintegration;
+
+import graphql.schema.GraphQLSchema;
+import no.hvl.past.gqlintegration.schema.GraphQLSchemaReader;
+import no.hvl.past.graph.UniverseImpl;
+import no.hvl.past.names.Name;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scaling of GraphQLSchemaReader.convert from 1k to 100k fields, which has to stay (roughly) linear.
+ */
+public class SchemaReaderBenchmark extends GraphQLTest {
+
+    private static final int FIELDS_PER_TYPE = 20;
+
+    private GraphQLSchema schema(int fields) {
+        int types = fields / FIELDS_PER_TYPE;
+        StringBuilder content = new StringBuilder("type Query {\n");
+        for (int t = 0; t < types; t++) {
+            content.append("\tt").append(t).append(": [T").append(t).append("]\n");
+        }
+        content.append("}\n");
+        for (int t = 0; t < types; t++) {
+            content.append("type T").append(t).append(" {\n");
+            for (int f = 0; f < FIELDS_PER_TYPE; f++) {
+                content.append("\tf").append(f).append(f % 2 == 0 ? ": String!\n" : ": [Int]\n");
+            }
+            content.append("}\n");
+        }
+        return parseSchemaAsText(content.toString());
+    }
+
+    @Test
+    public void benchmarkConvertScalesLinearly() throws Exception {
+        Timing.assumeEnabled();
+        int[] sizes = {1_000, 10_000, 100_000};
+        List<Timing.Result> results = new ArrayList<>();
+        for (int fields : sizes) {
+            GraphQLSchema schema = schema(fields);
+            results.add(Timing.measure(fields + " fields", 3, 5,
+                    () -> new GraphQLSchemaReader(new UniverseImpl(UniverseImpl.EMPTY)).convert(Name.identifier("wide"), schema)));
+        }
+        Timing.report("GraphQLSchemaReader.convert", results);
+        // a quadratic convert would take 100 times longer per field for the largest schema
+        Timing.assertLinear(sizes, results, 4);
+    }
+}
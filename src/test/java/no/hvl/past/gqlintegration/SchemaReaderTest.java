@@ -1,6 +1,9 @@
 package no.hvl.past.gqlintegration;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Sets;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
 import graphql.Scalars;
 import graphql.schema.GraphQLFieldDefinition;
 import graphql.schema.GraphQLObjectType;
@@ -9,10 +12,13 @@ import graphql.schema.idl.RuntimeWiring;
 import graphql.schema.idl.SchemaGenerator;
 import graphql.schema.idl.SchemaParser;
 import graphql.schema.idl.TypeDefinitionRegistry;
+import no.hvl.past.gqlintegration.caller.IntrospectionQuery;
 import no.hvl.past.gqlintegration.predicates.FieldArgument;
 import no.hvl.past.gqlintegration.predicates.InputType;
 import no.hvl.past.gqlintegration.predicates.MutationMessage;
+import no.hvl.past.gqlintegration.schema.FieldNames;
 import no.hvl.past.gqlintegration.schema.GraphQLSchemaReader;
+import no.hvl.past.gqlintegration.schema.SchemaSnapshot;
 import no.hvl.past.graph.*;
 import no.hvl.past.graph.elements.Triple;
 import no.hvl.past.graph.predicates.Ordered;
@@ -28,10 +34,14 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import static junit.framework.TestCase.*;
 
@@ -306,6 +316,78 @@ public class SchemaReaderTest extends GraphQLTest {
     }
 
 
+    @Test
+    public void testFromRecordedIntrospectionResponse() throws Exception {
+        ExecutionResult introspection = GraphQL.newGraphQL(salesSchema).build().execute(graphql.introspection.IntrospectionQuery.INTROSPECTION_QUERY);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            new ObjectMapper().writeValue(gzip, introspection.toSpecification());
+        }
+
+        Map<String, Object> schemaDefinition = IntrospectionQuery.readIntrospectionResult(new ByteArrayInputStream(bos.toByteArray()));
+        GraphQLSchemaReader converter = new GraphQLSchemaReader(new UniverseImpl(UniverseImpl.EMPTY));
+        Sketch result = converter.convert(Name.identifier("sales"), IntrospectionQuery.createSchema(schemaDefinition));
+
+        assertsAboutSalesSchema(result);
+    }
+
+    @Test
+    public void testSchemaSnapshot() throws Exception {
+        File snapshot = File.createTempFile("schemas", ".snapshot");
+        snapshot.deleteOnExit();
+        SchemaSnapshot.Entry entry = SchemaSnapshot.Entry.of("http://localhost:4011", salesSchema, 42);
+        SchemaSnapshot.write(snapshot, Collections.singletonList(entry));
+
+        Map<String, SchemaSnapshot.Entry> restored = SchemaSnapshot.read(snapshot);
+        assertEquals(Collections.singleton("http://localhost:4011"), restored.keySet());
+        assertEquals(entry.getHash(), restored.get("http://localhost:4011").getHash());
+        assertEquals(42, restored.get("http://localhost:4011").getFetchedAt());
+        GraphQLSchemaReader converter = new GraphQLSchemaReader(new UniverseImpl(UniverseImpl.EMPTY));
+        Sketch result = converter.convert(Name.identifier("sales"), restored.get("http://localhost:4011").getSchema());
+
+        assertsAboutSalesSchema(result);
+    }
+
+    @Test
+    public void testSchemaSnapshotOfChangedEndpoint() throws Exception {
+        File sdl = File.createTempFile("endpoint", ".graphql");
+        sdl.deleteOnExit();
+        File snapshot = File.createTempFile("schemas", ".snapshot");
+        snapshot.delete();
+        snapshot.deleteOnExit();
+        String url = sdl.toURI().toString();
+        writeText(sdl, "type Query {\n\titems : [Item]\n}\n\ntype Item {\n\tname : String\n}");
+
+        GraphQLAdapter adapter = new GraphQLAdapter(getUniverseForTest(), null);
+        Sys first = adapter.parseSchemas(Collections.singletonMap(Name.identifier("A"), url), snapshot).get(Name.identifier("A"));
+        String firstHash = SchemaSnapshot.read(snapshot).get(url).getHash();
+
+        // the snapshot entry is still fresh: neither fetched nor converted again
+        assertSame(first, adapter.parseSchemas(Collections.singletonMap(Name.identifier("A"), url), snapshot).get(Name.identifier("A")));
+        assertEquals(firstHash, SchemaSnapshot.read(snapshot).get(url).getHash());
+
+        // the file changes after the entry was fetched: fetched again, converted again and the snapshot is rewritten
+        writeText(sdl, "type Query {\n\titems : [Item]\n\tothers : [Item]\n}\n\ntype Item {\n\tname : String\n}");
+        assertTrue(sdl.setLastModified(System.currentTimeMillis() + 60000));
+        Sys second = adapter.parseSchemas(Collections.singletonMap(Name.identifier("A"), url), snapshot).get(Name.identifier("A"));
+        assertNotSame(first, second);
+        assertFalse(((GraphQLEndpoint) first).getQueryMessage("others").isPresent());
+        assertTrue(((GraphQLEndpoint) second).getQueryMessage("others").isPresent());
+        String secondHash = SchemaSnapshot.read(snapshot).get(url).getHash();
+        assertFalse(firstHash.equals(secondHash));
+
+        // an expired entry is fetched again, but the unchanged schema is not converted again
+        adapter.setSnapshotMaxAge(-1);
+        assertSame(second, adapter.parseSchemas(Collections.singletonMap(Name.identifier("A"), url), snapshot).get(Name.identifier("A")));
+        assertEquals(secondHash, SchemaSnapshot.read(snapshot).get(url).getHash());
+    }
+
+    private static void writeText(File file, String content) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            writer.write(content);
+        }
+    }
+
     @Test
     public void testInputTypes() throws UnsupportedFeatureException, GraphError {
         String content = "type Query {\n" +
@@ -335,5 +417,45 @@ public class SchemaReaderTest extends GraphQLTest {
         assertTrue(result.diagramsOn(Triple.node(Name.identifier("CustomerData"))).anyMatch(d -> d.label() instanceof InputType));
     }
 
+    @Test
+    public void testWideSchema() throws UnsupportedFeatureException, GraphError {
+        int types = 100;
+        int fieldsPerType = 20;
+        StringBuilder content = new StringBuilder("type Query {\n");
+        for (int t = 0; t < types; t++) {
+            content.append("\tt").append(t).append(": [T").append(t).append("]\n");
+        }
+        content.append("}\n");
+        for (int t = 0; t < types; t++) {
+            content.append("type T").append(t).append(" {\n");
+            for (int f = 0; f < fieldsPerType; f++) {
+                content.append("\tf").append(f).append(f % 2 == 0 ? ": String!\n" : ": [Int]\n");
+            }
+            content.append("}\n");
+        }
 
+        GraphQLSchemaReader converter = new GraphQLSchemaReader(new UniverseImpl(UniverseImpl.EMPTY));
+        Sketch result = converter.convert(Name.identifier("wide"), parseSchemaAsText(content.toString()));
+
+        assertEquals(types * fieldsPerType + types, converter.getMultiplicities().size());
+        Name type = Name.identifier("T42");
+        Triple mandatoryField = Triple.edge(type, Name.identifier("f4").prefixWith(type), Name.identifier("String"));
+        Triple listField = Triple.edge(type, Name.identifier("f5").prefixWith(type), Name.identifier("Int"));
+        assertTrue(result.diagramsOn(mandatoryField).anyMatch(d -> d.label() instanceof TargetMultiplicity));
+        assertTrue(result.diagramsOn(listField).anyMatch(d -> d.label() instanceof Ordered));
+    }
+
+    @Test
+    public void testReadersShareDisplayNames() throws UnsupportedFeatureException, GraphError {
+        String schema = "type Query {\n\titems: [Item]\n}\ntype Item {\n\tname: String\n}";
+        GraphQLSchemaReader first = new GraphQLSchemaReader(new UniverseImpl(UniverseImpl.EMPTY));
+        first.convert(Name.identifier("first"), parseSchemaAsText(schema));
+        GraphQLSchemaReader second = new GraphQLSchemaReader(new UniverseImpl(UniverseImpl.EMPTY));
+        second.convert(Name.identifier("second"), parseSchemaAsText(schema));
+
+        Name name = Name.identifier("name").prefixWith(Name.identifier("Item"));
+        assertEquals("name", first.getNameToText().get(name));
+        assertSame(first.getNameToText().get(name), second.getNameToText().get(name));
+        assertSame(first.getNameToText().get(name), FieldNames.serialized("name").getValue());
+    }
 }
@@ -1,9 +1,15 @@
 package no.hvl.past.gqlintegration;
 
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.SchemaPrinter;
+import graphql.schema.idl.TypeDefinitionRegistry;
 import no.hvl.past.gqlintegration.predicates.FieldArgument;
 import no.hvl.past.gqlintegration.predicates.InputType;
 import no.hvl.past.gqlintegration.predicates.QueryMesage;
 import no.hvl.past.gqlintegration.schema.GraphQLSchemaWriter;
+import no.hvl.past.gqlintegration.schema.StubWiring;
 import no.hvl.past.graph.GraphBuilders;
 import no.hvl.past.graph.GraphError;
 import no.hvl.past.graph.Sketch;
@@ -122,7 +128,51 @@ public class SchemaWriterTest extends GraphQLTest {
 
     @Test
     public void testCustomScalarsAndEnums() throws GraphError, IOException {
-        Sketch result = contextCreatingBuilder()
+        Sketch result = customScalarsAndEnumsSketch();
+
+        String expected = "scalar Date\n" +
+                "\n" +
+                "enum PublicationType {\n" +
+                "   JOURNAL_ARTICLE\n" +
+                "   INPROCEEDINGS\n" +
+                "   TECH_REPORT\n" +
+                "}\n" +
+                "\n" +
+                "type Publication {\n" +
+                "   title : String\n" +
+                "   published : Date\n" +
+                "   type : PublicationType\n" +
+                "}\n" +
+                "\n" +
+                "type Query {\n" +
+                "   pubs : [Publication]\n" +
+                "}\n\n";
+
+        testExpectedSchema(result, expected);
+    }
+
+    @Test
+    public void testBuildSchemaDirectly() throws GraphError, IOException {
+        Sketch result = customScalarsAndEnumsSketch();
+
+        GraphQLSchemaWriter printingWriter = new GraphQLSchemaWriter();
+        result.accept(printingWriter);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(bos));
+        printingWriter.printToBuffer(bufferedWriter);
+        TypeDefinitionRegistry registry = new SchemaParser().parse(bos.toString("UTF-8"));
+        GraphQLSchema viaSDL = new SchemaGenerator().makeExecutableSchema(registry, StubWiring.createWiring(registry));
+
+        GraphQLSchemaWriter buildingWriter = new GraphQLSchemaWriter();
+        result.accept(buildingWriter);
+        GraphQLSchema direct = buildingWriter.buildSchema();
+
+        assertEquals(new SchemaPrinter().print(viaSDL), new SchemaPrinter().print(direct));
+        assertEquals(printingWriter.getNameToText(), buildingWriter.getNameToText());
+    }
+
+    private Sketch customScalarsAndEnumsSketch() throws GraphError {
+        return contextCreatingBuilder()
                 .node("Query")
                 .node("Publication")
                 .node("PublicationType")
@@ -155,26 +205,6 @@ public class SchemaWriterTest extends GraphQLTest {
                 .endDiagram(Name.anonymousIdentifier())
                 .sketch("Test")
                 .getResult(Sketch.class);
-
-        String expected = "scalar Date\n" +
-                "\n" +
-                "enum PublicationType {\n" +
-                "   JOURNAL_ARTICLE\n" +
-                "   INPROCEEDINGS\n" +
-                "   TECH_REPORT\n" +
-                "}\n" +
-                "\n" +
-                "type Publication {\n" +
-                "   title : String\n" +
-                "   published : Date\n" +
-                "   type : PublicationType\n" +
-                "}\n" +
-                "\n" +
-                "type Query {\n" +
-                "   pubs : [Publication]\n" +
-                "}\n\n";
-
-        testExpectedSchema(result, expected);
     }
 
     @Test
@@ -0,0 +1,202 @@
+package no.hvl.past.gqlintegration;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.hvl.past.gqlintegration.queries.GraphQLQuery;
+import no.hvl.past.gqlintegration.queries.GraphQLQueryDivider;
+import no.hvl.past.gqlintegration.queries.GraphQLQueryHandler;
+import no.hvl.past.gqlintegration.schema.GraphQLSchemaReader;
+import no.hvl.past.graph.*;
+import no.hvl.past.graph.elements.Triple;
+import no.hvl.past.graph.trees.QueryHandler;
+import no.hvl.past.names.Name;
+import no.hvl.past.systems.ComprSys;
+import no.hvl.past.systems.Sys;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A federation of two endpoints with the same schema (the roots items and others of type [Item], where items can be
+ * asked for by name, and items have a name and a code),
+ * whose handlers answer with canned responses and record the queries they receive.
+ */
+class TestFederation {
+
+    static final String EP1 = "http://1";
+    static final String EP2 = "http://2";
+
+    private static String schema(int i) {
+        return "type Query {\n" +
+                "\titems(name : String) : [Item" + i + "]\n" +
+                "\tothers : [Item" + i + "]\n" +
+                "}\n" +
+                "\n" +
+                "type Item" + i + " {\n" +
+                "\tname : String\n" +
+                "\tcode : String\n" +
+                "}";
+    }
+
+    /**
+     * Answers every root field with the canned response for it (null if there is none).
+     */
+    static class StubHandler extends GraphQLQueryHandler {
+
+        private final Map<String, String> responses = new ConcurrentHashMap<>();
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        /**
+         * When set, every request waits (up to 5 seconds) until all handlers sharing the latch have received theirs.
+         */
+        volatile CountDownLatch allReceived;
+        /**
+         * When set, the errors are added to every response, after the data.
+         */
+        volatile String errors;
+
+        StubHandler(GraphQLEndpoint endpoint) {
+            super(endpoint);
+        }
+
+        void respond(String field, String json) {
+            this.responses.put(field, json);
+        }
+
+        @Override
+        public void handle(InputStream i, OutputStream o) throws IOException {
+            GraphQLQuery query = (GraphQLQuery) deserialize(i);
+            received.add(query.textualRepresentation());
+            CountDownLatch latch = allReceived;
+            if (latch != null) {
+                latch.countDown();
+                try {
+                    if (!latch.await(5, TimeUnit.SECONDS)) {
+                        throw new IOException("The other endpoints have not received their queries");
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            JsonGenerator generator = new JsonFactory().createGenerator(o);
+            generator.writeStartObject();
+            generator.writeFieldName("data");
+            generator.writeStartObject();
+            for (GraphQLQuery.QueryRoot root : query.getRoots()) {
+                generator.writeFieldName(root.field());
+                generator.writeRawValue(responses.getOrDefault(root.field(), "null"));
+            }
+            generator.writeEndObject();
+            if (errors != null) {
+                generator.writeFieldName("errors");
+                generator.writeRawValue(errors);
+            }
+            generator.writeEndObject();
+            generator.close();
+            o.close();
+        }
+    }
+
+    final JsonFactory jsonFactory = new JsonFactory();
+    final ObjectMapper objectMapper = new ObjectMapper(jsonFactory);
+    final GraphQLEndpoint endpoint1;
+    final GraphQLEndpoint endpoint2;
+    final StubHandler handler1;
+    final StubHandler handler2;
+    final ComprSys comprSys;
+    final GraphQLQueryDivider divider;
+
+    TestFederation(GraphQLTest test) throws Exception {
+        endpoint1 = endpoint(test, EP1, 1, objectMapper, jsonFactory);
+        Sketch ep1Schema = endpoint1.schema();
+        endpoint2 = endpoint(test, EP2, 2, objectMapper, jsonFactory);
+        Sketch ep2Schema = endpoint2.schema();
+
+        GraphBuilders builders = new GraphBuilders(test.getUniverseForTest(), true, false);
+        Sketch result = builders
+                .edge(Name.identifier("Query.items"), Name.identifier("result").prefixWith(Name.identifier("Query.items")), Name.identifier("Item"))
+                .edge(Name.identifier("Query.others"), Name.identifier("result").prefixWith(Name.identifier("Query.others")), Name.identifier("Item"))
+                .edge(Name.identifier("Query.items"), Name.identifier("name").prefixWith(Name.identifier("Query.items")), Name.identifier("String"))
+                .edge(Name.identifier("Item"), Name.identifier("name").prefixWith(Name.identifier("Item")), Name.identifier("String"))
+                .edge(Name.identifier("Item"), Name.identifier("code").prefixWith(Name.identifier("Item")), Name.identifier("String"))
+                .graph(Name.identifier("Comm").absolute())
+                .sketch(Name.identifier("Comm"))
+                .getResult(Sketch.class);
+
+        GraphMorphism p1 = projection(builders, result, ep1Schema, 1);
+        GraphMorphism p2 = projection(builders, result, ep2Schema, 2);
+        Star federation = new StarImpl(
+                Name.identifier("federation"),
+                result,
+                Arrays.asList(ep1Schema, ep2Schema),
+                Arrays.asList(p1, p2));
+
+        handler1 = new StubHandler(endpoint1);
+        endpoint1.setQueryHandler(handler1);
+        handler2 = new StubHandler(endpoint2);
+        endpoint2.setQueryHandler(handler2);
+
+        ComprSys.Builder csBuilder = new ComprSys.Builder(federation.getName(), test.getUniverseForTest())
+                .addSystem(endpoint1)
+                .addSystem(endpoint2)
+                .star(federation);
+        result.carrier().elements().map(Triple::getLabel).forEach(csBuilder::identification);
+        comprSys = csBuilder.build();
+
+        LinkedHashMap<Sys, QueryHandler> localHandlers = new LinkedHashMap<>();
+        localHandlers.put(endpoint1, handler1);
+        localHandlers.put(endpoint2, handler2);
+        divider = (GraphQLQueryDivider) GraphQLQueryDivider.create(objectMapper, jsonFactory, comprSys, localHandlers);
+    }
+
+    /**
+     * An endpoint with the schema of the i-th member of the federation at the given url.
+     */
+    static GraphQLEndpoint endpoint(GraphQLTest test, String url, int i, ObjectMapper objectMapper, JsonFactory jsonFactory) throws Exception {
+        GraphQLSchemaReader converter = new GraphQLSchemaReader(test.getUniverseForTest());
+        Sketch schema = converter.convert(Name.identifier("EP" + i), test.parseSchemaAsText(schema(i)));
+        return new GraphQLEndpoint(url, schema, converter.getNameToText(), converter.getMultiplicities(), converter.getQueries(), converter.getMuations(), objectMapper, jsonFactory, converter.getQueryTypeName(), converter.getMutationTypeName());
+    }
+
+    private static GraphMorphism projection(GraphBuilders builders, Sketch result, Sketch local, int i) throws Exception {
+        return builders.domain(result.carrier())
+                .codomain(local.carrier())
+                .map(Name.identifier("Query.items"), Name.identifier("Query.items"))
+                .map(Name.identifier("result").prefixWith(Name.identifier("Query.items")), Name.identifier("result").prefixWith(Name.identifier("Query.items")))
+                .map(Name.identifier("Query.others"), Name.identifier("Query.others"))
+                .map(Name.identifier("result").prefixWith(Name.identifier("Query.others")), Name.identifier("result").prefixWith(Name.identifier("Query.others")))
+                .map(Name.identifier("Item"), Name.identifier("Item" + i))
+                .map(Name.identifier("name").prefixWith(Name.identifier("Query.items")), Name.identifier("name").prefixWith(Name.identifier("Query.items")))
+                .map(Name.identifier("name").prefixWith(Name.identifier("Item")), Name.identifier("name").prefixWith(Name.identifier("Item" + i)))
+                .map(Name.identifier("code").prefixWith(Name.identifier("Item")), Name.identifier("code").prefixWith(Name.identifier("Item" + i)))
+                .map(Name.identifier("String"), Name.identifier("String"))
+                .morphism("Projection" + i)
+                .getResult(GraphMorphism.class);
+    }
+
+    /**
+     * Sends the query to the gateway and returns the raw response.
+     */
+    String request(String query) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        divider.handle(requestBody(query), out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    InputStream requestBody(String query) throws IOException {
+        return new ByteArrayInputStream(objectMapper.writeValueAsBytes(Collections.singletonMap("query", query)));
+    }
+
+    GraphQLQuery parse(String query) throws IOException {
+        return (GraphQLQuery) divider.deserialize(requestBody(query));
+    }
+}
@@ -0,0 +1,184 @@
+package no.hvl.past.gqlintegration;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * A minimal timing harness for the benchmarks next to the tests (the *Benchmark classes).
+ * Every task is run a few times to warm up and then measured a number of times, the medians of wall time,
+ * CPU time, allocated bytes and peak heap usage of the runs are printed.
+ * Benchmarks take a while and are therefore only run with -Dbenchmarks=true, e.g.
+ * {@code ./gradlew test -Dbenchmarks=true --tests '*Benchmark'}.
+ */
+public final class Timing {
+
+    public static final String PROPERTY = "benchmarks";
+
+    private Timing() {
+    }
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * The medians of the measured runs of one task.
+     */
+    public static final class Result {
+        private final String name;
+        private final long wallNanos;
+        private final long cpuNanos;
+        private final long allocatedBytes;
+        private final long peakHeapBytes;
+
+        private Result(String name, long wallNanos, long cpuNanos, long allocatedBytes, long peakHeapBytes) {
+            this.name = name;
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double wallMillis() {
+            return wallNanos / 1e6;
+        }
+
+        public double cpuMillis() {
+            return cpuNanos / 1e6;
+        }
+
+        /**
+         * Bytes allocated by the measuring thread, -1 if the JVM cannot tell.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Sum of the peak usages of the heap pools during a run (after a GC before it), including garbage
+         * that has not been collected yet, i.e. an upper bound of the memory a task needs at once.
+         */
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-48s %10.2fms wall %10.2fms cpu %12s allocated %12s peak heap",
+                    name, wallMillis(), cpuMillis(), bytes(allocatedBytes), bytes(peakHeapBytes));
+        }
+    }
+
+    /**
+     * Skips the calling benchmark unless benchmarks are enabled.
+     */
+    public static void assumeEnabled() {
+        assumeTrue("Benchmarks only run with -D" + PROPERTY + "=true", Boolean.getBoolean(PROPERTY));
+    }
+
+    public static Result measure(String name, int warmups, int runs, Task task) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            task.run();
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] wall = new long[runs];
+        long[] cpu = new long[runs];
+        long[] allocated = new long[runs];
+        long[] peak = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            System.gc();
+            resetPeakHeap();
+            long allocatedBefore = allocatedBytes();
+            long cpuBefore = threads.getCurrentThreadCpuTime();
+            long wallBefore = System.nanoTime();
+            task.run();
+            wall[i] = System.nanoTime() - wallBefore;
+            cpu[i] = threads.getCurrentThreadCpuTime() - cpuBefore;
+            allocated[i] = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+            peak[i] = peakHeap();
+        }
+        return new Result(name, median(wall), median(cpu), median(allocated), median(peak));
+    }
+
+    public static void report(String title, List<Result> results) {
+        StringBuilder table = new StringBuilder(title);
+        for (Result result : results) {
+            table.append('\n').append(result);
+        }
+        System.out.println(table);
+    }
+
+    /**
+     * Checks that the time per element does not grow by more than the given factor from the smallest to the largest size.
+     */
+    public static void assertLinear(int[] sizes, List<Result> results, double factor) {
+        double smallest = results.get(0).wallNanos / (double) sizes[0];
+        double largest = results.get(results.size() - 1).wallNanos / (double) sizes[sizes.length - 1];
+        assertTrue(String.format(Locale.ROOT, "%.1fns per element for %d elements, but %.1fns for %d elements",
+                largest, sizes[sizes.length - 1], smallest, sizes[0]), largest <= factor * smallest);
+    }
+
+    public static String bytes(long bytes) {
+        if (bytes < 0) {
+            return "n/a";
+        }
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1fKiB", bytes / 1024.0);
+        }
+        return String.format(Locale.ROOT, "%.1fMiB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> result = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                result.add(pool);
+            }
+        }
+        return result;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeap() {
+        long result = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            result += pool.getPeakUsage().getUsed();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,110 @@
+package no.hvl.past.gqlintegration.queries;
+
+import no.hvl.past.names.Name;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyIndexTest {
+
+    /**
+     * The key value of every row, rows are confirmed by the matcher iff they (still) have the key value.
+     */
+    private final List<Name> rows = new ArrayList<>();
+
+    private KeyIndex create(int expected) {
+        return KeyIndex.create(expected, (row, keyValue) -> rows.get(row) != null && rows.get(row).equals(keyValue));
+    }
+
+    private void put(KeyIndex index, Name keyValue) {
+        rows.add(keyValue);
+        index.put(keyValue, rows.size() - 1);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        try (KeyIndex index = create(10)) {
+            put(index, Name.value("1"));
+            put(index, Name.value("2"));
+            assertEquals(0, index.get(Name.value("1")));
+            assertEquals(1, index.get(Name.value("2")));
+            assertEquals(-1, index.get(Name.value("3")));
+
+            // the key value moves to another row
+            rows.add(Name.value("1"));
+            index.put(Name.value("1"), 2);
+            assertEquals(2, index.get(Name.value("1")));
+        }
+    }
+
+    @Test
+    public void testEqualHashesAreResolvedByTheMatcher() {
+        try (KeyIndex index = create(10)) {
+            Name keyValue = Name.value("1");
+            put(index, keyValue);
+            // the row no longer has the key value, i.e. the slot holds another key value with the same hash
+            rows.set(0, Name.value("other"));
+            assertEquals(-1, index.get(keyValue));
+
+            // the colliding entry is kept, the new one is put into the next free slot
+            put(index, keyValue);
+            assertEquals(1, index.get(keyValue));
+            rows.set(0, keyValue);
+            assertEquals(0, index.get(keyValue));
+        }
+    }
+
+    @Test
+    public void testGrow() {
+        try (KeyIndex index = create(0)) {
+            int initial = index.capacity();
+            for (int i = 0; i < 10 * initial; i++) {
+                put(index, Name.value("key" + i));
+            }
+            assertTrue(index.capacity() > initial);
+            for (int i = 0; i < 10 * initial; i++) {
+                assertEquals(i, index.get(Name.value("key" + i)));
+            }
+            assertEquals(-1, index.get(Name.value("key" + 10 * initial)));
+        }
+    }
+
+    @Test
+    public void testTablesAreReused() {
+        create(10).close();
+        int pooled = KeyIndex.pooledTables();
+        assertTrue(pooled > 0);
+        try (KeyIndex index = create(10)) {
+            assertEquals(pooled - 1, KeyIndex.pooledTables());
+            // a reused table is empty
+            assertEquals(-1, index.get(Name.value("1")));
+        }
+        assertEquals(pooled, KeyIndex.pooledTables());
+    }
+
+    @Test
+    public void testKeyValuesBeyondTheMaximalTableAreStillIndexed() {
+        try (KeyIndex index = KeyIndex.create(0, 64, (row, keyValue) -> rows.get(row) != null && rows.get(row).equals(keyValue))) {
+            for (int i = 0; i < 100; i++) {
+                put(index, Name.value("key" + i));
+            }
+            assertEquals(64, index.capacity());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, index.get(Name.value("key" + i)));
+            }
+            assertEquals(-1, index.get(Name.value("key100")));
+
+            // key values in the table and in the overflow move to other rows
+            rows.add(Name.value("key0"));
+            index.put(Name.value("key0"), 100);
+            rows.add(Name.value("key99"));
+            index.put(Name.value("key99"), 101);
+            assertEquals(100, index.get(Name.value("key0")));
+            assertEquals(101, index.get(Name.value("key99")));
+        }
+    }
+}
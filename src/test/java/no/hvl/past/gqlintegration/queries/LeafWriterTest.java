@@ -0,0 +1,85 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.hvl.past.names.Name;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class LeafWriterTest {
+
+    private final JsonFactory factory = new JsonFactory();
+    private final ObjectMapper objectMapper = PayloadFormat.createObjectMapper(factory);
+
+    /**
+     * Parses the value like a local response and writes it back with the given writer.
+     */
+    private String write(LeafWriter writer, String value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (JsonGenerator generator = factory.createGenerator(bos)) {
+            writer.write(generator, objectMapper.readTree(value));
+        }
+        return bos.toString("UTF-8");
+    }
+
+    @Test
+    public void testWriterIsChosenByScalarType() {
+        assertEquals(LeafWriter.INT, LeafWriter.forType(Name.identifier("Int")));
+        assertEquals(LeafWriter.FLOAT, LeafWriter.forType(Name.identifier("Float")));
+        assertEquals(LeafWriter.BOOLEAN, LeafWriter.forType(Name.identifier("Boolean")));
+        assertEquals(LeafWriter.STRING, LeafWriter.forType(Name.identifier("String")));
+        assertEquals(LeafWriter.STRING, LeafWriter.forType(Name.identifier("ID")));
+        // enums and custom scalars
+        assertEquals(LeafWriter.GENERIC, LeafWriter.forType(Name.identifier("Status")));
+        assertEquals(LeafWriter.GENERIC, LeafWriter.forType(Name.identifier("DateTime")));
+    }
+
+    @Test
+    public void testInt() throws IOException {
+        assertEquals("42", write(LeafWriter.INT, "42"));
+        assertEquals("-2147483648", write(LeafWriter.INT, "-2147483648"));
+        // values that are not 32 bit integers are written as they are
+        assertEquals("12345678901", write(LeafWriter.INT, "12345678901"));
+        assertEquals("123456789012345678901234", write(LeafWriter.INT, "123456789012345678901234"));
+        assertEquals("\"42\"", write(LeafWriter.INT, "\"42\""));
+        assertEquals("null", write(LeafWriter.INT, "null"));
+    }
+
+    @Test
+    public void testFloatKeepsItsPrecision() throws IOException {
+        assertEquals("1.50", write(LeafWriter.FLOAT, "1.50"));
+        assertEquals("12345678901234567890.123456789", write(LeafWriter.FLOAT, "12345678901234567890.123456789"));
+        assertEquals("0.1", write(LeafWriter.FLOAT, "0.1"));
+        // integral values of Float fields stay integral
+        assertEquals("2", write(LeafWriter.FLOAT, "2"));
+        assertEquals("null", write(LeafWriter.FLOAT, "null"));
+    }
+
+    @Test
+    public void testBoolean() throws IOException {
+        assertEquals("true", write(LeafWriter.BOOLEAN, "true"));
+        assertEquals("false", write(LeafWriter.BOOLEAN, "false"));
+        assertEquals("\"yes\"", write(LeafWriter.BOOLEAN, "\"yes\""));
+    }
+
+    @Test
+    public void testString() throws IOException {
+        assertEquals("\"a \\\"b\\\"\"", write(LeafWriter.STRING, "\"a \\\"b\\\"\""));
+        // ids sent as numbers
+        assertEquals("7", write(LeafWriter.STRING, "7"));
+        assertEquals("null", write(LeafWriter.STRING, "null"));
+    }
+
+    @Test
+    public void testGenericCopiesStructures() throws IOException {
+        assertEquals("\"ACTIVE\"", write(LeafWriter.GENERIC, "\"ACTIVE\""));
+        assertEquals("{\"a\":[1,true,null,1.50,123456789012345678901234],\"b\":{}}",
+                write(LeafWriter.GENERIC, "{\"a\" : [1, true, null, 1.50, 123456789012345678901234], \"b\" : {}}"));
+        assertEquals("[]", write(LeafWriter.GENERIC, "[]"));
+    }
+}
@@ -0,0 +1,449 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import no.hvl.past.gqlintegration.Timing;
+import no.hvl.past.graph.elements.Triple;
+import no.hvl.past.keys.AttributeBasedKey;
+import no.hvl.past.keys.Key;
+import no.hvl.past.names.Name;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks of joining the results of two endpoints that both provide items identified by the key id.
+ */
+public class MergeBenchmark {
+
+    private static final String LEFT = "http://left";
+    private static final String RIGHT = "http://right";
+
+    private final JsonFactory factory = new JsonFactory();
+    private final ObjectMapper objectMapper = new ObjectMapper(factory);
+
+    /**
+     * Discards everything, the merge is measured and not the copying of its output.
+     */
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private static GraphQLQuery.AbstractSelection sel(String f, boolean listValued, boolean complex) {
+        return new GraphQLQuery.AbstractSelection() {
+            @Override
+            public Triple edge() {
+                return null;
+            }
+
+            @Override
+            public String field() {
+                return f;
+            }
+
+            @Override
+            public boolean isListValued() {
+                return listValued;
+            }
+
+            @Override
+            public boolean isComplex() {
+                return complex;
+            }
+        };
+    }
+
+    private static Key idKey() {
+        return new AttributeBasedKey(null, Triple.edge(Name.identifier("Item"), Name.identifier("id"), Name.identifier("ID")), Name.identifier("Item"));
+    }
+
+    /**
+     * The items of both endpoints, merged by id. The left endpoint is asked for all given attributes,
+     * the right one only for those that are not pushed down, i.e. all of them without projection pushdown.
+     */
+    private static QueryCursor.ConcatMergeCursor itemsCursor(List<String> attributes, boolean pushdown, JoinStrategy joinStrategy) {
+        QueryCursor.LocalCursor leftRoot = new QueryCursor.LocalCursor(sel("items", true, true));
+        QueryCursor.LocalCursor rightRoot = new QueryCursor.LocalCursor(sel("items", true, true));
+        Multimap<String, Key> keys = ArrayListMultimap.create();
+        keys.put(LEFT, idKey());
+        keys.put(RIGHT, idKey());
+        Map<String, QueryCursor.LocalCursor> roots = new LinkedHashMap<>();
+        roots.put(LEFT, leftRoot);
+        roots.put(RIGHT, rightRoot);
+        QueryCursor.ConcatMergeCursor itemsRoot = new QueryCursor.ConcatMergeCursor(sel("items", true, true), roots, keys);
+        itemsRoot.setJoinStrategy(joinStrategy);
+
+        List<String> fields = new ArrayList<>();
+        fields.add("id");
+        fields.addAll(attributes);
+        for (String field : fields) {
+            Map<String, QueryCursor.LocalCursor> locals = new LinkedHashMap<>();
+            locals.put(LEFT, new QueryCursor.LocalCursor(sel(field, false, false), leftRoot));
+            if (!pushdown || field.equals("id")) {
+                locals.put(RIGHT, new QueryCursor.LocalCursor(sel(field, false, false), rightRoot));
+            }
+            new QueryCursor.ConcatCursor(sel(field, true, false), itemsRoot, locals);
+        }
+        return itemsRoot;
+    }
+
+    private static List<String> attributes(int count) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            result.add("attribute" + i);
+        }
+        return result;
+    }
+
+    /**
+     * A local response with items of the given ids, each with the given attributes.
+     */
+    private byte[] response(int[] ids, List<String> attributes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (JsonGenerator generator = factory.createGenerator(bos)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("data");
+            generator.writeArrayFieldStart("items");
+            for (int id : ids) {
+                generator.writeStartObject();
+                generator.writeStringField("id", String.valueOf(id));
+                for (String attribute : attributes) {
+                    generator.writeStringField(attribute, attribute + " of item " + id);
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        return bos.toByteArray();
+    }
+
+    private static int[] ids(int from, int count) {
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = from + i;
+        }
+        return result;
+    }
+
+    /**
+     * Parses the local responses and merges them like the gateway does for a root.
+     */
+    private void merge(QueryCursor.ConcatMergeCursor cursor, byte[] left, byte[] right) throws IOException {
+        try (JsonGenerator generator = factory.createGenerator(NULL_OUTPUT)) {
+            generator.writeStartObject();
+            merge(cursor, left, right, generator);
+            generator.writeEndObject();
+        }
+    }
+
+    private void merge(QueryCursor.ConcatMergeCursor cursor, byte[] left, byte[] right, JsonGenerator generator) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        results.put(LEFT, objectMapper.readTree(left).get("data"));
+        results.put(RIGHT, objectMapper.readTree(right).get("data"));
+        cursor.addResults(results);
+        cursor.processOne(generator);
+    }
+
+    /**
+     * Both endpoints answering all attributes of a wide type versus the second one only answering the key.
+     */
+    @Test
+    public void benchmarkProjectionPushdownOnWideTypes() throws Exception {
+        Timing.assumeEnabled();
+        int items = 20_000;
+        List<Timing.Result> results = new ArrayList<>();
+        List<String> sizes = new ArrayList<>();
+        for (int width : new int[]{5, 20, 50}) {
+            List<String> attributes = attributes(width);
+            byte[] full = response(ids(0, items), attributes);
+            byte[] keysOnly = response(ids(0, items), new ArrayList<>());
+            sizes.add(String.format("%-48s %12s upstream", width + " attributes", Timing.bytes(2L * full.length)));
+            sizes.add(String.format("%-48s %12s upstream", width + " attributes pushed down", Timing.bytes(full.length + keysOnly.length)));
+            results.add(Timing.measure(width + " attributes", 2, 5,
+                    () -> merge(itemsCursor(attributes, false, JoinStrategy.HASH), full, full)));
+            results.add(Timing.measure(width + " attributes pushed down", 2, 5,
+                    () -> merge(itemsCursor(attributes, true, JoinStrategy.HASH), full, keysOnly)));
+        }
+        System.out.println("Responses of two endpoints with " + items + " items each\n" + String.join("\n", sizes));
+        Timing.report("Parsing and merging the responses", results);
+    }
+
+    /**
+     * A parser positioned at the items of the given response.
+     */
+    private JsonParser itemsParser(byte[] response) throws IOException {
+        JsonParser parser = factory.createParser(response);
+        while (parser.nextToken() != null) {
+            if (parser.currentToken() == JsonToken.FIELD_NAME && parser.getCurrentName().equals("items")) {
+                parser.nextToken();
+                return parser;
+            }
+        }
+        throw new IOException("No items in the response");
+    }
+
+    /**
+     * Joins the responses by sort-merge while reading them, returns the number of merged items.
+     */
+    private int mergeWhileReading(QueryCursor.ConcatMergeCursor cursor, byte[] left, byte[] right) throws IOException {
+        Map<String, JsonParser> parsers = new LinkedHashMap<>();
+        parsers.put(LEFT, itemsParser(left));
+        parsers.put(RIGHT, itemsParser(right));
+        try (JsonGenerator generator = factory.createGenerator(NULL_OUTPUT)) {
+            generator.setRootValueSeparator(null);
+            return cursor.processSorted(parsers, objectMapper, new SerializedString("\n"), generator);
+        } finally {
+            for (JsonParser parser : parsers.values()) {
+                parser.close();
+            }
+        }
+    }
+
+    /**
+     * Hash join versus sort-merge join of results ordered by id, where half of the items of every endpoint are shared.
+     */
+    @Test
+    public void benchmarkSortMergeVersusHashJoin() throws Exception {
+        Timing.assumeEnabled();
+        List<String> attributes = attributes(10);
+        List<Timing.Result> results = new ArrayList<>();
+        for (int items : new int[]{10_000, 50_000, 200_000}) {
+            byte[] left = response(ids(0, items), attributes);
+            byte[] right = response(ids(items / 2, items), attributes);
+            assertEquals(items + items / 2, mergeWhileReading(itemsCursor(attributes, false, JoinStrategy.SORT_MERGE), left, right));
+            results.add(Timing.measure(items + " items hash join", 2, 5,
+                    () -> merge(itemsCursor(attributes, false, JoinStrategy.HASH), left, right)));
+            results.add(Timing.measure(items + " items sort-merge", 2, 5,
+                    () -> merge(itemsCursor(attributes, false, JoinStrategy.SORT_MERGE), left, right)));
+            results.add(Timing.measure(items + " items sort-merge while reading", 2, 5,
+                    () -> mergeWhileReading(itemsCursor(attributes, false, JoinStrategy.SORT_MERGE), left, right)));
+        }
+        Timing.report("Joining two endpoints by id", results);
+    }
+
+    /**
+     * Merges the responses in the given files in memory.
+     */
+    private void mergeInMemory(QueryCursor.ConcatMergeCursor cursor, File left, File right) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        results.put(LEFT, objectMapper.readTree(left).get("data"));
+        results.put(RIGHT, objectMapper.readTree(right).get("data"));
+        cursor.addResults(results);
+        try (JsonGenerator generator = factory.createGenerator(NULL_OUTPUT)) {
+            generator.writeStartObject();
+            cursor.processOne(generator);
+            generator.writeEndObject();
+        }
+    }
+
+    private void mergeSpilled(QueryCursor.ConcatMergeCursor cursor, File left, File right, File directory, int partitions) throws IOException {
+        Map<String, File> responses = new LinkedHashMap<>();
+        responses.put(LEFT, left);
+        responses.put(RIGHT, right);
+        try (JsonGenerator generator = factory.createGenerator(NULL_OUTPUT)) {
+            generator.writeStartObject();
+            cursor.processSpilled(responses, objectMapper, directory, partitions, generator);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Merging in memory versus spilling partitions to disk for growing results, where the partitions are chosen
+     * like GraphQLQueryDivider does for a fixed threshold, such that the heap used by spilled merges stays about the same.
+     */
+    @Test
+    public void benchmarkSpilledVersusInMemoryMerge() throws Exception {
+        Timing.assumeEnabled();
+        long threshold = 8L * 1024 * 1024;
+        List<String> attributes = attributes(10);
+        List<Timing.Result> results = new ArrayList<>();
+        File directory = Files.createTempDirectory("merge-benchmark").toFile();
+        try {
+            for (int items : new int[]{25_000, 100_000, 400_000}) {
+                File left = new File(directory, "left-" + items + ".json");
+                File right = new File(directory, "right-" + items + ".json");
+                Files.write(left.toPath(), response(ids(0, items), attributes));
+                Files.write(right.toPath(), response(ids(items / 2, items), attributes));
+                int partitions = (int) Math.min(256, Math.max(2, (left.length() + right.length()) * 4 / threshold + 1));
+                assertTrue(itemsCursor(attributes, false, JoinStrategy.HASH).canSpill());
+                results.add(Timing.measure(items + " items in memory", 1, 3,
+                        () -> mergeInMemory(itemsCursor(attributes, false, JoinStrategy.HASH), left, right)));
+                results.add(Timing.measure(items + " items spilled to " + partitions + " partitions", 1, 3,
+                        () -> mergeSpilled(itemsCursor(attributes, false, JoinStrategy.HASH), left, right, directory, partitions)));
+            }
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+        Timing.report("Merging two endpoints with a spill threshold of " + Timing.bytes(threshold), results);
+    }
+
+    private static List<GraphQLQuery.QueryRoot> roots(int count) {
+        List<GraphQLQuery.QueryRoot> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String field = "root" + i;
+            result.add(new GraphQLQuery.QueryRoot(field, false, Triple.edge(Name.identifier("Query." + field), Name.identifier("result").prefixWith(Name.identifier("Query." + field)), Name.identifier("Item"))));
+        }
+        return result;
+    }
+
+    private void writeSequentially(List<GraphQLQuery.QueryRoot> roots, GraphQLQueryDivider.RootWriter writer) throws IOException {
+        try (JsonGenerator generator = factory.createGenerator(NULL_OUTPUT)) {
+            generator.writeStartObject();
+            for (GraphQLQuery.QueryRoot root : roots) {
+                writer.write(root, generator);
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private void writeInParallel(ForkJoinPool pool, List<GraphQLQuery.QueryRoot> roots, GraphQLQueryDivider.RootWriter writer) throws IOException {
+        try (JsonGenerator generator = factory.createGenerator(NULL_OUTPUT)) {
+            generator.writeStartObject();
+            GraphQLQueryDivider.writeRootsInParallel(pool, objectMapper, roots, writer, generator);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Merging the roots of a query one after the other versus on a fork-join pool, where every root joins two endpoints.
+     */
+    @Test
+    public void benchmarkParallelVersusSequentialRoots() throws Exception {
+        Timing.assumeEnabled();
+        int items = 20_000;
+        List<String> attributes = attributes(10);
+        byte[] left = response(ids(0, items), attributes);
+        byte[] right = response(ids(items / 2, items), attributes);
+        GraphQLQueryDivider.RootWriter writer = (root, generator) -> merge(itemsCursor(attributes, false, JoinStrategy.HASH), left, right, generator);
+        int cores = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(cores);
+        List<Timing.Result> results = new ArrayList<>();
+        try {
+            for (int count : new int[]{1, 4, 16}) {
+                List<GraphQLQuery.QueryRoot> roots = roots(count);
+                results.add(Timing.measure(count + " roots sequentially", 2, 5, () -> writeSequentially(roots, writer)));
+                results.add(Timing.measure(count + " roots in parallel", 2, 5, () -> writeInParallel(pool, roots, writer)));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        // CPU time only covers the calling thread, the wall time is what counts here
+        Timing.report("Merging roots of " + items + " items each on " + cores + " cores", results);
+    }
+
+    /**
+     * The data of a local response with the given number of orders, each with the given number of lines.
+     */
+    private JsonNode orders(int orders, int lines) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (JsonGenerator generator = factory.createGenerator(bos)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("orders");
+            for (int o = 0; o < orders; o++) {
+                generator.writeStartObject();
+                generator.writeStringField("id", String.valueOf(o));
+                generator.writeArrayFieldStart("lines");
+                for (int l = 0; l < lines; l++) {
+                    generator.writeStartObject();
+                    generator.writeNumberField("no", l);
+                    generator.writeNumberField("amount", o + l);
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return objectMapper.readTree(bos.toByteArray());
+    }
+
+    /**
+     * Concatenates the orders with their nested lines of both endpoints.
+     */
+    private void concatOrders(JsonNode left, JsonNode right) throws IOException {
+        Map<String, QueryCursor.LocalCursor> roots = new LinkedHashMap<>();
+        Map<String, QueryCursor.LocalCursor> ids = new LinkedHashMap<>();
+        Map<String, QueryCursor.LocalCursor> lines = new LinkedHashMap<>();
+        Map<String, QueryCursor.LocalCursor> numbers = new LinkedHashMap<>();
+        Map<String, QueryCursor.LocalCursor> amounts = new LinkedHashMap<>();
+        for (String system : new String[]{LEFT, RIGHT}) {
+            QueryCursor.LocalCursor root = new QueryCursor.LocalCursor(sel("orders", true, true));
+            QueryCursor.LocalCursor line = new QueryCursor.LocalCursor(sel("lines", true, true), root);
+            roots.put(system, root);
+            ids.put(system, new QueryCursor.LocalCursor(sel("id", false, false), root));
+            lines.put(system, line);
+            numbers.put(system, new QueryCursor.LocalCursor(sel("no", false, false), line));
+            amounts.put(system, new QueryCursor.LocalCursor(sel("amount", false, false), line));
+        }
+        QueryCursor.ConcatCursor ordersRoot = new QueryCursor.ConcatCursor(sel("orders", true, true), roots);
+        new QueryCursor.ConcatCursor(sel("id", false, false), ordersRoot, ids);
+        QueryCursor.ConcatCursor linesCursor = new QueryCursor.ConcatCursor(sel("lines", true, true), ordersRoot, lines);
+        new QueryCursor.ConcatCursor(sel("no", false, false), linesCursor, numbers);
+        new QueryCursor.ConcatCursor(sel("amount", false, false), linesCursor, amounts);
+
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        results.put(LEFT, left);
+        results.put(RIGHT, right);
+        ordersRoot.addResults(results);
+        try (JsonGenerator generator = factory.createGenerator(NULL_OUTPUT)) {
+            generator.writeStartObject();
+            ordersRoot.processOne(generator);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Merging nested lists up to 10k orders with 100 lines each, which has to scale linearly in the number of lines.
+     */
+    @Test
+    public void benchmarkNestedListsScaleLinearly() throws Exception {
+        Timing.assumeEnabled();
+        int lines = 100;
+        int[] orders = {1_000, 3_000, 10_000};
+        int[] sizes = new int[orders.length];
+        List<Timing.Result> results = new ArrayList<>();
+        for (int i = 0; i < orders.length; i++) {
+            sizes[i] = orders[i] * lines;
+            JsonNode left = orders(orders[i] / 2, lines);
+            JsonNode right = orders(orders[i] - orders[i] / 2, lines);
+            results.add(Timing.measure(orders[i] + " orders with " + lines + " lines", 2, 5, () -> concatOrders(left, right)));
+        }
+        Timing.report("Concatenating nested lists of two endpoints", results);
+        // consuming the lists by removing their first element would take about ten times longer per line for the largest result
+        Timing.assertLinear(sizes, results, 4);
+    }
+}
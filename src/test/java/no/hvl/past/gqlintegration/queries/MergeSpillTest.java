@@ -0,0 +1,107 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MergeSpillTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("merge-spill-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] left = directory.listFiles();
+        if (left != null) {
+            for (File file : left) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testSpilledPartitionsRoundTrip() throws IOException {
+        JsonNode first = objectMapper.readTree("{\"id\" : \"1\", \"name\" : \"Ban Geyton\", \"tags\" : [1, 2]}");
+        JsonNode second = objectMapper.readTree("{\"id\" : \"1\", \"name\" : null}");
+        JsonNode other = objectMapper.readTree("{\"id\" : \"2\"}");
+
+        List<String> read = new ArrayList<>();
+        try (MergeSpill spill = new MergeSpill(directory, 4)) {
+            assertEquals(4, spill.partitions());
+            int partition = spill.partition("1");
+            assertEquals(partition, spill.partition("1"));
+            spill.write(partition, 0, first);
+            spill.write(partition, 1, second);
+            spill.write(spill.partition("2"), 1, other);
+
+            spill.read(partition, (system, node) -> read.add(system + ":" + node));
+            if (spill.partition("2") != partition) {
+                List<String> others = new ArrayList<>();
+                spill.read(spill.partition("2"), (system, node) -> others.add(system + ":" + node));
+                assertEquals(1, others.size());
+                assertEquals("1:" + other, others.get(0));
+            }
+        }
+        assertEquals("0:" + first, read.get(0));
+        assertEquals("1:" + second, read.get(1));
+    }
+
+    @Test
+    public void testObjectsWithoutKeyValueAreSpreadOverPartitions() throws IOException {
+        try (MergeSpill spill = new MergeSpill(directory, 3)) {
+            int a = spill.partition(null);
+            int b = spill.partition(null);
+            int c = spill.partition(null);
+            assertEquals(3, spill.partitions());
+            assertTrue(a != b && b != c && a != c);
+        }
+    }
+
+    @Test
+    public void testFilesAreDeletedOnClose() throws IOException {
+        MergeSpill spill = new MergeSpill(directory, 2);
+        assertEquals(2, directory.listFiles().length);
+        spill.write(0, 0, objectMapper.readTree("{\"id\" : \"1\"}"));
+        // the first partition is mapped while reading, the second one is never read
+        spill.read(0, (system, node) -> { });
+        spill.close();
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testEmptyPartitionIsNotRead() throws IOException {
+        try (MergeSpill spill = new MergeSpill(directory, 2)) {
+            List<JsonNode> read = new ArrayList<>();
+            spill.read(1, (system, node) -> read.add(node));
+            assertTrue(read.isEmpty());
+        }
+    }
+
+    @Test
+    public void testMoveToField() throws IOException {
+        JsonParser parser = objectMapper.getFactory().createParser("{\"errors\" : [ {\"message\" : \"x\"} ], \"data\" : {\"items\" : []}}");
+        parser.nextToken();
+        assertTrue(MergeSpill.moveToField(parser, "data"));
+        assertTrue(parser.currentToken().isStructStart());
+        assertFalse(MergeSpill.moveToField(parser, "others"));
+    }
+}
@@ -0,0 +1,189 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import no.hvl.past.gqlintegration.GraphQLEndpoint;
+import no.hvl.past.graph.elements.Triple;
+import no.hvl.past.names.Name;
+import no.hvl.past.systems.Sys;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MutationSchedulerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Sys endpoint1 = endpoint("http://1");
+    private final Sys endpoint2 = endpoint("http://2");
+
+    /**
+     * The mutation { a b c } where a and c are answered by the first endpoint and b by the second.
+     */
+    private final GraphQLQuery mutation = new GraphQLQuery(Arrays.asList(root("a"), root("b"), root("c")), null, Name.identifier("mutation"));
+
+    /**
+     * Records every request as the url of the endpoint followed by the root fields of the request,
+     * and answers every root field with "ok" or with an error if it is the failing field.
+     */
+    private static class RecordingSender implements MutationScheduler.Sender {
+
+        private final ObjectMapper objectMapper = new ObjectMapper();
+        private final String failingField;
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingSender(String failingField) {
+            this.failingField = failingField;
+        }
+
+        @Override
+        public InputStream send(Sys endpoint, GraphQLQuery localMutation) throws IOException {
+            StringJoiner fields = new StringJoiner(",", endpoint.url() + ":", "");
+            ObjectNode response = objectMapper.createObjectNode();
+            ObjectNode data = response.putObject("data");
+            for (GraphQLQuery.QueryRoot root : localMutation.getRoots()) {
+                fields.add(root.field());
+                if (root.field().equals(failingField)) {
+                    data.putNull(root.field());
+                    response.putArray("errors").addObject().put("message", root.field() + " failed");
+                } else {
+                    data.put(root.field(), "ok");
+                }
+            }
+            requests.add(fields.toString());
+            return new ByteArrayInputStream(objectMapper.writeValueAsBytes(response));
+        }
+    }
+
+    private static Sys endpoint(String url) {
+        return new GraphQLEndpoint(url, null, Collections.emptyMap(), Collections.emptyList(), Collections.emptySet(), Collections.emptySet(), null, null, "Query", "Mutation");
+    }
+
+    private static GraphQLQuery.QueryRoot root(String field) {
+        return new GraphQLQuery.QueryRoot(field, true, Triple.edge(Name.identifier("Mutation." + field), Name.identifier("result").prefixWith(Name.identifier("Mutation." + field)), Name.identifier("String")));
+    }
+
+    private Map<Sys, GraphQLQuery> split(GraphQLQuery mutation) {
+        Map<Sys, List<GraphQLQuery.QueryRoot>> roots = new LinkedHashMap<>();
+        for (GraphQLQuery.QueryRoot root : mutation.getRoots()) {
+            roots.computeIfAbsent(root.field().equals("b") ? endpoint2 : endpoint1, k -> new ArrayList<>()).add(root);
+        }
+        Map<Sys, GraphQLQuery> result = new LinkedHashMap<>();
+        for (Map.Entry<Sys, List<GraphQLQuery.QueryRoot>> local : roots.entrySet()) {
+            result.put(local.getKey(), mutation.select(local.getValue()));
+        }
+        return result;
+    }
+
+    private Map<Sys, JsonNode> execute(MutationScheduler scheduler, RecordingSender sender) throws IOException {
+        Map<Sys, JsonNode> result = new LinkedHashMap<>();
+        for (Map.Entry<Sys, InputStream> response : scheduler.execute(mutation, this::split, sender, objectMapper).entrySet()) {
+            result.put(response.getKey(), objectMapper.readTree(response.getValue()));
+        }
+        return result;
+    }
+
+    @Test
+    public void testPerEndpointBatchesAllPartsOfAnEndpoint() throws IOException {
+        MutationScheduler scheduler = new MutationScheduler();
+        RecordingSender sender = new RecordingSender(null);
+        Map<Sys, JsonNode> responses = execute(scheduler, sender);
+
+        assertEquals(Arrays.asList("http://1:a,c", "http://2:b"), sender.requests);
+        assertEquals(objectMapper.readTree("{\"data\" : {\"a\" : \"ok\", \"c\" : \"ok\"}}"), responses.get(endpoint1));
+        assertEquals(objectMapper.readTree("{\"data\" : {\"b\" : \"ok\"}}"), responses.get(endpoint2));
+    }
+
+    @Test
+    public void testSerialExecutesRootAfterRoot() throws IOException {
+        MutationScheduler scheduler = new MutationScheduler();
+        scheduler.setOrdering(MutationScheduler.Ordering.SERIAL);
+        RecordingSender sender = new RecordingSender(null);
+        Map<Sys, JsonNode> responses = execute(scheduler, sender);
+
+        assertEquals(Arrays.asList("http://1:a", "http://2:b", "http://1:c"), sender.requests);
+        // the parts of every endpoint are combined into one response again
+        assertEquals(objectMapper.readTree("{\"data\" : {\"a\" : \"ok\", \"c\" : \"ok\"}}"), responses.get(endpoint1));
+    }
+
+    @Test
+    public void testSerialWaitsForAllEndpointsOfAStage() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            MutationScheduler scheduler = new MutationScheduler();
+            scheduler.setOrdering(MutationScheduler.Ordering.SERIAL);
+            scheduler.setExecutor(executor);
+            RecordingSender sender = new RecordingSender(null);
+            for (int i = 0; i < 20; i++) {
+                sender.requests.clear();
+                scheduler.execute(mutation, this::split, sender, objectMapper);
+                assertEquals("http://1:c", sender.requests.get(2));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecutorMakesSerialTheDefault() throws Exception {
+        MutationScheduler scheduler = new MutationScheduler();
+        assertEquals(MutationScheduler.Ordering.PER_ENDPOINT, scheduler.getOrdering());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            scheduler.setExecutor(executor);
+            assertEquals(MutationScheduler.Ordering.SERIAL, scheduler.getOrdering());
+            RecordingSender sender = new RecordingSender(null);
+            execute(scheduler, sender);
+            // c may depend on what b wrote at the other endpoint
+            assertEquals("http://1:c", sender.requests.get(2));
+
+            scheduler.setOrdering(MutationScheduler.Ordering.PER_ENDPOINT);
+            assertEquals(MutationScheduler.Ordering.PER_ENDPOINT, scheduler.getOrdering());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUnbatchedEndpointGetsOneRequestPerRoot() throws IOException {
+        MutationScheduler scheduler = new MutationScheduler();
+        scheduler.setBatching("http://1", false);
+        RecordingSender sender = new RecordingSender(null);
+        Map<Sys, JsonNode> responses = execute(scheduler, sender);
+
+        assertEquals(Arrays.asList("http://1:a", "http://1:c", "http://2:b"), sender.requests);
+        assertEquals(objectMapper.readTree("{\"data\" : {\"a\" : \"ok\", \"c\" : \"ok\"}}"), responses.get(endpoint1));
+
+        scheduler.setBatching("http://1", true);
+        sender.requests.clear();
+        execute(scheduler, sender);
+        assertEquals(Arrays.asList("http://1:a,c", "http://2:b"), sender.requests);
+    }
+
+    @Test
+    public void testErrorsAreCombinedAndStopTheEndpoint() throws IOException {
+        MutationScheduler scheduler = new MutationScheduler();
+        scheduler.setBatching("http://1", false);
+
+        RecordingSender failingLast = new RecordingSender("c");
+        JsonNode response = execute(scheduler, failingLast).get(endpoint1);
+        assertEquals(objectMapper.readTree("{\"a\" : \"ok\", \"c\" : null}"), response.get("data"));
+        assertEquals("c failed", response.get("errors").get(0).get("message").textValue());
+
+        RecordingSender failingFirst = new RecordingSender("a");
+        response = execute(scheduler, failingFirst).get(endpoint1);
+        // the part after the failed one is not sent
+        assertEquals(Arrays.asList("http://1:a", "http://2:b"), failingFirst.requests);
+        assertTrue(response.has("errors"));
+        assertFalse(response.get("data").has("c"));
+    }
+}
@@ -0,0 +1,159 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.hvl.past.graph.elements.Triple;
+import no.hvl.past.names.Name;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelMergeTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @After
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static List<GraphQLQuery.QueryRoot> roots(int count) {
+        List<GraphQLQuery.QueryRoot> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String field = "root" + i;
+            result.add(new GraphQLQuery.QueryRoot(field, false, Triple.edge(Name.identifier("Query." + field), Name.identifier("result").prefixWith(Name.identifier("Query." + field)), Name.identifier("Item"))));
+        }
+        return result;
+    }
+
+    /**
+     * Writes a list of objects for the root, earlier roots take longer such that they finish last.
+     */
+    private static void write(GraphQLQuery.QueryRoot root, JsonGenerator generator, int roots) throws IOException {
+        int index = Integer.parseInt(root.field().substring(4));
+        pause(2L * (roots - index));
+        generator.writeFieldName(root.field());
+        generator.writeStartArray();
+        for (int i = 0; i < 50; i++) {
+            generator.writeStartObject();
+            generator.writeNumberField("index", i);
+            generator.writeStringField("name", root.field() + "-" + i);
+            generator.writeNullField("missing");
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String sequential(List<GraphQLQuery.QueryRoot> roots) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        generator.writeStartObject();
+        for (GraphQLQuery.QueryRoot root : roots) {
+            write(root, generator, roots.size());
+        }
+        generator.writeEndObject();
+        generator.close();
+        return out.toString("UTF-8");
+    }
+
+    private String parallel(List<GraphQLQuery.QueryRoot> roots, GraphQLQueryDivider.RootWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        generator.writeStartObject();
+        GraphQLQueryDivider.writeRootsInParallel(pool, objectMapper, roots, writer, generator);
+        generator.writeEndObject();
+        generator.close();
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testSameOutputAsSequentialMerge() throws IOException {
+        List<GraphQLQuery.QueryRoot> roots = roots(8);
+        String expected = sequential(roots);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(expected, parallel(roots, (root, generator) -> write(root, generator, roots.size())));
+        }
+    }
+
+    @Test
+    public void testIOExceptionOfARootIsRethrown() {
+        List<GraphQLQuery.QueryRoot> roots = roots(4);
+        try {
+            parallel(roots, (root, generator) -> {
+                if (root.field().equals("root2")) {
+                    throw new IOException("root2 failed");
+                }
+                write(root, generator, roots.size());
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("root2 failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRuntimeExceptionOfARootIsRethrownUnwrapped() throws IOException {
+        List<GraphQLQuery.QueryRoot> roots = roots(4);
+        try {
+            parallel(roots, (root, generator) -> {
+                if (root.field().equals("root0")) {
+                    throw new IllegalStateException("root0 failed");
+                }
+                write(root, generator, roots.size());
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("root0 failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRootsAfterAFailedOneAreCancelled() throws Exception {
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            List<GraphQLQuery.QueryRoot> roots = roots(20);
+            AtomicInteger written = new AtomicInteger();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+            generator.writeStartObject();
+            try {
+                GraphQLQueryDivider.writeRootsInParallel(single, objectMapper, roots, (root, g) -> {
+                    if (root.field().equals("root0")) {
+                        throw new IOException("root0 failed");
+                    }
+                    pause(10);
+                    written.incrementAndGet();
+                    g.writeNullField(root.field());
+                }, generator);
+                fail();
+            } catch (IOException e) {
+                assertEquals("root0 failed", e.getMessage());
+            }
+            single.shutdown();
+            single.awaitTermination(5, TimeUnit.SECONDS);
+            assertTrue(written.get() < 19);
+        } finally {
+            single.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package no.hvl.past.gqlintegration.queries;
+
+import com.google.common.collect.ArrayListMultimap;
+import no.hvl.past.gqlintegration.GraphQLEndpoint;
+import no.hvl.past.graph.elements.Triple;
+import no.hvl.past.names.Name;
+import no.hvl.past.systems.Sys;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueryPlannerTest {
+
+    private final Sys endpoint1 = endpoint("http://1");
+    private final Sys endpoint2 = endpoint("http://2");
+    private final Sys endpoint3 = endpoint("http://3");
+
+    private final GraphQLQuery query = new GraphQLQuery(Collections.singletonList(root("items")), null, Name.identifier("query"));
+
+    private static Sys endpoint(String url) {
+        return new GraphQLEndpoint(url, null, Collections.emptyMap(), Collections.emptyList(), Collections.emptySet(), Collections.emptySet(), null, null, "Query", "Mutation");
+    }
+
+    private static GraphQLQuery.QueryRoot root(String field) {
+        return new GraphQLQuery.QueryRoot(field, false, Triple.edge(Name.identifier("Query." + field), Name.identifier("result").prefixWith(Name.identifier("Query." + field)), Name.identifier("Item")));
+    }
+
+    private static GraphQLQuery.AbstractSelection sel(String f, boolean listValued, boolean complex) {
+        return new GraphQLQuery.AbstractSelection() {
+            @Override
+            public Triple edge() {
+                return null;
+            }
+
+            @Override
+            public String field() {
+                return f;
+            }
+
+            @Override
+            public boolean isListValued() {
+                return listValued;
+            }
+
+            @Override
+            public boolean isComplex() {
+                return complex;
+            }
+        };
+    }
+
+    private Map<Sys, GraphQLQuery> localQueries(Sys... endpoints) {
+        Map<Sys, GraphQLQuery> result = new LinkedHashMap<>();
+        for (Sys endpoint : endpoints) {
+            result.put(endpoint, query);
+        }
+        return result;
+    }
+
+    private static List<String> urls(Collection<Sys> endpoints) {
+        return endpoints.stream().map(Sys::url).collect(Collectors.toList());
+    }
+
+    private static List<String> skipped(QueryPlanner.Plan plan) {
+        return plan.getSteps().stream().filter(QueryPlanner.Step::isSkipped).map(s -> s.getEndpoint().url()).collect(Collectors.toList());
+    }
+
+    /**
+     * The first endpoint always contributes to the root, the second one never.
+     */
+    private QueryPlanner skippingPlanner(int minSamples) {
+        QueryPlanner planner = new QueryPlanner();
+        planner.setSkipThreshold(0);
+        planner.setMinSamples(minSamples);
+        for (int i = 0; i < minSamples; i++) {
+            planner.recordContribution(endpoint1, "items", true);
+            planner.recordContribution(endpoint2, "items", false);
+        }
+        return planner;
+    }
+
+    @Test
+    public void testSlowestEndpointsFirst() {
+        QueryPlanner planner = new QueryPlanner();
+        planner.recordLatency(endpoint1, 10);
+        planner.recordLatency(endpoint2, 300);
+        planner.recordLatency(endpoint3, 50);
+        QueryPlanner.Plan plan = planner.plan(query, localQueries(endpoint1, endpoint2, endpoint3));
+
+        assertEquals(Arrays.asList("http://2", "http://3", "http://1"), urls(plan.executedQueries().keySet()));
+        assertEquals(360, plan.estimatedSequentialLatencyMillis(), 0.001);
+        assertEquals(300, plan.estimatedParallelLatencyMillis(), 0.001);
+
+        // later samples move the average towards them
+        for (int i = 0; i < 50; i++) {
+            planner.recordLatency(endpoint1, 1000);
+        }
+        assertEquals("http://1", planner.plan(query, localQueries(endpoint1, endpoint2, endpoint3)).getSteps().get(0).getEndpoint().url());
+    }
+
+    @Test
+    public void testNothingIsSkippedByDefault() {
+        QueryPlanner planner = new QueryPlanner();
+        for (int i = 0; i < 100; i++) {
+            planner.recordContribution(endpoint2, "items", false);
+        }
+        assertTrue(skipped(planner.plan(query, localQueries(endpoint1, endpoint2))).isEmpty());
+    }
+
+    @Test
+    public void testNothingIsSkippedBeforeEnoughSamples() {
+        QueryPlanner planner = skippingPlanner(5);
+        planner.setMinSamples(6);
+        assertTrue(skipped(planner.plan(query, localQueries(endpoint1, endpoint2))).isEmpty());
+    }
+
+    @Test
+    public void testEndpointsThatNeverContributeAreSkippedAndProbed() {
+        QueryPlanner planner = skippingPlanner(3);
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            QueryPlanner.Plan plan = planner.plan(query, localQueries(endpoint1, endpoint2));
+            sent.add(plan.executedQueries().keySet().contains(endpoint2) ? "sent" : "skipped");
+            // skipped steps come last
+            assertEquals("http://1", plan.getSteps().get(0).getEndpoint().url());
+        }
+        // every fourth plan probes the skipped endpoint
+        assertEquals(Arrays.asList("skipped", "skipped", "skipped", "sent", "skipped", "skipped", "skipped", "sent"), sent);
+    }
+
+    @Test
+    public void testEndpointsThatContributeToAnyRootAreNotSkipped() {
+        QueryPlanner planner = skippingPlanner(3);
+        for (int i = 0; i < 3; i++) {
+            planner.recordContribution(endpoint2, "others", true);
+        }
+        GraphQLQuery twoRoots = new GraphQLQuery(Arrays.asList(root("items"), root("others")), null, Name.identifier("query"));
+        assertTrue(skipped(planner.plan(twoRoots, localQueries(endpoint1, endpoint2))).isEmpty());
+    }
+
+    @Test
+    public void testRequiredEndpointsAreNeverSkipped() {
+        QueryPlanner planner = skippingPlanner(3);
+        for (int i = 0; i < 10; i++) {
+            QueryPlanner.Plan plan = planner.plan(query, localQueries(endpoint1, endpoint2), Collections.singleton(endpoint2));
+            assertTrue(skipped(plan).isEmpty());
+        }
+        // and do not count as skipped in a row
+        assertEquals(Collections.singletonList("http://2"), skipped(planner.plan(query, localQueries(endpoint1, endpoint2))));
+    }
+
+    @Test
+    public void testExplainDoesNotAffectLaterPlans() {
+        QueryPlanner planner = skippingPlanner(1);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(planner.explain(query, localQueries(endpoint1, endpoint2), Collections.emptySet()).contains("   skip http://2"));
+        }
+        assertEquals(Collections.singletonList("http://2"), skipped(planner.plan(query, localQueries(endpoint1, endpoint2))));
+        assertTrue(skipped(planner.plan(query, localQueries(endpoint1, endpoint2))).isEmpty());
+    }
+
+    @Test
+    public void testSoleSourcesOfMergedObjects() {
+        QueryCursor.LocalCursor items1 = new QueryCursor.LocalCursor(sel("items", true, true));
+        QueryCursor.LocalCursor id1 = new QueryCursor.LocalCursor(sel("id", false, false), items1);
+        QueryCursor.LocalCursor name1 = new QueryCursor.LocalCursor(sel("name", false, false), items1);
+        QueryCursor.LocalCursor items2 = new QueryCursor.LocalCursor(sel("items", true, true));
+        QueryCursor.LocalCursor id2 = new QueryCursor.LocalCursor(sel("id", false, false), items2);
+        QueryCursor.LocalCursor items3 = new QueryCursor.LocalCursor(sel("items", true, true));
+        QueryCursor.LocalCursor id3 = new QueryCursor.LocalCursor(sel("id", false, false), items3);
+        QueryCursor.LocalCursor code3 = new QueryCursor.LocalCursor(sel("code", false, false), items3);
+
+        Map<String, QueryCursor.LocalCursor> roots = new LinkedHashMap<>();
+        roots.put("http://1", items1);
+        roots.put("http://2", items2);
+        roots.put("http://3", items3);
+        QueryCursor.ConcatMergeCursor merged = new QueryCursor.ConcatMergeCursor(sel("items", true, true), roots, ArrayListMultimap.create());
+        Map<String, QueryCursor.LocalCursor> ids = new LinkedHashMap<>();
+        ids.put("http://1", id1);
+        ids.put("http://2", id2);
+        ids.put("http://3", id3);
+        new QueryCursor.ConcatCursor(sel("id", false, false), merged, ids);
+        // name is pushed down to the first endpoint, code is only provided by the third one
+        new QueryCursor.ConcatCursor(sel("name", false, false), merged, Collections.singletonMap("http://1", name1));
+        new QueryCursor.ConcatCursor(sel("code", false, false), merged, Collections.singletonMap("http://3", code3));
+
+        GraphQLQuery.QueryRoot root = root("items");
+        root.cursor = merged;
+        GraphQLQuery mergedQuery = new GraphQLQuery(Collections.singletonList(root), null, Name.identifier("query"));
+        assertEquals(new HashSet<>(Arrays.asList("http://1", "http://3")), QueryPlanner.soleSources(mergedQuery));
+
+        // roots that are only concatenated have no sole sources
+        GraphQLQuery.QueryRoot concatenated = root("items");
+        concatenated.cursor = new QueryCursor.ConcatCursor(sel("items", true, true), Collections.singletonMap("http://2", items2));
+        assertTrue(QueryPlanner.soleSources(new GraphQLQuery(Collections.singletonList(concatenated), null, Name.identifier("query"))).isEmpty());
+    }
+}
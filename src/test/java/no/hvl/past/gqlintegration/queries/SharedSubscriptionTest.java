@@ -0,0 +1,232 @@
+package no.hvl.past.gqlintegration.queries;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharedSubscriptionTest {
+
+    private static final byte[] COMPLETE = "complete;".getBytes(StandardCharsets.UTF_8);
+
+    private final AtomicInteger closedUpstreams = new AtomicInteger();
+    private final List<SharedSubscription> closedSubscriptions = new ArrayList<>();
+
+    private SharedSubscription subscription() {
+        return new SharedSubscription("subscription { items }", COMPLETE, closedSubscriptions::add);
+    }
+
+    private void open(SharedSubscription subscription, int upstreams) throws IOException {
+        subscription.open(s -> {
+            for (int i = 0; i < upstreams; i++) {
+                s.addUpstream(closedUpstreams::incrementAndGet);
+            }
+        });
+    }
+
+    private static SharedSubscription.Frame frame(String text) {
+        return () -> (text + ";").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Blocks every write until it is released.
+     */
+    private static class BlockingOutputStream extends OutputStream {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch writing = new CountDownLatch(1);
+
+        @Override
+        public void write(int b) throws IOException {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Test
+    public void testClientsShareTheEvents() throws IOException {
+        SharedSubscription subscription = subscription();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        SharedSubscription.Sink firstSink = new SharedSubscription.Sink(first, 10);
+        SharedSubscription.Sink secondSink = new SharedSubscription.Sink(second, 10);
+        assertTrue(subscription.attach(firstSink));
+        open(subscription, 2);
+        subscription.publish(frame("a"));
+        assertTrue(subscription.attach(secondSink));
+        subscription.publish(frame("b"));
+        subscription.upstreamCompleted();
+        assertFalse(subscription.isClosed());
+        subscription.upstreamCompleted();
+
+        firstSink.writeUntilDone();
+        secondSink.writeUntilDone();
+        assertEquals("a;b;complete;", first.toString("UTF-8"));
+        assertEquals("b;complete;", second.toString("UTF-8"));
+        assertTrue(subscription.isClosed());
+        assertEquals(2, closedUpstreams.get());
+        assertEquals(1, closedSubscriptions.size());
+        assertFalse(subscription.attach(new SharedSubscription.Sink(new ByteArrayOutputStream(), 10)));
+    }
+
+    @Test
+    public void testLastClientClosesTheUpstreams() throws IOException {
+        SharedSubscription subscription = subscription();
+        SharedSubscription.Sink first = new SharedSubscription.Sink(new ByteArrayOutputStream(), 10);
+        SharedSubscription.Sink second = new SharedSubscription.Sink(new ByteArrayOutputStream(), 10);
+        subscription.attach(first);
+        open(subscription, 1);
+        subscription.attach(second);
+
+        subscription.detach(first);
+        assertFalse(subscription.isClosed());
+        assertEquals(0, closedUpstreams.get());
+        subscription.detach(second);
+        assertTrue(subscription.isClosed());
+        assertEquals(1, closedUpstreams.get());
+
+        // upstreams that are opened after closing are closed right away
+        subscription.addUpstream(closedUpstreams::incrementAndGet);
+        assertEquals(2, closedUpstreams.get());
+        subscription.publish(frame("ignored"));
+    }
+
+    @Test
+    public void testSubscriptionWithoutUpstreamsCompletes() throws IOException {
+        SharedSubscription subscription = subscription();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SharedSubscription.Sink sink = new SharedSubscription.Sink(out, 10);
+        subscription.attach(sink);
+        open(subscription, 0);
+        sink.writeUntilDone();
+        assertEquals("complete;", out.toString("UTF-8"));
+        assertTrue(subscription.isClosed());
+    }
+
+    @Test
+    public void testFailureEndsAllClients() throws IOException {
+        SharedSubscription subscription = subscription();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SharedSubscription.Sink sink = new SharedSubscription.Sink(out, 10);
+        subscription.attach(sink);
+        open(subscription, 2);
+        subscription.fail(frame("error"));
+        subscription.fail(frame("again"));
+        sink.writeUntilDone();
+        assertEquals("error;complete;", out.toString("UTF-8"));
+        assertEquals(2, closedUpstreams.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testSlowClientIsDroppedWithoutHoldingUpTheOthers() throws Exception {
+        SharedSubscription subscription = subscription();
+        BlockingOutputStream slowOut = new BlockingOutputStream();
+        ByteArrayOutputStream fastOut = new ByteArrayOutputStream();
+        SharedSubscription.Sink slow = new SharedSubscription.Sink(slowOut, 2);
+        SharedSubscription.Sink fast = new SharedSubscription.Sink(fastOut, 100);
+        subscription.attach(slow);
+        subscription.attach(fast);
+        open(subscription, 1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> slowWriter = executor.submit(() -> {
+                slow.writeUntilDone();
+                return null;
+            });
+            subscription.publish(frame("0"));
+            // the slow client is stuck writing the first event
+            assertTrue(slowOut.writing.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i <= 10; i++) {
+                subscription.publish(frame(String.valueOf(i)));
+            }
+            assertEquals(1, subscription.clients());
+            assertTrue(slow.isGone());
+
+            slowOut.release.countDown();
+            slowWriter.get(5, TimeUnit.SECONDS);
+            subscription.upstreamCompleted();
+            fast.writeUntilDone();
+            assertEquals("0;1;2;3;4;5;6;7;8;9;10;complete;", fastOut.toString("UTF-8"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testClientThatHasGoneAwayIsDropped() throws Exception {
+        SharedSubscription subscription = subscription();
+        SharedSubscription.Sink gone = new SharedSubscription.Sink(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        }, 10);
+        subscription.attach(gone);
+        open(subscription, 1);
+        subscription.publish(frame("a"));
+        gone.writeUntilDone();
+        assertTrue(gone.isGone());
+
+        subscription.publish(frame("b"));
+        assertEquals(0, subscription.clients());
+        assertTrue(subscription.isClosed());
+        assertEquals(1, closedUpstreams.get());
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentAttachDetachAndPublish() throws Exception {
+        SharedSubscription subscription = subscription();
+        SharedSubscription.Sink first = new SharedSubscription.Sink(new ByteArrayOutputStream(), 1000);
+        subscription.attach(first);
+        open(subscription, 1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> clients = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                clients.add(executor.submit(() -> {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    SharedSubscription.Sink sink = new SharedSubscription.Sink(out, 1000);
+                    if (subscription.attach(sink)) {
+                        subscription.publish(frame("x"));
+                        subscription.detach(sink);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> client : clients) {
+                client.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // the first client kept the subscription open all along
+        assertFalse(subscription.isClosed());
+        assertEquals(1, subscription.clients());
+        subscription.detach(first);
+        assertTrue(subscription.isClosed());
+        assertEquals(1, closedUpstreams.get());
+        assertEquals(1, closedSubscriptions.size());
+    }
+}
@@ -0,0 +1,60 @@
+package no.hvl.past.gqlintegration.schema;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FieldNamesTest {
+
+    @Test
+    public void testEqualNamesShareOneInstance() {
+        SerializedString first = FieldNames.serialized(new String("fieldNamesTestName"));
+        SerializedString second = FieldNames.serialized(new String("fieldNamesTestName"));
+        assertSame(first, second);
+        assertEquals("fieldNamesTestName", first.getValue());
+    }
+
+    @Test
+    public void testInternReturnsTheCanonicalString() {
+        String canonical = FieldNames.intern(new String("fieldNamesTestIntern"));
+        assertSame(canonical, FieldNames.intern(new String("fieldNamesTestIntern")));
+        assertSame(canonical, FieldNames.serialized("fieldNamesTestIntern").getValue());
+        assertNull(FieldNames.intern(null));
+    }
+
+    @Test
+    public void testEncodingsAreThoseOfTheName() {
+        SerializedString name = FieldNames.serialized("fieldNames\"Testæ");
+        assertArrayEquals("fieldNames\"Testæ".getBytes(StandardCharsets.UTF_8), name.asUnquotedUTF8());
+        assertArrayEquals("fieldNames\\\"Testæ".getBytes(StandardCharsets.UTF_8), name.asQuotedUTF8());
+    }
+
+    @Test
+    public void testConcurrentInterningSharesOneInstance() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<SerializedString>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(executor.submit(() -> FieldNames.serialized(new String("fieldNamesTestConcurrent"))));
+            }
+            SerializedString expected = FieldNames.serialized("fieldNamesTestConcurrent");
+            for (Future<SerializedString> result : results) {
+                assertSame(expected, result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}